@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.openig.el.Bindings;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.RootContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the evaluation of pre-compiled expressions against request bindings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmark {
+
+    /** Evaluated expression, from a plain literal to a function call over a header value. */
+    @Param({ "literal",
+             "${request.method}",
+             "${request.headers['Host'][0]}",
+             "${request.uri.path}-${request.method}",
+             "${matches(request.uri.path, '^/api/v[0-9]+/')}" })
+    public String expression;
+
+    private Expression<Object> compiled;
+    private Bindings bindings;
+
+    /**
+     * Compiles the expression and builds the bindings.
+     *
+     * @throws Exception
+     *         if the expression is invalid
+     */
+    @Setup
+    public void setUp() throws Exception {
+        compiled = Expression.valueOf(expression, Object.class);
+        Request request = new Request().setMethod("GET").setUri("http://www.example.com/api/v1/users?_id=42");
+        request.getHeaders().put("Host", "www.example.com");
+        bindings = Bindings.bindings(new RootContext(), request);
+    }
+
+    /**
+     * Evaluates a pre-compiled expression.
+     *
+     * @return the evaluation result
+     */
+    @Benchmark
+    public Object eval() {
+        return compiled.eval(bindings);
+    }
+
+    /**
+     * Compiles, then evaluates the expression (what a non-cached expression would cost).
+     *
+     * @return the evaluation result
+     * @throws Exception
+     *         if the expression is invalid
+     */
+    @Benchmark
+    public Object compileAndEval() throws Exception {
+        return Expression.valueOf(expression, Object.class).eval(bindings);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.benchmarks;
+
+import static org.forgerock.openig.heap.Keys.BASEURI_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.ENDPOINT_REGISTRY_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TEMPORARY_STORAGE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.http.routing.Router;
+import org.forgerock.openig.decoration.baseuri.BaseUriDecorator;
+import org.forgerock.openig.heap.HeapImpl;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.io.TemporaryStorage;
+import org.forgerock.openig.log.NullLogSink;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Shared fixtures for the benchmarks.
+ */
+final class Fixtures {
+
+    /** Terminal handler that always answers with an empty {@literal 200 OK} response. */
+    static final Handler OK = new Handler() {
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            return Promises.newResultPromise(new Response(Status.OK));
+        }
+    };
+
+    private Fixtures() {
+    }
+
+    /**
+     * Builds a heap holding the minimal set of objects the gateway puts in its root heap (logs are discarded).
+     *
+     * @return a new heap
+     */
+    static HeapImpl newRootHeap() {
+        HeapImpl heap = new HeapImpl();
+        heap.put(TEMPORARY_STORAGE_HEAP_KEY, new TemporaryStorage());
+        heap.put(LOGSINK_HEAP_KEY, new NullLogSink());
+        heap.put(BASEURI_HEAP_KEY, new BaseUriDecorator());
+        heap.put(ENDPOINT_REGISTRY_HEAP_KEY, new EndpointRegistry(new Router(), "/"));
+        heap.put(TIME_SERVICE_HEAP_KEY, TimeService.SYSTEM);
+        return heap;
+    }
+
+    /**
+     * Creates an empty temporary directory, deleted when the JVM exits.
+     *
+     * @param prefix
+     *         directory name prefix
+     * @return the new directory
+     * @throws IOException
+     *         if the directory cannot be created
+     */
+    static File newTemporaryDirectory(final String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create temporary directory " + directory);
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * Deletes the given directory and its (flat) content.
+     *
+     * @param directory
+     *         directory to delete
+     */
+    static void deleteDirectory(final File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
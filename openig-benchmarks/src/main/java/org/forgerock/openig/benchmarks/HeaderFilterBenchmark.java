@@ -0,0 +1,97 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.filter.HeaderFilter;
+import org.forgerock.openig.util.MessageType;
+import org.forgerock.services.context.RootContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a {@link HeaderFilter} removing and adding a given number of request headers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderFilterBenchmark {
+
+    /** Number of headers removed, then added, by the filter. */
+    @Param({ "1", "10", "50" })
+    public int headers;
+
+    /** Number of unrelated headers already present in the request. */
+    @Param({ "10" })
+    public int existing;
+
+    private Filter filter;
+
+    /**
+     * Configures the filter.
+     *
+     * @throws Exception
+     *         if an expression is invalid
+     */
+    @Setup
+    public void setUp() throws Exception {
+        HeaderFilter headerFilter = new HeaderFilter(MessageType.REQUEST);
+        for (int i = 0; i < headers; i++) {
+            headerFilter.getRemovedHeaders().add("X-Removed-" + i);
+            headerFilter.getAddedHeaders().add("X-Added-" + i,
+                                               Expression.valueOf("${request.method}-" + i, String.class));
+        }
+        filter = headerFilter;
+    }
+
+    /**
+     * Filters a fresh request.
+     *
+     * @return the response
+     * @throws Exception
+     *         if the request cannot be filtered
+     */
+    @Benchmark
+    public Response filter() throws Exception {
+        Request request = new Request().setMethod("GET").setUri("http://www.example.com/");
+        for (int i = 0; i < existing; i++) {
+            request.getHeaders().put("X-Existing-" + i, "value");
+        }
+        for (int i = 0; i < headers; i++) {
+            request.getHeaders().put("X-Removed-" + i, "value");
+        }
+        return filter.filter(new RootContext(), request, Fixtures.OK).get();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.benchmarks;
+
+import static org.forgerock.openig.jwt.JwtCookieSession.OPENIG_JWT_SESSION;
+import static org.forgerock.util.time.Duration.duration;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.openig.jwt.JwtCookieSession;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.openig.log.NullLogSink;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the loading (decryption) and saving (encryption) of a {@link JwtCookieSession} holding a given number of
+ * attributes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtCookieSessionBenchmark {
+
+    /** Number of attributes stored in the session (the cookie has to stay under 4KB). */
+    @Param({ "1", "5", "40" })
+    public int attributes;
+
+    private final Logger logger = new Logger(new NullLogSink(), Name.of("session"));
+    private final Duration timeout = duration("30 minutes");
+    private KeyPair pair;
+    private String cookie;
+
+    /**
+     * Generates the key pair and a cookie holding the session.
+     *
+     * @throws Exception
+     *         if the session cannot be saved
+     */
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        pair = generator.generateKeyPair();
+
+        JwtCookieSession session = newSession(new Request());
+        populate(session);
+        Response response = new Response(Status.OK);
+        session.save(response);
+        String setCookie = response.getHeaders().getFirst("Set-Cookie");
+        // Only keep the name=value pair
+        int end = setCookie.indexOf(';');
+        cookie = end == -1 ? setCookie : setCookie.substring(0, end);
+    }
+
+    /**
+     * Rebuilds the session from an incoming request cookie.
+     *
+     * @return the loaded session
+     */
+    @Benchmark
+    public JwtCookieSession load() {
+        Request request = new Request();
+        request.getHeaders().put("Cookie", cookie);
+        return newSession(request);
+    }
+
+    /**
+     * Populates a new session and writes it in a response cookie.
+     *
+     * @return the response holding the cookie
+     * @throws Exception
+     *         if the session cannot be saved
+     */
+    @Benchmark
+    public Response save() throws Exception {
+        JwtCookieSession session = newSession(new Request());
+        populate(session);
+        Response response = new Response(Status.OK);
+        session.save(response);
+        return response;
+    }
+
+    private JwtCookieSession newSession(final Request request) {
+        return new JwtCookieSession(request, pair, OPENIG_JWT_SESSION, logger, TimeService.SYSTEM, timeout);
+    }
+
+    private void populate(final JwtCookieSession session) {
+        for (int i = 0; i < attributes; i++) {
+            session.put("attribute-" + i, "value-" + i);
+        }
+    }
+}
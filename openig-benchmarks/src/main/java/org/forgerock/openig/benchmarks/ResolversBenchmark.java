@@ -0,0 +1,113 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.openig.resolver.Resolvers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures property resolution through {@link Resolvers}, on maps (by key cardinality) and on beans.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolversBenchmark {
+
+    /** Number of entries in the resolved map. */
+    @Param({ "10", "1000", "100000" })
+    public int keys;
+
+    private Map<String, Object> map;
+    private String[] lookups;
+    private int next;
+    private Request request;
+
+    /**
+     * Populates the map and the request.
+     */
+    @Setup
+    public void setUp() {
+        map = new HashMap<>();
+        lookups = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            lookups[i] = "key-" + i;
+            map.put(lookups[i], "value-" + i);
+        }
+        request = new Request().setMethod("GET");
+        request.getHeaders().put("Host", "www.example.com");
+    }
+
+    /**
+     * Resolves a map entry, cycling through the keys.
+     *
+     * @return the resolved value
+     */
+    @Benchmark
+    public Object mapGet() {
+        String key = lookups[next++ % lookups.length];
+        return Resolvers.get(map, key);
+    }
+
+    /**
+     * Stores a map entry, cycling through the keys.
+     *
+     * @return the previous value
+     */
+    @Benchmark
+    public Object mapPut() {
+        String key = lookups[next++ % lookups.length];
+        return Resolvers.put(map, key, key);
+    }
+
+    /**
+     * Resolves a bean property.
+     *
+     * @return the resolved value
+     */
+    @Benchmark
+    public Object beanGet() {
+        return Resolvers.get(request, "method");
+    }
+
+    /**
+     * Resolves a bean property, then a map entry of it (as in {@code request.headers['Host']}).
+     *
+     * @return the resolved value
+     */
+    @Benchmark
+    public Object nestedGet() {
+        return Resolvers.get(Resolvers.get(request, "headers"), "Host");
+    }
+}
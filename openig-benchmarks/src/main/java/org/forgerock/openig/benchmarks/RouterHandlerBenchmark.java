@@ -0,0 +1,147 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openig.handler.router.RouterHandler;
+import org.forgerock.openig.heap.HeapImpl;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.services.context.RootContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the dispatch of a request through a {@link RouterHandler} managing a given number of routes, each with a
+ * path based condition. Routes are evaluated in lexicographical order: {@literal first} hits the first route,
+ * {@literal last} the last one and {@literal miss} evaluates every condition before falling back to the default
+ * handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterHandlerBenchmark {
+
+    /** Number of deployed routes. */
+    @Param({ "1", "10", "100", "1000" })
+    public int routes;
+
+    /** Which route the request matches. */
+    @Param({ "first", "last", "miss" })
+    public String target;
+
+    private File directory;
+    private RouterHandler.Heaplet heaplet;
+    private Handler router;
+    private String uri;
+
+    /**
+     * Writes the route files, then loads them in a router.
+     *
+     * @throws Exception
+     *         if the routes cannot be loaded
+     */
+    @Setup
+    public void setUp() throws Exception {
+        directory = Fixtures.newTemporaryDirectory("routes");
+        for (int i = 0; i < routes; i++) {
+            writeRoute(i);
+        }
+
+        HeapImpl heap = Fixtures.newRootHeap();
+        heap.put("DefaultHandler", Fixtures.OK);
+        heaplet = new RouterHandler.Heaplet();
+        router = (Handler) heaplet.create(Name.of("Router"),
+                                          json(object(field("directory", directory.getAbsolutePath()),
+                                                      field("scanInterval", -1),
+                                                      field("defaultHandler", "DefaultHandler"))),
+                                          heap);
+        heaplet.start();
+
+        switch (target) {
+        case "first":
+            uri = "http://www.example.com/app-0/resource";
+            break;
+        case "last":
+            uri = "http://www.example.com/app-" + (routes - 1) + "/resource";
+            break;
+        default:
+            uri = "http://www.example.com/unknown/resource";
+        }
+    }
+
+    /**
+     * Unloads the routes.
+     */
+    @TearDown
+    public void tearDown() {
+        heaplet.destroy();
+        Fixtures.deleteDirectory(directory);
+    }
+
+    /**
+     * Dispatches a request.
+     *
+     * @return the response
+     * @throws Exception
+     *         if the request cannot be built or handled
+     */
+    @Benchmark
+    public Response dispatch() throws Exception {
+        Request request = new Request().setMethod("GET").setUri(uri);
+        return router.handle(new RootContext(), request).get();
+    }
+
+    private void writeRoute(final int index) throws Exception {
+        // Zero-padded names keep the lexicographical order aligned with the index
+        String name = String.format("route-%05d", index);
+        String route = "{\n"
+                + "  \"name\": \"" + name + "\",\n"
+                + "  \"condition\": \"${matches(request.uri.path, '^/app-" + index + "/')}\",\n"
+                + "  \"handler\": { \"type\": \"StaticResponseHandler\", \"config\": { \"status\": 200 } }\n"
+                + "}\n";
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, name + ".json")),
+                                                    UTF_8)) {
+            writer.write(route);
+        }
+    }
+}
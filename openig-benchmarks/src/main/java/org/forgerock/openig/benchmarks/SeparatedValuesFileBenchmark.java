@@ -0,0 +1,108 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openig.text.SeparatedValuesFile;
+import org.forgerock.openig.text.Separators;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures record lookups in a {@link SeparatedValuesFile} of a given number of rows. Looked up keys are spread
+ * uniformly over the file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeparatedValuesFileBenchmark {
+
+    /** Number of records in the file. */
+    @Param({ "10", "1000", "100000" })
+    public int rows;
+
+    private File file;
+    private SeparatedValuesFile values;
+    private String[] lookups;
+    private int next;
+
+    /**
+     * Writes the file.
+     *
+     * @throws Exception
+     *         if the file cannot be written
+     */
+    @Setup
+    public void setUp() throws Exception {
+        file = File.createTempFile("users", ".csv");
+        file.deleteOnExit();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8)) {
+            writer.write("username,password,email\n");
+            for (int i = 0; i < rows; i++) {
+                writer.write("user" + i + ",secret" + i + ",user" + i + "@example.com\n");
+            }
+        }
+        values = new SeparatedValuesFile(file, UTF_8, Separators.COMMA.getSeparator(), true);
+
+        // A fixed sample of keys spread over the whole file
+        lookups = new String[Math.min(rows, 64)];
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = "user" + (long) i * rows / lookups.length;
+        }
+    }
+
+    /**
+     * Deletes the file.
+     */
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Looks up a record by its key.
+     *
+     * @return the record
+     * @throws Exception
+     *         if the file cannot be read
+     */
+    @Benchmark
+    public Map<String, String> getRecord() throws Exception {
+        return values.getRecord("username", lookups[next++ % lookups.length]);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.filter.throttling.ThrottlingRate;
+import org.forgerock.http.filter.throttling.TokenBucket;
+import org.forgerock.util.time.TimeService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures {@link TokenBucket#tryConsume()}, on an uncontended bucket and on a bucket shared by all the threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBucketBenchmark {
+
+    /** A bucket per thread. */
+    @State(Scope.Thread)
+    public static class PerThread {
+        /** Allowed requests per second (low values exercise the refill path, high values the fast path). */
+        @Param({ "10", "1000000" })
+        public int rate;
+
+        TokenBucket bucket;
+
+        /** Builds the bucket. */
+        @Setup
+        public void setUp() {
+            bucket = new TokenBucket(TimeService.SYSTEM, new ThrottlingRate(rate, "1 second"));
+        }
+    }
+
+    /** A bucket shared by all the threads (a single throttling key). */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        /** Allowed requests per second. */
+        @Param({ "10", "1000000" })
+        public int rate;
+
+        TokenBucket bucket;
+
+        /** Builds the bucket. */
+        @Setup
+        public void setUp() {
+            bucket = new TokenBucket(TimeService.SYSTEM, new ThrottlingRate(rate, "1 second"));
+        }
+    }
+
+    /**
+     * Consumes a token from an uncontended bucket.
+     *
+     * @param state
+     *         per-thread bucket
+     * @return the delay before a token is available (0 when consumed)
+     */
+    @Benchmark
+    public long uncontended(final PerThread state) {
+        return state.bucket.tryConsume();
+    }
+
+    /**
+     * Consumes a token from a bucket shared by 4 threads.
+     *
+     * @param state
+     *         shared bucket
+     * @return the delay before a token is available (0 when consumed)
+     */
+    @Benchmark
+    @Threads(4)
+    public long contended(final Shared state) {
+        return state.bucket.tryConsume();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+/**
+ * JMH micro-benchmarks of the gateway hot paths.
+ * <p>
+ * The benchmarks exercise the classes in isolation (in-memory handlers, no network). Build and run them with:
+ * <pre>
+ *     {@code
+ *     mvn -Pbenchmarks package
+ *     java -jar openig-benchmarks/target/benchmarks.jar [JMH options] [benchmark regexp]
+ *     }
+ * </pre>
+ * {@link org.forgerock.openig.benchmarks.BenchmarkRunner} enables the JMH GC profiler by default, so each result
+ * comes with its allocation rate ({@literal gc.alloc.rate.norm} is the number of bytes allocated per operation).
+ * Sizes are exposed as JMH parameters and can be overridden from the command line, for example
+ * {@code -p routes=10,1000}.
+ */
+package org.forgerock.openig.benchmarks;
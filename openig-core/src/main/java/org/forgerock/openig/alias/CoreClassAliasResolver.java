@@ -25,19 +25,25 @@ import org.forgerock.openig.decoration.capture.CaptureDecorator;
 import org.forgerock.openig.decoration.timer.TimerDecorator;
 import org.forgerock.openig.filter.AssignmentFilter;
 import org.forgerock.openig.filter.Chain;
+import org.forgerock.openig.filter.CompressionFilter;
 import org.forgerock.openig.filter.ConditionEnforcementFilter;
 import org.forgerock.openig.filter.CookieFilter;
 import org.forgerock.openig.filter.CryptoHeaderFilter;
 import org.forgerock.openig.filter.EntityExtractFilter;
+import org.forgerock.openig.filter.EntityRewriteFilter;
 import org.forgerock.openig.filter.FileAttributesFilter;
 import org.forgerock.openig.filter.HeaderFilter;
+import org.forgerock.openig.filter.HedgingFilter;
 import org.forgerock.openig.filter.HttpBasicAuthFilter;
 import org.forgerock.openig.filter.LocationHeaderFilter;
 import org.forgerock.openig.filter.PasswordReplayFilterHeaplet;
+import org.forgerock.openig.filter.RequestCoalescingFilter;
 import org.forgerock.openig.filter.ScriptableFilter;
 import org.forgerock.openig.filter.SqlAttributesFilter;
 import org.forgerock.openig.filter.StaticRequestFilter;
 import org.forgerock.openig.filter.SwitchFilter;
+import org.forgerock.openig.filter.cache.CacheFilter;
+import org.forgerock.openig.filter.circuitbreaker.CircuitBreakerFilter;
 import org.forgerock.openig.filter.throttling.DefaultRateThrottlingPolicyHeaplet;
 import org.forgerock.openig.filter.throttling.MappedThrottlingPolicyHeaplet;
 import org.forgerock.openig.filter.throttling.ScriptableThrottlingPolicy;
@@ -45,6 +51,8 @@ import org.forgerock.openig.filter.throttling.ThrottlingFilterHeaplet;
 import org.forgerock.openig.handler.ClientHandler;
 import org.forgerock.openig.handler.DesKeyGenHandler;
 import org.forgerock.openig.handler.DispatchHandler;
+import org.forgerock.openig.handler.LoadBalancingHandler;
+import org.forgerock.openig.handler.ScatterGatherHandler;
 import org.forgerock.openig.handler.ScriptableHandler;
 import org.forgerock.openig.handler.SequenceHandler;
 import org.forgerock.openig.handler.StaticResponseHandler;
@@ -73,9 +81,12 @@ public class CoreClassAliasResolver implements ClassAliasResolver {
         ALIASES.put("AuditService", AuditServiceObjectHeaplet.class);
         ALIASES.put("AssignmentFilter", AssignmentFilter.class);
         ALIASES.put("BaseUriDecorator", BaseUriDecorator.class);
+        ALIASES.put("CacheFilter", CacheFilter.class);
         ALIASES.put("CaptureDecorator", CaptureDecorator.class);
         ALIASES.put("Chain", Chain.class);
+        ALIASES.put("CircuitBreakerFilter", CircuitBreakerFilter.class);
         ALIASES.put("ClientHandler", ClientHandler.class);
+        ALIASES.put("CompressionFilter", CompressionFilter.class);
         ALIASES.put("ConditionEnforcementFilter", ConditionEnforcementFilter.class);
         ALIASES.put("ConsoleLogSink", ConsoleLogSink.class);
         ALIASES.put("CookieFilter", CookieFilter.class);
@@ -84,22 +95,27 @@ public class CoreClassAliasResolver implements ClassAliasResolver {
         ALIASES.put("DesKeyGenHandler", DesKeyGenHandler.class);
         ALIASES.put("DispatchHandler", DispatchHandler.class);
         ALIASES.put("EntityExtractFilter", EntityExtractFilter.class);
+        ALIASES.put("EntityRewriteFilter", EntityRewriteFilter.class);
         ALIASES.put("FileAttributesFilter", FileAttributesFilter.class);
         ALIASES.put("FileLogSink", FileLogSink.class);
         ALIASES.put("HeaderFilter", HeaderFilter.class);
+        ALIASES.put("HedgingFilter", HedgingFilter.class);
         ALIASES.put("HttpBasicAuthFilter", HttpBasicAuthFilter.class);
         ALIASES.put("JwtSessionFactory", JwtSessionManager.class);
         ALIASES.put("JwtSession", JwtSessionManager.class);
         ALIASES.put("KeyManager", KeyManagerHeaplet.class);
         ALIASES.put("KeyStore", KeyStoreHeaplet.class);
+        ALIASES.put("LoadBalancingHandler", LoadBalancingHandler.class);
         ALIASES.put("LocationHeaderFilter", LocationHeaderFilter.class);
         ALIASES.put("MappedThrottlingPolicy", MappedThrottlingPolicyHeaplet.class);
         ALIASES.put("MonitorEndpointHandler", MonitorEndpointHandler.class);
         ALIASES.put("NullLogSink", NullLogSink.class);
         ALIASES.put("PasswordReplayFilter", PasswordReplayFilterHeaplet.class);
         ALIASES.put("RedirectFilter", LocationHeaderFilter.class);
+        ALIASES.put("RequestCoalescingFilter", RequestCoalescingFilter.class);
         ALIASES.put("Router", RouterHandler.class);
         ALIASES.put("RouterHandler", RouterHandler.class);
+        ALIASES.put("ScatterGatherHandler", ScatterGatherHandler.class);
         ALIASES.put("ScheduledExecutorService", ScheduledExecutorServiceHeaplet.class);
         ALIASES.put("ScriptableFilter", ScriptableFilter.class);
         ALIASES.put("ScriptableHandler", ScriptableHandler.class);
@@ -21,6 +21,10 @@ import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.heap.Keys.AUDIT_SYSTEM_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.*;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
@@ -39,6 +43,7 @@ public class ConditionalAuditEventListener implements AuditEventListener {
 
     private final AuditEventListener delegate;
     private final Expression<Boolean> condition;
+    private final Set<String> tags;
 
     /**
      * Builds a new ConditionalAuditEventListener that will delegates to the given {@code delegate} under the given
@@ -50,18 +55,67 @@ public class ConditionalAuditEventListener implements AuditEventListener {
      *         condition to evaluate
      */
     public ConditionalAuditEventListener(final AuditEventListener delegate, final Expression<Boolean> condition) {
+        this(delegate, condition, Collections.<String>emptySet());
+    }
+
+    /**
+     * Builds a new ConditionalAuditEventListener that will delegates to the given {@code delegate} under the given
+     * {@code condition}, and that declares the set of tags it is interested in.
+     *
+     * @param delegate
+     *         conditionally invoked listener
+     * @param condition
+     *         condition to evaluate
+     * @param tags
+     *         the tags this listener is interested in (empty means all events), an {@link AuditSystem} may use them
+     *         to only offer the events having at least one of these tags
+     */
+    public ConditionalAuditEventListener(final AuditEventListener delegate,
+                                         final Expression<Boolean> condition,
+                                         final Set<String> tags) {
         this.delegate = delegate;
         this.condition = condition;
+        this.tags = Collections.unmodifiableSet(new LinkedHashSet<>(tags));
+    }
+
+    /**
+     * Returns the tags this listener is interested in. An empty set means that this listener is interested in all
+     * of the events. This is only a hint for the {@link AuditSystem}: the condition is always evaluated.
+     *
+     * @return the tags this listener is interested in (never {@code null})
+     */
+    public Set<String> getTags() {
+        return tags;
     }
 
     @Override
     public void onAuditEvent(final AuditEvent event) {
         // Only process selected events
-        if (TRUE.equals(condition.eval(bindings("event", event)))) {
+        if (isSelected(event)) {
             delegate.onAuditEvent(event);
         }
     }
 
+    /**
+     * Evaluates the condition of this listener against the given event.
+     *
+     * @param event
+     *         the event to evaluate the condition against
+     * @return {@code true} if the event is forwarded to the delegate listener
+     */
+    public boolean isSelected(final AuditEvent event) {
+        return TRUE.equals(condition.eval(bindings("event", event)));
+    }
+
+    /**
+     * Returns the conditionally invoked listener.
+     *
+     * @return the conditionally invoked listener
+     */
+    public AuditEventListener getDelegate() {
+        return delegate;
+    }
+
     /**
      * Creates and initializes a ConditionalListenerHeaplet in a heap environment.
      * <p>
@@ -81,6 +135,9 @@ public class ConditionalAuditEventListener implements AuditEventListener {
      * The {@literal condition} property declares the condition that needs to be evaluated to {@code true} in order
      * to forward the event notification to the real listener. It defaults to {@code ${true}} (will always invoke the
      * delegate).
+     * <p>
+     * The optional {@literal tags} property (an array of tag names) declares the tags the listener is interested in:
+     * the audit system can then skip the events that have none of these tags without evaluating the condition.
      */
     @Deprecated
     public abstract static class ConditionalListenerHeaplet extends GenericHeaplet {
@@ -93,8 +150,12 @@ public class ConditionalAuditEventListener implements AuditEventListener {
             Expression<Boolean> condition = config.get("condition").defaultTo("${true}")
                                                   .as(expression(Boolean.class));
             auditSystem = heap.get(AUDIT_SYSTEM_HEAP_KEY, AuditSystem.class);
+            Set<String> tags = config.get("tags")
+                                     .as(evaluated())
+                                     .defaultTo(Collections.emptyList())
+                                     .asSet(String.class);
             AuditEventListener listener = createListener();
-            conditional = new ConditionalAuditEventListener(listener, condition);
+            conditional = new ConditionalAuditEventListener(listener, condition, tags);
             auditSystem.registerListener(conditional);
             return listener;
         }
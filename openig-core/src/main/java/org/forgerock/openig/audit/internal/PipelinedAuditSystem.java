@@ -0,0 +1,248 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.audit.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches the {@link org.forgerock.openig.audit.AuditEvent}s to the registered audit listeners (final consumers
+ * of the events) through per-listener pipelines.
+ * <p>
+ * Each registered listener gets its own bounded queue and worker thread: the thread emitting the event only
+ * enqueues it, so slow listeners do not add latency to the request processing. Events are delivered to a given
+ * listener in the order they were emitted, and are never dropped: when a listener's queue is full, the emitting
+ * thread waits for room (listeners such as the monitoring endpoint pair request and response events).
+ * <p>
+ * The conditions of the {@link org.forgerock.openig.audit.ConditionalAuditEventListener}s are evaluated on the
+ * emitting thread, while the exchanged messages are still in their current state. The listeners themselves are
+ * invoked later: this audit system must only be used with listeners that do not read the messages of the exchange.
+ * It is therefore not the default, see the {@literal auditSystem} setting of the gateway configuration.
+ * <p>
+ * Listeners that declare the tags they are interested in (see
+ * {@link org.forgerock.openig.audit.ConditionalAuditEventListener#getTags()}) are indexed by tag: an event is only
+ * offered to the listeners having at least one of the event's tags (and to the listeners interested in all events).
+ * <p>
+ * The listeners index is an immutable structure replaced on registration changes: the dispatch itself does not
+ * acquire any lock. The worker threads are stopped by {@link #shutdown()}.
+ */
+@Deprecated
+public class PipelinedAuditSystem implements org.forgerock.openig.audit.AuditSystem {
+
+    /**
+     * Default maximum number of pending events per listener.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private final int queueSize;
+    private final Map<org.forgerock.openig.audit.AuditEventListener, Pipeline> pipelines = new IdentityHashMap<>();
+    private volatile Index index = new Index(Collections.<Pipeline>emptyList());
+
+    /**
+     * Builds a new PipelinedAuditSystem with the default queue size.
+     */
+    public PipelinedAuditSystem() {
+        this(DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Builds a new PipelinedAuditSystem.
+     *
+     * @param queueSize
+     *         maximum number of pending events per listener (strictly positive)
+     */
+    public PipelinedAuditSystem(final int queueSize) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queueSize can only be a positive (non-zero) value");
+        }
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public void onAuditEvent(final org.forgerock.openig.audit.AuditEvent event) {
+        Index snapshot = index;
+        for (Pipeline pipeline : snapshot.all) {
+            pipeline.offer(event);
+        }
+        if (snapshot.byTag.isEmpty()) {
+            return;
+        }
+        List<Pipeline> selected = null;
+        for (String tag : event.getTags()) {
+            List<Pipeline> candidates = snapshot.byTag.get(tag);
+            if (candidates == null) {
+                continue;
+            }
+            if (selected == null) {
+                selected = new ArrayList<>(candidates.size());
+            }
+            for (Pipeline candidate : candidates) {
+                // A listener may be interested in more than one of the event's tags
+                if (!selected.contains(candidate)) {
+                    selected.add(candidate);
+                    candidate.offer(event);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void registerListener(final org.forgerock.openig.audit.AuditEventListener listener) {
+        if (pipelines.containsKey(listener)) {
+            return;
+        }
+        pipelines.put(listener, new Pipeline(listener, tagsOf(listener)));
+        index = new Index(pipelines.values());
+    }
+
+    @Override
+    public synchronized void unregisterListener(final org.forgerock.openig.audit.AuditEventListener listener) {
+        Pipeline pipeline = pipelines.remove(listener);
+        if (pipeline != null) {
+            index = new Index(pipelines.values());
+            // Pending events are still delivered before the worker thread ends
+            pipeline.stop();
+        }
+    }
+
+    /**
+     * Stops the worker threads of all the registered listeners, once they have delivered their pending events.
+     * The listeners do not receive the events emitted afterwards.
+     */
+    public synchronized void shutdown() {
+        index = new Index(Collections.<Pipeline>emptyList());
+        for (Pipeline pipeline : pipelines.values()) {
+            pipeline.stop();
+        }
+        pipelines.clear();
+    }
+
+    private static Set<String> tagsOf(final org.forgerock.openig.audit.AuditEventListener listener) {
+        if (listener instanceof org.forgerock.openig.audit.ConditionalAuditEventListener) {
+            return ((org.forgerock.openig.audit.ConditionalAuditEventListener) listener).getTags();
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Immutable view of the registered pipelines, indexed by tag.
+     */
+    private static final class Index {
+        /** Pipelines of the listeners interested in all events. */
+        private final List<Pipeline> all = new ArrayList<>();
+        /** Pipelines of the listeners interested in some tags only. */
+        private final Map<String, List<Pipeline>> byTag = new HashMap<>();
+
+        private Index(final Iterable<Pipeline> pipelines) {
+            for (Pipeline pipeline : pipelines) {
+                if (pipeline.tags.isEmpty()) {
+                    all.add(pipeline);
+                    continue;
+                }
+                for (String tag : pipeline.tags) {
+                    List<Pipeline> list = byTag.get(tag);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        byTag.put(tag, list);
+                    }
+                    list.add(pipeline);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bounded queue and worker thread dedicated to a single listener.
+     */
+    private final class Pipeline {
+        private final org.forgerock.openig.audit.AuditEventListener listener;
+        private final Set<String> tags;
+        private final ThreadPoolExecutor worker;
+
+        private Pipeline(final org.forgerock.openig.audit.AuditEventListener listener, final Set<String> tags) {
+            this.listener = listener;
+            this.tags = tags;
+            this.worker = new ThreadPoolExecutor(1, 1,
+                                                 0L, TimeUnit.MILLISECONDS,
+                                                 new ArrayBlockingQueue<Runnable>(queueSize),
+                                                 new ThreadFactory() {
+                                                     @Override
+                                                     public Thread newThread(final Runnable r) {
+                                                         Thread thread = new Thread(r, "OpenIG-Audit-Listener");
+                                                         thread.setDaemon(true);
+                                                         return thread;
+                                                     }
+                                                 },
+                                                 new RejectedExecutionHandler() {
+                                                     @Override
+                                                     public void rejectedExecution(final Runnable r,
+                                                                                   final ThreadPoolExecutor executor) {
+                                                         waitForRoom(r, executor);
+                                                     }
+                                                 });
+        }
+
+        private void offer(final org.forgerock.openig.audit.AuditEvent event) {
+            final org.forgerock.openig.audit.AuditEventListener target;
+            if (listener instanceof org.forgerock.openig.audit.ConditionalAuditEventListener) {
+                // The condition is evaluated while the messages of the exchange are in their current state
+                org.forgerock.openig.audit.ConditionalAuditEventListener conditional =
+                        (org.forgerock.openig.audit.ConditionalAuditEventListener) listener;
+                if (!conditional.isSelected(event)) {
+                    return;
+                }
+                target = conditional.getDelegate();
+            } else {
+                target = listener;
+            }
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    target.onAuditEvent(event);
+                }
+            });
+        }
+
+        private void waitForRoom(final Runnable task, final ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                // The listener has been unregistered
+                return;
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // Delivered out of order rather than lost
+                task.run();
+            }
+        }
+
+        private void stop() {
+            worker.shutdown();
+        }
+    }
+}
@@ -53,4 +53,13 @@ public interface Context {
      * @see LazyReference
      */
     Heap getHeap();
+
+    /**
+     * Registers an action to run when the decorated heap object is destroyed along with its heap. This permits
+     * decorators to release the resources they acquired on behalf of the decorated heap object (endpoints, metrics,
+     * ...).
+     *
+     * @param action the action to run when the decorated heap object is destroyed.
+     */
+    void onDestroy(Runnable action);
 }
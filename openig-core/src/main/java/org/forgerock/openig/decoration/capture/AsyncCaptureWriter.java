@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.decoration.capture;
+
+import static java.lang.String.format;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.openig.log.Logger;
+
+/**
+ * Writes the captured messages into their {@link Logger} from a dedicated background thread, so that the log sink
+ * I/O is not performed on the request thread.
+ * <p>
+ * Pending messages are held in a bounded queue: when the queue is full, new messages are dropped (and counted) rather
+ * than blocking the request processing. The number of dropped messages is periodically reported into the logger of
+ * the next message being written.
+ */
+class AsyncCaptureWriter {
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Builds a new writer with the given queue capacity.
+     *
+     * @param capacity
+     *         maximum number of pending messages (strictly positive)
+     */
+    AsyncCaptureWriter(final int capacity) {
+        this.executor = new ThreadPoolExecutor(1, 1,
+                                               0L, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<Runnable>(capacity),
+                                               new ThreadFactory() {
+                                                   @Override
+                                                   public Thread newThread(final Runnable r) {
+                                                       Thread thread = new Thread(r, "OpenIG-Capture-Writer");
+                                                       thread.setDaemon(true);
+                                                       return thread;
+                                                   }
+                                               },
+                                               new RejectedExecutionHandler() {
+                                                   @Override
+                                                   public void rejectedExecution(final Runnable r,
+                                                                                 final ThreadPoolExecutor executor) {
+                                                       dropped.incrementAndGet();
+                                                   }
+                                               });
+    }
+
+    /**
+     * Queues the given message for later writing.
+     *
+     * @param logger
+     *         where to write the message
+     * @param message
+     *         the formatted captured message
+     */
+    void write(final Logger logger, final String message) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long count = dropped.getAndSet(0);
+                if (count > 0) {
+                    logger.warning(format("%d captured messages have been dropped (capture queue is full)", count));
+                }
+                logger.info(message);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of messages dropped since the last report.
+     *
+     * @return the number of messages dropped since the last report
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the background thread once the pending messages have been written.
+     */
+    void stop() {
+        executor.shutdown();
+    }
+}
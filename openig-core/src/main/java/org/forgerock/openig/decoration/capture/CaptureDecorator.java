@@ -23,6 +23,7 @@ import static org.forgerock.json.JsonValueFunctions.listOf;
 import static org.forgerock.openig.decoration.helper.LazyReference.newReference;
 import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.evaluated;
+import static org.forgerock.openig.util.JsonValues.expression;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 
 import java.util.List;
@@ -37,6 +38,7 @@ import org.forgerock.openig.decoration.Decorator;
 import org.forgerock.openig.decoration.helper.AbstractHandlerAndFilterDecorator;
 import org.forgerock.openig.decoration.helper.DecoratorHeaplet;
 import org.forgerock.openig.decoration.helper.LazyReference;
+import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.Heap;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.openig.heap.Name;
@@ -77,6 +79,41 @@ import org.forgerock.openig.log.Logger;
  * The common {@literal logSink} attribute can be used to force message capture in a given sink. By default, messages
  * are sent to the heap object defined LogSink.
  * <p>
+ * The capture cost can be bounded, so that capture can be left enabled in production:
+ * <pre>
+ *     {@code
+ *     {
+ *       "name": "capture",
+ *       "type": "CaptureDecorator",
+ *       "config": {
+ *           "captureEntity": true,
+ *           "maxEntityLength": 4096,
+ *           "sampleRate": 0.01,
+ *           "condition": "${matches(request.uri.path, '^/api')}",
+ *           "triggerHeader": "X-OpenIG-Capture",
+ *           "asynchronous": true,
+ *           "queueSize": 1000
+ *       }
+ *     }
+ *     }
+ * </pre>
+ * <ul>
+ *     <li>{@literal sampleRate}: probability (between {@literal 0} and {@literal 1}) for a request to be captured
+ *     (defaults to {@literal 1}, every request is captured)</li>
+ *     <li>{@literal condition}: expression that has to evaluate to {@code true} for the request to be captured
+ *     (optional)</li>
+ *     <li>{@literal triggerHeader}: name of a request header that forces the capture of the request, whatever the
+ *     {@literal sampleRate} and {@literal condition} (optional)</li>
+ *     <li>{@literal maxEntityLength}: maximum number of characters of the entity to capture; only this part of the
+ *     entity is read (defaults to no limit)</li>
+ *     <li>{@literal asynchronous}: write the captured messages from a background thread (defaults to {@code
+ *     false})</li>
+ *     <li>{@literal queueSize}: maximum number of captured messages waiting to be written by the background thread;
+ *     messages are dropped (and counted) when the queue is full (defaults to {@literal 1000})</li>
+ * </ul>
+ * The sampling decision is taken once when the request enters the decorated object, so that both the request and
+ * its response are captured (or none of them).
+ * <p>
  * To decorate a component, just add the decorator declaration next to the {@code config} element:
  * <pre>
  *     {@code
@@ -99,6 +136,9 @@ public class CaptureDecorator extends AbstractHandlerAndFilterDecorator {
     private final LazyReference<LogSink> reference;
     private final boolean captureEntity;
     private final boolean captureContext;
+    private final int maxEntityLength;
+    private final CaptureSampler sampler;
+    private final AsyncCaptureWriter writer;
 
     /**
      * Builds a new {@code capture} decorator with the given sink reference (possibly {@code null})
@@ -117,9 +157,37 @@ public class CaptureDecorator extends AbstractHandlerAndFilterDecorator {
     public CaptureDecorator(final LazyReference<LogSink> reference,
                             final boolean captureEntity,
                             final boolean captureContext) {
+        this(reference, captureEntity, captureContext, -1, CaptureSampler.ALWAYS, null);
+    }
+
+    /**
+     * Builds a new {@code capture} decorator with sampling, entity truncation and (optionally) asynchronous writing.
+     *
+     * @param reference
+     *         Log Sink reference for message capture (may be {@code null})
+     * @param captureEntity
+     *         {@code true} if the decorator needs to capture the entity, {@code false} otherwise
+     * @param captureContext
+     *         {@code true} if the decorator needs to capture the context, {@code false} otherwise
+     * @param maxEntityLength
+     *         maximum number of characters of the entity to capture (negative value means no limit)
+     * @param sampler
+     *         decides which requests are captured
+     * @param writer
+     *         background writer for captured messages (may be {@code null}: messages are written synchronously)
+     */
+    CaptureDecorator(final LazyReference<LogSink> reference,
+                     final boolean captureEntity,
+                     final boolean captureContext,
+                     final int maxEntityLength,
+                     final CaptureSampler sampler,
+                     final AsyncCaptureWriter writer) {
         this.reference = reference;
         this.captureEntity = captureEntity;
         this.captureContext = captureContext;
+        this.maxEntityLength = maxEntityLength;
+        this.sampler = sampler;
+        this.writer = writer;
     }
 
     @Override
@@ -194,13 +262,21 @@ public class CaptureDecorator extends AbstractHandlerAndFilterDecorator {
                           .as(requiredHeapObject(heap, LogSink.class));
         }
         Name name = context.getName();
-        return new MessageCapture(new Logger(sink, name.decorated("Capture")), captureEntity, captureContext);
+        return new MessageCapture(new Logger(sink, name.decorated("Capture")),
+                                  captureEntity,
+                                  captureContext,
+                                  maxEntityLength,
+                                  sampler,
+                                  writer);
     }
 
     /**
      * Creates and initializes a CaptureDecorator in a heap environment.
      */
     public static class Heaplet extends DecoratorHeaplet {
+
+        private AsyncCaptureWriter writer;
+
         @Override
         public Decorator create() throws HeapException {
             LazyReference<LogSink> reference = newReference(heap,
@@ -219,7 +295,33 @@ public class CaptureDecorator extends AbstractHandlerAndFilterDecorator {
             if (evaluated.isDefined("captureContext")) {
                 captureContext = evaluated.get("captureContext").asBoolean();
             }
-            return new CaptureDecorator(reference, captureEntity, captureContext);
+            int maxEntityLength = evaluated.get("maxEntityLength").defaultTo(-1).asInteger();
+
+            // Sampling
+            double sampleRate = evaluated.get("sampleRate").defaultTo(1.0d).asDouble();
+            if (sampleRate < 0d || sampleRate > 1d) {
+                throw new HeapException("'sampleRate' has to be a value between 0 and 1");
+            }
+            Expression<Boolean> condition = config.get("condition").as(expression(Boolean.class));
+            String triggerHeader = evaluated.get("triggerHeader").asString();
+            CaptureSampler sampler = new CaptureSampler(sampleRate, condition, triggerHeader);
+
+            if (evaluated.get("asynchronous").defaultTo(false).asBoolean()) {
+                int queueSize = evaluated.get("queueSize").defaultTo(1000).asInteger();
+                if (queueSize <= 0) {
+                    throw new HeapException("'queueSize' can only be a positive (non-zero) value");
+                }
+                writer = new AsyncCaptureWriter(queueSize);
+            }
+            return new CaptureDecorator(reference, captureEntity, captureContext, maxEntityLength, sampler, writer);
+        }
+
+        @Override
+        public void destroy() {
+            super.destroy();
+            if (writer != null) {
+                writer.stop();
+            }
         }
     }
 }
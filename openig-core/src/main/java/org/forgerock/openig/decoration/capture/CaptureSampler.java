@@ -0,0 +1,86 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.decoration.capture;
+
+import static org.forgerock.openig.el.Bindings.bindings;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.Context;
+
+/**
+ * Decides whether a given request (and the associated response) has to be captured or not.
+ * <p>
+ * A request is captured when:
+ * <ul>
+ *     <li>it contains the configured {@literal trigger} header (if any), whatever the other settings</li>
+ *     <li>or, the {@literal condition} (if any) evaluates to {@code true} <b>and</b> the request is selected by
+ *     the probabilistic sampling (using the configured {@literal sampleRate})</li>
+ * </ul>
+ */
+class CaptureSampler {
+
+    /**
+     * A sampler that captures all of the messages.
+     */
+    static final CaptureSampler ALWAYS = new CaptureSampler(1.0d, null, null);
+
+    private final double sampleRate;
+    private final Expression<Boolean> condition;
+    private final String triggerHeader;
+
+    /**
+     * Builds a new sampler.
+     *
+     * @param sampleRate
+     *         probability (between {@literal 0} and {@literal 1}) for a request to be captured
+     * @param condition
+     *         condition to be verified for a request to be captured (may be {@code null})
+     * @param triggerHeader
+     *         name of the header that forces the capture when present in the request (may be {@code null})
+     */
+    CaptureSampler(final double sampleRate, final Expression<Boolean> condition, final String triggerHeader) {
+        if (sampleRate < 0d || sampleRate > 1d) {
+            throw new IllegalArgumentException("sampleRate has to be between 0 and 1, was " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        this.condition = condition;
+        this.triggerHeader = triggerHeader;
+    }
+
+    /**
+     * Returns {@code true} if the given request has to be captured.
+     *
+     * @param context
+     *         request's context
+     * @param request
+     *         incoming request
+     * @return {@code true} if the given request has to be captured
+     */
+    boolean isSampled(final Context context, final Request request) {
+        if (triggerHeader != null && request != null && request.getHeaders().containsKey(triggerHeader)) {
+            return true;
+        }
+        if (condition != null && !Boolean.TRUE.equals(condition.eval(bindings(context, request)))) {
+            return false;
+        }
+        // Avoid drawing a random number when not needed
+        return sampleRate >= 1d || (sampleRate > 0d && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+}
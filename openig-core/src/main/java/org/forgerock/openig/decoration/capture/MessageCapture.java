@@ -21,6 +21,7 @@ import static groovy.json.JsonOutput.toJson;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.IllegalCharsetNameException;
@@ -56,6 +57,9 @@ public class MessageCapture {
     private final Logger logger;
     private final boolean captureEntity;
     private final boolean captureContext;
+    private final int maxEntityLength;
+    private final CaptureSampler sampler;
+    private final AsyncCaptureWriter writer;
 
     /**
      * Builds a MessageCapture that will prints messages in the provided {@code logger}.
@@ -80,9 +84,53 @@ public class MessageCapture {
      *         capture the context content (excluding request and response object) as json
      */
     public MessageCapture(final Logger logger, final boolean captureEntity, final boolean captureContext) {
+        this(logger, captureEntity, captureContext, -1, CaptureSampler.ALWAYS, null);
+    }
+
+    /**
+     * Builds a MessageCapture that will prints sampled messages in the provided {@code logger}, possibly
+     * asynchronously.
+     *
+     * @param logger
+     *         where to write captured messages
+     * @param captureEntity
+     *         capture the entity content (if not binary)
+     * @param captureContext
+     *         capture the context content (excluding request and response object) as json
+     * @param maxEntityLength
+     *         maximum number of characters of the entity to capture (negative value means no limit)
+     * @param sampler
+     *         decides which requests are captured
+     * @param writer
+     *         background writer for captured messages (may be {@code null}: messages are written synchronously)
+     */
+    MessageCapture(final Logger logger,
+                   final boolean captureEntity,
+                   final boolean captureContext,
+                   final int maxEntityLength,
+                   final CaptureSampler sampler,
+                   final AsyncCaptureWriter writer) {
         this.logger = logger;
         this.captureEntity = captureEntity;
         this.captureContext = captureContext;
+        this.maxEntityLength = maxEntityLength;
+        this.sampler = sampler;
+        this.writer = writer;
+    }
+
+    /**
+     * Returns {@code true} if the messages related to the given request have to be captured. The decision has to be
+     * taken once per request (at the entry of the decorated object) in order to capture both the request and the
+     * response.
+     *
+     * @param context
+     *         request's context
+     * @param request
+     *         incoming request
+     * @return {@code true} if the messages related to the given request have to be captured
+     */
+    boolean isSampled(final Context context, final Request request) {
+        return sampler.isSampled(context, request);
     }
 
     /**
@@ -116,8 +164,7 @@ public class MessageCapture {
             captureContextAsJson(writer, context);
         }
 
-        // Print the message
-        logger.info(out.toString());
+        print(out.toString());
     }
 
     /**
@@ -151,8 +198,15 @@ public class MessageCapture {
             captureContextAsJson(writer, context);
         }
 
-        // Print the message
-        logger.info(out.toString());
+        print(out.toString());
+    }
+
+    private void print(final String message) {
+        if (writer != null) {
+            writer.write(logger, message);
+        } else {
+            logger.info(message);
+        }
     }
 
     private void captureContextAsJson(final PrintWriter writer, final Context context) {
@@ -235,11 +289,15 @@ public class MessageCapture {
             return;
         }
         try {
-            message.getEntity().push();
-            try {
-                message.getEntity().copyDecodedContentTo(writer);
-            } finally {
-                message.getEntity().pop();
+            if (maxEntityLength < 0) {
+                message.getEntity().push();
+                try {
+                    message.getEntity().copyDecodedContentTo(writer);
+                } finally {
+                    message.getEntity().pop();
+                }
+            } else {
+                writeTruncatedEntity(writer, message);
             }
         } catch (UnsupportedEncodingException uee) {
             writer.println("[entity contains data in unsupported encoding]");
@@ -254,6 +312,28 @@ public class MessageCapture {
         writer.println();
     }
 
+    /**
+     * Only reads the first {@literal maxEntityLength} characters of the entity: the entity's branching stream only
+     * buffers what has been read, so the full content is never buffered because of the capture.
+     */
+    private void writeTruncatedEntity(final PrintWriter writer, final Message message) throws IOException {
+        char[] buffer = new char[Math.min(maxEntityLength, 8192)];
+        int remaining = maxEntityLength;
+        boolean truncated = false;
+        try (Reader reader = message.getEntity().newDecodedContentReader(null)) {
+            int n;
+            while (remaining > 0 && (n = reader.read(buffer, 0, Math.min(buffer.length, remaining))) != -1) {
+                writer.write(buffer, 0, n);
+                remaining -= n;
+            }
+            truncated = remaining == 0 && reader.read() != -1;
+        }
+        if (truncated) {
+            writer.println();
+            writer.printf("[entity truncated to %d characters]", maxEntityLength);
+        }
+    }
+
     /**
      * Decide if the given content-type is printable or not. The entity represents a textual/printable content if: <ul>
      * <li>there is a charset associated to the content-type, we'll be able to print it correctly</li> <li>the content
@@ -0,0 +1,80 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.decoration.timer;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Measures the time spent in a decorated object for a single request and records it into a {@link TimerMetrics}
+ * when stopped. This is the histogram counterpart of {@link org.forgerock.openig.log.LogTimer}: it supports the same
+ * {@link #pause()}/{@link #resume()} semantic but never emits log entries.
+ */
+class HistogramTimer {
+
+    private final TimerMetrics metrics;
+
+    private final long started;
+
+    private long paused = Long.MIN_VALUE; // indicates the timer has not been paused
+
+    /** Time spend between consecutive pause() and resume() calls. */
+    private long ignorable;
+
+    /**
+     * Starts a new timer that will be recorded into the given {@code metrics}.
+     *
+     * @param metrics
+     *         where the measure will be recorded
+     */
+    HistogramTimer(final TimerMetrics metrics) {
+        this.metrics = metrics;
+        this.started = System.nanoTime();
+    }
+
+    /**
+     * Mark the beginning of a pause in the current timer. Ignored if the timer is already paused.
+     *
+     * @return this timer
+     */
+    HistogramTimer pause() {
+        if (paused == Long.MIN_VALUE) {
+            paused = System.nanoTime();
+        }
+        return this;
+    }
+
+    /**
+     * Mark the end of a pause in the current timer (sum up all of the pauses lengths).
+     *
+     * @return this timer
+     */
+    HistogramTimer resume() {
+        if (paused != Long.MIN_VALUE) {
+            ignorable += System.nanoTime() - paused;
+            paused = Long.MIN_VALUE;
+        }
+        return this;
+    }
+
+    /**
+     * Stops the timer and records the elapsed time(s) in the histograms.
+     */
+    void stop() {
+        long elapsed = System.nanoTime() - started;
+        metrics.record(NANOSECONDS.toMicros(elapsed), NANOSECONDS.toMicros(ignorable));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.decoration.timer;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Records the time spent into the delegated {@link Handler} into a {@link TimerMetrics} histogram instead of
+ * logging it.
+ */
+class HistogramTimerHandler implements Handler {
+    private final Handler delegate;
+    private final TimerMetrics metrics;
+
+    HistogramTimerHandler(final Handler delegate, final TimerMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        final HistogramTimer timer = new HistogramTimer(metrics);
+        return delegate.handle(context, request)
+                .thenAlways(new Runnable() {
+                    @Override
+                    public void run() {
+                        timer.stop();
+                    }
+                });
+    }
+
+    TimerMetrics getMetrics() {
+        return metrics;
+    }
+}
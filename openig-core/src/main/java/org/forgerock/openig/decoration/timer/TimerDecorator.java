@@ -16,9 +16,17 @@
 
 package org.forgerock.openig.decoration.timer;
 
+import static java.lang.String.format;
+import static org.forgerock.json.JsonValueFunctions.enumConstant;
+import static org.forgerock.openig.heap.Keys.ENDPOINT_REGISTRY_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.evaluated;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.openig.util.StringUtil.slug;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
@@ -30,13 +38,15 @@ import org.forgerock.openig.decoration.helper.DecoratorHeaplet;
 import org.forgerock.openig.heap.Heap;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.openig.heap.Name;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.http.EndpointRegistry.Registration;
 import org.forgerock.openig.log.LogSink;
 import org.forgerock.openig.log.Logger;
 
 /**
  * The {@literal timer} decorator can decorate both {@link Filter} and {@link Handler} instances.
- * It will log {@literal started}, {@literal elapsed} and {@literal elapsed-within} events into the {@link LogSink}
- * of the decorated heap object.
+ * By default, it will log {@literal started}, {@literal elapsed} and {@literal elapsed-within} events into the
+ * {@link LogSink} of the decorated heap object.
  * <p>
  * It has to be declared inside of the heap objects section:
  * <pre>
@@ -59,16 +69,87 @@ import org.forgerock.openig.log.Logger;
  *     }
  * </pre>
  *
- * There is no special configuration required for this decorator.
+ * The decorator can also record the elapsed times into a per-object histogram instead of logging them. This is
+ * cheap enough to be left enabled in production. Select the {@literal histogram} mode either in the decorated
+ * object:
+ * <pre>
+ *     {@code
+ *     {
+ *       "type": "...",
+ *       "timer": {
+ *         "mode": "histogram",
+ *         "percentiles": [ 0.5, 0.99, 0.999 ]
+ *       },
+ *       "config": { ... }
+ *     }
+ *     }
+ * </pre>
+ * or as the default mode of the decorator itself ({@code "timer": true} then implies the histogram mode):
+ * <pre>
+ *     {@code
+ *     {
+ *       "name": "timer",
+ *       "type": "TimerDecorator",
+ *       "config": {
+ *         "mode": "histogram"
+ *       }
+ *     }
+ *     }
+ * </pre>
+ * The {@literal enabled} attribute (defaults to {@code true}) can be used to disable the decoration when the object
+ * form is used. {@literal mode} defaults to {@literal log}.
+ * <p>
+ * In {@literal histogram} mode, the collected statistics ({@literal elapsed} and {@literal elapsed-within} times) are
+ * exposed as JSON at {@literal .../objects/[object-name]-timer}, next to the decorated heap object's own endpoint.
  *
  * A default {@literal timer} decorator is automatically created when OpenIG starts.
  */
 public class TimerDecorator extends AbstractHandlerAndFilterDecorator {
 
+    /**
+     * How the timer decorator reports the measured times.
+     */
+    public enum Mode {
+        /** Log {@literal started}, {@literal elapsed} and {@literal elapsed-within} events. */
+        LOG,
+        /** Record elapsed times into a histogram exposed through an endpoint. */
+        HISTOGRAM
+    }
+
+    private final Mode defaultMode;
+
+    /**
+     * Histograms of the decorated objects, keyed by decorated object's name, along with the heap in which their
+     * endpoint has been registered. Histograms are kept across heap reloads (e.g. route update) and released when the
+     * heap of the last decoration is destroyed.
+     */
+    private final Map<Name, RegisteredMetrics> metrics = new HashMap<>();
+
+    /**
+     * Builds a new {@code timer} decorator logging events.
+     */
+    public TimerDecorator() {
+        this(Mode.LOG);
+    }
+
+    /**
+     * Builds a new {@code timer} decorator using the given mode when the decorated objects only provide a boolean.
+     *
+     * @param defaultMode
+     *         the mode to use by default
+     */
+    public TimerDecorator(final Mode defaultMode) {
+        this.defaultMode = defaultMode;
+    }
+
     @Override
     protected Filter decorateFilter(final Filter delegate, final JsonValue decoratorConfig, final Context context)
             throws HeapException {
-        if (decoratorConfig.as(evaluated()).asBoolean()) {
+        JsonValue evaluated = decoratorConfig.as(evaluated());
+        if (isEnabled(evaluated)) {
+            if (getMode(evaluated) == Mode.HISTOGRAM) {
+                return new HistogramTimerFilter(delegate, getMetrics(evaluated, context));
+            }
             return new TimerFilter(delegate, getLogger(context));
         }
         return delegate;
@@ -77,12 +158,95 @@ public class TimerDecorator extends AbstractHandlerAndFilterDecorator {
     @Override
     protected Handler decorateHandler(final Handler delegate, final JsonValue decoratorConfig, final Context context)
             throws HeapException {
-        if (decoratorConfig.as(evaluated()).asBoolean()) {
+        JsonValue evaluated = decoratorConfig.as(evaluated());
+        if (isEnabled(evaluated)) {
+            if (getMode(evaluated) == Mode.HISTOGRAM) {
+                return new HistogramTimerHandler(delegate, getMetrics(evaluated, context));
+            }
             return new TimerHandler(delegate, getLogger(context));
         }
         return delegate;
     }
 
+    private static boolean isEnabled(final JsonValue evaluated) {
+        if (evaluated.isMap()) {
+            return evaluated.get("enabled").defaultTo(true).asBoolean();
+        }
+        return evaluated.asBoolean();
+    }
+
+    private Mode getMode(final JsonValue evaluated) {
+        if (evaluated.isMap() && evaluated.isDefined("mode")) {
+            return evaluated.get("mode").as(enumConstant(Mode.class));
+        }
+        return defaultMode;
+    }
+
+    /**
+     * Returns the {@link TimerMetrics} dedicated to the decorated heap object, creating it (and registering its
+     * endpoint) when needed. Note that decoration may happen multiple times for the same heap object (global
+     * decorators are applied on each heap lookup): the same histograms are re-used in that case.
+     *
+     * @param evaluated
+     *         evaluated decorator configuration
+     * @param context
+     *         Context of the heap object
+     * @return the metrics of the decorated heap object
+     * @throws HeapException
+     *         when the endpoint registry cannot be resolved
+     */
+    private synchronized TimerMetrics getMetrics(final JsonValue evaluated, final Context context)
+            throws HeapException {
+        final Name name = context.getName();
+        final Heap heap = context.getHeap();
+        RegisteredMetrics registered = metrics.get(name);
+        if (registered == null) {
+            List<Double> percentiles = TimerMetrics.DEFAULT_PERCENTILES;
+            if (evaluated.isMap()) {
+                percentiles = evaluated.get("percentiles").defaultTo(percentiles).asList(Double.class);
+            }
+            registered = new RegisteredMetrics(new TimerMetrics(percentiles));
+            metrics.put(name, registered);
+        }
+        if (registered.heap != heap) {
+            // First decoration in this heap (the heap may have been re-created since the histogram creation)
+            EndpointRegistry registry = heap.get(ENDPOINT_REGISTRY_HEAP_KEY, EndpointRegistry.class);
+            final Registration registration;
+            if (registry != null) {
+                registration = registry.register(format("%s-timer", slug(name.getLeaf())), registered.metrics);
+            } else {
+                registration = null;
+            }
+            registered.heap = heap;
+            context.onDestroy(new Runnable() {
+                @Override
+                public void run() {
+                    if (registration != null) {
+                        registration.unregister();
+                    }
+                    release(name, heap);
+                }
+            });
+        }
+        return registered.metrics;
+    }
+
+    /**
+     * Forgets the histograms of the given heap object, unless they have been taken over by another heap since (the
+     * new heap of a reloaded route is built before the old one is destroyed).
+     *
+     * @param name
+     *         name of the decorated heap object
+     * @param heap
+     *         heap being destroyed
+     */
+    private synchronized void release(final Name name, final Heap heap) {
+        RegisteredMetrics registered = metrics.get(name);
+        if (registered != null && registered.heap == heap) {
+            metrics.remove(name);
+        }
+    }
+
     /**
      * Builds a new Logger dedicated for the heap object context.
      *
@@ -109,7 +273,20 @@ public class TimerDecorator extends AbstractHandlerAndFilterDecorator {
     public static class Heaplet extends DecoratorHeaplet {
         @Override
         public Decorator create() throws HeapException {
-            return new TimerDecorator();
+            Mode mode = config.get("mode")
+                              .as(evaluated())
+                              .defaultTo(Mode.LOG.name())
+                              .as(enumConstant(Mode.class));
+            return new TimerDecorator(mode);
+        }
+    }
+
+    private static final class RegisteredMetrics {
+        private final TimerMetrics metrics;
+        private Heap heap;
+
+        private RegisteredMetrics(final TimerMetrics metrics) {
+            this.metrics = metrics;
         }
     }
 }
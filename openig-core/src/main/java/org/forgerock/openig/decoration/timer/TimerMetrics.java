@@ -0,0 +1,127 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.decoration.timer;
+
+import static java.util.Arrays.asList;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Holds the latency histograms of a single timed heap object and exposes them as a JSON document.
+ * <p>
+ * Two histograms are maintained (values are recorded in microseconds):
+ * <ul>
+ *     <li>{@literal elapsed}: the whole time spent in the decorated object, including the time spent in the
+ *     downstream handlers</li>
+ *     <li>{@literal elapsedWithin}: the time spent in the decorated object only (pauses excluded)</li>
+ * </ul>
+ * Percentiles and statistics are rendered in milliseconds, with 3 decimal points.
+ */
+class TimerMetrics implements Handler {
+
+    /**
+     * Default returned percentiles.
+     */
+    static final List<Double> DEFAULT_PERCENTILES = asList(0.5, 0.9, 0.99, 0.999);
+
+    private static final BigDecimal ONE_THOUSAND = BigDecimal.valueOf(1000);
+
+    private final Histogram elapsed = new Histogram(new ExponentiallyDecayingReservoir());
+    private final Histogram elapsedWithin = new Histogram(new ExponentiallyDecayingReservoir());
+    private final List<Double> percentiles;
+
+    /**
+     * Builds a new TimerMetrics rendering the given percentiles.
+     *
+     * @param percentiles
+     *         percentiles to be rendered (values between 0 and 1)
+     */
+    TimerMetrics(final List<Double> percentiles) {
+        this.percentiles = percentiles;
+    }
+
+    /**
+     * Records a new sample.
+     *
+     * @param elapsedMicros
+     *         total elapsed time in microseconds
+     * @param pausedMicros
+     *         accumulated time spent outside of the decorated object in microseconds
+     */
+    void record(final long elapsedMicros, final long pausedMicros) {
+        elapsed.update(elapsedMicros);
+        elapsedWithin.update(elapsedMicros - pausedMicros);
+    }
+
+    Histogram getElapsed() {
+        return elapsed;
+    }
+
+    Histogram getElapsedWithin() {
+        return elapsedWithin;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("elapsed", render(elapsed));
+        data.put("elapsedWithin", render(elapsedWithin));
+
+        Response response = new Response(Status.OK);
+        response.getEntity().setJson(data);
+        return Promises.newResultPromise(response);
+    }
+
+    private Map<String, Object> render(final Histogram histogram) {
+        Snapshot snapshot = histogram.getSnapshot();
+        Map<String, BigDecimal> values = new LinkedHashMap<>();
+        for (Double percentile : percentiles) {
+            values.put(String.valueOf(percentile), toMilliseconds(snapshot.getValue(percentile)));
+        }
+        return object(field("count", histogram.getCount()),
+                      field("min", toMilliseconds(snapshot.getMin())),
+                      field("max", toMilliseconds(snapshot.getMax())),
+                      field("mean", toMilliseconds(snapshot.getMean())),
+                      field("median", toMilliseconds(snapshot.getMedian())),
+                      field("standardDeviation", toMilliseconds(snapshot.getStdDev())),
+                      field("percentiles", values));
+    }
+
+    private static BigDecimal toMilliseconds(final double value) {
+        return BigDecimal.valueOf(value)
+                         .divide(ONE_THOUSAND, 3, RoundingMode.HALF_DOWN);
+    }
+}
@@ -11,11 +11,11 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014 ForgeRock AS.
+ * Copyright 2014-2016 ForgeRock AS.
  */
 
 /**
  * Contains a decorator that log {@literal started} and {@literal elapsed} messages when
- * entering/exiting a Filter or a Handler.
+ * entering/exiting a Filter or a Handler, or that records the elapsed times into histograms.
  */
 package org.forgerock.openig.decoration.timer;
@@ -0,0 +1,400 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.el;
+
+import static org.forgerock.openig.el.Bindings.bindings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.forgerock.http.MutableUri;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.Context;
+
+/**
+ * An ordered list of boolean conditions, each associated with a value, that returns the value of the first condition
+ * yielding {@code true}.
+ * <p>
+ * When the table is built, each condition is analysed. Consecutive conditions having one of the following simple
+ * forms are grouped together and resolved with hash (or prefix tree) lookups instead of being evaluated one by one:
+ * <ul>
+ *     <li>{@code ${request.method == 'GET'}}</li>
+ *     <li>{@code ${request.uri.host == 'www.example.com'}}</li>
+ *     <li>{@code ${request.uri.path == '/login'}}</li>
+ *     <li>{@code ${matches(request.uri.path, '^/api/')}} (the pattern has to be a literal prefix)</li>
+ *     <li>{@code ${request.headers['X-Tenant'][0] == 'acme'}}</li>
+ * </ul>
+ * The {@code eq} operator and reversed operands are accepted as well. Any other condition is evaluated as a regular
+ * {@link Expression}, in its original position: the first-match semantic of the list is always preserved.
+ *
+ * @param <T>
+ *            The type of the values associated with the conditions.
+ */
+public final class ConditionTable<T> {
+
+    /** Single or double quoted EL string literal. */
+    private static final String STRING = "('(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\")";
+
+    /** Request attributes that can be looked up (the header name is captured). */
+    private static final String ATTRIBUTE = "(request\\.method|request\\.uri\\.host|request\\.uri\\.path"
+            + "|request\\.headers\\[\\s*" + STRING + "\\s*\\]\\[\\s*0\\s*\\])";
+
+    private static final String EQUALS = "\\s*(?:==|eq)\\s*";
+
+    private static final Pattern ATTRIBUTE_EQUALS =
+            Pattern.compile("\\$\\{\\s*" + ATTRIBUTE + EQUALS + STRING + "\\s*\\}");
+
+    private static final Pattern EQUALS_ATTRIBUTE =
+            Pattern.compile("\\$\\{\\s*" + STRING + EQUALS + ATTRIBUTE + "\\s*\\}");
+
+    private static final Pattern PATH_MATCHES =
+            Pattern.compile("\\$\\{\\s*matches\\(\\s*request\\.uri\\.path\\s*,\\s*" + STRING + "\\s*\\)\\s*\\}");
+
+    /** Characters that make a regular expression something else than a literal string. */
+    private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    /**
+     * Returns a new builder of condition tables.
+     *
+     * @param <T>
+     *            The type of the values associated with the conditions.
+     * @return a new builder of condition tables.
+     */
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Collects the conditions, in order, before compiling them into a {@link ConditionTable}.
+     *
+     * @param <T>
+     *            The type of the values associated with the conditions.
+     */
+    public static final class Builder<T> {
+
+        private final List<Segment<T>> segments = new ArrayList<>();
+
+        private Indexed<T> current;
+
+        private int index;
+
+        private Builder() {
+        }
+
+        /**
+         * Appends a condition to the table.
+         *
+         * @param condition
+         *            The condition to evaluate, or {@code null} if the value has to be returned unconditionally.
+         * @param value
+         *            The value to return if the condition yields {@code true}.
+         * @return this builder.
+         */
+        public Builder<T> add(final Expression<Boolean> condition, final T value) {
+            Entry<T> entry = new Entry<>(index++, value);
+            if (condition != null && analyse(condition.toString(), entry)) {
+                return this;
+            }
+            current = null;
+            segments.add(new Linear<>(condition, value));
+            return this;
+        }
+
+        /**
+         * Returns a condition table containing all the conditions appended so far.
+         *
+         * @return a condition table containing all the conditions appended so far.
+         */
+        public ConditionTable<T> build() {
+            return new ConditionTable<>(new ArrayList<>(segments));
+        }
+
+        private boolean analyse(final String condition, final Entry<T> entry) {
+            Matcher matcher = ATTRIBUTE_EQUALS.matcher(condition);
+            if (matcher.matches()) {
+                return addEquals(matcher.group(1), unquote(matcher.group(2)), unquote(matcher.group(3)), entry);
+            }
+            matcher = EQUALS_ATTRIBUTE.matcher(condition);
+            if (matcher.matches()) {
+                return addEquals(matcher.group(2), unquote(matcher.group(3)), unquote(matcher.group(1)), entry);
+            }
+            matcher = PATH_MATCHES.matcher(condition);
+            if (matcher.matches()) {
+                String prefix = literalPrefix(unquote(matcher.group(1)));
+                if (prefix != null) {
+                    indexed().prefixes.put(prefix, entry);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean addEquals(final String attribute, final String header, final String value,
+                                  final Entry<T> entry) {
+            if (value == null || value.isEmpty()) {
+                // EL coerces a missing value to "": an empty literal also matches what lookups cannot find
+                return false;
+            }
+            Indexed<T> indexed;
+            switch (attribute) {
+            case "request.method":
+                indexed = indexed();
+                putIfAbsent(indexed.methods, value, entry);
+                return true;
+            case "request.uri.host":
+                indexed = indexed();
+                putIfAbsent(indexed.hosts, value, entry);
+                return true;
+            case "request.uri.path":
+                indexed = indexed();
+                putIfAbsent(indexed.paths, value, entry);
+                return true;
+            default:
+                if (header == null) {
+                    return false;
+                }
+                indexed = indexed();
+                Map<String, Entry<T>> values = indexed.headers.get(header);
+                if (values == null) {
+                    values = new HashMap<>();
+                    indexed.headers.put(header, values);
+                }
+                putIfAbsent(values, value, entry);
+                return true;
+            }
+        }
+
+        private Indexed<T> indexed() {
+            if (current == null) {
+                current = new Indexed<>();
+                segments.add(current);
+            }
+            return current;
+        }
+    }
+
+    private final List<Segment<T>> segments;
+
+    private ConditionTable(final List<Segment<T>> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Returns the value associated with the first condition yielding {@code true}, or {@code null} if none does.
+     * Conditions that could not be compiled are evaluated against the given context, request and response.
+     *
+     * @param context
+     *            The context to bind in the evaluated expressions.
+     * @param request
+     *            The request to bind in the evaluated expressions.
+     * @param response
+     *            The response to bind in the evaluated expressions, or {@code null} to not bind any response.
+     * @return the value associated with the first condition yielding {@code true}, or {@code null} if none does.
+     */
+    public T lookup(final Context context, final Request request, final Response response) {
+        Bindings bindings = null;
+        for (Segment<T> segment : segments) {
+            if (segment instanceof Linear) {
+                Linear<T> linear = (Linear<T>) segment;
+                if (linear.condition == null) {
+                    return linear.value;
+                }
+                if (bindings == null) {
+                    bindings = (response == null) ? bindings(context, request) : bindings(context, request, response);
+                }
+                if (Boolean.TRUE.equals(linear.condition.eval(bindings))) {
+                    return linear.value;
+                }
+            } else {
+                Entry<T> entry = ((Indexed<T>) segment).lookup(request);
+                if (entry != null) {
+                    return entry.value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the EL string literal without its quotes and escape sequences, or {@code null} if it contains an escape
+     * sequence that is not trivially understood.
+     */
+    private static String unquote(final String literal) {
+        if (literal == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder(literal.length());
+        for (int i = 1; i < literal.length() - 1; i++) {
+            char c = literal.charAt(i);
+            if (c == '\\') {
+                c = literal.charAt(++i);
+                if (c != '\\' && c != '\'' && c != '"') {
+                    return null;
+                }
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the prefix matched by the given regular expression if it is an anchored literal string, {@code null}
+     * otherwise.
+     */
+    private static String literalPrefix(final String regex) {
+        if (regex == null || !regex.startsWith("^")) {
+            return null;
+        }
+        String prefix = regex.substring(1);
+        for (int i = 0; i < prefix.length(); i++) {
+            if (REGEX_METACHARACTERS.indexOf(prefix.charAt(i)) != -1) {
+                return null;
+            }
+        }
+        return prefix;
+    }
+
+    private static <T> void putIfAbsent(final Map<String, Entry<T>> map, final String key, final Entry<T> entry) {
+        // Only the first condition testing a given value can ever be selected
+        if (!map.containsKey(key)) {
+            map.put(key, entry);
+        }
+    }
+
+    private static <T> Entry<T> first(final Entry<T> a, final Entry<T> b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return (a.index <= b.index) ? a : b;
+    }
+
+    /** A value, with the position of its condition in the table. */
+    private static final class Entry<T> {
+        private final int index;
+        private final T value;
+
+        Entry(final int index, final T value) {
+            this.index = index;
+            this.value = value;
+        }
+    }
+
+    /** Marker for the parts of the table. */
+    private interface Segment<T> {
+    }
+
+    /** A condition that has to be evaluated as an expression. */
+    private static final class Linear<T> implements Segment<T> {
+        private final Expression<Boolean> condition;
+        private final T value;
+
+        Linear(final Expression<Boolean> condition, final T value) {
+            this.condition = condition;
+            this.value = value;
+        }
+    }
+
+    /** A run of consecutive simple conditions, resolved with lookups. */
+    private static final class Indexed<T> implements Segment<T> {
+        private final Map<String, Entry<T>> methods = new HashMap<>();
+        private final Map<String, Entry<T>> hosts = new HashMap<>();
+        private final Map<String, Entry<T>> paths = new HashMap<>();
+        private final PrefixTree<T> prefixes = new PrefixTree<>();
+        /** Header values, by header name (header names are case insensitive). */
+        private final Map<String, Map<String, Entry<T>>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        Entry<T> lookup(final Request request) {
+            Entry<T> found = null;
+            if (!methods.isEmpty()) {
+                found = lookup(methods, request.getMethod());
+            }
+            MutableUri uri = request.getUri();
+            if (uri != null) {
+                if (!hosts.isEmpty()) {
+                    found = first(found, lookup(hosts, uri.getHost()));
+                }
+                if (!paths.isEmpty() || !prefixes.isEmpty()) {
+                    String path = uri.getPath();
+                    if (path != null) {
+                        found = first(found, lookup(paths, path));
+                        found = first(found, prefixes.lookup(path));
+                    }
+                }
+            }
+            for (Map.Entry<String, Map<String, Entry<T>>> header : headers.entrySet()) {
+                found = first(found, lookup(header.getValue(), request.getHeaders().getFirst(header.getKey())));
+            }
+            return found;
+        }
+
+        private static <T> Entry<T> lookup(final Map<String, Entry<T>> map, final String key) {
+            return (key == null) ? null : map.get(key);
+        }
+    }
+
+    /** Finds the first entry whose prefix starts a given string. */
+    private static final class PrefixTree<T> {
+        private Map<Character, PrefixTree<T>> children = Collections.emptyMap();
+        private Entry<T> entry;
+
+        boolean isEmpty() {
+            return entry == null && children.isEmpty();
+        }
+
+        void put(final String prefix, final Entry<T> entry) {
+            PrefixTree<T> node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                Character c = prefix.charAt(i);
+                PrefixTree<T> child = node.children.get(c);
+                if (child == null) {
+                    if (node.children.isEmpty()) {
+                        node.children = new HashMap<>();
+                    }
+                    child = new PrefixTree<>();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            if (node.entry == null) {
+                node.entry = entry;
+            }
+        }
+
+        Entry<T> lookup(final String value) {
+            Entry<T> found = entry;
+            PrefixTree<T> node = this;
+            for (int i = 0; i < value.length() && !node.children.isEmpty(); i++) {
+                node = node.children.get(value.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                found = first(found, node.entry);
+            }
+            return found;
+        }
+    }
+}
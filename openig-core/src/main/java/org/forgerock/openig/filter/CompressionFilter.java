@@ -0,0 +1,446 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static org.forgerock.openig.util.JsonValues.evaluated;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.header.ContentEncodingHeader;
+import org.forgerock.http.header.ContentLengthHeader;
+import org.forgerock.http.header.ContentTypeHeader;
+import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.io.CompressingInputStream;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Compresses the entity of responses as it streams, with the {@literal gzip} or the {@literal deflate} content
+ * coding negotiated with the {@literal Accept-Encoding} header of the request: the entity is never fully buffered,
+ * whatever its size.
+ *
+ * <pre>
+ * {@code
+ * {
+ *   "level"                       : number,               [OPTIONAL - compression level, from 0 (no compression)
+ *                                                                     to 9 (best compression), defaults to -1 (the
+ *                                                                     default level of zlib, 6) ]
+ *   "minimumSize"                 : number,               [OPTIONAL - responses whose Content-Length is lower are
+ *                                                                     not compressed, defaults to 1024 bytes ]
+ *   "mediaTypes"                  : [ expression ]        [OPTIONAL - media types to compress, "*" matches any
+ *                                                                     sequence of characters but '/', defaults to
+ *                                                                     textual types ]
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ * {
+ *     "type": "CompressionFilter",
+ *     "config": {
+ *         "level": 5,
+ *         "minimumSize": 2048
+ *     }
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Only the responses with an entity of one of the {@literal mediaTypes} are compressed: the media types that are
+ * already compressed (images, audio, video, archives...) are left as they are, so are the responses that already
+ * have a {@literal Content-Encoding}, the partial content responses, and the responses whose
+ * {@literal Cache-Control} forbids transformations. The responses with an unknown length are always compressed.
+ * <p>
+ * The compressed responses have a {@literal Content-Encoding} but no {@literal Content-Length}, and their strong
+ * {@literal ETag} is weakened as their bytes differ from the uncompressed ones. A {@literal Vary: Accept-Encoding}
+ * header is added to all the responses that would be compressed for a client accepting it, so that caches do not
+ * serve a compressed entity to a client that does not accept it.
+ * <p>
+ * The {@link Deflater}s, which hold native memory, are pooled: a stream holds one until its end is reached, or
+ * until it is closed.
+ *
+ * @see CompressingInputStream
+ */
+public class CompressionFilter extends GenericHeapObject implements Filter {
+
+    /** Default size under which responses are not compressed, in bytes. */
+    public static final int DEFAULT_MINIMUM_SIZE = 1024;
+
+    /** Media types compressed by default. */
+    private static final List<String> DEFAULT_MEDIA_TYPES = Arrays.asList("text/*",
+                                                                          "application/json",
+                                                                          "application/*+json",
+                                                                          "application/javascript",
+                                                                          "application/x-javascript",
+                                                                          "application/xml",
+                                                                          "application/*+xml",
+                                                                          "image/svg+xml");
+
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String CACHE_CONTROL = "Cache-Control";
+    private static final String ETAG = "ETag";
+    private static final String VARY = "Vary";
+
+    /** The content codings, in the order of preference when they are equally accepted. */
+    enum Coding {
+        /** The gzip format (RFC 1952). */
+        GZIP("gzip"),
+        /** The zlib format (RFC 1950). */
+        DEFLATE("deflate");
+
+        private final String token;
+
+        Coding(final String token) {
+            this.token = token;
+        }
+
+        @Override
+        public String toString() {
+            return token;
+        }
+    }
+
+    private final int level;
+    private final int minimumSize;
+    private final List<String> mediaTypes = new ArrayList<>(DEFAULT_MEDIA_TYPES);
+    private final DeflaterPool gzipDeflaters;
+    private final DeflaterPool zlibDeflaters;
+
+    /**
+     * Builds a new CompressionFilter.
+     *
+     * @param level
+     *         the compression level, from {@literal 0} to {@literal 9}, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param minimumSize
+     *         the size under which responses whose length is known are not compressed, in bytes
+     */
+    public CompressionFilter(final int level, final int minimumSize) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("The compression level must be between 0 and 9, or -1");
+        }
+        if (minimumSize < 0) {
+            throw new IllegalArgumentException("The minimum size must not be negative");
+        }
+        this.level = level;
+        this.minimumSize = minimumSize;
+        int capacity = Runtime.getRuntime().availableProcessors() * 2;
+        this.gzipDeflaters = new DeflaterPool(true, capacity);
+        this.zlibDeflaters = new DeflaterPool(false, capacity);
+    }
+
+    /**
+     * Returns the (mutable) list of media types whose entities are compressed. A {@literal *} matches any sequence
+     * of characters but {@literal /}: {@literal text/*} matches all the sub-types of {@literal text}, and
+     * {@literal application/*+json} all the JSON based sub-types of {@literal application}.
+     *
+     * @return the list of media types whose entities are compressed
+     */
+    public List<String> getMediaTypes() {
+        return mediaTypes;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        // The response to a HEAD request has no entity to compress
+        final Coding coding = "HEAD".equals(request.getMethod())
+                ? null
+                : negotiate(request.getHeaders().get(ACCEPT_ENCODING));
+        return next.handle(context, request)
+                   .then(new Function<Response, Response, NeverThrowsException>() {
+                       @Override
+                       public Response apply(final Response response) {
+                           return compress(response, coding);
+                       }
+                   });
+    }
+
+    /**
+     * Returns the preferred content coding accepted by the given {@literal Accept-Encoding} header.
+     *
+     * @param acceptEncoding
+     *         the {@literal Accept-Encoding} header, may be {@code null}
+     * @return the preferred content coding, or {@code null} if none is accepted
+     */
+    static Coding negotiate(final Header acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float[] qualities = new float[Coding.values().length];
+        boolean[] listed = new boolean[qualities.length];
+        float wildcard = 0f;
+        for (String value : acceptEncoding.getValues()) {
+            for (String element : value.split(",")) {
+                String[] parameters = element.split(";");
+                String name = parameters[0].trim().toLowerCase();
+                float quality = quality(parameters);
+                if ("*".equals(name)) {
+                    wildcard = quality;
+                } else if ("x-gzip".equals(name)) {
+                    qualities[Coding.GZIP.ordinal()] = quality;
+                    listed[Coding.GZIP.ordinal()] = true;
+                } else {
+                    for (Coding coding : Coding.values()) {
+                        if (coding.token.equals(name)) {
+                            qualities[coding.ordinal()] = quality;
+                            listed[coding.ordinal()] = true;
+                        }
+                    }
+                }
+            }
+        }
+        Coding preferred = null;
+        float best = 0f;
+        for (Coding coding : Coding.values()) {
+            float quality = listed[coding.ordinal()] ? qualities[coding.ordinal()] : wildcard;
+            if (quality > best) {
+                preferred = coding;
+                best = quality;
+            }
+        }
+        return preferred;
+    }
+
+    private static float quality(final String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    // Invalid: the coding is not accepted
+                    return 0f;
+                }
+            }
+        }
+        return 1f;
+    }
+
+    private Response compress(final Response response, final Coding coding) {
+        if (!isCompressible(response)) {
+            return response;
+        }
+        addVary(response);
+        if (coding == null) {
+            return response;
+        }
+
+        final DeflaterPool pool = coding == Coding.GZIP ? gzipDeflaters : zlibDeflaters;
+        InputStream content = new CompressingInputStream(response.getEntity().getRawContentInputStream(),
+                                                         pool.acquire(level),
+                                                         coding == Coding.GZIP) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Releases the upstream entity
+                    response.close();
+                }
+            }
+
+            @Override
+            protected void release(final Deflater deflater) {
+                pool.release(deflater);
+            }
+        };
+
+        // The upstream entity is still being read: the compressed entity goes into a new response
+        Response compressed = new Response(response.getStatus());
+        compressed.setVersion(response.getVersion());
+        compressed.setCause(response.getCause());
+        for (Header header : response.getHeaders().asMapOfHeaders().values()) {
+            compressed.getHeaders().put(header);
+        }
+        compressed.getHeaders().remove(ContentLengthHeader.NAME);
+        compressed.getHeaders().put(ContentEncodingHeader.NAME, coding.toString());
+        String etag = compressed.getHeaders().getFirst(ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            compressed.getHeaders().put(ETAG, "W/" + etag);
+        }
+        compressed.setEntity(IO.newBranchingInputStream(content, storage));
+        return compressed;
+    }
+
+    private boolean isCompressible(final Response response) {
+        Status status = response.getStatus();
+        if (status == null
+                || status.getFamily() == Status.Family.INFORMATIONAL
+                || status == Status.NO_CONTENT
+                || status == Status.PARTIAL_CONTENT
+                || status == Status.NOT_MODIFIED
+                || response.getEntity() == null) {
+            return false;
+        }
+        if (hasValue(response.getHeaders().get(ContentEncodingHeader.NAME), null, "identity")
+                || hasValue(response.getHeaders().get(CACHE_CONTROL), "no-transform", null)) {
+            return false;
+        }
+        long length = ContentLengthHeader.valueOf(response).getLength();
+        if (length >= 0 && length < minimumSize) {
+            return false;
+        }
+        return isCompressible(ContentTypeHeader.valueOf(response).getType());
+    }
+
+    private boolean isCompressible(final String type) {
+        if (type == null) {
+            return false;
+        }
+        String mediaType = type.trim().toLowerCase();
+        for (String candidate : mediaTypes) {
+            if (matches(candidate.toLowerCase(), mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Matches a media type against a pattern whose {@literal *} match any sequence of characters but '/'. */
+    private static boolean matches(final String pattern, final String mediaType) {
+        int star = pattern.indexOf('*');
+        if (star == -1) {
+            return pattern.equals(mediaType);
+        }
+        String prefix = pattern.substring(0, star);
+        String rest = pattern.substring(star + 1);
+        if (!mediaType.startsWith(prefix)) {
+            return false;
+        }
+        for (int end = prefix.length(); end <= mediaType.length(); end++) {
+            if (matches(rest, mediaType.substring(end))) {
+                return true;
+            }
+            if (end < mediaType.length() && mediaType.charAt(end) == '/') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if one of the comma separated values of the header is the expected value, or, when
+     * {@code expected} is {@code null}, if one of them is not the ignored value.
+     */
+    private static boolean hasValue(final Header header, final String expected, final String ignored) {
+        if (header == null) {
+            return false;
+        }
+        for (String value : header.getValues()) {
+            for (String element : value.split(",")) {
+                String token = element.trim();
+                if (token.isEmpty()) {
+                    continue;
+                }
+                if (expected != null ? token.equalsIgnoreCase(expected) : !token.equalsIgnoreCase(ignored)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void addVary(final Response response) {
+        Header vary = response.getHeaders().get(VARY);
+        if (!hasValue(vary, ACCEPT_ENCODING, null) && !hasValue(vary, "*", null)) {
+            response.getHeaders().add(VARY, ACCEPT_ENCODING);
+        }
+    }
+
+    /**
+     * Returns the number of deflaters pooled, ready to be reused.
+     *
+     * @return the number of deflaters pooled
+     */
+    int getPooledDeflaters() {
+        return gzipDeflaters.size() + zlibDeflaters.size();
+    }
+
+    /** A bounded pool of deflaters, all producing the same format. */
+    private static final class DeflaterPool {
+        private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final boolean nowrap;
+        private final int capacity;
+
+        DeflaterPool(final boolean nowrap, final int capacity) {
+            this.nowrap = nowrap;
+            this.capacity = capacity;
+        }
+
+        Deflater acquire(final int level) {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                return new Deflater(level, nowrap);
+            }
+            size.decrementAndGet();
+            return deflater;
+        }
+
+        void release(final Deflater deflater) {
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                // Frees its native memory right away rather than when it is finalized
+                deflater.end();
+                return;
+            }
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+
+        int size() {
+            return size.get();
+        }
+    }
+
+    /** Creates and initializes a compression filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            CompressionFilter filter = new CompressionFilter(
+                    config.get("level").as(evaluated()).defaultTo(Deflater.DEFAULT_COMPRESSION).asInteger(),
+                    config.get("minimumSize").as(evaluated()).defaultTo(DEFAULT_MINIMUM_SIZE).asInteger());
+            if (config.isDefined("mediaTypes")) {
+                filter.getMediaTypes().clear();
+                filter.getMediaTypes().addAll(config.get("mediaTypes").as(evaluated()).asList(String.class));
+            }
+            return filter;
+        }
+    }
+}
@@ -25,11 +25,14 @@ import static org.forgerock.openig.util.JsonValues.evaluated;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
 import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.forgerock.http.Filter;
@@ -57,6 +60,14 @@ import org.forgerock.util.promise.ResultHandler;
  * for encryption but, for now CryptoHeaderFilter does
  * not implement a way to set/retrieve the initialization vector(IV) (OPENIG-42)
  * therefore, the CryptoHeader can not decrypt cipher algorithm using IV.
+ * <p>
+ * The exception is {@link #GCM_ALGORITHM AES/GCM}, the recommended algorithm: a random nonce is generated for each
+ * encrypted value, and prepended to the cipher text (and its authentication tag) before the whole is base64 encoded.
+ * Decryption fails if the value has been tampered with. Unlike the default {@literal ECB} mode, encrypting the same
+ * value twice gives different results.
+ * <p>
+ * Cipher instances are pooled per thread, and are only initialized again when the algorithm requires it (new IV or
+ * nonce).
  */
 public class CryptoHeaderFilter extends GenericHeapObject implements Filter {
 
@@ -65,6 +76,19 @@ public class CryptoHeaderFilter extends GenericHeapObject implements Filter {
      */
     public static final String DEFAULT_ALGORITHM = "AES/ECB/PKCS5Padding";
 
+    /**
+     * Authenticated encryption algorithm, a random nonce being generated for each value.
+     */
+    public static final String GCM_ALGORITHM = "AES/GCM/NoPadding";
+
+    /** Length (in bytes) of the nonce generated for each value encrypted with AES/GCM. */
+    private static final int GCM_NONCE_LENGTH = 12;
+
+    /** Length (in bits) of the authentication tag of the values encrypted with AES/GCM. */
+    private static final int GCM_TAG_LENGTH = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     /** Should the filter encrypt or decrypt the given headers ? */
     public enum Operation {
         /**
@@ -97,6 +121,12 @@ public class CryptoHeaderFilter extends GenericHeapObject implements Filter {
     /** The names of the headers whose values should be processed for encryption or decryption. */
     private final Set<String> headers = new CaseInsensitiveSet();
 
+    /** Ciphers of each thread, for encryption. */
+    private final ThreadLocal<PooledCipher> encryptors = new ThreadLocal<>();
+
+    /** Ciphers of each thread, for decryption. */
+    private final ThreadLocal<PooledCipher> decryptors = new ThreadLocal<>();
+
     /**
      * Sets the operation (encryption/decryption) to apply to the headers.
      *
@@ -186,11 +216,23 @@ public class CryptoHeaderFilter extends GenericHeapObject implements Filter {
         String result = "";
         try {
             byte[] ciphertext = Base64.decode(in);
-            Cipher cipher = Cipher.getInstance(this.algorithm);
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            byte[] plaintext = cipher.doFinal(ciphertext);
+            byte[] plaintext;
+            if (isGcm()) {
+                if (ciphertext == null || ciphertext.length < GCM_NONCE_LENGTH) {
+                    throw new GeneralSecurityException("The value is too short to contain a nonce");
+                }
+                Cipher cipher = pooled(decryptors).cipher;
+                cipher.init(Cipher.DECRYPT_MODE,
+                            key,
+                            new GCMParameterSpec(GCM_TAG_LENGTH, ciphertext, 0, GCM_NONCE_LENGTH));
+                plaintext = cipher.doFinal(ciphertext, GCM_NONCE_LENGTH, ciphertext.length - GCM_NONCE_LENGTH);
+            } else {
+                plaintext = initialized(decryptors, Cipher.DECRYPT_MODE).doFinal(ciphertext);
+            }
             result = new String(plaintext, charset).trim();
         } catch (GeneralSecurityException gse) {
+            // The cipher may be left in an unknown state
+            decryptors.remove();
             logger.error(gse);
         }
         return result;
@@ -205,16 +247,59 @@ public class CryptoHeaderFilter extends GenericHeapObject implements Filter {
     private String encrypt(String in) {
         String result = "";
         try {
-            Cipher cipher = Cipher.getInstance(this.algorithm);
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            byte[] ciphertext = cipher.doFinal(in.getBytes(Charset.defaultCharset()));
+            byte[] plaintext = in.getBytes(Charset.defaultCharset());
+            byte[] ciphertext;
+            if (isGcm()) {
+                byte[] nonce = new byte[GCM_NONCE_LENGTH];
+                RANDOM.nextBytes(nonce);
+                Cipher cipher = pooled(encryptors).cipher;
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+                // nonce || cipher text || tag, in a single buffer
+                ciphertext = Arrays.copyOf(nonce, GCM_NONCE_LENGTH + cipher.getOutputSize(plaintext.length));
+                int length = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext, GCM_NONCE_LENGTH);
+                if (GCM_NONCE_LENGTH + length != ciphertext.length) {
+                    ciphertext = Arrays.copyOf(ciphertext, GCM_NONCE_LENGTH + length);
+                }
+            } else {
+                ciphertext = initialized(encryptors, Cipher.ENCRYPT_MODE).doFinal(plaintext);
+            }
             result = Base64.encode(ciphertext).trim();
         } catch (GeneralSecurityException gse) {
+            // The cipher may be left in an unknown state
+            encryptors.remove();
             logger.error(gse);
         }
         return result;
     }
 
+    private boolean isGcm() {
+        return algorithm.toUpperCase().contains("/GCM/");
+    }
+
+    /**
+     * Returns the cipher of the current thread, initialized for the given mode. Ciphers that do not use an IV keep
+     * their state after each operation and are only initialized once, others are initialized again on each call so
+     * that they generate a new IV.
+     */
+    private Cipher initialized(final ThreadLocal<PooledCipher> pool, final int mode) throws GeneralSecurityException {
+        PooledCipher pooled = pooled(pool);
+        if (!pooled.initialized) {
+            pooled.cipher.init(mode, key);
+            pooled.initialized = pooled.cipher.getIV() == null;
+        }
+        return pooled.cipher;
+    }
+
+    /** Returns the cipher of the current thread, a new one is created if the algorithm or the key have changed. */
+    private PooledCipher pooled(final ThreadLocal<PooledCipher> pool) throws GeneralSecurityException {
+        PooledCipher pooled = pool.get();
+        if (pooled == null || !pooled.algorithm.equals(algorithm) || pooled.key != key) {
+            pooled = new PooledCipher(algorithm, key, Cipher.getInstance(algorithm));
+            pool.set(pooled);
+        }
+        return pooled;
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
@@ -248,6 +333,9 @@ public class CryptoHeaderFilter extends GenericHeapObject implements Filter {
                                        .as(enumConstant(MessageType.class));
             filter.operation = evaluated.get("operation").required().as(enumConstant(Operation.class));
             filter.algorithm = evaluated.get("algorithm").defaultTo(DEFAULT_ALGORITHM).asString();
+            if (filter.algorithm.toUpperCase().contains("/ECB/")) {
+                logger.warning("The ECB mode does not hide data patterns, consider using " + GCM_ALGORITHM);
+            }
             filter.charset = evaluated.get("charset").defaultTo("UTF-8").as(charset());
             byte[] key = Base64.decode(evaluated.get("key").required().asString());
             if ((key == null) || (key.length == 0)) {
@@ -264,4 +352,20 @@ public class CryptoHeaderFilter extends GenericHeapObject implements Filter {
             return filter;
         }
     }
+
+    /** A cipher, and the algorithm and key it has been created for. */
+    private static final class PooledCipher {
+        private final String algorithm;
+        private final Key key;
+        private final Cipher cipher;
+
+        /** Can the cipher be used without being initialized again. */
+        private boolean initialized;
+
+        PooledCipher(final String algorithm, final Key key, final Cipher cipher) {
+            this.algorithm = algorithm;
+            this.key = key;
+            this.cipher = cipher;
+        }
+    }
 }
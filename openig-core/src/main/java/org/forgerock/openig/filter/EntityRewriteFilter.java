@@ -0,0 +1,298 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.forgerock.json.JsonValueFunctions.charset;
+import static org.forgerock.json.JsonValueFunctions.pattern;
+import static org.forgerock.openig.util.JsonValues.evaluated;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.header.ContentEncodingHeader;
+import org.forgerock.http.header.ContentLengthHeader;
+import org.forgerock.http.header.ContentTypeHeader;
+import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.io.ReaderInputStream;
+import org.forgerock.openig.regex.PatternTemplate;
+import org.forgerock.openig.regex.RewritingReader;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Rewrites the entity of responses as it streams, applying literal and regular expression replacements: the entity
+ * is never fully buffered, whatever its size.
+ *
+ * <pre>
+ * {@code
+ * {
+ *   "rewrites"                    : [ {                   [REQUIRED - applied in order ]
+ *       "pattern"                 : regex,                [REQUIRED - unless literal is set ]
+ *       "literal"                 : expression,           [REQUIRED - unless pattern is set ]
+ *       "replacement"             : string                [REQUIRED - a template for patterns, see
+ *                                                                     PatternTemplate, a literal (expression)
+ *                                                                     otherwise ]
+ *   } ],
+ *   "charset"                     : expression,           [OPTIONAL - overrides the charset of the response,
+ *                                                                     defaults to the Content-Type's charset, or
+ *                                                                     ISO-8859-1 ]
+ *   "mediaTypes"                  : [ expression ],       [OPTIONAL - media types to rewrite, "type/*" matches
+ *                                                                     all sub-types, defaults to textual types ]
+ *   "maxMatchLength"              : number                [OPTIONAL - defaults to 1024 characters ]
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ * {
+ *     "type": "EntityRewriteFilter",
+ *     "config": {
+ *         "rewrites": [
+ *             { "literal": "http://app.internal:8080/", "replacement": "https://www.example.com/" },
+ *             { "pattern": "src=\"/static/([^\"]+)\"", "replacement": "src=\"https://cdn.example.com/$1\"" }
+ *         ]
+ *     }
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Matches spanning two reads of the upstream entity are replaced as long as they are no longer than
+ * {@literal maxMatchLength} characters. The entity is decoded from its {@literal Content-Encoding} and re-encoded
+ * with the same charset but without any content encoding, its length is unknown until it has been fully read: the
+ * {@literal Content-Encoding} and {@literal Content-Length} headers are removed. When the charset is unknown,
+ * {@literal ISO-8859-1} is used as it decodes and re-encodes any byte unchanged.
+ *
+ * @see RewritingReader
+ * @see PatternTemplate
+ */
+public class EntityRewriteFilter extends GenericHeapObject implements Filter {
+
+    /** Default longest match guaranteed to be replaced when it spans several reads. */
+    public static final int DEFAULT_MAX_MATCH_LENGTH = 1024;
+
+    /** Media types rewritten by default. */
+    private static final List<String> DEFAULT_MEDIA_TYPES = Arrays.asList("text/*",
+                                                                          "application/json",
+                                                                          "application/javascript",
+                                                                          "application/xml",
+                                                                          "application/xhtml+xml");
+
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final List<PatternTemplate> templates = new ArrayList<>();
+    private final List<String> mediaTypes = new ArrayList<>(DEFAULT_MEDIA_TYPES);
+
+    /** Overrides the character set encoding specified in the response. If {@code null}, the response's is used. */
+    private final Charset charset;
+
+    private final int maxMatchLength;
+
+    /**
+     * Builds a new EntityRewriteFilter, without any replacement.
+     *
+     * @param charset
+     *         Overrides the character set encoding specified in the response, if {@code null} the response's
+     *         charset is used
+     * @param maxMatchLength
+     *         the longest match that is guaranteed to be replaced when it spans several reads of the entity
+     */
+    public EntityRewriteFilter(final Charset charset, final int maxMatchLength) {
+        if (maxMatchLength <= 0) {
+            throw new IllegalArgumentException("The maximum match length must be positive");
+        }
+        this.charset = charset;
+        this.maxMatchLength = maxMatchLength;
+    }
+
+    /**
+     * Adds a replacement of the matches of the given regular expression pattern.
+     *
+     * @param pattern
+     *         the pattern to replace
+     * @param template
+     *         the template applied to the matches to yield their replacement
+     * @return this filter
+     */
+    public EntityRewriteFilter rewrite(final Pattern pattern, final PatternTemplate template) {
+        patterns.add(pattern);
+        templates.add(template);
+        return this;
+    }
+
+    /**
+     * Adds a replacement of the occurrences of the given literal.
+     *
+     * @param literal
+     *         the literal to replace
+     * @param replacement
+     *         the replacement, used verbatim
+     * @return this filter
+     */
+    public EntityRewriteFilter rewriteLiteral(final String literal, final String replacement) {
+        return rewrite(Pattern.compile(literal, Pattern.LITERAL), new PatternTemplate(escape(replacement)));
+    }
+
+    /**
+     * Returns the (mutable) list of media types whose entities are rewritten. A {@literal type/*} media type
+     * matches all the sub-types of {@literal type}.
+     *
+     * @return the list of media types whose entities are rewritten
+     */
+    public List<String> getMediaTypes() {
+        return mediaTypes;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        return next.handle(context, request)
+                   .then(new Function<Response, Response, NeverThrowsException>() {
+                       @Override
+                       public Response apply(final Response response) {
+                           return rewrite(response);
+                       }
+                   });
+    }
+
+    private Response rewrite(final Response response) {
+        ContentTypeHeader contentType = ContentTypeHeader.valueOf(response);
+        if (patterns.isEmpty() || response.getEntity() == null || !isRewritable(contentType.getType())) {
+            return response;
+        }
+        Charset encoding = charset;
+        if (encoding == null) {
+            encoding = contentType.getCharset() != null ? contentType.getCharset() : ISO_8859_1;
+        }
+        Reader reader;
+        try {
+            // Reads the upstream entity itself: a branch would copy all of it into the temporary storage
+            InputStream raw = response.getEntity().getRawContentInputStream();
+            reader = new InputStreamReader(ContentEncodingHeader.valueOf(response).decode(raw), encoding);
+        } catch (IOException e) {
+            // Unsupported content encoding
+            logger.warning(e);
+            return response;
+        }
+        for (int i = 0; i < patterns.size(); i++) {
+            reader = new RewritingReader(reader, patterns.get(i), templates.get(i), maxMatchLength);
+        }
+        InputStream content = new ReaderInputStream(reader, encoding) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Releases the upstream entity
+                    response.close();
+                }
+            }
+        };
+
+        // The upstream entity is still being read: the rewritten entity goes into a new response
+        Response rewritten = new Response(response.getStatus());
+        rewritten.setVersion(response.getVersion());
+        rewritten.setCause(response.getCause());
+        for (Header header : response.getHeaders().asMapOfHeaders().values()) {
+            rewritten.getHeaders().put(header);
+        }
+        rewritten.getHeaders().remove(ContentEncodingHeader.NAME);
+        rewritten.getHeaders().remove(ContentLengthHeader.NAME);
+        rewritten.setEntity(IO.newBranchingInputStream(content, storage));
+        return rewritten;
+    }
+
+    private boolean isRewritable(final String type) {
+        if (type == null) {
+            return false;
+        }
+        String mediaType = type.toLowerCase();
+        for (String candidate : mediaTypes) {
+            String accepted = candidate.toLowerCase();
+            if (accepted.endsWith("/*")
+                    ? mediaType.startsWith(accepted.substring(0, accepted.length() - 1))
+                    : mediaType.equals(accepted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Escapes a literal replacement so that it is not interpreted by {@link PatternTemplate}. */
+    private static String escape(final String replacement) {
+        StringBuilder sb = new StringBuilder(replacement.length());
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\' || c == '$') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /** Creates and initializes an entity rewrite filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            EntityRewriteFilter filter = new EntityRewriteFilter(
+                    config.get("charset").as(evaluated()).as(charset()),
+                    config.get("maxMatchLength").as(evaluated()).defaultTo(DEFAULT_MAX_MATCH_LENGTH).asInteger());
+
+            for (JsonValue jv : config.get("rewrites").required().expect(List.class)) {
+                jv.required().expect(Map.class);
+                if (jv.isDefined("pattern") == jv.isDefined("literal")) {
+                    throw new JsonValueException(jv, "Exactly one of 'pattern' or 'literal' has to be defined");
+                }
+                if (jv.isDefined("pattern")) {
+                    filter.rewrite(jv.get("pattern").as(pattern()),
+                                   new PatternTemplate(jv.get("replacement").required().asString()));
+                } else {
+                    filter.rewriteLiteral(jv.get("literal").as(evaluated()).required().asString(),
+                                          jv.get("replacement").as(evaluated()).required().asString());
+                }
+            }
+            if (config.isDefined("mediaTypes")) {
+                filter.getMediaTypes().clear();
+                filter.getMediaTypes().addAll(config.get("mediaTypes").as(evaluated()).asList(String.class));
+            }
+            return filter;
+        }
+    }
+}
@@ -19,15 +19,23 @@ package org.forgerock.openig.filter;
 
 import static java.lang.String.format;
 import static org.forgerock.json.JsonValueFunctions.charset;
+import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.json.JsonValueFunctions.enumConstant;
 import static org.forgerock.json.JsonValueFunctions.file;
 import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.evaluated;
 import static org.forgerock.openig.util.JsonValues.expression;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
@@ -38,13 +46,16 @@ import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.text.IndexedSeparatedValuesFile;
 import org.forgerock.openig.text.SeparatedValuesFile;
+import org.forgerock.openig.text.Separator;
 import org.forgerock.openig.text.Separators;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.Factory;
 import org.forgerock.util.LazyMap;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
 
 /**
  * Retrieves and exposes a record from a delimiter-separated file. Lookup of the record is
@@ -124,25 +135,84 @@ public class FileAttributesFilter extends GenericHeapObject implements Filter {
         return next.handle(context, request);
     }
 
-    /** Creates and initializes a separated values file attribute provider in a heap environment. */
+    /**
+     * Creates and initializes a separated values file attribute provider in a heap environment.
+     * <p>
+     * By default, the file is indexed on the {@literal key} field: it is parsed once and lookups do not access the
+     * file anymore. The index is rebuilt in the background when the file is modified, the modification date of the
+     * file is checked every {@literal reloadInterval} (defaults to {@literal 10 seconds}, {@literal zero} disables
+     * the checks). Set {@literal indexed} to {@code false} to scan the file for each lookup instead, or set
+     * {@literal memoryMapped} to {@code true} to keep the records of a very large file out of the heap.
+     *
+     * @see IndexedSeparatedValuesFile
+     */
     public static class Heaplet extends GenericHeaplet {
+
+        private ScheduledFuture<?> reload;
+
         @Override
         public Object create() throws HeapException {
-            SeparatedValuesFile sources =
-                    new SeparatedValuesFile(config.get("file").as(evaluated()).required().as(file()),
-                                            config.get("charset").as(evaluated()).defaultTo("UTF-8").as(charset()),
-                                            config.get("separator").as(evaluated()).defaultTo("COMMA")
-                                                  .as(enumConstant(Separators.class))
-                                                  .getSeparator(),
-                                            config.get("header").as(evaluated()).defaultTo(true).asBoolean());
+            final File source = config.get("file").as(evaluated()).required().as(file());
+            Charset charset = config.get("charset").as(evaluated()).defaultTo("UTF-8").as(charset());
+            Separator separator = config.get("separator").as(evaluated()).defaultTo("COMMA")
+                                        .as(enumConstant(Separators.class))
+                                        .getSeparator();
+            boolean header = config.get("header").as(evaluated()).defaultTo(true).asBoolean();
+            String key = config.get("key").as(evaluated()).required().asString();
+
+            SeparatedValuesFile sources;
+            if (config.get("indexed").as(evaluated()).defaultTo(true).asBoolean()) {
+                boolean memoryMapped = config.get("memoryMapped").as(evaluated()).defaultTo(false).asBoolean();
+                final IndexedSeparatedValuesFile indexed;
+                try {
+                    indexed = new IndexedSeparatedValuesFile(source, charset, separator, header, key, memoryMapped);
+                } catch (IllegalArgumentException e) {
+                    throw new HeapException(e);
+                }
+                Duration interval = config.get("reloadInterval")
+                                          .as(evaluated())
+                                          .defaultTo("10 seconds")
+                                          .as(duration());
+                if (!interval.isZero() && !interval.isUnlimited()) {
+                    ScheduledExecutorService executor =
+                            config.get("executor")
+                                  .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                  .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+                    long period = interval.to(TimeUnit.MILLISECONDS);
+                    reload = executor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (indexed.reloadIfModified()) {
+                                    logger.debug(format("Index of %s has been rebuilt", source));
+                                }
+                            } catch (IOException e) {
+                                // Keep on using the previous index
+                                logger.warning(e);
+                            }
+                        }
+                    }, period, period, TimeUnit.MILLISECONDS);
+                }
+                sources = indexed;
+            } else {
+                sources = new SeparatedValuesFile(source, charset, separator, header);
+            }
 
             if (config.isDefined("fields")) {
                 sources.getFields().addAll(config.get("fields").as(evaluated()).asList(String.class));
             }
             return new FileAttributesFilter(sources,
-                                            config.get("key").as(evaluated()).required().asString(),
+                                            key,
                                             config.get("value").required().as(expression(String.class)),
                                             config.get("target").required().as(expression(Map.class)));
         }
+
+        @Override
+        public void destroy() {
+            if (reload != null) {
+                reload.cancel(false);
+            }
+            super.destroy();
+        }
     }
 }
@@ -0,0 +1,414 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.json.JsonValueFunctions.uri;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.evaluated;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.openig.util.Requests.copyOf;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+
+/**
+ * Hedges the idempotent requests that are slow to get a response: when the next handler has not responded within a
+ * delay, a duplicate of the request is sent and the first response wins. The tail latency then depends on the
+ * probability that both calls are slow, rather than on the probability that one of them is.
+ *
+ * <pre>
+ * {@code
+ * {
+ *   "methods"                     : [ string ],           [OPTIONAL - the methods of the requests that can be
+ *                                                                     hedged, defaults to GET, HEAD and OPTIONS ]
+ *   "percentile"                  : number,               [OPTIONAL - percentile of the response times after
+ *                                                                     which a request is hedged, defaults to 95 ]
+ *   "minimumDelay"                : duration,             [OPTIONAL - lower bound of the delay, defaults to
+ *                                                                     10 milliseconds ]
+ *   "maximumDelay"                : duration,             [OPTIONAL - upper bound of the delay, and delay until
+ *                                                                     enough response times are known, defaults to
+ *                                                                     1 second ]
+ *   "budgetRatio"                 : number,               [OPTIONAL - hedged requests allowed per request,
+ *                                                                     defaults to 0.1 ]
+ *   "budgetBurst"                 : number,               [OPTIONAL - hedged requests allowed beyond the ratio,
+ *                                                                     defaults to 10 ]
+ *   "alternateBaseUri"            : expression,           [OPTIONAL - base URI of the hedged requests, defaults
+ *                                                                     to the URI of the original request ]
+ *   "executor"                    : executor              [OPTIONAL - the scheduled executor service sending
+ *                                                                     the hedged requests ]
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ * {
+ *     "type": "HedgingFilter",
+ *     "config": {
+ *         "percentile": 99,
+ *         "alternateBaseUri": "http://replica.example.com:8080"
+ *     }
+ * }
+ * }
+ * </pre>
+ * <p>
+ * The delay is the given percentile of the recent response times of the original calls, bounded by
+ * {@literal minimumDelay} and {@literal maximumDelay}: with the 95th percentile, about 5% of the requests are hedged
+ * under normal conditions. The hedged call is cancelled when the original call responds first, but the original call
+ * is left to complete when the hedged call wins (its response is then discarded): recording the response times of
+ * the winners instead would lower the delay as soon as requests get hedged, and hedge more and more of them.
+ * <p>
+ * A retry budget prevents the hedging from amplifying the load when the next handler is slow for every request: each
+ * request earns {@literal budgetRatio} of a hedged request, up to {@literal budgetBurst} hedged requests, and a
+ * request is hedged only if a whole hedged request has been earned. With the default ratio, the hedging never adds
+ * more than 10% to the load (plus the burst).
+ * <p>
+ * Only idempotent methods should be listed in {@literal methods}: both calls may be processed by the upstream. The
+ * requests with an entity are never hedged, as both calls would have to read it.
+ */
+public class HedgingFilter extends GenericHeapObject implements Filter {
+
+    /** Methods hedged by default. */
+    private static final List<String> DEFAULT_METHODS = Arrays.asList("GET", "HEAD", "OPTIONS");
+
+    /** Number of response times to know before relying on their percentile. */
+    private static final int MINIMUM_SAMPLES = 20;
+
+    /** The delay is computed again every this number of response times, as computing a percentile is not free. */
+    private static final int REFRESH_SAMPLES = 10;
+
+    /** Budget tokens are counted in thousandths of hedged requests. */
+    private static final long TOKEN = 1000L;
+
+    private final TimeService time;
+    private final ScheduledExecutorService scheduler;
+    private final Set<String> methods;
+    private final double quantile;
+    private final long minimumDelay;
+    private final long maximumDelay;
+    private final long tokensPerRequest;
+    private final long maximumTokens;
+
+    private final Histogram responseTimes = new Histogram(new ExponentiallyDecayingReservoir());
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong tokens;
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+    private volatile long delay;
+
+    private URI alternateBaseUri;
+
+    /**
+     * Builds a new hedging filter.
+     *
+     * @param time
+     *         the time service, measuring the response times
+     * @param scheduler
+     *         the scheduled executor service sending the hedged requests
+     * @param methods
+     *         the methods of the requests that can be hedged
+     * @param percentile
+     *         the percentile of the response times after which a request is hedged
+     * @param minimumDelay
+     *         the lower bound of the delay
+     * @param maximumDelay
+     *         the upper bound of the delay, used until enough response times are known
+     * @param budgetRatio
+     *         the hedged requests allowed per request
+     * @param budgetBurst
+     *         the hedged requests allowed beyond the ratio
+     */
+    public HedgingFilter(final TimeService time,
+                         final ScheduledExecutorService scheduler,
+                         final Collection<String> methods,
+                         final double percentile,
+                         final Duration minimumDelay,
+                         final Duration maximumDelay,
+                         final double budgetRatio,
+                         final int budgetBurst) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100 (exclusive)");
+        }
+        if (minimumDelay.to(MILLISECONDS) > maximumDelay.to(MILLISECONDS)) {
+            throw new IllegalArgumentException("The minimum delay cannot be greater than the maximum delay");
+        }
+        if (budgetRatio < 0 || budgetBurst < 0) {
+            throw new IllegalArgumentException("The budget ratio and burst cannot be negative");
+        }
+        this.time = time;
+        this.scheduler = scheduler;
+        this.methods = new HashSet<>(methods);
+        this.quantile = percentile / 100;
+        this.minimumDelay = minimumDelay.to(MILLISECONDS);
+        this.maximumDelay = maximumDelay.to(MILLISECONDS);
+        this.tokensPerRequest = Math.round(budgetRatio * TOKEN);
+        this.maximumTokens = budgetBurst * TOKEN;
+        this.tokens = new AtomicLong(maximumTokens);
+        this.delay = this.maximumDelay;
+    }
+
+    /**
+     * Sends the hedged requests to the given base URI, rather than to the URI of the original requests.
+     *
+     * @param alternateBaseUri
+     *         the base URI of the hedged requests, or {@code null} to send them to the URI of the original requests
+     */
+    public void setAlternateBaseUri(final URI alternateBaseUri) {
+        this.alternateBaseUri = alternateBaseUri;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        if (!methods.contains(request.getMethod()) || !request.getEntity().isRawContentEmpty()) {
+            return next.handle(context, request);
+        }
+        earn();
+        return new Race(context, copyOf(request, null, storage), next).start(request);
+    }
+
+    /** Returns the current delay after which a request is hedged, in milliseconds. */
+    long getDelay() {
+        return delay;
+    }
+
+    /** Returns the number of hedged requests sent. */
+    long getHedgedCount() {
+        return hedged.get();
+    }
+
+    /** Returns the number of hedged requests that responded first. */
+    long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /** Returns the number of requests that were not hedged because the budget was exhausted. */
+    long getBudgetExhaustedCount() {
+        return budgetExhausted.get();
+    }
+
+    /** Returns the recent response times of the original calls, in milliseconds. */
+    Histogram getResponseTimes() {
+        return responseTimes;
+    }
+
+    private void earn() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= maximumTokens) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(maximumTokens, current + tokensPerRequest)));
+    }
+
+    private boolean spend() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    private void record(final long responseTime) {
+        responseTimes.update(responseTime);
+        long count = samples.incrementAndGet();
+        if (count >= MINIMUM_SAMPLES && count % REFRESH_SAMPLES == 0) {
+            long percentile = (long) responseTimes.getSnapshot().getValue(quantile);
+            delay = Math.max(minimumDelay, Math.min(maximumDelay, percentile));
+        }
+    }
+
+    /** The race between a request and its hedged duplicate. */
+    private final class Race {
+        private final Context context;
+        private final Request copy;
+        private final Handler next;
+        private final PromiseImpl<Response, NeverThrowsException> result = PromiseImpl.create();
+        private final long start = time.now();
+
+        // Guarded by this race
+        private boolean finished;
+        private boolean hedging;
+        private Promise<Response, NeverThrowsException> hedge;
+        private ScheduledFuture<?> scheduled;
+
+        Race(final Context context, final Request copy, final Handler next) {
+            this.context = context;
+            this.copy = copy;
+            this.next = next;
+        }
+
+        Promise<Response, NeverThrowsException> start(final Request request) {
+            next.handle(context, request).thenOnResult(new ResultHandler<Response>() {
+                @Override
+                public void handleResult(final Response response) {
+                    // Also recorded when the hedged call won: that is the response time the delay has to beat
+                    record(time.since(start));
+                    finish(response, false);
+                }
+            });
+            synchronized (this) {
+                if (!finished) {
+                    scheduled = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            hedge();
+                        }
+                    }, delay, MILLISECONDS);
+                }
+            }
+            return result;
+        }
+
+        private void hedge() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                if (!spend()) {
+                    budgetExhausted.incrementAndGet();
+                    return;
+                }
+                hedged.incrementAndGet();
+                if (alternateBaseUri != null) {
+                    copy.getUri().rebase(alternateBaseUri);
+                }
+                hedging = true;
+            }
+            Promise<Response, NeverThrowsException> promise = next.handle(context, copy);
+            synchronized (this) {
+                if (finished) {
+                    promise.cancel(true);
+                } else {
+                    hedge = promise;
+                }
+            }
+            promise.thenOnResult(new ResultHandler<Response>() {
+                @Override
+                public void handleResult(final Response response) {
+                    finish(response, true);
+                }
+            }).thenAlways(new Runnable() {
+                @Override
+                public void run() {
+                    closeSilently(copy);
+                }
+            });
+        }
+
+        private void finish(final Response response, final boolean fromHedge) {
+            Promise<Response, NeverThrowsException> hedgeCall;
+            boolean copySent;
+            synchronized (this) {
+                if (finished) {
+                    // Too late
+                    closeSilently(response);
+                    return;
+                }
+                finished = true;
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                hedgeCall = hedge;
+                copySent = hedging;
+            }
+            if (fromHedge) {
+                // The original call is left to complete: its response time is recorded, its response discarded
+                hedgeWins.incrementAndGet();
+            } else if (hedgeCall != null) {
+                hedgeCall.cancel(true);
+            }
+            if (!copySent) {
+                closeSilently(copy);
+            }
+            result.handleResult(response);
+        }
+    }
+
+    /** Creates and initializes a hedging filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            JsonValue methods = config.get("methods").as(evaluated());
+            ScheduledExecutorService scheduler = config.get("executor")
+                                                       .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                                       .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+            HedgingFilter filter = new HedgingFilter(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                                     scheduler,
+                                                     methods.isNull() ? DEFAULT_METHODS : methods.asList(String.class),
+                                                     config.get("percentile")
+                                                           .as(evaluated())
+                                                           .defaultTo(95)
+                                                           .asDouble(),
+                                                     config.get("minimumDelay")
+                                                           .as(evaluated())
+                                                           .defaultTo("10 milliseconds")
+                                                           .as(duration()),
+                                                     config.get("maximumDelay")
+                                                           .as(evaluated())
+                                                           .defaultTo("1 second")
+                                                           .as(duration()),
+                                                     config.get("budgetRatio")
+                                                           .as(evaluated())
+                                                           .defaultTo(0.1)
+                                                           .asDouble(),
+                                                     config.get("budgetBurst")
+                                                           .as(evaluated())
+                                                           .defaultTo(10)
+                                                           .asInteger());
+            filter.setAlternateBaseUri(config.get("alternateBaseUri").as(evaluated()).as(uri()));
+            return filter;
+        }
+    }
+}
@@ -20,12 +20,19 @@ import static org.forgerock.json.resource.Requests.newCreateRequest;
 import static org.forgerock.json.resource.ResourcePath.resourcePath;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.forgerock.audit.events.AccessAuditEventBuilder;
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Form;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Headers;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Status;
@@ -42,11 +49,16 @@ import org.forgerock.util.time.TimeService;
 
 /**
  * This filter aims to send some access audit events to the AuditService managed as a CREST handler.
+ *
+ * <p>By default, all of the request and response headers are copied into the access event. Allow-lists of header
+ * names can be provided to only copy the headers that are needed: other headers are never copied.
  */
 public class HttpAccessAuditFilter implements Filter {
 
     private final RequestHandler auditServiceHandler;
     private final TimeService time;
+    private final Collection<String> requestHeaders;
+    private final Collection<String> responseHeaders;
 
     /**
      * Constructs a new HttpAccessAuditFilter.
@@ -55,8 +67,25 @@ public class HttpAccessAuditFilter implements Filter {
      * @param time The {@link TimeService} to use.
      */
     public HttpAccessAuditFilter(RequestHandler auditServiceHandler, TimeService time) {
+        this(auditServiceHandler, time, null, null);
+    }
+
+    /**
+     * Constructs a new HttpAccessAuditFilter that only copies the given headers into the access events.
+     *
+     * @param auditServiceHandler The {@link RequestHandler} to publish the events.
+     * @param time The {@link TimeService} to use.
+     * @param requestHeaders The names of the request headers to copy ({@code null} means all headers).
+     * @param responseHeaders The names of the response headers to copy ({@code null} means all headers).
+     */
+    public HttpAccessAuditFilter(RequestHandler auditServiceHandler,
+                                 TimeService time,
+                                 Collection<String> requestHeaders,
+                                 Collection<String> responseHeaders) {
         this.auditServiceHandler = auditServiceHandler;
         this.time = time;
+        this.requestHeaders = requestHeaders;
+        this.responseHeaders = responseHeaders;
     }
 
     @Override
@@ -75,7 +104,7 @@ public class HttpAccessAuditFilter implements Filter {
                              request.getMethod(),
                              getRequestPath(getURI(context, request)),
                              new Form().fromRequestQuery(request),
-                             request.getHeaders().copyAsMultiMapOfStrings());
+                             copyHeaders(request.getHeaders(), requestHeaders));
 
         // We do not expect any RuntimeException as the downstream handler will have to take care
         // of that case themselves.
@@ -83,6 +112,20 @@ public class HttpAccessAuditFilter implements Filter {
                 .thenOnResult(onResult(context, accessAuditEventBuilder));
     }
 
+    private static Map<String, List<String>> copyHeaders(Headers headers, Collection<String> names) {
+        if (names == null) {
+            return headers.copyAsMultiMapOfStrings();
+        }
+        Map<String, List<String>> copy = new LinkedHashMap<>(names.size());
+        for (String name : names) {
+            Header header = headers.get(name);
+            if (header != null) {
+                copy.put(header.getName(), new ArrayList<>(header.getValues()));
+            }
+        }
+        return copy;
+    }
+
     private static URI getURI(Context context, Request request) {
         if (context.containsContext(UriRouterContext.class)) {
             UriRouterContext uriRouterContext = context.asContext(UriRouterContext.class);
@@ -119,7 +162,7 @@ public class HttpAccessAuditFilter implements Filter {
 
         if (response != null) {
             long elapsedTime = time.now() - requestAuditContext.getRequestReceivedTime();
-            accessAuditEventBuilder.httpResponse(response.getHeaders().copyAsMultiMapOfStrings());
+            accessAuditEventBuilder.httpResponse(copyHeaders(response.getHeaders(), responseHeaders));
             accessAuditEventBuilder.response(mapResponseStatus(response.getStatus()),
                                              String.valueOf(response.getStatus().getCode()),
                                              elapsedTime,
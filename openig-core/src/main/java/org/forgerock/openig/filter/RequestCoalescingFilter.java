@@ -0,0 +1,329 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.util.JsonValues.evaluated;
+import static org.forgerock.openig.util.JsonValues.expression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+
+/**
+ * Collapses identical requests that are in flight at the same time into a single call to the next handler, and gives
+ * a copy of its response to all of them: under a flash crowd, the load on the next handler is proportional to the
+ * number of distinct requests rather than to the total number of requests.
+ *
+ * <pre>
+ * {@code
+ * {
+ *   "key"                         : expression,           [OPTIONAL - identifies identical requests, defaults to
+ *                                                                     the method, the URI and the Authorization,
+ *                                                                     Cookie, Accept, Accept-Encoding and
+ *                                                                     Accept-Language headers ]
+ *   "methods"                     : [ string ],           [OPTIONAL - the methods of the requests that can be
+ *                                                                     collapsed, defaults to GET and HEAD ]
+ *   "maxEntitySize"               : number                [OPTIONAL - largest response entity shared, defaults to
+ *                                                                     1 MiB ]
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ * {
+ *     "type": "RequestCoalescingFilter",
+ *     "config": {
+ *         "key": "${request.uri.path}"
+ *     }
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Only requests without entity are collapsed, and only idempotent methods should be listed in {@literal methods}. The
+ * key has to capture everything the response depends on: requests with the same key get the same response, whoever
+ * sent them. A request that evaluates the key to {@code null} is never collapsed.
+ * <p>
+ * The response entity is read in memory before being given to all the requests. When it is larger than
+ * {@literal maxEntitySize}, the first request gets it as it streams, and each of the collapsed requests is sent to the
+ * next handler on its own.
+ */
+public class RequestCoalescingFilter extends GenericHeapObject implements Filter {
+
+    /** Default largest response entity shared between collapsed requests. */
+    public static final int DEFAULT_MAX_ENTITY_SIZE = 1024 * 1024;
+
+    /** Methods collapsed by default. */
+    private static final List<String> DEFAULT_METHODS = Arrays.asList("GET", "HEAD");
+
+    /** Request headers that are part of the default key, as they commonly change the response. */
+    private static final List<String> DEFAULT_KEY_HEADERS = Arrays.asList("Authorization",
+                                                                         "Cookie",
+                                                                         "Accept",
+                                                                         "Accept-Encoding",
+                                                                         "Accept-Language");
+
+    /** The requests in flight, by key. */
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final Expression<String> key;
+    private final Set<String> methods;
+    private final int maxEntitySize;
+
+    /**
+     * Builds a new request coalescing filter.
+     *
+     * @param key
+     *         the expression identifying identical requests, or {@code null} to use the method, the URI and the
+     *         {@literal Authorization}, {@literal Cookie}, {@literal Accept}, {@literal Accept-Encoding} and
+     *         {@literal Accept-Language} headers
+     * @param methods
+     *         the methods of the requests that can be collapsed
+     * @param maxEntitySize
+     *         the largest response entity shared between collapsed requests, in bytes
+     */
+    public RequestCoalescingFilter(final Expression<String> key,
+                                   final Collection<String> methods,
+                                   final int maxEntitySize) {
+        if (maxEntitySize < 0) {
+            throw new IllegalArgumentException("The maximum entity size cannot be negative");
+        }
+        this.key = key;
+        this.methods = new HashSet<>(methods);
+        this.maxEntitySize = maxEntitySize;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        if (!methods.contains(request.getMethod()) || !request.getEntity().isRawContentEmpty()) {
+            return next.handle(context, request);
+        }
+        final String flightKey = key == null ? defaultKey(request) : key.eval(bindings(context, request));
+        if (flightKey == null) {
+            return next.handle(context, request);
+        }
+
+        final Flight flight = new Flight();
+        Flight inFlight = flights.putIfAbsent(flightKey, flight);
+        if (inFlight != null) {
+            return inFlight.join(context, request, next);
+        }
+        return next.handle(context, request).then(new Function<Response, Response, NeverThrowsException>() {
+            @Override
+            public Response apply(final Response response) {
+                try {
+                    return flight.land(response);
+                } finally {
+                    // Later requests will be sent again
+                    flights.remove(flightKey, flight);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of distinct requests in flight.
+     *
+     * @return the number of distinct requests in flight
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    private static String defaultKey(final Request request) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(request.getMethod()).append(' ').append(request.getUri());
+        for (String name : DEFAULT_KEY_HEADERS) {
+            Header header = request.getHeaders().get(name);
+            if (header != null) {
+                sb.append('\n').append(name).append(": ").append(header.getValues());
+            }
+        }
+        return sb.toString();
+    }
+
+    /** A request in flight, and the identical requests waiting for its response. */
+    private final class Flight {
+
+        // Guarded by this flight
+        private final List<Waiter> waiters = new ArrayList<>();
+        private boolean landed;
+        private Response response;
+        private byte[] entity;
+
+        /** Waits for the response of this flight, or sends the request on its own if the response is not shared. */
+        Promise<Response, NeverThrowsException> join(final Context context, final Request request, final Handler next) {
+            synchronized (this) {
+                if (!landed) {
+                    Waiter waiter = new Waiter(context, request, next);
+                    waiters.add(waiter);
+                    return waiter.promise;
+                }
+                if (response != null) {
+                    // Landed after the lookup
+                    return Response.newResponsePromise(copy());
+                }
+            }
+            return next.handle(context, request);
+        }
+
+        /** Reads the response entity and gives a copy of the response to each waiter. */
+        Response land(final Response upstream) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            InputStream in = upstream.getEntity().getRawContentInputStream();
+            try {
+                if (!read(in, content)) {
+                    // Too large: the entity read so far is given back, followed by the unread entity
+                    release(null, null);
+                    return copyOf(upstream, new SequenceInputStream(new ByteArrayInputStream(content.toByteArray()),
+                                                                   in));
+                }
+            } catch (IOException e) {
+                logger.warning(e);
+                upstream.close();
+                release(new Response(Status.BAD_GATEWAY).setCause(e), null);
+                return copy();
+            }
+            upstream.close();
+            release(upstream, content.toByteArray());
+            return copy();
+        }
+
+        /** Returns {@code false} if the entity is larger than the largest entity shared. */
+        private boolean read(final InputStream in, final ByteArrayOutputStream content) throws IOException {
+            byte[] chunk = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(chunk, 0, (int) Math.min(chunk.length, maxEntitySize + 1L - content.size())))
+                    != -1) {
+                content.write(chunk, 0, read);
+                if (content.size() > maxEntitySize) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Completes the waiters with a copy of the given response, or sends their requests on their own if there is
+         * no response to share.
+         */
+        private void release(final Response shared, final byte[] content) {
+            List<Waiter> released;
+            synchronized (this) {
+                landed = true;
+                response = shared;
+                entity = content;
+                released = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            for (final Waiter waiter : released) {
+                if (shared != null) {
+                    waiter.promise.handleResult(copy());
+                } else {
+                    waiter.next.handle(waiter.context, waiter.request).thenOnResult(new ResultHandler<Response>() {
+                        @Override
+                        public void handleResult(final Response result) {
+                            waiter.promise.handleResult(result);
+                        }
+                    });
+                }
+            }
+        }
+
+        /** Returns a new copy of the shared response. */
+        private synchronized Response copy() {
+            return copyOf(response, entity == null ? null : new ByteArrayInputStream(entity));
+        }
+    }
+
+    private Response copyOf(final Response response, final InputStream entity) {
+        Response copy = new Response(response.getStatus());
+        copy.setVersion(response.getVersion());
+        copy.setCause(response.getCause());
+        if (entity != null) {
+            // Set the entity before the headers: setting an entity stream removes the Content-Length header
+            copy.setEntity(IO.newBranchingInputStream(entity, storage));
+        }
+        for (Map.Entry<String, Header> header : response.getHeaders().asMapOfHeaders().entrySet()) {
+            // New header instances, so that modifying a copy's values does not modify the others'
+            copy.getHeaders().add(header.getKey(), header.getValue().getValues());
+        }
+        return copy;
+    }
+
+    /** A request collapsed into a request in flight. */
+    private static final class Waiter {
+        private final Context context;
+        private final Request request;
+        private final Handler next;
+        private final PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+
+        Waiter(final Context context, final Request request, final Handler next) {
+            this.context = context;
+            this.request = request;
+            this.next = next;
+        }
+    }
+
+    /** Creates and initializes a request coalescing filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            JsonValue methods = config.get("methods").as(evaluated());
+            return new RequestCoalescingFilter(config.get("key").as(expression(String.class)),
+                                               methods.isNull() ? DEFAULT_METHODS : methods.asList(String.class),
+                                               config.get("maxEntitySize")
+                                                     .as(evaluated())
+                                                     .defaultTo(DEFAULT_MAX_ENTITY_SIZE)
+                                                     .asInteger());
+        }
+    }
+}
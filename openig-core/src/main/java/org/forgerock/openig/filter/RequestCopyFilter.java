@@ -17,6 +17,7 @@ package org.forgerock.openig.filter;
 
 import static org.forgerock.http.protocol.Response.newResponsePromise;
 import static org.forgerock.http.protocol.Responses.newInternalServerError;
+import static org.forgerock.openig.util.Requests.copyOf;
 import static org.forgerock.util.Utils.closeSilently;
 
 import java.io.IOException;
@@ -36,6 +37,8 @@ import org.forgerock.util.promise.Promise;
  * <p>
  * This can be helpful when it is needed to reuse the original request(as in the
  * {@link HttpBasicAuthFilter} or in the {@link PasswordReplayFilterHeaplet}).
+ *
+ * @see org.forgerock.openig.util.Requests#copyOf(Request)
  */
 final class RequestCopyFilter implements Filter {
 
@@ -51,10 +54,11 @@ final class RequestCopyFilter implements Filter {
     public Promise<Response, NeverThrowsException> filter(Context context, Request request, Handler next) {
         final Request requestCopy;
         try {
-            requestCopy = new Request(request);
+            requestCopy = copyOf(request);
             return next.handle(context, requestCopy).thenAlways(new Runnable() {
                 @Override
                 public void run() {
+                    // Only closes the branch: the original entity is left untouched
                     closeSilently(requestCopy);
                 }
             });
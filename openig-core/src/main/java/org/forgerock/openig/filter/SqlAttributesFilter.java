@@ -18,8 +18,10 @@
 package org.forgerock.openig.filter;
 
 import static java.lang.String.format;
+import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.json.JsonValueFunctions.listOf;
 import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.log.LogLevel.DEBUG;
 import static org.forgerock.openig.util.JsonValues.evaluated;
 import static org.forgerock.openig.util.JsonValues.expression;
@@ -30,10 +32,20 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -51,10 +63,14 @@ import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
 import org.forgerock.services.context.Context;
+import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.Factory;
 import org.forgerock.util.LazyMap;
 import org.forgerock.util.promise.NeverThrowsException;
 import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
 
 /**
  * Executes a SQL query through a prepared statement and exposes its first result. Parameters
@@ -62,10 +78,19 @@ import org.forgerock.util.promise.Promise;
  * exposed in a {@link Map} object, whose location is specified by the {@code target}
  * expression. If the query yields no result, then the resulting map will be empty.
  * <p>
- * The execution of the query is performed lazily; it does not occur until the first attempt
+ * By default, the execution of the query is performed lazily; it does not occur until the first attempt
  * to access a value in the target. This defers the overhead of connection pool, network
  * and database query processing until a value is first required. This also means that the
- * {@code parameters} expressions will not be evaluated until the map is first accessed.
+ * {@code parameters} expressions will not be evaluated until the map is first accessed, and that the query is
+ * executed by whichever thread first accesses the map.
+ * <p>
+ * When an {@link Executor} is set, the {@code parameters} expressions are evaluated when the request goes through
+ * the filter, the query is executed by the executor, and the request is only forwarded to the next handler once
+ * the target has been populated: no thread is blocked waiting for the database.
+ * <p>
+ * In both modes, concurrent lookups with the same evaluated parameters share a single query execution. Results can
+ * also be cached for a given duration (see {@link #setCache(TimeService, Duration, int)}), keyed by the evaluated
+ * parameters. Failed queries are never cached.
  *
  * @see PreparedStatement
  */
@@ -84,6 +109,19 @@ public class SqlAttributesFilter extends GenericHeapObject implements Filter {
     /** The list of parameters to evaluate and include in the execution of the prepared statement. */
     private final List<Expression<?>> parameters = new ArrayList<>();
 
+    /** Pending and cached lookups, keyed by their evaluated parameters. */
+    private final ConcurrentMap<List<Object>, Lookup> lookups = new ConcurrentHashMap<>();
+
+    /** Number of placeholders in the prepared statement, {@code -1} until the first execution. */
+    private volatile int placeholders = -1;
+
+    /** Executes the queries, {@code null} means that they are executed lazily by the caller thread. */
+    private Executor executor;
+
+    private TimeService time = TimeService.SYSTEM;
+    private long cacheExpiration = 0L;
+    private int cacheMaxEntries = 0;
+
     /**
      * Builds a new SqlAttributesFilter that will execute the given SQL statement on the given {@link DataSource},
      * placing the results in a {@link Map} in the specified target.
@@ -111,6 +149,36 @@ public class SqlAttributesFilter extends GenericHeapObject implements Filter {
         return parameters;
     }
 
+    /**
+     * Sets the executor of the queries. When set, queries are executed asynchronously before the request is
+     * forwarded to the next handler, instead of lazily when the target is first accessed.
+     *
+     * @param executor
+     *         the executor of the queries ({@code null} restores the lazy behaviour)
+     */
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Enables the caching of the query results.
+     *
+     * @param time
+     *         time service used to expire the results
+     * @param expiration
+     *         how long a result is kept ({@link Duration#ZERO} disables the cache)
+     * @param maxEntries
+     *         maximum number of cached results
+     */
+    public void setCache(final TimeService time, final Duration expiration, final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries can only be a positive (non-zero) value");
+        }
+        this.time = time;
+        this.cacheExpiration = expiration.isUnlimited() ? Long.MAX_VALUE : expiration.to(TimeUnit.MILLISECONDS);
+        this.cacheMaxEntries = maxEntries;
+    }
+
     @Override
     public Promise<Response, NeverThrowsException> filter(final Context context,
                                                           final Request request,
@@ -118,84 +186,225 @@ public class SqlAttributesFilter extends GenericHeapObject implements Filter {
 
         final Bindings bindings = bindings(context, request);
 
+        if (executor != null) {
+            return lookup(evaluate(bindings))
+                    .thenAsync(new AsyncFunction<Map<String, Object>, Response, NeverThrowsException>() {
+                        @Override
+                        public Promise<Response, NeverThrowsException> apply(final Map<String, Object> result) {
+                            // Results may be shared: give a private copy to the request
+                            target.set(bindings, new HashMap<>(result));
+                            return next.handle(context, request);
+                        }
+                    });
+        }
+
         target.set(bindings, new LazyMap<>(new Factory<Map<String, Object>>() {
             @Override
             public Map<String, Object> newInstance() {
-                Map<String, Object> result = new HashMap<>();
-                Connection c = null;
-                try {
-                    c = dataSource.getConnection();
+                return new HashMap<>(lookup(evaluate(bindings)).getOrThrowUninterruptibly());
+            }
+        }));
+        return next.handle(context, request);
+    }
 
-                    PreparedStatement ps = createPreparedStatement(c);
+    private List<Object> evaluate(final Bindings bindings) {
+        Object[] values = new Object[parameters.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parameters.get(i).eval(bindings);
+        }
+        return Arrays.asList(values);
+    }
 
-                    ResultSet rs = ps.executeQuery();
-                    if (rs.next()) {
-                        ResultSetMetaData rsmd = rs.getMetaData();
-                        int columns = rsmd.getColumnCount();
-                        for (int n = 1; n <= columns; n++) {
-                            result.put(rsmd.getColumnLabel(n), rs.getObject(n));
-                        }
-                    }
-                    if (logger.isLoggable(DEBUG)) {
-                        logger.debug("Result: " + result);
+    /**
+     * Returns the (possibly pending) result of the query for the given parameters, executing it only if there is no
+     * cached or pending lookup for these parameters.
+     */
+    private Promise<Map<String, Object>, NeverThrowsException> lookup(final List<Object> values) {
+        while (true) {
+            Lookup existing = lookups.get(values);
+            if (existing != null && !existing.isExpired(time.now())) {
+                return existing.promise;
+            }
+            Lookup lookup = new Lookup();
+            boolean owner = existing == null
+                    ? lookups.putIfAbsent(values, lookup) == null
+                    : lookups.replace(values, existing, lookup);
+            if (owner) {
+                ensureCapacity();
+                execute(values, lookup);
+                return lookup.promise;
+            }
+            // Another thread started the same lookup concurrently: use it
+        }
+    }
+
+    private void execute(final List<Object> values, final Lookup lookup) {
+        Runnable query = new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Object> result;
+                try {
+                    result = query(values);
+                    if (cacheExpiration > 0) {
+                        lookup.expiresAt = time.now() + Math.min(cacheExpiration, Long.MAX_VALUE - time.now());
+                    } else {
+                        lookups.remove(values, lookup);
                     }
-                    rs.close();
-                    ps.close();
                 } catch (SQLException sqle) {
                     // probably a config issue
                     logger.error(sqle);
-                } finally {
-                    if (c != null) {
-                        try {
-                            c.close();
-                        } catch (SQLException sqle) {
-                            // probably a network issue
-                            logger.error(sqle);
-                        }
-                    }
+                    lookups.remove(values, lookup);
+                    result = Collections.emptyMap();
+                } catch (RuntimeException e) {
+                    logger.error(e);
+                    lookups.remove(values, lookup);
+                    result = Collections.emptyMap();
                 }
-                return result;
+                lookup.promise.handleResult(result);
             }
+        };
+        if (executor == null) {
+            query.run();
+            return;
+        }
+        try {
+            executor.execute(query);
+        } catch (RejectedExecutionException e) {
+            logger.warning("Too many pending SQL queries, the query has been rejected");
+            lookups.remove(values, lookup);
+            lookup.promise.handleResult(Collections.<String, Object>emptyMap());
+        }
+    }
 
-            private PreparedStatement createPreparedStatement(final Connection connection) throws SQLException {
-                logger.debug(format("PreparedStatement %s", preparedStatement));
+    /** Keeps the number of cached results under the configured maximum, pending lookups are never evicted. */
+    private void ensureCapacity() {
+        int max = Math.max(cacheMaxEntries, 1);
+        if (lookups.size() <= max) {
+            return;
+        }
+        long now = time.now();
+        Iterator<Lookup> iterator = lookups.values().iterator();
+        while (iterator.hasNext() && lookups.size() > max) {
+            Lookup lookup = iterator.next();
+            if (lookup.isExpired(now)) {
+                iterator.remove();
+            }
+        }
+        iterator = lookups.values().iterator();
+        while (iterator.hasNext() && lookups.size() > max) {
+            if (iterator.next().promise.isDone()) {
+                iterator.remove();
+            }
+        }
+    }
 
-                // probably cached in connection pool
-                PreparedStatement ps = connection.prepareStatement(preparedStatement);
+    private Map<String, Object> query(final List<Object> values) throws SQLException {
+        Map<String, Object> result = new HashMap<>();
+        Connection c = null;
+        try {
+            c = dataSource.getConnection();
 
-                // probably unnecessary but a safety precaution
-                ps.clearParameters();
+            PreparedStatement ps = createPreparedStatement(c, values);
 
-                // Inject evaluated expression values into statement's placeholders
-                Iterator<Expression<?>> expressions = parameters.iterator();
-                int count = ps.getParameterMetaData().getParameterCount();
-                for (int i = 0; i < count; i++) {
-                    if (!expressions.hasNext()) {
-                        // Got a statement parameter, but no expression to evaluate
-                        logger.warning(format(" Placeholder %d has no provided value as parameter", i + 1));
-                        continue;
-                    }
-                    Object eval = expressions.next().eval(bindings);
-                    ps.setObject(i + 1, eval);
-                    logger.debug(format(" Placeholder #%d -> %s", i + 1, eval));
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                ResultSetMetaData rsmd = rs.getMetaData();
+                int columns = rsmd.getColumnCount();
+                for (int n = 1; n <= columns; n++) {
+                    result.put(rsmd.getColumnLabel(n), rs.getObject(n));
                 }
-
-                // Output a warning if there are too many expressions compared to the number
-                // of parameters/placeholders in the prepared statement
-                if (expressions.hasNext()) {
-                    logger.warning(format(" All parameters with index >= %d are ignored because there are "
-                                          + "no placeholders for them in the configured prepared statement (%s)",
-                                          count,
-                                          preparedStatement));
+            }
+            if (logger.isLoggable(DEBUG)) {
+                logger.debug("Result: " + result);
+            }
+            rs.close();
+            ps.close();
+        } finally {
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (SQLException sqle) {
+                    // probably a network issue
+                    logger.error(sqle);
                 }
-                return ps;
             }
-        }));
-        return next.handle(context, request);
+        }
+        return result;
+    }
+
+    private PreparedStatement createPreparedStatement(final Connection connection,
+                                                      final List<Object> values) throws SQLException {
+        logger.debug(format("PreparedStatement %s", preparedStatement));
+
+        // probably cached in connection pool
+        PreparedStatement ps = connection.prepareStatement(preparedStatement);
+
+        // probably unnecessary but a safety precaution
+        ps.clearParameters();
+
+        // The number of placeholders only depends on the statement: only ask the driver once
+        int count = placeholders;
+        if (count == -1) {
+            count = ps.getParameterMetaData().getParameterCount();
+            placeholders = count;
+        }
+
+        // Inject evaluated expression values into statement's placeholders
+        Iterator<Object> evaluated = values.iterator();
+        for (int i = 0; i < count; i++) {
+            if (!evaluated.hasNext()) {
+                // Got a statement parameter, but no expression to evaluate
+                logger.warning(format(" Placeholder %d has no provided value as parameter", i + 1));
+                continue;
+            }
+            Object eval = evaluated.next();
+            ps.setObject(i + 1, eval);
+            logger.debug(format(" Placeholder #%d -> %s", i + 1, eval));
+        }
+
+        // Output a warning if there are too many expressions compared to the number
+        // of parameters/placeholders in the prepared statement
+        if (evaluated.hasNext()) {
+            logger.warning(format(" All parameters with index >= %d are ignored because there are "
+                                  + "no placeholders for them in the configured prepared statement (%s)",
+                                  count,
+                                  preparedStatement));
+        }
+        return ps;
     }
 
-    /** Creates and initializes a static attribute provider in a heap environment. */
+    /** A pending or completed query execution. */
+    private static final class Lookup {
+        private final PromiseImpl<Map<String, Object>, NeverThrowsException> promise = PromiseImpl.create();
+
+        /** Expiration time of the result, pending lookups never expire. */
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        boolean isExpired(final long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    /**
+     * Creates and initializes a static attribute provider in a heap environment.
+     * <p>
+     * Besides the {@literal dataSource}, {@literal preparedStatement}, {@literal parameters} and {@literal target}
+     * attributes, the following optional attributes are supported:
+     * <ul>
+     *     <li>{@literal asynchronous}: execute the queries on a dedicated thread pool before forwarding the request
+     *     (defaults to {@code false}, queries are executed lazily)</li>
+     *     <li>{@literal numberOfWorkers}: size of the thread pool (defaults to {@literal 4})</li>
+     *     <li>{@literal queueSize}: maximum number of queries waiting for a worker, further queries are rejected
+     *     and yield an empty result (defaults to {@literal 100})</li>
+     *     <li>{@literal cacheExpiration}: how long query results are kept (defaults to {@literal zero}, no
+     *     caching)</li>
+     *     <li>{@literal cacheMaxEntries}: maximum number of cached results (defaults to {@literal 1000})</li>
+     * </ul>
+     */
     public static class Heaplet extends GenericHeaplet {
+
+        private ThreadPoolExecutor workers;
+
         @Override
         public Object create() throws HeapException {
             InitialContext ctx;
@@ -225,7 +434,43 @@ public class SqlAttributesFilter extends GenericHeapObject implements Filter {
             if (config.isDefined("parameters")) {
                 filter.parameters.addAll(config.get("parameters").as(listOf(expression(String.class))));
             }
+
+            JsonValue evaluated = config.as(evaluated());
+            if (evaluated.get("asynchronous").defaultTo(false).asBoolean()) {
+                int numberOfWorkers = evaluated.get("numberOfWorkers").defaultTo(4).asInteger();
+                int queueSize = evaluated.get("queueSize").defaultTo(100).asInteger();
+                if (numberOfWorkers <= 0 || queueSize <= 0) {
+                    throw new HeapException("numberOfWorkers and queueSize can only be positive (non-zero) values");
+                }
+                workers = new ThreadPoolExecutor(numberOfWorkers, numberOfWorkers,
+                                                 0L, TimeUnit.MILLISECONDS,
+                                                 new ArrayBlockingQueue<Runnable>(queueSize),
+                                                 new ThreadFactory() {
+                                                     @Override
+                                                     public Thread newThread(final Runnable r) {
+                                                         Thread thread = new Thread(r, "OpenIG-SQL-" + name);
+                                                         thread.setDaemon(true);
+                                                         return thread;
+                                                     }
+                                                 });
+                filter.setExecutor(workers);
+            }
+
+            Duration expiration = evaluated.get("cacheExpiration").defaultTo("zero").as(duration());
+            if (!expiration.isZero()) {
+                filter.setCache(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                expiration,
+                                evaluated.get("cacheMaxEntries").defaultTo(1000).asInteger());
+            }
             return filter;
         }
+
+        @Override
+        public void destroy() {
+            if (workers != null) {
+                workers.shutdown();
+            }
+            super.destroy();
+        }
     }
 }
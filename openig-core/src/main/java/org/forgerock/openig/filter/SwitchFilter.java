@@ -17,7 +17,6 @@
 
 package org.forgerock.openig.filter;
 
-import static org.forgerock.openig.el.Bindings.bindings;
 import static org.forgerock.openig.util.JsonValues.expression;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 
@@ -30,7 +29,7 @@ import org.forgerock.http.Handler;
 import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.json.JsonValue;
-import org.forgerock.openig.el.Bindings;
+import org.forgerock.openig.el.ConditionTable;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
@@ -46,6 +45,9 @@ import org.forgerock.util.promise.Promises;
  * handled, associated conditions are evaluated. If a condition evaluates to {@code true}, then
  * the processing flow is diverted to the associated handler. If no condition evaluates to
  * {@code true}, then the request flows normally through the filter.
+ * <p>
+ * Simple conditions (request method, host, path or path prefix, header value) are compiled into lookup tables, so
+ * that a large number of cases does not imply as many expression evaluations: see {@link ConditionTable}.
  */
 public class SwitchFilter extends GenericHeapObject implements Filter {
 
@@ -74,6 +76,12 @@ public class SwitchFilter extends GenericHeapObject implements Filter {
     /** Switch cases to test after the request is handled. */
     private final List<Case> responseCases = new ArrayList<>();
 
+    /** Compiled form of the request cases, {@code null} when they have changed since last compiled. */
+    private volatile ConditionTable<Case> requestTable;
+
+    /** Compiled form of the response cases, {@code null} when they have changed since last compiled. */
+    private volatile ConditionTable<Case> responseTable;
+
     /**
      * Add a request switch case with a condition and the handler to execute if condition yields.
      * @param condition expression to evaluate
@@ -82,6 +90,7 @@ public class SwitchFilter extends GenericHeapObject implements Filter {
      */
     public SwitchFilter addRequestCase(final Expression<Boolean> condition, final Handler handler) {
         requestCases.add(new Case(condition, handler));
+        requestTable = null;
         return this;
     }
 
@@ -93,6 +102,7 @@ public class SwitchFilter extends GenericHeapObject implements Filter {
      */
     public SwitchFilter addResponseCase(final Expression<Boolean> condition, final Handler handler) {
         responseCases.add(new Case(condition, handler));
+        responseTable = null;
         return this;
     }
 
@@ -101,10 +111,7 @@ public class SwitchFilter extends GenericHeapObject implements Filter {
                                                           final Request request,
                                                           final Handler next) {
         // Switch on the request flow
-        Promise<Response, NeverThrowsException> promise = doSwitch(bindings(context, request),
-                                                                   context,
-                                                                   request,
-                                                                   requestCases);
+        Promise<Response, NeverThrowsException> promise = doSwitch(requestTable(), context, request, null);
         if (promise != null) {
             return promise;
         }
@@ -114,12 +121,10 @@ public class SwitchFilter extends GenericHeapObject implements Filter {
                 .thenAsync(new AsyncFunction<Response, Response, NeverThrowsException>() {
                     @Override
                     public Promise<Response, NeverThrowsException> apply(final Response value) {
-                        Promise<Response, NeverThrowsException> promise = doSwitch(bindings(context,
-                                                                                            request,
-                                                                                            value),
+                        Promise<Response, NeverThrowsException> promise = doSwitch(responseTable(),
                                                                                    context,
                                                                                    request,
-                                                                                   responseCases);
+                                                                                   value);
                         // not intercepted on response, just return the original response
                         if (promise == null) {
                             promise = Promises.newResultPromise(value);
@@ -129,20 +134,45 @@ public class SwitchFilter extends GenericHeapObject implements Filter {
                 });
     }
 
-    private Promise<Response, NeverThrowsException> doSwitch(Bindings bindings,
+    private Promise<Response, NeverThrowsException> doSwitch(ConditionTable<Case> table,
                                                              Context context,
                                                              Request request,
-                                                             List<Case> cases) {
-        for (Case c : cases) {
-            if (c.condition == null || Boolean.TRUE.equals(c.condition.eval(bindings))) {
-                // switched flow
-                return c.handler.handle(context, request);
-            }
+                                                             Response response) {
+        Case c = table.lookup(context, request, response);
+        if (c != null) {
+            // switched flow
+            return c.handler.handle(context, request);
         }
         // no interception
         return null;
     }
 
+    private ConditionTable<Case> requestTable() {
+        ConditionTable<Case> table = requestTable;
+        if (table == null) {
+            table = compile(requestCases);
+            requestTable = table;
+        }
+        return table;
+    }
+
+    private ConditionTable<Case> responseTable() {
+        ConditionTable<Case> table = responseTable;
+        if (table == null) {
+            table = compile(responseCases);
+            responseTable = table;
+        }
+        return table;
+    }
+
+    private static ConditionTable<Case> compile(List<Case> cases) {
+        ConditionTable.Builder<Case> builder = ConditionTable.builder();
+        for (Case c : cases) {
+            builder.add(c.condition, c);
+        }
+        return builder.build();
+    }
+
     /**
      * Creates and initializes an expect filter in a heap environment.
      */
@@ -152,6 +182,9 @@ public class SwitchFilter extends GenericHeapObject implements Filter {
             SwitchFilter result = new SwitchFilter();
             result.requestCases.addAll(asCases("onRequest"));
             result.responseCases.addAll(asCases("onResponse"));
+            // Compile the conditions now rather than on the first request
+            result.requestTable();
+            result.responseTable();
             return result;
         }
 
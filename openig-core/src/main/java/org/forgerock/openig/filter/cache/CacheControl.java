@@ -0,0 +1,142 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Headers;
+
+/**
+ * The directives of the {@literal Cache-Control} header fields of a message (RFC 7234, section 5.2).
+ */
+final class CacheControl {
+
+    private final Map<String, String> directives;
+
+    private CacheControl(final Map<String, String> directives) {
+        this.directives = directives;
+    }
+
+    /**
+     * Parses the {@literal Cache-Control} header fields of a message. For a request without {@literal Cache-Control}
+     * header, {@literal Pragma: no-cache} is understood as {@literal Cache-Control: no-cache}.
+     *
+     * @param headers
+     *         the message headers
+     * @param request
+     *         {@code true} for the headers of a request
+     * @return the directives
+     */
+    static CacheControl of(final Headers headers, final boolean request) {
+        Map<String, String> directives = new HashMap<>();
+        Header cacheControl = headers.get("Cache-Control");
+        Header pragma = headers.get("Pragma");
+        if (cacheControl != null) {
+            for (String value : cacheControl.getValues()) {
+                parse(value, directives);
+            }
+        } else if (request && pragma != null) {
+            for (String value : pragma.getValues()) {
+                if (value.toLowerCase(Locale.ROOT).contains("no-cache")) {
+                    directives.put("no-cache", null);
+                }
+            }
+        }
+        return new CacheControl(directives);
+    }
+
+    private static void parse(final String value, final Map<String, String> directives) {
+        int length = value.length();
+        int index = 0;
+        while (index < length) {
+            int end = index;
+            while (end < length && value.charAt(end) != ',' && value.charAt(end) != '=') {
+                end++;
+            }
+            String name = value.substring(index, end).trim().toLowerCase(Locale.ROOT);
+            String argument = null;
+            if (end < length && value.charAt(end) == '=') {
+                int start = end + 1;
+                while (start < length && value.charAt(start) == ' ') {
+                    start++;
+                }
+                if (start < length && value.charAt(start) == '"') {
+                    // Quoted string: commas are part of the argument
+                    end = value.indexOf('"', start + 1);
+                    if (end == -1) {
+                        end = length;
+                    }
+                    argument = value.substring(start + 1, end);
+                    end = value.indexOf(',', end);
+                    if (end == -1) {
+                        end = length;
+                    }
+                } else {
+                    end = value.indexOf(',', start);
+                    if (end == -1) {
+                        end = length;
+                    }
+                    argument = value.substring(start, end).trim();
+                }
+            }
+            if (!name.isEmpty() && !directives.containsKey(name)) {
+                directives.put(name, argument);
+            }
+            index = end + 1;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given directive is present, with or without argument.
+     *
+     * @param directive
+     *         the directive name, in lower case
+     * @return {@code true} if the given directive is present
+     */
+    boolean has(final String directive) {
+        return directives.containsKey(directive);
+    }
+
+    /**
+     * Returns the delta-seconds argument of the given directive.
+     *
+     * @param directive
+     *         the directive name, in lower case
+     * @return the delta-seconds argument of the given directive, or {@literal -1} if the directive is absent or its
+     * argument is not a valid delta-seconds
+     */
+    long seconds(final String directive) {
+        String argument = directives.get(directive);
+        if (argument == null || argument.isEmpty()) {
+            return -1L;
+        }
+        for (int i = 0; i < argument.length(); i++) {
+            if (!Character.isDigit(argument.charAt(i))) {
+                return -1L;
+            }
+        }
+        try {
+            return Long.parseLong(argument);
+        } catch (NumberFormatException e) {
+            // Larger than 2^63 seconds: as good as forever
+            return Long.MAX_VALUE / 1000L;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.evaluated;
+import static org.forgerock.openig.util.Requests.copyOf;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.io.IO;
+import org.forgerock.http.io.OverflowException;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Function;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Caches the responses to {@literal GET} requests, following the semantics of a shared cache (RFC 7234): freshness
+ * from {@literal Cache-Control} and {@literal Expires}, revalidation with {@literal ETag} and {@literal Last-Modified},
+ * selection of the variants of a resource with {@literal Vary}, and {@literal stale-while-revalidate}.
+ *
+ * <pre>
+ * {@code
+ * {
+ *   "memoryEntryLimit"            : number,               [OPTIONAL - largest entity held in memory, larger ones
+ *                                                                     go to the temporary storage, defaults to
+ *                                                                     64 KiB ]
+ *   "memoryLimit"                 : number,               [OPTIONAL - total size of the responses whose entity is
+ *                                                                     held in memory, headers included, defaults
+ *                                                                     to 16 MiB ]
+ *   "diskLimit"                   : number,               [OPTIONAL - total size of the responses whose entity is
+ *                                                                     held in the temporary storage, headers
+ *                                                                     included, defaults to 256 MiB ]
+ *   "maxEntrySize"                : number,               [OPTIONAL - largest entity stored, defaults to 8 MiB ]
+ *   "maxEntries"                  : number,               [OPTIONAL - largest number of stored responses,
+ *                                                                     defaults to 10000 ]
+ *   "maxHeuristicFreshness"       : duration,             [OPTIONAL - longest freshness lifetime given to responses
+ *                                                                     with a Last-Modified date but no explicit
+ *                                                                     expiration time, defaults to 1 day ]
+ *   "temporaryStorage"            : reference             [OPTIONAL - the storage of the larger entities ]
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ * {
+ *     "type": "CacheFilter",
+ *     "config": {
+ *         "memoryLimit": 33554432,
+ *         "maxHeuristicFreshness": "1 hour"
+ *     }
+ * }
+ * }
+ * </pre>
+ * <p>
+ * When a stored response is fresh, and the request does not require its revalidation, it is served without calling
+ * the next handler, or a {@literal 304 Not Modified} is returned if the request's own {@literal If-None-Match} or
+ * {@literal If-Modified-Since} conditions match. A stale response is served (with a {@literal 110} warning) if the
+ * request accepts it with {@literal max-stale}, or if it is still within its {@literal stale-while-revalidate}
+ * window, in which case it is revalidated in the background; otherwise it is revalidated with a conditional request
+ * before being served. Requests with other methods than {@literal GET}, {@literal HEAD}, {@literal OPTIONS} and
+ * {@literal TRACE} invalidate the stored responses of their URI (and of their {@literal Location} and
+ * {@literal Content-Location} on the same host) when they succeed.
+ * <p>
+ * Responses are stored unless they are marked {@literal no-store} or {@literal private}, vary on {@literal *}, set
+ * cookies, or answer a request with credentials without being explicitly shareable. The entity of a stored response
+ * is read before the response is returned: entities larger than {@literal maxEntrySize}, or than what a temporary
+ * storage buffer can hold, are not stored and stream through once the bytes that could be held have been read. When
+ * a tier is full, or when there are {@literal maxEntries} stored responses, the least recently used responses are
+ * evicted. The size of a stored response is the size of its entity plus an estimate of the memory held by its URI and
+ * headers, so that responses without entity are bounded by the tier limits as well.
+ */
+public class CacheFilter extends GenericHeapObject implements Filter {
+
+    /** Default largest entity held in memory. */
+    public static final int DEFAULT_MEMORY_ENTRY_LIMIT = 64 * 1024;
+
+    /** Default total size of the entities held in memory. */
+    public static final long DEFAULT_MEMORY_LIMIT = 16L * 1024L * 1024L;
+
+    /** Default total size of the entities held in temporary storage. */
+    public static final long DEFAULT_DISK_LIMIT = 256L * 1024L * 1024L;
+
+    /** Default largest entity stored. */
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 8 * 1024 * 1024;
+
+    /** Default largest number of stored responses. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Statuses of the responses that can be stored without explicit expiration time (RFC 7231, section 6.1). */
+    private static final Set<Integer> CACHEABLE_BY_DEFAULT =
+            new HashSet<>(Arrays.asList(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501));
+
+    /** Methods that never invalidate stored responses (RFC 7231, section 4.2.1). */
+    private static final Set<String> SAFE_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE"));
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final ResponseCache cache;
+    private final TimeService time;
+    private final int memoryEntryLimit;
+    private final int maxEntrySize;
+    private final long maxHeuristicFreshness;
+
+    /**
+     * Builds a new cache filter.
+     *
+     * @param time
+     *         the time service, giving the date of the requests and responses
+     * @param memoryEntryLimit
+     *         the largest entity held in memory, in bytes: larger entities are held in temporary storage
+     * @param memoryLimit
+     *         the total size of the responses whose entity is held in memory, in bytes
+     * @param diskLimit
+     *         the total size of the responses whose entity is held in temporary storage, in bytes
+     * @param maxEntrySize
+     *         the largest entity stored, in bytes
+     * @param maxEntries
+     *         the largest number of stored responses
+     * @param maxHeuristicFreshness
+     *         the longest freshness lifetime given to responses with a {@literal Last-Modified} date but no explicit
+     *         expiration time
+     */
+    public CacheFilter(final TimeService time,
+                       final int memoryEntryLimit,
+                       final long memoryLimit,
+                       final long diskLimit,
+                       final int maxEntrySize,
+                       final int maxEntries,
+                       final Duration maxHeuristicFreshness) {
+        if (memoryEntryLimit < 0 || memoryLimit < 0 || diskLimit < 0 || maxEntrySize < 0 || maxEntries < 0) {
+            throw new IllegalArgumentException("The cache sizes cannot be negative");
+        }
+        this.time = time;
+        this.memoryEntryLimit = memoryEntryLimit;
+        this.maxEntrySize = maxEntrySize;
+        this.maxHeuristicFreshness = maxHeuristicFreshness.to(MILLISECONDS);
+        this.cache = new ResponseCache(memoryLimit, diskLimit, maxEntries);
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        String method = request.getMethod();
+        if (!"GET".equals(method)) {
+            if (SAFE_METHODS.contains(method)) {
+                return next.handle(context, request);
+            }
+            return next.handle(context, request).thenOnResult(new ResultHandler<Response>() {
+                @Override
+                public void handleResult(final Response response) {
+                    invalidate(request, response);
+                }
+            });
+        }
+
+        long now = time.now();
+        CacheControl requestControl = CacheControl.of(request.getHeaders(), true);
+        if (requestControl.has("no-store")) {
+            return next.handle(context, request);
+        }
+        String uri = keyOf(request.getUri().asURI());
+        CachedResponse cached = cache.get(uri, request);
+        if (cached != null) {
+            long age = cached.currentAge(now);
+            long lifetime = cached.freshnessLifetime(maxHeuristicFreshness);
+            long maxAge = requestControl.seconds("max-age");
+            boolean revalidate = requestControl.has("no-cache")
+                    || cached.has("no-cache")
+                    || (maxAge != -1L && age > SECONDS.toMillis(maxAge));
+            if (!revalidate) {
+                long minFresh = Math.max(0L, requestControl.seconds("min-fresh"));
+                if (age + SECONDS.toMillis(minFresh) < lifetime) {
+                    return newResponsePromise(serve(request, cached, now, false));
+                }
+                long staleness = age - lifetime;
+                if (mayServeStale(cached)) {
+                    long maxStale = requestControl.seconds("max-stale");
+                    if (requestControl.has("max-stale")
+                            && (maxStale == -1L || staleness <= SECONDS.toMillis(maxStale))) {
+                        return newResponsePromise(serve(request, cached, now, true));
+                    }
+                    long staleWhileRevalidate = cached.millis("stale-while-revalidate");
+                    if (staleWhileRevalidate != -1L && staleness <= staleWhileRevalidate) {
+                        revalidateInBackground(context, request, next, uri, cached, now);
+                        return newResponsePromise(serve(request, cached, now, true));
+                    }
+                }
+            }
+            if (requestControl.has("only-if-cached")) {
+                return newResponsePromise(new Response(Status.GATEWAY_TIMEOUT));
+            }
+            return revalidate(context, request, next, uri, cached, now);
+        }
+        if (requestControl.has("only-if-cached")) {
+            return newResponsePromise(new Response(Status.GATEWAY_TIMEOUT));
+        }
+        return fetch(context, request, next, uri, now);
+    }
+
+    private Promise<Response, NeverThrowsException> fetch(final Context context,
+                                                         final Request request,
+                                                         final Handler next,
+                                                         final String uri,
+                                                         final long requestTime) {
+        return next.handle(context, request).then(new Function<Response, Response, NeverThrowsException>() {
+            @Override
+            public Response apply(final Response response) {
+                return store(request, uri, response, requestTime);
+            }
+        });
+    }
+
+    private Promise<Response, NeverThrowsException> revalidate(final Context context,
+                                                              final Request request,
+                                                              final Handler next,
+                                                              final String uri,
+                                                              final CachedResponse cached,
+                                                              final long requestTime) {
+        final Request conditional = conditional(request, cached);
+        if (conditional == null) {
+            return fetch(context, request, next, uri, requestTime);
+        }
+        return next.handle(context, conditional).then(new Function<Response, Response, NeverThrowsException>() {
+            @Override
+            public Response apply(final Response response) {
+                if (Status.NOT_MODIFIED.equals(response.getStatus())) {
+                    long responseTime = time.now();
+                    cached.revalidated(response, requestTime, responseTime);
+                    response.close();
+                    return serve(request, cached, responseTime, false);
+                }
+                return store(request, uri, response, requestTime);
+            }
+        });
+    }
+
+    private void revalidateInBackground(final Context context,
+                                        final Request request,
+                                        final Handler next,
+                                        final String uri,
+                                        final CachedResponse cached,
+                                        final long requestTime) {
+        Request conditional = conditional(request, cached);
+        if (conditional == null || !cache.startRevalidation(cached)) {
+            return;
+        }
+        next.handle(context, conditional).thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                try {
+                    if (Status.NOT_MODIFIED.equals(response.getStatus())) {
+                        cached.revalidated(response, requestTime, time.now());
+                        response.close();
+                    } else {
+                        // Nobody reads the new response: it is only stored
+                        store(request, uri, response, requestTime).close();
+                    }
+                } finally {
+                    cache.endRevalidation(cached);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a copy of the request, validating the stored response with its entity tag and last modification date,
+     * or {@code null} if the response has no validator.
+     */
+    private Request conditional(final Request request, final CachedResponse cached) {
+        String etag = cached.getETag();
+        long lastModified = cached.getLastModified();
+        if (etag == null && lastModified == -1L) {
+            return null;
+        }
+        Request conditional;
+        try {
+            conditional = copyOf(request);
+        } catch (IOException e) {
+            logger.warning(e);
+            return null;
+        }
+        // The client's own conditions are evaluated against the stored response
+        conditional.getHeaders().remove(IF_NONE_MATCH);
+        conditional.getHeaders().remove(IF_MODIFIED_SINCE);
+        if (etag != null) {
+            conditional.getHeaders().put(IF_NONE_MATCH, etag);
+        }
+        if (lastModified != -1L) {
+            conditional.getHeaders().put(IF_MODIFIED_SINCE, HttpDates.format(lastModified));
+        }
+        return conditional;
+    }
+
+    private Response serve(final Request request, final CachedResponse cached, final long now, final boolean stale) {
+        return cached.toResponse(now, stale, storage, !isNotModified(request, cached));
+    }
+
+    /** Evaluates the conditions of the request against a stored response (RFC 7232, section 6). */
+    private static boolean isNotModified(final Request request, final CachedResponse cached) {
+        Header ifNoneMatch = request.getHeaders().get(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            String etag = cached.getETag();
+            if (etag == null) {
+                return false;
+            }
+            for (String value : ifNoneMatch.getValues()) {
+                for (String tag : value.split(",")) {
+                    String trimmed = tag.trim();
+                    if ("*".equals(trimmed) || opaque(trimmed).equals(opaque(etag))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        Header ifModifiedSince = request.getHeaders().get(IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            long since = HttpDates.parse(ifModifiedSince.getFirstValue());
+            long lastModified = cached.getLastModified();
+            return since != -1L && lastModified != -1L && lastModified <= since;
+        }
+        return false;
+    }
+
+    /** Returns the opaque part of an entity tag, for a weak comparison. */
+    private static String opaque(final String etag) {
+        String trimmed = etag.trim();
+        return trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed;
+    }
+
+    private static boolean mayServeStale(final CachedResponse cached) {
+        // s-maxage implies proxy-revalidate for a shared cache (RFC 7234, section 5.2.2.9)
+        return !cached.has("must-revalidate") && !cached.has("proxy-revalidate") && !cached.has("s-maxage");
+    }
+
+    /**
+     * Stores the response if it is storable, and returns the response to give back: either a response served from
+     * the new cache entry, or the given response.
+     */
+    private Response store(final Request request, final String uri, final Response response, final long requestTime) {
+        if (!isStorable(request, response)) {
+            return response;
+        }
+        InputStream in = response.getEntity().getRawContentInputStream();
+        Capture capture;
+        try {
+            capture = capture(in);
+        } catch (IOException e) {
+            logger.warning(e);
+            response.close();
+            return new Response(Status.BAD_GATEWAY).setCause(e);
+        }
+        if (capture.truncated) {
+            // Too large: the entity read so far is given back, followed by the unread entity
+            InputStream head = capture.body.open();
+            capture.body.discard();
+            InputStream entity = new SequenceInputStream(Collections.enumeration(
+                    Arrays.asList(head, new ByteArrayInputStream(capture.pending), in)));
+            Response streamed = new Response(response.getStatus());
+            streamed.setVersion(response.getVersion());
+            // Set the entity before the headers: setting an entity stream removes the Content-Length header
+            streamed.setEntity(IO.newBranchingInputStream(entity, storage));
+            for (Map.Entry<String, Header> header : response.getHeaders().asMapOfHeaders().entrySet()) {
+                streamed.getHeaders().add(header.getKey(), header.getValue().getValues());
+            }
+            return streamed;
+        }
+        response.close();
+        long responseTime = time.now();
+        CachedResponse cached = new CachedResponse(uri, request, response, capture.body, requestTime, responseTime);
+        cache.put(cached);
+        return cached.toResponse(responseTime, false, storage, true);
+    }
+
+    private static boolean isStorable(final Request request, final Response response) {
+        Status status = response.getStatus();
+        if (status == null || Status.NOT_MODIFIED.equals(status) || Status.PARTIAL_CONTENT.equals(status)) {
+            // Partial content is not combined
+            return false;
+        }
+        CacheControl control = CacheControl.of(response.getHeaders(), false);
+        if (control.has("no-store")
+                || control.has("private")
+                || response.getHeaders().containsKey("Set-Cookie")
+                || CachedResponse.varyingHeaders(response.getHeaders().get("Vary")) == null) {
+            return false;
+        }
+        if (request.getHeaders().containsKey("Authorization")
+                && !control.has("public") && !control.has("s-maxage") && !control.has("must-revalidate")) {
+            // RFC 7234, section 3.2
+            return false;
+        }
+        boolean explicit = control.has("s-maxage")
+                || control.has("max-age")
+                || response.getHeaders().containsKey("Expires");
+        if (!explicit && !control.has("public") && !CACHEABLE_BY_DEFAULT.contains(status.getCode())) {
+            return false;
+        }
+        // Without explicit expiration time nor validator, a stored response would never be fresh nor revalidated
+        return explicit
+                || response.getHeaders().containsKey("Last-Modified")
+                || response.getHeaders().containsKey("ETag");
+    }
+
+    /**
+     * Reads the entity, keeping it in memory up to {@link #memoryEntryLimit} bytes and in temporary storage beyond,
+     * and stops after {@link #maxEntrySize} bytes, or as soon as the temporary storage cannot hold it.
+     */
+    private Capture capture(final InputStream in) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        Buffer buffer = null;
+        byte[] chunk = new byte[8 * 1024];
+        long length = 0L;
+        try {
+            int read;
+            while ((read = in.read(chunk, 0, (int) Math.min(chunk.length, maxEntrySize + 1L - length))) != -1) {
+                if (buffer == null && length + read > memoryEntryLimit) {
+                    buffer = storage.newInstance();
+                    try {
+                        buffer.append(memory.toByteArray(), 0, memory.size());
+                    } catch (OverflowException e) {
+                        closeSilently(buffer);
+                        return new Capture(CachedBody.inMemory(memory.toByteArray()), Arrays.copyOf(chunk, read));
+                    }
+                }
+                if (buffer != null) {
+                    try {
+                        buffer.append(chunk, 0, read);
+                    } catch (OverflowException e) {
+                        // The temporary storage is full before maxEntrySize: too large to be stored as well
+                        return new Capture(CachedBody.inBuffer(buffer, (int) length), Arrays.copyOf(chunk, read));
+                    }
+                } else {
+                    memory.write(chunk, 0, read);
+                }
+                length += read;
+                if (length > maxEntrySize) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            closeSilently(buffer);
+            throw e;
+        }
+        CachedBody body = buffer == null
+                ? CachedBody.inMemory(memory.toByteArray())
+                : CachedBody.inBuffer(buffer, (int) length);
+        return length > maxEntrySize ? new Capture(body, new byte[0]) : new Capture(body);
+    }
+
+    /** Invalidates the responses stored for the resources a successful unsafe request may have changed. */
+    private void invalidate(final Request request, final Response response) {
+        Status status = response.getStatus();
+        if (status == null
+                || (status.getFamily() != Status.Family.SUCCESSFUL
+                        && status.getFamily() != Status.Family.REDIRECTION)) {
+            return;
+        }
+        URI uri = request.getUri().asURI();
+        cache.invalidate(keyOf(uri));
+        for (String name : Arrays.asList("Location", "Content-Location")) {
+            Header header = response.getHeaders().get(name);
+            if (header != null && header.getFirstValue() != null) {
+                try {
+                    URI location = uri.resolve(header.getFirstValue().trim());
+                    // Only on the same host, to prevent denial of service attacks (RFC 7234, section 4.4)
+                    if (location.getRawAuthority() != null
+                            && location.getRawAuthority().equalsIgnoreCase(uri.getRawAuthority())) {
+                        cache.invalidate(keyOf(location));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Invalid URI, nothing to invalidate
+                }
+            }
+        }
+    }
+
+    private static String keyOf(final URI uri) {
+        return uri.toASCIIString();
+    }
+
+    /** An entity read into the cache, completely or not. */
+    private static final class Capture {
+        private final CachedBody body;
+        private final boolean truncated;
+        /** The bytes read after the body, when it is truncated. */
+        private final byte[] pending;
+
+        /** A complete entity. */
+        Capture(final CachedBody body) {
+            this.body = body;
+            this.truncated = false;
+            this.pending = null;
+        }
+
+        /** A truncated entity, followed by the given bytes and the unread entity. */
+        Capture(final CachedBody body, final byte[] pending) {
+            this.body = body;
+            this.truncated = true;
+            this.pending = pending;
+        }
+    }
+
+    /** Creates and initializes a cache filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private CacheFilter filter;
+
+        @Override
+        public Object create() throws HeapException {
+            JsonValue evaluated = config.as(evaluated());
+            filter = new CacheFilter(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                     evaluated.get("memoryEntryLimit")
+                                              .defaultTo(DEFAULT_MEMORY_ENTRY_LIMIT)
+                                              .asInteger(),
+                                     evaluated.get("memoryLimit").defaultTo(DEFAULT_MEMORY_LIMIT).asLong(),
+                                     evaluated.get("diskLimit").defaultTo(DEFAULT_DISK_LIMIT).asLong(),
+                                     evaluated.get("maxEntrySize").defaultTo(DEFAULT_MAX_ENTRY_SIZE).asInteger(),
+                                     evaluated.get("maxEntries").defaultTo(DEFAULT_MAX_ENTRIES).asInteger(),
+                                     evaluated.get("maxHeuristicFreshness").defaultTo("1 day").as(duration()));
+            return filter;
+        }
+
+        @Override
+        public void destroy() {
+            if (filter != null) {
+                // Releases the temporary storage
+                filter.cache.clear();
+            }
+            super.destroy();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.forgerock.http.io.Buffer;
+
+/**
+ * The entity of a cached response: either held in memory, or in a (disk-backed) temporary storage buffer.
+ */
+abstract class CachedBody {
+
+    /**
+     * Returns a body held in memory.
+     *
+     * @param content
+     *         the entity content
+     * @return a body held in memory
+     */
+    static CachedBody inMemory(final byte[] content) {
+        return new MemoryBody(content);
+    }
+
+    /**
+     * Returns a body held in a temporary storage buffer, that is closed once the body has been
+     * {@linkplain #discard() discarded} and is not being read anymore.
+     *
+     * @param buffer
+     *         the buffer holding the entity content
+     * @param length
+     *         the entity length
+     * @return a body held in a temporary storage buffer
+     */
+    static CachedBody inBuffer(final Buffer buffer, final int length) {
+        return new BufferBody(buffer, length);
+    }
+
+    /** Returns the entity length, in bytes. */
+    abstract int length();
+
+    /** Returns {@code true} if the body is held in memory. */
+    abstract boolean isInMemory();
+
+    /**
+     * Opens a new stream reading the entity.
+     *
+     * @return a new stream reading the entity
+     */
+    abstract InputStream open();
+
+    /** Releases the body once removed from the cache: it may still be read by the streams already opened. */
+    abstract void discard();
+
+    private static final class MemoryBody extends CachedBody {
+        private final byte[] content;
+
+        MemoryBody(final byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        int length() {
+            return content.length;
+        }
+
+        @Override
+        boolean isInMemory() {
+            return true;
+        }
+
+        @Override
+        InputStream open() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        void discard() {
+            // Garbage collected
+        }
+    }
+
+    private static final class BufferBody extends CachedBody {
+        private final Buffer buffer;
+        private final int length;
+
+        // Guarded by this body
+        private int readers;
+        private boolean discarded;
+
+        BufferBody(final Buffer buffer, final int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        boolean isInMemory() {
+            return false;
+        }
+
+        @Override
+        synchronized InputStream open() {
+            readers++;
+            return new BufferInputStream();
+        }
+
+        @Override
+        synchronized void discard() {
+            discarded = true;
+            closeIfUnused();
+        }
+
+        private synchronized void readerClosed() {
+            readers--;
+            closeIfUnused();
+        }
+
+        private void closeIfUnused() {
+            if (discarded && readers == 0) {
+                try {
+                    buffer.close();
+                } catch (IOException e) {
+                    // Nothing else to do
+                }
+            }
+        }
+
+        private synchronized int read(final int position, final byte[] bytes, final int offset, final int count)
+                throws IOException {
+            // Buffers are not thread-safe: reads of concurrent streams are serialized
+            return buffer.read(position, bytes, offset, count);
+        }
+
+        /** Reads the buffer from its start, independently of the other streams. */
+        private final class BufferInputStream extends InputStream {
+            private int position;
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int count) throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (position >= length) {
+                    return -1;
+                }
+                if (count == 0) {
+                    return 0;
+                }
+                int read = BufferBody.this.read(position, bytes, offset, Math.min(count, length - position));
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public int available() {
+                return closed ? 0 : length - position;
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    readerClosed();
+                }
+            }
+        }
+    }
+}
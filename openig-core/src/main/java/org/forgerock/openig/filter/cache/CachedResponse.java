@@ -0,0 +1,462 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Headers;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.io.TemporaryStorage;
+
+/**
+ * A response stored in the cache, with the request header values it was selected with (RFC 7234, section 4.1) and
+ * what is needed to compute its age and freshness (RFC 7234, section 4.2).
+ */
+final class CachedResponse {
+
+    /** Headers that are meaningful for a single connection only, and are not stored (RFC 7230, section 6.1). */
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList("connection",
+                                                                              "keep-alive",
+                                                                              "proxy-authenticate",
+                                                                              "proxy-authorization",
+                                                                              "te",
+                                                                              "trailer",
+                                                                              "transfer-encoding",
+                                                                              "upgrade"));
+
+    /** The {@literal Age} header is computed each time the response is served. */
+    private static final String AGE = "Age";
+
+    /** Estimated memory held by an entry besides its strings: the entry itself, its maps and cache directives. */
+    private static final int ENTRY_OVERHEAD = 512;
+
+    /** Estimated memory held by each stored header besides its strings. */
+    private static final int HEADER_OVERHEAD = 96;
+
+    private final String uri;
+    private final Status status;
+    private final String version;
+    private final Map<String, String> selecting;
+    private final CachedBody body;
+    private final long footprint;
+
+    // Guarded by this entry: revalidations update the headers and the dates
+    private Map<String, List<String>> headers;
+    private CacheControl control;
+    private long requestTime;
+    private long responseTime;
+
+    /**
+     * Builds a cache entry.
+     *
+     * @param uri
+     *         the effective request URI
+     * @param request
+     *         the request that the response answers, to record the values of the headers listed by {@literal Vary}
+     * @param response
+     *         the response, whose entity is not read
+     * @param body
+     *         the entity of the response
+     * @param requestTime
+     *         when the request was sent, in milliseconds since the epoch
+     * @param responseTime
+     *         when the response was received, in milliseconds since the epoch
+     */
+    CachedResponse(final String uri,
+                   final Request request,
+                   final Response response,
+                   final CachedBody body,
+                   final long requestTime,
+                   final long responseTime) {
+        this.uri = uri;
+        this.status = response.getStatus();
+        this.version = response.getVersion();
+        this.body = body;
+        this.selecting = selecting(response.getHeaders().get("Vary"), request.getHeaders());
+        this.headers = copy(response.getHeaders());
+        this.control = CacheControl.of(response.getHeaders(), false);
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.footprint = footprint(uri, selecting, headers);
+    }
+
+    /**
+     * Returns the names, in lower case, of the headers listed by a {@literal Vary} header, or {@code null} if it
+     * contains {@literal *}.
+     *
+     * @param vary
+     *         the {@literal Vary} header, may be {@code null}
+     * @return the names of the headers listed by the given {@literal Vary} header, or {@code null}
+     */
+    static Set<String> varyingHeaders(final Header vary) {
+        if (vary == null) {
+            return Collections.emptySet();
+        }
+        Set<String> result = new HashSet<>();
+        for (String value : vary.getValues()) {
+            for (String name : value.split(",")) {
+                String trimmed = name.trim().toLowerCase(Locale.ROOT);
+                if ("*".equals(trimmed)) {
+                    return null;
+                }
+                if (!trimmed.isEmpty()) {
+                    result.add(trimmed);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, String> selecting(final Header vary, final Headers requestHeaders) {
+        Map<String, String> selecting = new TreeMap<>();
+        Set<String> names = varyingHeaders(vary);
+        if (names != null) {
+            for (String name : names) {
+                selecting.put(name, normalized(requestHeaders.get(name)));
+            }
+        }
+        return selecting;
+    }
+
+    /** Normalizes a header so that semantically equivalent values compare equal (RFC 7234, section 4.1). */
+    private static String normalized(final Header header) {
+        if (header == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String value : header.getValues()) {
+            for (String element : value.split(",")) {
+                String trimmed = element.trim();
+                if (!trimmed.isEmpty()) {
+                    if (sb.length() > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(trimmed);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Estimates the memory held by an entry besides its entity: two bytes per character, plus the objects. */
+    private static long footprint(final String uri,
+                                  final Map<String, String> selecting,
+                                  final Map<String, List<String>> headers) {
+        // The URI is held twice: on its own and in the key
+        long chars = 2L * uri.length();
+        for (Map.Entry<String, String> value : selecting.entrySet()) {
+            // Also held twice, in the map and in the key
+            chars += 2L * (value.getKey().length() + (value.getValue() == null ? 4 : value.getValue().length()));
+        }
+        long size = ENTRY_OVERHEAD;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            size += HEADER_OVERHEAD;
+            chars += header.getKey().length();
+            for (String value : header.getValue()) {
+                chars += value.length();
+            }
+        }
+        return size + 2L * chars;
+    }
+
+    private static Map<String, List<String>> copy(final Headers source) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, Header> header : source.asMapOfHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (!HOP_BY_HOP.contains(name) && !AGE.equalsIgnoreCase(name)) {
+                headers.put(header.getKey(), new ArrayList<>(header.getValue().getValues()));
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Returns the key identifying this variant of the resource in the cache: two responses with the same key
+     * replace each other.
+     *
+     * @return the key identifying this variant of the resource
+     */
+    String getKey() {
+        return uri + ' ' + selecting;
+    }
+
+    /**
+     * Returns the effective request URI.
+     *
+     * @return the effective request URI
+     */
+    String getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the estimated memory held by this entry besides its entity, in bytes: its URI, key and headers, as
+     * stored (revalidations do not update it).
+     *
+     * @return the estimated memory held by this entry besides its entity
+     */
+    long getFootprint() {
+        return footprint;
+    }
+
+    /**
+     * Returns the entity of the response.
+     *
+     * @return the entity of the response
+     */
+    CachedBody getBody() {
+        return body;
+    }
+
+    /**
+     * Returns {@code true} if this response can be used to answer the given request, that is to say if the request
+     * has the same values as the request this response was stored for, for all the headers listed by
+     * {@literal Vary}.
+     *
+     * @param request
+     *         the request to answer
+     * @return {@code true} if this response can be used to answer the given request
+     */
+    boolean matches(final Request request) {
+        for (Map.Entry<String, String> header : selecting.entrySet()) {
+            String value = normalized(request.getHeaders().get(header.getKey()));
+            if (value == null ? header.getValue() != null : !value.equals(header.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the freshness lifetime of this response, in milliseconds (RFC 7234, section 4.2.1).
+     *
+     * @param maxHeuristicFreshness
+     *         the longest heuristic freshness lifetime, in milliseconds, given to responses without explicit
+     *         expiration time but with a {@literal Last-Modified} date
+     * @return the freshness lifetime of this response, in milliseconds
+     */
+    synchronized long freshnessLifetime(final long maxHeuristicFreshness) {
+        long sharedMaxAge = control.seconds("s-maxage");
+        if (sharedMaxAge >= 0) {
+            return SECONDS.toMillis(sharedMaxAge);
+        }
+        long maxAge = control.seconds("max-age");
+        if (maxAge >= 0) {
+            return SECONDS.toMillis(maxAge);
+        }
+        long date = date();
+        if (containsHeader("Expires")) {
+            // An invalid date, like "0", means already expired
+            long expires = HttpDates.parse(first("Expires"));
+            return expires == -1L ? 0L : Math.max(0L, expires - date);
+        }
+        long lastModified = HttpDates.parse(first("Last-Modified"));
+        if (lastModified != -1L && lastModified < date) {
+            return Math.min((date - lastModified) / 10L, maxHeuristicFreshness);
+        }
+        return 0L;
+    }
+
+    /**
+     * Returns {@code true} if this response has an explicit expiration time (RFC 7234, section 4.2.1).
+     *
+     * @return {@code true} if this response has an explicit expiration time
+     */
+    synchronized boolean hasExplicitExpiration() {
+        return control.has("s-maxage") || control.has("max-age") || containsHeader("Expires");
+    }
+
+    /**
+     * Returns the current age of this response, in milliseconds (RFC 7234, section 4.2.3).
+     *
+     * @param now
+     *         the current time, in milliseconds since the epoch
+     * @return the current age of this response, in milliseconds
+     */
+    synchronized long currentAge(final long now) {
+        long ageValue = 0L;
+        String age = first(AGE);
+        if (age != null) {
+            try {
+                ageValue = SECONDS.toMillis(Math.max(0L, Long.parseLong(age.trim())));
+            } catch (NumberFormatException e) {
+                // Ignored, as if absent
+            }
+        }
+        long apparentAge = Math.max(0L, responseTime - date());
+        long correctedAgeValue = ageValue + (responseTime - requestTime);
+        return Math.max(apparentAge, correctedAgeValue) + (now - responseTime);
+    }
+
+    /**
+     * Returns the argument of the given response {@literal Cache-Control} directive, in milliseconds.
+     *
+     * @param directive
+     *         the directive name, in lower case
+     * @return the argument of the given directive, in milliseconds, or {@literal -1} if absent or invalid
+     */
+    synchronized long millis(final String directive) {
+        long seconds = control.seconds(directive);
+        return seconds == -1L ? -1L : SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * Returns {@code true} if the given response {@literal Cache-Control} directive is present.
+     *
+     * @param directive
+     *         the directive name, in lower case
+     * @return {@code true} if the given response {@literal Cache-Control} directive is present
+     */
+    synchronized boolean has(final String directive) {
+        return control.has(directive);
+    }
+
+    /**
+     * Returns the entity tag of this response, or {@code null}.
+     *
+     * @return the entity tag of this response, or {@code null}
+     */
+    synchronized String getETag() {
+        return first("ETag");
+    }
+
+    /**
+     * Returns the {@literal Last-Modified} date of this response, in milliseconds since the epoch, or {@literal -1}.
+     *
+     * @return the {@literal Last-Modified} date of this response, or {@literal -1}
+     */
+    synchronized long getLastModified() {
+        return HttpDates.parse(first("Last-Modified"));
+    }
+
+    /**
+     * Updates this response with the headers of a {@literal 304 Not Modified} response to its revalidation (RFC
+     * 7234, section 4.3.4).
+     *
+     * @param notModified
+     *         the {@literal 304 Not Modified} response
+     * @param requestTime
+     *         when the revalidation request was sent, in milliseconds since the epoch
+     * @param responseTime
+     *         when the {@literal 304 Not Modified} response was received, in milliseconds since the epoch
+     */
+    synchronized void revalidated(final Response notModified, final long requestTime, final long responseTime) {
+        Map<String, List<String>> updated = new LinkedHashMap<>(headers);
+        for (Map.Entry<String, List<String>> header : copy(notModified.getHeaders()).entrySet()) {
+            if (!"Content-Length".equalsIgnoreCase(header.getKey())) {
+                removeIgnoreCase(updated, header.getKey());
+                updated.put(header.getKey(), header.getValue());
+            }
+        }
+        if (!notModified.getHeaders().containsKey(AGE)) {
+            // The stored Age is not relevant anymore
+            removeIgnoreCase(updated, AGE);
+        }
+        headers = updated;
+        control = CacheControl.of(headersOf(updated), false);
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * Builds a new response from this cache entry.
+     *
+     * @param now
+     *         the current time, in milliseconds since the epoch
+     * @param stale
+     *         {@code true} if the response is served stale
+     * @param storage
+     *         the storage used by the response entity when it is branched
+     * @param withEntity
+     *         {@code false} to build a response without entity, like a {@literal 304 Not Modified}
+     * @return a new response
+     */
+    synchronized Response toResponse(final long now,
+                                     final boolean stale,
+                                     final TemporaryStorage storage,
+                                     final boolean withEntity) {
+        Response response = new Response(withEntity ? status : Status.NOT_MODIFIED);
+        response.setVersion(version);
+        if (withEntity) {
+            // Set the entity before the headers: setting an entity stream removes the Content-Length header
+            response.setEntity(IO.newBranchingInputStream(body.open(), storage));
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            response.getHeaders().add(header.getKey(), header.getValue());
+        }
+        if (!withEntity) {
+            // A 304 Not Modified has no content
+            response.getHeaders().remove("Content-Length");
+        }
+        response.getHeaders().put(AGE, String.valueOf(MILLISECONDS.toSeconds(currentAge(now))));
+        if (stale) {
+            response.getHeaders().add("Warning", "110 - \"Response is Stale\"");
+        }
+        return response;
+    }
+
+    private long date() {
+        long date = HttpDates.parse(first("Date"));
+        // Without a valid Date header, the response is as old as when it was received (RFC 7231, section 7.1.1.2)
+        return date == -1L ? responseTime : date;
+    }
+
+    private boolean containsHeader(final String name) {
+        return first(name) != null;
+    }
+
+    private String first(final String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static void removeIgnoreCase(final Map<String, List<String>> headers, final String name) {
+        for (String key : new ArrayList<>(headers.keySet())) {
+            if (key.equalsIgnoreCase(name)) {
+                headers.remove(key);
+            }
+        }
+    }
+
+    private static Headers headersOf(final Map<String, List<String>> map) {
+        Headers headers = new Headers();
+        for (Map.Entry<String, List<String>> header : map.entrySet()) {
+            headers.add(header.getKey(), header.getValue());
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Parses and formats HTTP dates (RFC 7231, section 7.1.1.1).
+ */
+final class HttpDates {
+
+    /** The preferred format, followed by the obsolete RFC 850 and ANSI C asctime() formats. */
+    private static final String[] PATTERNS = { "EEE, dd MMM yyyy HH:mm:ss zzz",
+                                               "EEEE, dd-MMM-yy HH:mm:ss zzz",
+                                               "EEE MMM d HH:mm:ss yyyy" };
+
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    private HttpDates() {
+    }
+
+    /**
+     * Parses an HTTP date.
+     *
+     * @param value
+     *         the date to parse, may be {@code null}
+     * @return the date in milliseconds since the epoch, or {@literal -1} if the date is missing or invalid
+     */
+    static long parse(final String value) {
+        if (value == null) {
+            return -1L;
+        }
+        String trimmed = value.trim();
+        for (String pattern : PATTERNS) {
+            // Date formats are not thread-safe
+            DateFormat format = format(pattern);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(trimmed, position);
+            if (date != null && position.getIndex() == trimmed.length()) {
+                return date.getTime();
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Formats a date as an HTTP date.
+     *
+     * @param time
+     *         the date in milliseconds since the epoch
+     * @return the formatted date
+     */
+    static String format(final long time) {
+        return format(PATTERNS[0]).format(new Date(time));
+    }
+
+    private static DateFormat format(final String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(GMT);
+        format.setLenient(false);
+        return format;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.http.protocol.Request;
+
+/**
+ * The responses stored by a {@link CacheFilter}, in two tiers: small entities are kept in memory, larger ones in
+ * temporary storage. Each tier has its own size limit, beyond which its least recently used responses are evicted.
+ * The size of a response is the size of its entity plus its {@linkplain CachedResponse#getFootprint() footprint}, so
+ * that responses without entity count as well. The total number of responses is bounded too.
+ */
+final class ResponseCache {
+
+    private final Tier memory;
+    private final Tier disk;
+    private final int maxEntries;
+
+    /**
+     * The keys of the variants of each resource, most recently stored first, to select a variant and to invalidate
+     * them all.
+     */
+    private final Map<String, List<String>> variants = new HashMap<>();
+
+    /** The keys of the variants that are being revalidated in the background. */
+    private final Set<String> revalidating = new HashSet<>();
+
+    /**
+     * Builds a new response cache.
+     *
+     * @param memoryLimit
+     *         the total size, in bytes, of the responses whose entity is held in memory
+     * @param diskLimit
+     *         the total size, in bytes, of the responses whose entity is held in temporary storage
+     * @param maxEntries
+     *         the maximum number of stored responses
+     */
+    ResponseCache(final long memoryLimit, final long diskLimit, final int maxEntries) {
+        this.memory = new Tier(memoryLimit);
+        this.disk = new Tier(diskLimit);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the most recently stored response that can answer the given request, or {@code null}.
+     *
+     * @param uri
+     *         the effective request URI
+     * @param request
+     *         the request
+     * @return the most recently stored response that can answer the given request, or {@code null}
+     */
+    synchronized CachedResponse get(final String uri, final Request request) {
+        List<String> keys = variants.get(uri);
+        if (keys == null) {
+            return null;
+        }
+        for (String key : keys) {
+            CachedResponse candidate = memory.get(key);
+            if (candidate == null) {
+                candidate = disk.get(key);
+            }
+            if (candidate != null && candidate.matches(request)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores a response, replacing any response stored for the same variant of the resource, and evicting the least
+     * recently used responses of its tier (or of the other tier, when there are too many responses) if needed.
+     *
+     * @param response
+     *         the response to store
+     */
+    synchronized void put(final CachedResponse response) {
+        String key = response.getKey();
+        remove(key);
+        Tier tier = response.getBody().isInMemory() ? memory : disk;
+        if (maxEntries == 0 || Tier.sizeOf(response) > tier.limit) {
+            response.getBody().discard();
+            return;
+        }
+        for (CachedResponse evicted : tier.put(key, response)) {
+            forget(evicted);
+        }
+        while (size() > maxEntries) {
+            // The tier of the new response holds at least it: evict from the other one when it is the only one
+            Tier eldest = tier.entries.size() > 1 ? tier : (tier == memory ? disk : memory);
+            forget(eldest.evictEldest());
+        }
+        List<String> keys = variants.get(response.getUri());
+        if (keys == null) {
+            keys = new ArrayList<>(1);
+            variants.put(response.getUri(), keys);
+        }
+        keys.add(0, key);
+    }
+
+    /**
+     * Removes all the stored variants of a resource (RFC 7234, section 4.4).
+     *
+     * @param uri
+     *         the URI of the resource
+     */
+    synchronized void invalidate(final String uri) {
+        List<String> keys = variants.remove(uri);
+        if (keys != null) {
+            for (String key : keys) {
+                CachedResponse removed = memory.remove(key);
+                if (removed == null) {
+                    removed = disk.remove(key);
+                }
+                if (removed != null) {
+                    removed.getBody().discard();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks a response as being revalidated in the background.
+     *
+     * @param response
+     *         the response to revalidate
+     * @return {@code false} if the response is already being revalidated
+     */
+    synchronized boolean startRevalidation(final CachedResponse response) {
+        return revalidating.add(response.getKey());
+    }
+
+    /**
+     * Marks the end of the background revalidation of a response.
+     *
+     * @param response
+     *         the revalidated response
+     */
+    synchronized void endRevalidation(final CachedResponse response) {
+        revalidating.remove(response.getKey());
+    }
+
+    /**
+     * Returns the number of stored responses.
+     *
+     * @return the number of stored responses
+     */
+    synchronized int size() {
+        return memory.entries.size() + disk.entries.size();
+    }
+
+    /**
+     * Returns the total size of the responses whose entity is held in memory, in bytes.
+     *
+     * @return the total size of the responses whose entity is held in memory
+     */
+    synchronized long getMemorySize() {
+        return memory.size;
+    }
+
+    /**
+     * Returns the total size of the responses whose entity is held in temporary storage, in bytes.
+     *
+     * @return the total size of the responses whose entity is held in temporary storage
+     */
+    synchronized long getDiskSize() {
+        return disk.size;
+    }
+
+    /** Removes all the stored responses. */
+    synchronized void clear() {
+        for (String uri : new ArrayList<>(variants.keySet())) {
+            invalidate(uri);
+        }
+    }
+
+    private void remove(final String key) {
+        CachedResponse removed = memory.remove(key);
+        if (removed == null) {
+            removed = disk.remove(key);
+        }
+        if (removed != null) {
+            forget(removed);
+        }
+    }
+
+    private void forget(final CachedResponse response) {
+        response.getBody().discard();
+        List<String> keys = variants.get(response.getUri());
+        if (keys != null) {
+            keys.remove(response.getKey());
+            if (keys.isEmpty()) {
+                variants.remove(response.getUri());
+            }
+        }
+    }
+
+    /** The responses of a tier, in access order, and their total size. */
+    private static final class Tier {
+        private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long limit;
+        private long size;
+
+        Tier(final long limit) {
+            this.limit = limit;
+        }
+
+        /** The size charged to the tier for a response: its entity, and the rest of the entry. */
+        static long sizeOf(final CachedResponse response) {
+            return response.getBody().length() + response.getFootprint();
+        }
+
+        CachedResponse get(final String key) {
+            return entries.get(key);
+        }
+
+        /** Stores a response, and returns the least recently used responses evicted to make room for it. */
+        List<CachedResponse> put(final String key, final CachedResponse response) {
+            entries.put(key, response);
+            size += sizeOf(response);
+            List<CachedResponse> evicted = new ArrayList<>();
+            Iterator<CachedResponse> eldest = entries.values().iterator();
+            while (size > limit && eldest.hasNext()) {
+                CachedResponse candidate = eldest.next();
+                if (candidate != response) {
+                    eldest.remove();
+                    size -= sizeOf(candidate);
+                    evicted.add(candidate);
+                }
+            }
+            return evicted;
+        }
+
+        /** Removes and returns the least recently used response. */
+        CachedResponse evictEldest() {
+            Iterator<CachedResponse> eldest = entries.values().iterator();
+            CachedResponse evicted = eldest.next();
+            eldest.remove();
+            size -= sizeOf(evicted);
+            return evicted;
+        }
+
+        CachedResponse remove(final String key) {
+            CachedResponse removed = entries.remove(key);
+            if (removed != null) {
+                size -= sizeOf(removed);
+            }
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.circuitbreaker;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * A circuit breaker, driven by the failure rate and the slow call rate of a sliding window of the most recent calls.
+ * <ul>
+ *     <li>{@link State#CLOSED}: all the calls are permitted. When at least {@literal minimumCalls} calls have been
+ *     recorded and either the failure rate or the slow call rate of the last {@literal windowSize} calls reaches its
+ *     threshold, the circuit opens.</li>
+ *     <li>{@link State#OPEN}: no call is permitted, until {@literal openDuration} has elapsed and the circuit becomes
+ *     half-open.</li>
+ *     <li>{@link State#HALF_OPEN}: only {@literal halfOpenCalls} trial calls are permitted. Once they have all
+ *     completed, the circuit closes if their rates are below the thresholds, and opens again otherwise. When they have
+ *     not all completed after {@literal openDuration}, new trial calls are permitted.</li>
+ * </ul>
+ * Calls permitted in a previous state that complete after a transition are ignored.
+ */
+public final class CircuitBreaker {
+
+    /** The states of a circuit breaker. */
+    public enum State {
+        /** All the calls are permitted. */
+        CLOSED,
+        /** No call is permitted. */
+        OPEN,
+        /** A limited number of trial calls are permitted. */
+        HALF_OPEN
+    }
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private final TimeService time;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallDuration;
+    private final long openDuration;
+    private final int halfOpenCalls;
+
+    // Guarded by this circuit breaker
+    /** The outcomes of the last calls, as a ring buffer of {@link #FAILED} and {@link #SLOW} flags. */
+    private final byte[] window;
+    private int next;
+    private int recorded;
+    private int failed;
+    private int slow;
+    private State state = State.CLOSED;
+    /** Incremented on each transition, to ignore the calls permitted in a previous state. */
+    private long generation;
+    private long changedAt;
+    private int trialsPermitted;
+    private int trialsCompleted;
+    private long notPermitted;
+
+    /**
+     * Builds a new closed circuit breaker.
+     *
+     * @param time
+     *         the time service, measuring the open duration
+     * @param windowSize
+     *         the number of most recent calls whose rates are computed
+     * @param minimumCalls
+     *         the number of calls to record before the rates are meaningful
+     * @param failureRateThreshold
+     *         the failure rate, in percents, from which the circuit opens
+     * @param slowCallRateThreshold
+     *         the slow call rate, in percents, from which the circuit opens
+     * @param slowCallDuration
+     *         the duration from which a call is slow
+     * @param openDuration
+     *         how long the circuit stays open before permitting trial calls
+     * @param halfOpenCalls
+     *         the number of trial calls permitted when the circuit is half-open
+     */
+    public CircuitBreaker(final TimeService time,
+                          final int windowSize,
+                          final int minimumCalls,
+                          final int failureRateThreshold,
+                          final int slowCallRateThreshold,
+                          final Duration slowCallDuration,
+                          final Duration openDuration,
+                          final int halfOpenCalls) {
+        if (windowSize <= 0 || minimumCalls <= 0 || halfOpenCalls <= 0) {
+            throw new IllegalArgumentException("The window size, minimum calls and half-open calls must be positive");
+        }
+        if (failureRateThreshold <= 0 || failureRateThreshold > 100
+                || slowCallRateThreshold <= 0 || slowCallRateThreshold > 100) {
+            throw new IllegalArgumentException("The rate thresholds must be percentages");
+        }
+        this.time = time;
+        this.window = new byte[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = slowCallDuration.to(MILLISECONDS);
+        this.openDuration = openDuration.to(MILLISECONDS);
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Asks for the permission to make a call.
+     *
+     * @return the permitted call, to complete once its outcome is known, or {@code null} if the call is not permitted
+     */
+    public synchronized Call acquire() {
+        if (state == State.OPEN) {
+            if (time.since(changedAt) < openDuration) {
+                notPermitted++;
+                return null;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsPermitted == halfOpenCalls) {
+                if (time.since(changedAt) < openDuration) {
+                    notPermitted++;
+                    return null;
+                }
+                // The trial calls have not all completed in time (they may have been cancelled): new trial
+                transition(State.HALF_OPEN);
+            }
+            trialsPermitted++;
+        }
+        return new Call(generation, time.now());
+    }
+
+    /**
+     * Returns how long the circuit stays open, in milliseconds.
+     *
+     * @return how long the circuit stays open, in milliseconds, or {@literal 0} if it is not open
+     */
+    public synchronized long getRemainingOpenTime() {
+        return state == State.OPEN ? Math.max(0L, openDuration - time.since(changedAt)) : 0L;
+    }
+
+    /**
+     * Returns the current state of this circuit breaker.
+     *
+     * @return the current state of this circuit breaker
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && time.since(changedAt) >= openDuration) {
+            // Not yet transitioned, but the next call will be permitted
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    private synchronized void complete(final Call call, final boolean failure) {
+        if (call.generation != generation) {
+            return;
+        }
+        byte outcome = (byte) ((failure ? FAILED : 0) | (time.since(call.start) >= slowCallDuration ? SLOW : 0));
+        record(outcome);
+        switch (state) {
+        case CLOSED:
+            if (recorded >= minimumCalls && isAboveThresholds()) {
+                transition(State.OPEN);
+            }
+            break;
+        case HALF_OPEN:
+            if (++trialsCompleted == halfOpenCalls) {
+                transition(isAboveThresholds() ? State.OPEN : State.CLOSED);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void record(final byte outcome) {
+        if (recorded == window.length) {
+            // Overwrites the oldest outcome
+            byte oldest = window[next];
+            failed -= oldest & FAILED;
+            slow -= (oldest & SLOW) >> 1;
+        } else {
+            recorded++;
+        }
+        window[next] = outcome;
+        next = (next + 1) % window.length;
+        failed += outcome & FAILED;
+        slow += (outcome & SLOW) >> 1;
+    }
+
+    private boolean isAboveThresholds() {
+        return failed * 100 >= failureRateThreshold * recorded || slow * 100 >= slowCallRateThreshold * recorded;
+    }
+
+    private void transition(final State to) {
+        state = to;
+        generation++;
+        // Each state computes its rates on its own calls
+        next = 0;
+        recorded = 0;
+        failed = 0;
+        slow = 0;
+        trialsPermitted = 0;
+        trialsCompleted = 0;
+        changedAt = time.now();
+    }
+
+    /**
+     * Returns the state and rates of this circuit breaker, as a JSON-friendly map.
+     *
+     * @return the state and rates of this circuit breaker
+     */
+    public synchronized Map<String, Object> render() {
+        Map<String, Object> rendered = new LinkedHashMap<>();
+        rendered.put("state", getState().name());
+        rendered.put("bufferedCalls", recorded);
+        rendered.put("failedCalls", failed);
+        rendered.put("slowCalls", slow);
+        rendered.put("failureRate", rate(failed));
+        rendered.put("slowCallRate", rate(slow));
+        rendered.put("notPermittedCalls", notPermitted);
+        rendered.put("transitions", generation);
+        return rendered;
+    }
+
+    private BigDecimal rate(final int count) {
+        if (recorded == 0) {
+            return BigDecimal.ZERO;
+        }
+        return BigDecimal.valueOf(count * 100L).divide(BigDecimal.valueOf(recorded), 1, RoundingMode.HALF_UP);
+    }
+
+    /** A call permitted by the circuit breaker. */
+    public final class Call {
+        private final long generation;
+        private final long start;
+
+        private Call(final long generation, final long start) {
+            this.generation = generation;
+            this.start = start;
+        }
+
+        /**
+         * Records the outcome of this call.
+         *
+         * @param failure
+         *         {@code true} if the call failed
+         */
+        public void complete(final boolean failure) {
+            CircuitBreaker.this.complete(this, failure);
+        }
+    }
+}
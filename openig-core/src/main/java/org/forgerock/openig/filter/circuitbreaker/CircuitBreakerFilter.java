@@ -0,0 +1,289 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.circuitbreaker;
+
+import static java.lang.String.format;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.evaluated;
+import static org.forgerock.openig.util.JsonValues.expression;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.MutableUri;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Guards the calls to the next handler with a {@link CircuitBreaker} per upstream: while the upstream fails or is too
+ * slow, the requests fail fast with a {@literal 503 Service Unavailable} response, instead of piling up on it.
+ *
+ * <pre>
+ * {@code
+ * {
+ *   "key"                         : expression,           [OPTIONAL - identifies the upstream of a request, defaults
+ *                                                                     to the scheme, host and port of its URI ]
+ *   "windowSize"                  : number,               [OPTIONAL - number of most recent calls whose rates are
+ *                                                                     computed, defaults to 100 ]
+ *   "minimumCalls"                : number,               [OPTIONAL - number of calls before the rates are
+ *                                                                     meaningful, defaults to 20 ]
+ *   "failureRateThreshold"        : number,               [OPTIONAL - failure rate, in percents, opening the
+ *                                                                     circuit, defaults to 50 ]
+ *   "slowCallRateThreshold"       : number,               [OPTIONAL - slow call rate, in percents, opening the
+ *                                                                     circuit, defaults to 100 ]
+ *   "slowCallDuration"            : duration,             [OPTIONAL - duration from which a call is slow, defaults
+ *                                                                     to 5 seconds ]
+ *   "openDuration"                : duration,             [OPTIONAL - how long the circuit stays open, defaults
+ *                                                                     to 30 seconds ]
+ *   "halfOpenCalls"               : number                [OPTIONAL - number of trial calls when the circuit is
+ *                                                                     half-open, defaults to 5 ]
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ * {
+ *     "type": "CircuitBreakerFilter",
+ *     "config": {
+ *         "failureRateThreshold": 25,
+ *         "openDuration": "1 minute"
+ *     }
+ * }
+ * }
+ * </pre>
+ * <p>
+ * A call fails when the response has a cause, or a {@literal 5xx} status. The failing fast responses carry a
+ * {@literal Retry-After} header, telling when the circuit becomes half-open.
+ * <p>
+ * The state and rates of the circuit breakers are exposed at the {@literal breakers} endpoint of the filter.
+ */
+public class CircuitBreakerFilter extends GenericHeapObject implements Filter {
+
+    /** The circuit breakers, by upstream key. */
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final TimeService time;
+    private final Expression<String> key;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final Duration slowCallDuration;
+    private final Duration openDuration;
+    private final int halfOpenCalls;
+
+    /**
+     * Builds a new circuit breaker filter.
+     *
+     * @param time
+     *         the time service
+     * @param key
+     *         the expression identifying the upstream of a request, or {@code null} to use the scheme, host and port
+     *         of its URI
+     * @param windowSize
+     *         the number of most recent calls whose rates are computed
+     * @param minimumCalls
+     *         the number of calls to record before the rates are meaningful
+     * @param failureRateThreshold
+     *         the failure rate, in percents, from which a circuit opens
+     * @param slowCallRateThreshold
+     *         the slow call rate, in percents, from which a circuit opens
+     * @param slowCallDuration
+     *         the duration from which a call is slow
+     * @param openDuration
+     *         how long a circuit stays open before permitting trial calls
+     * @param halfOpenCalls
+     *         the number of trial calls permitted when a circuit is half-open
+     * @see CircuitBreaker
+     */
+    public CircuitBreakerFilter(final TimeService time,
+                                final Expression<String> key,
+                                final int windowSize,
+                                final int minimumCalls,
+                                final int failureRateThreshold,
+                                final int slowCallRateThreshold,
+                                final Duration slowCallDuration,
+                                final Duration openDuration,
+                                final int halfOpenCalls) {
+        this.time = time;
+        this.key = key;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = slowCallDuration;
+        this.openDuration = openDuration;
+        this.halfOpenCalls = halfOpenCalls;
+        // Fail early on invalid settings
+        newCircuitBreaker();
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                          final Request request,
+                                                          final Handler next) {
+        final String upstream = key == null ? defaultKey(request) : key.eval(bindings(context, request));
+        if (upstream == null) {
+            return next.handle(context, request);
+        }
+        CircuitBreaker breaker = breakers.get(upstream);
+        if (breaker == null) {
+            CircuitBreaker created = newCircuitBreaker();
+            breaker = breakers.putIfAbsent(upstream, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+
+        final CircuitBreaker.Call call = breaker.acquire();
+        if (call == null) {
+            logger.debug(format("Circuit open for '%s', failing fast", upstream));
+            Response response = new Response(Status.SERVICE_UNAVAILABLE);
+            // Rounded up, so that the circuit is half-open when the client retries
+            long retryAfter = (breaker.getRemainingOpenTime() + 999L) / 1000L;
+            response.getHeaders().put("Retry-After", String.valueOf(Math.max(1L, retryAfter)));
+            return Promises.newResultPromise(response);
+        }
+
+        Promise<Response, NeverThrowsException> promise;
+        try {
+            promise = next.handle(context, request);
+        } catch (RuntimeException e) {
+            call.complete(true);
+            throw e;
+        }
+        return promise.thenOnResult(new ResultHandler<Response>() {
+            @Override
+            public void handleResult(final Response response) {
+                call.complete(isFailure(response));
+            }
+        });
+    }
+
+    /**
+     * Returns a handler rendering the state and rates of the circuit breakers as JSON, by upstream key.
+     *
+     * @return a handler rendering the state and rates of the circuit breakers
+     */
+    public Handler getStateHandler() {
+        return new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                Map<String, Object> rendered = new TreeMap<>();
+                for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+                    rendered.put(entry.getKey(), entry.getValue().render());
+                }
+                Response response = new Response(Status.OK);
+                response.getEntity().setJson(rendered);
+                return Promises.newResultPromise(response);
+            }
+        };
+    }
+
+    /**
+     * Returns the circuit breaker of the given upstream.
+     *
+     * @param upstream
+     *         the upstream key
+     * @return the circuit breaker of the given upstream, or {@code null} if no request has been sent to it yet
+     */
+    CircuitBreaker getCircuitBreaker(final String upstream) {
+        return breakers.get(upstream);
+    }
+
+    private CircuitBreaker newCircuitBreaker() {
+        return new CircuitBreaker(time,
+                                  windowSize,
+                                  minimumCalls,
+                                  failureRateThreshold,
+                                  slowCallRateThreshold,
+                                  slowCallDuration,
+                                  openDuration,
+                                  halfOpenCalls);
+    }
+
+    private static boolean isFailure(final Response response) {
+        return response.getCause() != null || response.getStatus().getFamily() == Status.Family.SERVER_ERROR;
+    }
+
+    private static String defaultKey(final Request request) {
+        MutableUri uri = request.getUri();
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    }
+
+    /** Creates and initializes a circuit breaker filter in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private EndpointRegistry.Registration registration;
+
+        @Override
+        public Object create() throws HeapException {
+            CircuitBreakerFilter filter =
+                    new CircuitBreakerFilter(heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class),
+                                             config.get("key").as(expression(String.class)),
+                                             integer("windowSize", 100),
+                                             integer("minimumCalls", 20),
+                                             integer("failureRateThreshold", 50),
+                                             integer("slowCallRateThreshold", 100),
+                                             config.get("slowCallDuration")
+                                                   .as(evaluated())
+                                                   .defaultTo("5 seconds")
+                                                   .as(duration()),
+                                             config.get("openDuration")
+                                                   .as(evaluated())
+                                                   .defaultTo("30 seconds")
+                                                   .as(duration()),
+                                             integer("halfOpenCalls", 5));
+            registration = endpointRegistry().register("breakers", filter.getStateHandler());
+            return filter;
+        }
+
+        private int integer(final String name, final int defaultValue) {
+            return config.get(name).as(evaluated()).defaultTo(defaultValue).asInteger();
+        }
+
+        @Override
+        public void destroy() {
+            if (registration != null) {
+                registration.unregister();
+                registration = null;
+            }
+            super.destroy();
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.forgerock.openig.handler;
 
 import static java.lang.String.format;
+import static java.util.Arrays.asList;
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_CONNECT_TIMEOUT;
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_HOSTNAME_VERIFIER;
 import static org.forgerock.http.handler.HttpClientHandler.OPTION_KEY_MANAGERS;
@@ -34,12 +35,16 @@ import static org.forgerock.http.handler.HttpClientHandler.OPTION_TRUST_MANAGERS
 import static org.forgerock.json.JsonValueFunctions.duration;
 import static org.forgerock.json.JsonValueFunctions.enumConstant;
 import static org.forgerock.json.JsonValueFunctions.listOf;
+import static org.forgerock.openig.heap.Keys.SHARED_HTTP_CLIENTS_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.evaluated;
 import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 import static org.forgerock.util.Utils.closeSilently;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.TrustManager;
@@ -54,6 +59,9 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
 import org.forgerock.openig.heap.HeapException;
+import org.forgerock.openig.http.ConnectionPoolMetrics;
+import org.forgerock.openig.http.EndpointRegistry;
+import org.forgerock.openig.http2.Http2Client;
 import org.forgerock.services.context.Context;
 import org.forgerock.util.Options;
 import org.forgerock.util.promise.NeverThrowsException;
@@ -63,7 +71,8 @@ import org.forgerock.util.time.Duration;
 
 /**
  * Submits requests to remote servers. In this implementation, requests are
- * dispatched through a CHF {@link org.forgerock.http.spi.HttpClient}.
+ * dispatched through a CHF {@link org.forgerock.http.spi.HttpClient}, or through an {@link Http2Client} when the
+ * {@literal HTTP/2} protocol is selected.
  *
  *
  * <pre>
@@ -72,6 +81,8 @@ import org.forgerock.util.time.Duration;
  *     "name": "ClientHandler",
  *     "type": "ClientHandler",
  *     "config": {
+ *       "protocol": "HTTP/1.1",
+ *       "shared": true,
  *       "connections": 64,
  *       "disableReuseConnection": true,
  *       "disableRetries": true,
@@ -83,7 +94,10 @@ import org.forgerock.util.time.Duration;
  *       "keyManager": [ "RefToKeyManager", ... ],
  *       "trustManager": [ "RefToTrustManager", ... ],
  *       "sslEnabledProtocols": [ "SSLv2", ... ],
- *       "sslCipherSuites": [ "TLS_DH_anon_WITH_AES_256_CBC_SHA256", ... ]
+ *       "sslCipherSuites": [ "TLS_DH_anon_WITH_AES_256_CBC_SHA256", ... ],
+ *       "maxConcurrentStreams": 100,
+ *       "initialWindowSize": 1048576,
+ *       "passThrough": false
  *     }
  *   }
  *   }
@@ -134,6 +148,30 @@ import org.forgerock.util.time.Duration;
  * <a href="http://docs.oracle.com/javase/7/docs/technotes/guides/security/StandardNames.html#ciphersuites">
  * cipher suite names</a> used by the SSL connection.
  *
+ * <p>The {@literal protocol} optional attribute selects the protocol spoken to the remote servers:
+ * {@literal HTTP/1.1} (the default) or {@literal HTTP/2} (case is not important). With {@literal HTTP/2},
+ * {@literal http} URIs are requested over clear-text connections with prior knowledge, and {@literal https} URIs
+ * over TLS connections negotiated with ALPN; {@literal connections} is then the maximum number of connections per
+ * server (defaults to 2), each one multiplexing up to {@literal maxConcurrentStreams} requests (defaults to 100),
+ * and {@literal initialWindowSize} is the flow-control receive window of the connections and of each stream, in
+ * bytes (defaults to 1 MiB). The {@literal disableReuseConnection} and {@literal disableRetries} attributes are
+ * ignored, and the connection and stream metrics are exposed at the {@literal http2} endpoint of the handler. When
+ * {@literal passThrough} is {@code true} (defaults to {@code false}, ignored with {@literal HTTP/1.1}), the response
+ * entities are handed through without ever being buffered in the temporary storage: this is for routes whose filters
+ * do not read the response entities, as they cannot be read more than once.
+ *
+ * <p>The per-host connection pool metrics (leased and pending connections, saturation, connection acquisition
+ * times) are exposed at the {@literal pool} endpoint of the handler, see {@link ConnectionPoolMetrics}. With
+ * {@literal HTTP/1.1}, the pool of the underlying client is not observable: the metrics are estimated from the
+ * per-host connection limit ({@literal connections}) and flagged as such, without connection counts nor connect times.
+ * A modelled connection is held from the request until its response is received, the time spent streaming the
+ * response entity is not accounted for.
+ *
+ * <p>The {@literal shared} optional attribute (defaults to {@literal true}) lets the client handlers configured with
+ * the same attributes and referencing the same key managers, trust managers and temporary storage share their HTTP
+ * client (connection pool and worker threads), whatever the route declaring them. The shared client is closed when
+ * the last client handler using it is destroyed. See {@link SharedHttpClients}.
+ *
  * @see Duration
  * @see org.forgerock.openig.security.KeyManagerHeaplet
  * @see org.forgerock.openig.security.TrustManagerHeaplet
@@ -168,15 +206,46 @@ public class ClientHandler extends GenericHeapObject implements Handler {
     /** Creates and initializes a client handler in a heap environment. */
     public static class Heaplet extends GenericHeaplet {
 
-        private HttpClientHandler httpClientHandler;
+        private Transport transport;
+        private SharedHttpClients sharedClients;
+        private final List<EndpointRegistry.Registration> registrations = new ArrayList<>();
 
         @Override
         public Object create() throws HeapException {
             final Options options = Options.defaultOptions();
             final JsonValue evaluated = config.as(evaluated());
 
+            final String protocol = evaluated.get("protocol").defaultTo("HTTP/1.1").asString();
+            final boolean http2;
+            switch (protocol.toUpperCase(Locale.ROOT)) {
+            case "HTTP/1.1":
+                http2 = false;
+                break;
+            case "HTTP/2":
+                http2 = true;
+                break;
+            default:
+                throw new HeapException(format("%s: unsupported protocol '%s' (expecting 'HTTP/1.1' or 'HTTP/2')",
+                                               name,
+                                               protocol));
+            }
+
             if (evaluated.isDefined("connections")) {
-                options.set(OPTION_MAX_CONNECTIONS, evaluated.get("connections").asInteger());
+                options.set(http2 ? Http2Client.OPTION_MAX_CONNECTIONS : OPTION_MAX_CONNECTIONS,
+                            evaluated.get("connections").asInteger());
+            }
+
+            if (evaluated.isDefined("maxConcurrentStreams")) {
+                options.set(Http2Client.OPTION_MAX_CONCURRENT_STREAMS,
+                            evaluated.get("maxConcurrentStreams").asInteger());
+            }
+
+            if (evaluated.isDefined("initialWindowSize")) {
+                options.set(Http2Client.OPTION_INITIAL_WINDOW_SIZE, evaluated.get("initialWindowSize").asInteger());
+            }
+
+            if (evaluated.isDefined("passThrough")) {
+                options.set(Http2Client.OPTION_PASS_THROUGH, evaluated.get("passThrough").asBoolean());
             }
 
             if (evaluated.isDefined("disableReuseConnection")) {
@@ -220,9 +289,11 @@ public class ClientHandler extends GenericHeapObject implements Handler {
                             evaluated.get("numberOfWorkers").asInteger());
             }
 
+            final KeyManager[] keyManagers = getKeyManagers();
+            final TrustManager[] trustManagers = getTrustManagers();
             options.set(OPTION_TEMPORARY_STORAGE, storage);
-            options.set(OPTION_KEY_MANAGERS, getKeyManagers());
-            options.set(OPTION_TRUST_MANAGERS, getTrustManagers());
+            options.set(OPTION_KEY_MANAGERS, keyManagers);
+            options.set(OPTION_TRUST_MANAGERS, trustManagers);
 
             if (evaluated.isDefined("httpClient")) {
                 String message = format("%s no longer uses a 'httpClient' attribute. All former 'HttpClient' "
@@ -231,18 +302,57 @@ public class ClientHandler extends GenericHeapObject implements Handler {
                 logger.warning(message);
             }
 
+            if (evaluated.get("shared").defaultTo(true).asBoolean()) {
+                sharedClients = heap.get(SHARED_HTTP_CLIENTS_HEAP_KEY, SharedHttpClients.class);
+            }
             try {
-                httpClientHandler = new HttpClientHandler(options);
-                return new ClientHandler(httpClientHandler);
+                if (sharedClients != null) {
+                    Object key = transportKey(evaluated, http2, keyManagers, trustManagers);
+                    transport = sharedClients.acquire(key, options, http2);
+                } else {
+                    transport = Transport.newTransport(options, http2);
+                }
             } catch (final HttpApplicationException e) {
                 throw new HeapException(format("Cannot build ClientHandler named '%s'", name), e);
             }
+
+            if (transport.getHttp2Metrics() != null) {
+                registrations.add(endpointRegistry().register("http2", transport.getHttp2Metrics()));
+            }
+            registrations.add(endpointRegistry().register("pool", transport.getPoolMetrics()));
+            return new ClientHandler(transport.getHandler());
+        }
+
+        /**
+         * Builds the key identifying the transport options: the attributes of the configuration, and the
+         * (resolved) heap objects it references.
+         */
+        private Object transportKey(final JsonValue evaluated,
+                                    final boolean http2,
+                                    final KeyManager[] keyManagers,
+                                    final TrustManager[] trustManagers) {
+            Map<String, Object> attributes = new TreeMap<>(evaluated.asMap());
+            attributes.keySet().removeAll(asList("protocol", "shared", "httpClient",
+                                                 "keyManager", "trustManager", "temporaryStorage"));
+            return asList(attributes,
+                          http2,
+                          keyManagers == null ? null : asList(keyManagers),
+                          trustManagers == null ? null : asList(trustManagers),
+                          storage);
         }
 
         @Override
         public void destroy() {
-            if (httpClientHandler != null) {
-                closeSilently(httpClientHandler);
+            for (EndpointRegistry.Registration registration : registrations) {
+                registration.unregister();
+            }
+            registrations.clear();
+            if (transport != null) {
+                if (sharedClients != null) {
+                    sharedClients.release(transport);
+                } else {
+                    closeSilently(transport);
+                }
             }
             super.destroy();
         }
@@ -32,7 +32,7 @@ import org.forgerock.http.protocol.Request;
 import org.forgerock.http.protocol.Response;
 import org.forgerock.http.protocol.Responses;
 import org.forgerock.json.JsonValue;
-import org.forgerock.openig.el.Bindings;
+import org.forgerock.openig.el.ConditionTable;
 import org.forgerock.openig.el.Expression;
 import org.forgerock.openig.heap.GenericHeapObject;
 import org.forgerock.openig.heap.GenericHeaplet;
@@ -50,12 +50,18 @@ import org.forgerock.util.promise.Promises;
  * If no condition yields {@code true} then the handler will return a {@literal 404} not found response.
  * Therefore, it's advisable to have a single "default" handler at the end of the list
  * with no condition (unconditional) to handle otherwise un-dispatched requests.
+ * <p>
+ * Simple conditions (request method, host, path or path prefix, header value) are compiled into lookup tables, so
+ * that a large number of bindings does not imply as many expression evaluations: see {@link ConditionTable}.
  */
 public class DispatchHandler extends GenericHeapObject implements Handler {
 
     /** Expressions to evaluate against request and context, bound to handlers to dispatch to. */
     private final List<Binding> bindings = new ArrayList<>();
 
+    /** Compiled form of the bindings, {@code null} when they have changed since last compiled. */
+    private volatile ConditionTable<Binding> table;
+
     /**
      * Binds an expression to the current handler to dispatch to.
      *
@@ -71,6 +77,7 @@ public class DispatchHandler extends GenericHeapObject implements Handler {
      */
     public DispatchHandler addBinding(Expression<Boolean> condition, Handler handler, URI baseURI) {
         bindings.add(new Binding(condition, handler, baseURI));
+        table = null;
         return this;
     }
 
@@ -86,24 +93,36 @@ public class DispatchHandler extends GenericHeapObject implements Handler {
      */
     public DispatchHandler addUnconditionalBinding(Handler handler, URI baseURI) {
         bindings.add(new Binding(null, handler, baseURI));
+        table = null;
         return this;
     }
 
     @Override
     public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
-        for (Binding binding : bindings) {
-            if (binding.condition == null
-                    || Boolean.TRUE.equals(binding.condition.eval(Bindings.bindings(context, request)))) {
-                if (binding.baseURI != null) {
-                    request.getUri().rebase(binding.baseURI);
-                }
-                return binding.handler.handle(context, request);
+        Binding binding = table().lookup(context, request, null);
+        if (binding != null) {
+            if (binding.baseURI != null) {
+                request.getUri().rebase(binding.baseURI);
             }
+            return binding.handler.handle(context, request);
         }
         logger.error("no handler to dispatch to");
         return Promises.newResultPromise(Responses.newNotFound());
     }
 
+    private ConditionTable<Binding> table() {
+        ConditionTable<Binding> compiled = table;
+        if (compiled == null) {
+            ConditionTable.Builder<Binding> builder = ConditionTable.builder();
+            for (Binding binding : bindings) {
+                builder.add(binding.condition, binding);
+            }
+            compiled = builder.build();
+            table = compiled;
+        }
+        return compiled;
+    }
+
     /** Binds an expression with a handler to dispatch to. */
     private static class Binding {
 
@@ -150,6 +169,8 @@ public class DispatchHandler extends GenericHeapObject implements Handler {
                 final URI uri = jv.get("baseURI").as(evaluated()).as(uri());
                 dispatchHandler.addBinding(expression, handler, uri);
             }
+            // Compile the conditions now rather than on the first request
+            dispatchHandler.table();
             return dispatchHandler;
         }
     }
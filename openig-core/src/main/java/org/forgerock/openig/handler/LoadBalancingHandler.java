@@ -0,0 +1,558 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.json.JsonValueFunctions.enumConstant;
+import static org.forgerock.json.JsonValueFunctions.uri;
+import static org.forgerock.openig.heap.Keys.CLIENT_HANDLER_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.evaluated;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+
+/**
+ * Distributes requests across a pool of backends sharing the same application, by rebasing each request on the base
+ * URI of the selected backend before giving it to a handler (typically a {@link ClientHandler}).
+ * <p>
+ * A backend is selected among the available ones with one of these policies:
+ * <ul>
+ *     <li>{@literal ROUND_ROBIN}: each backend in turn,</li>
+ *     <li>{@literal LEAST_OUTSTANDING}: the backend with the fewest requests in progress,</li>
+ *     <li>{@literal POWER_OF_TWO_CHOICES}: the backend with the fewest requests in progress of two backends picked
+ *     at random, which steers away from slow backends almost as well as {@literal LEAST_OUTSTANDING} while
+ *     avoiding that all the concurrent selections go to the same backend.</li>
+ * </ul>
+ * <p>
+ * A backend is unavailable while:
+ * <ul>
+ *     <li>its active health check fails: the {@literal healthCheck} path is requested periodically, a backend
+ *     becomes unhealthy after {@literal unhealthyThreshold} consecutive failed probes (not {@literal 2xx} nor
+ *     {@literal 3xx}, or not answered within the timeout), and healthy again after {@literal healthyThreshold}
+ *     consecutive successful probes,</li>
+ *     <li>or it is ejected as an outlier: after {@literal consecutiveFailures} consecutive failed requests
+ *     ({@literal 5xx} responses, or responses with a cause such as a connection failure), a backend is ejected for
+ *     {@literal ejectionTime}, unless {@literal maxEjectionPercent} of the backends are already ejected.</li>
+ * </ul>
+ * When a backend becomes available again, it receives a growing share of the requests during the {@literal slowStart}
+ * period, to let it warm up. When no backend is available, a {@literal 503 Service Unavailable} response is returned.
+ *
+ * <pre>
+ * {@code
+ * {
+ *   "baseUris"                    : [ expression ],       [REQUIRED - the base URIs of the backends ]
+ *   "handler"                     : handler reference,    [OPTIONAL - defaults to ClientHandler ]
+ *   "policy"                      : string,               [OPTIONAL - ROUND_ROBIN, LEAST_OUTSTANDING or
+ *                                                                     POWER_OF_TWO_CHOICES, defaults to
+ *                                                                     ROUND_ROBIN ]
+ *   "healthCheck"                 : {                     [OPTIONAL - no active health check by default ]
+ *       "path"                    : expression,           [REQUIRED - the path probed on each backend ]
+ *       "interval"                : duration,             [OPTIONAL - defaults to 10 seconds ]
+ *       "timeout"                 : duration,             [OPTIONAL - defaults to 2 seconds ]
+ *       "healthyThreshold"        : number,               [OPTIONAL - defaults to 2 ]
+ *       "unhealthyThreshold"      : number                [OPTIONAL - defaults to 3 ]
+ *   },
+ *   "outlierDetection"            : {                     [OPTIONAL - no outlier ejection by default ]
+ *       "consecutiveFailures"     : number,               [OPTIONAL - defaults to 5 ]
+ *       "ejectionTime"            : duration,             [OPTIONAL - defaults to 30 seconds ]
+ *       "maxEjectionPercent"      : number                [OPTIONAL - defaults to 50 ]
+ *   },
+ *   "slowStart"                   : duration,             [OPTIONAL - defaults to zero, no slow start ]
+ *   "executor"                    : executor reference    [OPTIONAL - the scheduled executor running the health
+ *                                                                     checks, defaults to ScheduledExecutorService ]
+ * }
+ * }
+ * </pre>
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ * {
+ *     "type": "LoadBalancingHandler",
+ *     "config": {
+ *         "baseUris": [ "http://app1.internal:8080", "http://app2.internal:8080", "http://app3.internal:8080" ],
+ *         "policy": "POWER_OF_TWO_CHOICES",
+ *         "healthCheck": { "path": "/health", "interval": "5 seconds" },
+ *         "outlierDetection": { "consecutiveFailures": 3 },
+ *         "slowStart": "30 seconds"
+ *     }
+ * }
+ * }
+ * </pre>
+ */
+public class LoadBalancingHandler extends GenericHeapObject implements Handler {
+
+    /** The policies selecting a backend among the available ones. */
+    public enum Policy {
+        /** Each backend in turn. */
+        ROUND_ROBIN,
+        /** The backend with the fewest requests in progress. */
+        LEAST_OUTSTANDING,
+        /** The backend with the fewest requests in progress of two backends picked at random. */
+        POWER_OF_TWO_CHOICES
+    }
+
+    /** The smallest share of requests given to a backend that has just become available, during its slow start. */
+    private static final double MIN_SLOW_START_WEIGHT = 0.1;
+
+    private final List<Backend> backends = new ArrayList<>();
+    private final Handler handler;
+    private final Policy policy;
+    private final TimeService time;
+    private final AtomicLong turn = new AtomicLong();
+
+    private int consecutiveFailures;
+    private long ejectionTime;
+    private int maxEjectionPercent;
+    private long slowStart;
+
+    private String healthCheckPath;
+    private long healthCheckTimeout;
+    private int healthyThreshold;
+    private int unhealthyThreshold;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Builds a new load balancing handler, without any backend, outlier detection, health check nor slow start.
+     *
+     * @param handler
+     *         the handler sending the requests, once rebased on the selected backend
+     * @param policy
+     *         the policy selecting a backend among the available ones
+     * @param time
+     *         the time service, used for the outlier ejections and the slow starts
+     */
+    public LoadBalancingHandler(final Handler handler, final Policy policy, final TimeService time) {
+        this.handler = handler;
+        this.policy = policy;
+        this.time = time;
+    }
+
+    /**
+     * Adds a backend.
+     *
+     * @param baseUri
+     *         the base URI of the backend: only its scheme, host and port are used
+     * @return this handler
+     */
+    public LoadBalancingHandler addBackend(final URI baseUri) {
+        backends.add(new Backend(baseUri));
+        return this;
+    }
+
+    /**
+     * Enables the passive outlier detection.
+     *
+     * @param consecutiveFailures
+     *         the number of consecutive failed requests after which a backend is ejected
+     * @param ejectionTime
+     *         how long a backend is ejected
+     * @param maxEjectionPercent
+     *         the largest percentage of the backends that can be ejected at the same time
+     * @return this handler
+     */
+    public LoadBalancingHandler setOutlierDetection(final int consecutiveFailures,
+                                                    final Duration ejectionTime,
+                                                    final int maxEjectionPercent) {
+        if (consecutiveFailures <= 0 || maxEjectionPercent < 0 || maxEjectionPercent > 100) {
+            throw new IllegalArgumentException("Expecting a positive number of failures and a percentage");
+        }
+        this.consecutiveFailures = consecutiveFailures;
+        this.ejectionTime = ejectionTime.to(MILLISECONDS);
+        this.maxEjectionPercent = maxEjectionPercent;
+        return this;
+    }
+
+    /**
+     * Sets the period during which a backend that has become available again receives a growing share of the
+     * requests.
+     *
+     * @param slowStart
+     *         the slow start period, {@link Duration#ZERO} to disable slow starts
+     * @return this handler
+     */
+    public LoadBalancingHandler setSlowStart(final Duration slowStart) {
+        this.slowStart = slowStart.to(MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Enables the active health checks, that are performed on each call to {@link #checkHealth()}.
+     *
+     * @param path
+     *         the path of the resource probed on each backend
+     * @param timeout
+     *         how long to wait for the response to a probe
+     * @param healthyThreshold
+     *         the number of consecutive successful probes for an unhealthy backend to become healthy
+     * @param unhealthyThreshold
+     *         the number of consecutive failed probes for a healthy backend to become unhealthy
+     * @param scheduler
+     *         the executor enforcing the timeout of the probes
+     * @return this handler
+     */
+    public LoadBalancingHandler setHealthCheck(final String path,
+                                               final Duration timeout,
+                                               final int healthyThreshold,
+                                               final int unhealthyThreshold,
+                                               final ScheduledExecutorService scheduler) {
+        if (healthyThreshold <= 0 || unhealthyThreshold <= 0) {
+            throw new IllegalArgumentException("The health check thresholds must be positive");
+        }
+        this.healthCheckPath = path.startsWith("/") ? path : "/" + path;
+        this.healthCheckTimeout = timeout.to(MILLISECONDS);
+        this.healthyThreshold = healthyThreshold;
+        this.unhealthyThreshold = unhealthyThreshold;
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        final long now = time.now();
+        final Backend backend = select(now);
+        if (backend == null) {
+            logger.error("No backend available");
+            return Response.newResponsePromise(new Response(Status.SERVICE_UNAVAILABLE));
+        }
+        backend.outstanding.incrementAndGet();
+        request.getUri().rebase(backend.baseUri);
+        return handler.handle(context, request)
+                      .thenOnResult(new ResultHandler<Response>() {
+                          @Override
+                          public void handleResult(final Response response) {
+                              outcome(backend, isFailure(response));
+                          }
+                      })
+                      .thenAlways(new Runnable() {
+                          @Override
+                          public void run() {
+                              backend.outstanding.decrementAndGet();
+                          }
+                      });
+    }
+
+    /** Returns the selected backend, or {@code null} if none is available. */
+    private Backend select(final long now) {
+        List<Backend> available = new ArrayList<>(backends.size());
+        for (Backend backend : backends) {
+            if (backend.isAvailable(now)) {
+                available.add(backend);
+            }
+        }
+        if (available.isEmpty()) {
+            return null;
+        }
+        Random random = ThreadLocalRandom.current();
+        switch (policy) {
+        case LEAST_OUTSTANDING:
+            Backend least = null;
+            for (Backend backend : available) {
+                if (least == null || backend.load(now) < least.load(now)) {
+                    least = backend;
+                }
+            }
+            return least;
+        case POWER_OF_TWO_CHOICES:
+            if (available.size() == 1) {
+                return available.get(0);
+            }
+            int first = random.nextInt(available.size());
+            int second = random.nextInt(available.size() - 1);
+            Backend one = available.get(first);
+            Backend other = available.get(second >= first ? second + 1 : second);
+            return other.load(now) < one.load(now) ? other : one;
+        default:
+            // A backend in slow start skips its turn in proportion to its warm-up
+            for (int i = 0; i < available.size(); i++) {
+                Backend backend = available.get((int) (turn.getAndIncrement() % available.size()));
+                if (random.nextDouble() < backend.weight(now)) {
+                    return backend;
+                }
+            }
+            return available.get((int) (turn.getAndIncrement() % available.size()));
+        }
+    }
+
+    private static boolean isFailure(final Response response) {
+        return response.getCause() != null
+                || (response.getStatus() != null && response.getStatus().getFamily() == Status.Family.SERVER_ERROR);
+    }
+
+    /** Records the outcome of a request, ejecting the backend if it is an outlier. */
+    private void outcome(final Backend backend, final boolean failure) {
+        if (consecutiveFailures == 0) {
+            return;
+        }
+        if (!failure) {
+            backend.failures.set(0);
+            return;
+        }
+        if (backend.failures.incrementAndGet() >= consecutiveFailures) {
+            synchronized (backends) {
+                long now = time.now();
+                if (!backend.isEjected(now) && canEject(now)) {
+                    logger.warning("Ejecting backend " + backend.baseUri + " after " + backend.failures.get()
+                                           + " consecutive failures");
+                    backend.ejectedUntil = now + ejectionTime;
+                    backend.availableSince = backend.ejectedUntil;
+                    backend.failures.set(0);
+                }
+            }
+        }
+    }
+
+    private boolean canEject(final long now) {
+        int ejected = 0;
+        for (Backend backend : backends) {
+            if (backend.isEjected(now)) {
+                ejected++;
+            }
+        }
+        return (ejected + 1) * 100 <= maxEjectionPercent * backends.size();
+    }
+
+    /**
+     * Probes all the backends, if the active health checks are enabled. The health of each backend is updated when
+     * its probe completes.
+     */
+    public void checkHealth() {
+        if (healthCheckPath == null) {
+            return;
+        }
+        for (final Backend backend : backends) {
+            if (!backend.probing.compareAndSet(false, true)) {
+                // The previous probe is still in progress
+                continue;
+            }
+            final Request probe = new Request();
+            probe.setMethod("GET");
+            probe.setUri(backend.baseUri.resolve(healthCheckPath));
+            final Promise<Response, NeverThrowsException> promise = handler.handle(new RootContext(), probe);
+            final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (backend.probed(false)) {
+                        promise.cancel(true);
+                    }
+                }
+            }, healthCheckTimeout, MILLISECONDS);
+            promise.thenOnResult(new ResultHandler<Response>() {
+                @Override
+                public void handleResult(final Response response) {
+                    timeout.cancel(false);
+                    Status status = response.getStatus();
+                    backend.probed(response.getCause() == null
+                                           && status != null
+                                           && (status.isSuccessful()
+                                                   || status.getFamily() == Status.Family.REDIRECTION));
+                    closeSilently(response);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the base URIs of the backends that are currently available.
+     *
+     * @return the base URIs of the backends that are currently available
+     */
+    public List<URI> getAvailableBackends() {
+        long now = time.now();
+        List<URI> available = new ArrayList<>();
+        for (Backend backend : backends) {
+            if (backend.isAvailable(now)) {
+                available.add(backend.baseUri);
+            }
+        }
+        return Collections.unmodifiableList(available);
+    }
+
+    /** The state of a backend. */
+    private final class Backend {
+        private final URI baseUri;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        // Guarded by the backends list
+        private volatile long ejectedUntil;
+        // When the backend became available (again), for its slow start
+        private volatile long availableSince;
+
+        private volatile boolean healthy = true;
+        // Guarded by this backend
+        private int consecutiveProbes;
+
+        Backend(final URI baseUri) {
+            this.baseUri = baseUri;
+        }
+
+        boolean isEjected(final long now) {
+            return now < ejectedUntil;
+        }
+
+        boolean isAvailable(final long now) {
+            return healthy && !isEjected(now);
+        }
+
+        /** Returns the share of requests this backend receives, during its slow start. */
+        double weight(final long now) {
+            long warming = now - availableSince;
+            if (slowStart <= 0 || warming >= slowStart) {
+                return 1.0;
+            }
+            return Math.max(MIN_SLOW_START_WEIGHT, (double) warming / slowStart);
+        }
+
+        /** Returns the requests in progress, weighted by the slow start. */
+        double load(final long now) {
+            return (outstanding.get() + 1) / weight(now);
+        }
+
+        /**
+         * Records the outcome of a probe.
+         *
+         * @return {@code false} if the probe had already completed (timed out, or answered)
+         */
+        boolean probed(final boolean success) {
+            if (!probing.compareAndSet(true, false)) {
+                return false;
+            }
+            synchronized (this) {
+                if (success == healthy) {
+                    consecutiveProbes = 0;
+                    return true;
+                }
+                consecutiveProbes++;
+                if (consecutiveProbes >= (healthy ? unhealthyThreshold : healthyThreshold)) {
+                    healthy = success;
+                    consecutiveProbes = 0;
+                    if (healthy) {
+                        availableSince = time.now();
+                        logger.info("Backend " + baseUri + " is healthy");
+                    } else {
+                        logger.warning("Backend " + baseUri + " is unhealthy");
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Creates and initializes a load balancing handler in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+
+        private LoadBalancingHandler balancer;
+        private ScheduledExecutorService scheduler;
+        private Duration interval;
+        private ScheduledFuture<?> healthChecks;
+
+        @Override
+        public Object create() throws HeapException {
+            JsonValue baseUris = config.get("baseUris").required().expect(List.class);
+            if (baseUris.size() == 0) {
+                throw new JsonValueException(baseUris, "At least one backend is required");
+            }
+            balancer = new LoadBalancingHandler(config.get("handler")
+                                                      .defaultTo(CLIENT_HANDLER_HEAP_KEY)
+                                                      .as(requiredHeapObject(heap, Handler.class)),
+                                                config.get("policy")
+                                                      .as(evaluated())
+                                                      .defaultTo(Policy.ROUND_ROBIN.name())
+                                                      .as(enumConstant(Policy.class)),
+                                                heap.get(TIME_SERVICE_HEAP_KEY, TimeService.class));
+            for (JsonValue baseUri : baseUris) {
+                balancer.addBackend(baseUri.as(evaluated()).required().as(uri()));
+            }
+
+            JsonValue outliers = config.get("outlierDetection").as(evaluated());
+            if (outliers.isNotNull()) {
+                balancer.setOutlierDetection(outliers.get("consecutiveFailures").defaultTo(5).asInteger(),
+                                             outliers.get("ejectionTime").defaultTo("30 seconds").as(duration()),
+                                             outliers.get("maxEjectionPercent").defaultTo(50).asInteger());
+            }
+            balancer.setSlowStart(config.get("slowStart").as(evaluated()).defaultTo("zero").as(duration()));
+
+            JsonValue healthCheck = config.get("healthCheck").as(evaluated());
+            if (healthCheck.isNotNull()) {
+                scheduler = config.get("executor")
+                                  .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                  .as(requiredHeapObject(heap, ScheduledExecutorService.class));
+                interval = healthCheck.get("interval").defaultTo("10 seconds").as(duration());
+                balancer.setHealthCheck(healthCheck.get("path").required().asString(),
+                                        healthCheck.get("timeout").defaultTo("2 seconds").as(duration()),
+                                        healthCheck.get("healthyThreshold").defaultTo(2).asInteger(),
+                                        healthCheck.get("unhealthyThreshold").defaultTo(3).asInteger(),
+                                        scheduler);
+            }
+            return balancer;
+        }
+
+        @Override
+        public void start() throws HeapException {
+            if (scheduler != null) {
+                long period = interval.to(MILLISECONDS);
+                healthChecks = scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        balancer.checkHealth();
+                    }
+                }, 0L, period, MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void destroy() {
+            if (healthChecks != null) {
+                healthChecks.cancel(false);
+            }
+            super.destroy();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.MutableUri;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openig.http.ConnectionPoolMetrics;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Feeds {@link ConnectionPoolMetrics} for an HTTP/1.1 client whose connection pool cannot be observed directly.
+ * <p>
+ * The pool is modelled from its per-host connection limit: a request is leasing a connection as long as fewer than
+ * {@code maxConnections} requests to the same host are in flight, and otherwise waits (in FIFO order) for the next
+ * in-flight request to that host to release its connection. A connection is released once the response promise
+ * completes: the response entity is not wrapped, so that a response dropped without being closed cannot hold a
+ * modelled connection forever. When the client streams entities, the time spent reading them is not modelled, and
+ * the acquisition times are lower bounds. They are also only accurate as long as the pool limit is reached per host
+ * rather than globally: the metrics are flagged as {@literal estimated}, and the connection counts and connect times
+ * are not reported.
+ */
+final class PoolMonitoringHandler implements Handler {
+
+    private final Handler delegate;
+    private final ConnectionPoolMetrics metrics;
+    private final int maxConnections;
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+
+    PoolMonitoringHandler(final Handler delegate, final ConnectionPoolMetrics metrics, final int maxConnections) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.maxConnections = maxConnections;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        final Route route = route(request.getUri());
+        final Lease lease = route.lease();
+        return delegate.handle(context, request)
+                       .thenAlways(new Runnable() {
+                           @Override
+                           public void run() {
+                               route.release(lease);
+                           }
+                       });
+    }
+
+    private Route route(final MutableUri uri) {
+        String scheme = (uri.getScheme() == null) ? "http" : uri.getScheme().toLowerCase(Locale.ROOT);
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        String key = scheme + "://" + uri.getHost() + ":" + port;
+        Route route = routes.get(key);
+        if (route == null) {
+            Route created = new Route(metrics.host(key));
+            route = routes.putIfAbsent(key, created);
+            if (route == null) {
+                route = created;
+            }
+        }
+        return route;
+    }
+
+    /** A request to a host, that holds a connection once {@link #acquired} is set. */
+    private static final class Lease {
+        private final long started = System.nanoTime();
+        private boolean acquired;
+        private boolean released;
+    }
+
+    /** The modelled state of the connections to a single host. */
+    private final class Route {
+        private final ConnectionPoolMetrics.Host host;
+
+        // Guarded by this route
+        private final ArrayDeque<Lease> waiting = new ArrayDeque<>();
+        private int leased;
+
+        Route(final ConnectionPoolMetrics.Host host) {
+            this.host = host;
+        }
+
+        synchronized Lease lease() {
+            Lease lease = new Lease();
+            if (leased < maxConnections) {
+                leased++;
+                lease.acquired = true;
+                host.acquired(0L, false);
+            } else {
+                waiting.add(lease);
+                host.waiting();
+            }
+            return lease;
+        }
+
+        synchronized void release(final Lease lease) {
+            if (lease.released) {
+                return;
+            }
+            lease.released = true;
+            if (!lease.acquired) {
+                // Completed sooner than modelled: its actual acquisition time is unknown
+                waiting.remove(lease);
+                host.abandoned();
+                return;
+            }
+            host.released();
+            Lease next = waiting.poll();
+            if (next == null) {
+                leased--;
+                return;
+            }
+            // The connection is handed over to the oldest waiting request
+            next.acquired = true;
+            host.acquired(NANOSECONDS.toMicros(System.nanoTime() - next.started), true);
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static org.forgerock.http.protocol.Responses.newInternalServerError;
+import static org.forgerock.json.JsonValueFunctions.duration;
+import static org.forgerock.openig.el.Bindings.bindings;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.util.JsonValues.evaluated;
+import static org.forgerock.openig.util.JsonValues.expression;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
+import static org.forgerock.openig.util.Requests.copyOf;
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.heap.GenericHeapObject;
+import org.forgerock.openig.heap.GenericHeaplet;
+import org.forgerock.openig.heap.HeapException;
+import org.forgerock.services.context.AttributesContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.ResultHandler;
+import org.forgerock.util.time.Duration;
+
+/**
+ * Dispatches a request to several handlers concurrently, gathers their responses and merges them into a single
+ * response. Where a {@link SequenceHandler} costs the sum of its handlers' latencies, a scatter-gather handler costs
+ * the latency of its slowest awaited branch.
+ * <p>
+ * Each branch handles its own copy of the request: the request entity, if any, is read in memory before the
+ * branches are called, so that they can read it concurrently. The responses are gathered until the quorum is
+ * reached: a given number of successful ({@literal 2xx}) responses, {@literal ALL} of them, or only the
+ * {@literal FIRST} one. The branches still in progress at that time are cancelled. A branch that does not respond
+ * within its timeout is given a {@literal 504 Gateway Timeout} response and cancelled. When the quorum cannot be
+ * reached anymore, a {@literal 502 Bad Gateway} response is returned.
+ * <p>
+ * The gathered responses, keyed by branch name (only the branches that have completed are present), are then merged
+ * either:
+ * <ul>
+ *     <li>by evaluating the {@literal merge} expression, the {@literal responses} binding giving access to the
+ *     gathered responses; the result becomes the entity of a {@literal 200 OK} response (maps and lists are
+ *     serialized as JSON), unless it is a response itself,</li>
+ *     <li>or by the {@literal mergeHandler} (for instance a {@link ScriptableHandler}), the gathered responses being
+ *     exposed in the {@literal responses} request attribute,</li>
+ *     <li>or, by default, by returning the first successful response.</li>
+ * </ul>
+ * <p>
+ * Branch handlers are expected to be asynchronous (as the {@link ClientHandler} is): they are all called from the
+ * calling thread.
+ *
+ * <pre>
+ * {@code
+ * {
+ *     "type": "ScatterGatherHandler",
+ *     "config": {
+ *         "branches": [
+ *             { "name": "profile", "handler": "ProfileService", "timeout": "2 seconds" },
+ *             { "name": "orders", "handler": "OrderService" }
+ *         ],
+ *         "quorum": "ALL",
+ *         "timeout": "5 seconds",
+ *         "merge": "${{ 'profile': responses.profile.entity.json, 'orders': responses.orders.entity.json }}"
+ *     }
+ * }
+ * }
+ * </pre>
+ */
+public class ScatterGatherHandler extends GenericHeapObject implements Handler {
+
+    /** Name of the binding (and request attribute) exposing the gathered responses. */
+    public static final String RESPONSES = "responses";
+
+    private final List<Branch> branches = new ArrayList<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    /** Number of successful responses to gather, {@code -1} to wait for all the branches. */
+    private final int quorum;
+
+    private Expression<?> merge;
+
+    private Handler mergeHandler;
+
+    /**
+     * Builds a new scatter-gather handler, without any branch.
+     *
+     * @param quorum
+     *         the number of successful responses to gather, {@code -1} to gather the responses of all the branches
+     * @param scheduler
+     *         the executor used to enforce the branches' timeouts
+     */
+    public ScatterGatherHandler(final int quorum, final ScheduledExecutorService scheduler) {
+        if (quorum == 0 || quorum < -1) {
+            throw new IllegalArgumentException("The quorum must be positive (or -1 for all the branches)");
+        }
+        this.quorum = quorum;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds a branch.
+     *
+     * @param name
+     *         the name of the branch, its response is gathered under that name
+     * @param handler
+     *         the handler of the branch
+     * @param timeout
+     *         the maximum duration of the branch ({@link Duration#UNLIMITED} for none)
+     * @return this handler
+     */
+    public ScatterGatherHandler addBranch(final String name, final Handler handler, final Duration timeout) {
+        branches.add(new Branch(name, handler, timeout));
+        return this;
+    }
+
+    /**
+     * Sets the expression merging the gathered responses.
+     *
+     * @param merge
+     *         the expression merging the gathered responses, evaluated with a {@literal responses} binding
+     */
+    public void setMerge(final Expression<?> merge) {
+        this.merge = merge;
+    }
+
+    /**
+     * Sets the handler merging the gathered responses.
+     *
+     * @param mergeHandler
+     *         the handler merging the gathered responses, exposed in the {@literal responses} request attribute
+     */
+    public void setMergeHandler(final Handler mergeHandler) {
+        this.mergeHandler = mergeHandler;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        Gathering gathering = new Gathering(context, request);
+        gathering.scatter();
+        return gathering.result;
+    }
+
+    /** The state of the scatter-gather of one request. */
+    private final class Gathering {
+        private final Context context;
+        private final Request request;
+        private final PromiseImpl<Response, NeverThrowsException> result = PromiseImpl.create();
+        private final int required = quorum == -1 ? branches.size() : quorum;
+
+        /** Gathered responses, in completion order (guarded by this). */
+        private final Map<String, Response> responses = new LinkedHashMap<>();
+        /** Calls in progress (guarded by this). */
+        private final List<Call> calls = new ArrayList<>();
+        private int successes;
+        private int failures;
+        private boolean gathered;
+
+        Gathering(final Context context, final Request request) {
+            this.context = context;
+            this.request = request;
+        }
+
+        void scatter() {
+            // The branches read the entity concurrently: it is read once, and each copy reads its own stream over it
+            byte[] entity = null;
+            try {
+                if (!request.getEntity().isRawContentEmpty()) {
+                    entity = request.getEntity().getBytes();
+                }
+            } catch (IOException e) {
+                for (Branch branch : branches) {
+                    gather(branch, newInternalServerError(e));
+                }
+                return;
+            }
+            for (final Branch branch : branches) {
+                final Request copy = copyOf(request, entity, storage);
+                final Call call = new Call(branch);
+                synchronized (this) {
+                    if (gathered) {
+                        // The outcome is already known (e.g. a failure on the first branches)
+                        closeSilently(copy);
+                        return;
+                    }
+                    calls.add(call);
+                }
+                call.start(copy);
+            }
+        }
+
+        /**
+         * Records the response of a branch, returns {@code false} if the response came too late and should be
+         * discarded.
+         */
+        boolean gather(final Branch branch, final Response response) {
+            List<Call> cancelled;
+            synchronized (this) {
+                if (gathered || responses.containsKey(branch.name)) {
+                    return false;
+                }
+                responses.put(branch.name, response);
+                if (response.getStatus().isSuccessful()) {
+                    successes++;
+                } else {
+                    failures++;
+                }
+                if (successes < required
+                        && failures <= branches.size() - required
+                        && responses.size() < branches.size()) {
+                    return true;
+                }
+                gathered = true;
+                cancelled = new ArrayList<>(calls);
+            }
+            for (Call call : cancelled) {
+                if (!responses.containsKey(call.branch.name)) {
+                    call.cancel();
+                } else {
+                    call.cancelTimeout();
+                }
+            }
+            if (successes < required) {
+                closeAll(null);
+                Response badGateway = new Response(Status.BAD_GATEWAY);
+                badGateway.setEntity(String.format("Only %d of the %d required branches succeeded",
+                                                   successes, required));
+                result.handleResult(badGateway);
+            } else {
+                merge();
+            }
+            return true;
+        }
+
+        private void merge() {
+            if (merge != null) {
+                Response response;
+                try {
+                    Object merged = merge.eval(bindings(context, request).bind(RESPONSES, responses));
+                    if (merged instanceof Response) {
+                        response = (Response) merged;
+                    } else {
+                        response = new Response(Status.OK);
+                        response.setEntity(merged);
+                    }
+                } catch (RuntimeException e) {
+                    logger.error(e);
+                    response = newInternalServerError(e);
+                }
+                closeAll(response);
+                result.handleResult(response);
+            } else if (mergeHandler != null) {
+                if (context.containsContext(AttributesContext.class)) {
+                    context.asContext(AttributesContext.class).getAttributes().put(RESPONSES, responses);
+                }
+                mergeHandler.handle(context, request)
+                            .thenOnResult(new ResultHandler<Response>() {
+                                @Override
+                                public void handleResult(final Response response) {
+                                    closeAll(response);
+                                    result.handleResult(response);
+                                }
+                            });
+            } else {
+                Response first = null;
+                for (Response response : responses.values()) {
+                    if (response.getStatus().isSuccessful()) {
+                        first = response;
+                        break;
+                    }
+                }
+                closeAll(first);
+                result.handleResult(first);
+            }
+        }
+
+        /** Closes all the gathered responses, but the one that is returned. */
+        private void closeAll(final Response returned) {
+            Set<Response> toClose = Collections.newSetFromMap(new IdentityHashMap<Response, Boolean>());
+            toClose.addAll(responses.values());
+            toClose.remove(returned);
+            for (Response response : toClose) {
+                closeSilently(response);
+            }
+        }
+
+        /** The call of a branch. */
+        private final class Call {
+            private final Branch branch;
+            private volatile Promise<Response, NeverThrowsException> promise;
+            private volatile ScheduledFuture<?> timeout;
+
+            Call(final Branch branch) {
+                this.branch = branch;
+            }
+
+            void start(final Request copy) {
+                promise = branch.handler.handle(context, copy);
+                if (!branch.timeout.isUnlimited()) {
+                    timeout = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (gather(branch, new Response(Status.GATEWAY_TIMEOUT))) {
+                                promise.cancel(true);
+                            }
+                        }
+                    }, branch.timeout.to(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+                }
+                promise.thenOnResult(new ResultHandler<Response>() {
+                    @Override
+                    public void handleResult(final Response response) {
+                        cancelTimeout();
+                        if (!gather(branch, response)) {
+                            // Too late
+                            closeSilently(response);
+                        }
+                    }
+                }).thenAlways(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeSilently(copy);
+                    }
+                });
+            }
+
+            void cancel() {
+                cancelTimeout();
+                Promise<Response, NeverThrowsException> current = promise;
+                if (current != null) {
+                    current.cancel(true);
+                }
+            }
+
+            void cancelTimeout() {
+                ScheduledFuture<?> current = timeout;
+                if (current != null) {
+                    current.cancel(false);
+                }
+            }
+        }
+    }
+
+    /** A named branch. */
+    private static final class Branch {
+        private final String name;
+        private final Handler handler;
+        private final Duration timeout;
+
+        Branch(final String name, final Handler handler, final Duration timeout) {
+            this.name = name;
+            this.handler = handler;
+            this.timeout = timeout;
+        }
+    }
+
+    /** Creates and initializes a scatter-gather handler in a heap environment. */
+    public static class Heaplet extends GenericHeaplet {
+        @Override
+        public Object create() throws HeapException {
+            JsonValue branches = config.get("branches").required().expect(List.class);
+            if (branches.size() == 0) {
+                throw new JsonValueException(branches, "At least one branch is required");
+            }
+            ScheduledExecutorService scheduler = config.get("executor")
+                                                       .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                                       .as(requiredHeapObject(heap,
+                                                                              ScheduledExecutorService.class));
+            ScatterGatherHandler handler = new ScatterGatherHandler(quorum(branches.size()), scheduler);
+
+            Duration defaultTimeout = config.get("timeout").as(evaluated()).defaultTo("unlimited").as(duration());
+            for (JsonValue jv : branches) {
+                jv.required().expect(Map.class);
+                String name = jv.get("name").as(evaluated()).required().asString();
+                for (Branch branch : handler.branches) {
+                    if (branch.name.equals(name)) {
+                        throw new JsonValueException(jv.get("name"), "Branch name already used: " + name);
+                    }
+                }
+                Duration timeout = jv.isDefined("timeout")
+                        ? jv.get("timeout").as(evaluated()).as(duration())
+                        : defaultTimeout;
+                handler.addBranch(name, jv.get("handler").as(requiredHeapObject(heap, Handler.class)), timeout);
+            }
+
+            if (config.isDefined("merge") && config.isDefined("mergeHandler")) {
+                throw new JsonValueException(config, "At most one of 'merge' or 'mergeHandler' can be defined");
+            }
+            handler.setMerge(config.get("merge").as(expression(Object.class)));
+            if (config.isDefined("mergeHandler")) {
+                handler.setMergeHandler(config.get("mergeHandler").as(requiredHeapObject(heap, Handler.class)));
+            }
+            return handler;
+        }
+
+        private int quorum(final int size) {
+            JsonValue quorum = config.get("quorum").as(evaluated()).defaultTo("ALL");
+            if (quorum.isNumber()) {
+                int value = quorum.asInteger();
+                if (value < 1 || value > size) {
+                    throw new JsonValueException(quorum, "The quorum must be between 1 and the number of branches");
+                }
+                return value;
+            }
+            switch (quorum.asString().toUpperCase()) {
+            case "ALL":
+                return -1;
+            case "FIRST":
+                return 1;
+            default:
+                throw new JsonValueException(quorum, "Expecting ALL, FIRST or a number of branches");
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static org.forgerock.util.Utils.closeSilently;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.forgerock.http.HttpApplicationException;
+import org.forgerock.util.Options;
+
+/**
+ * Shares the HTTP clients of the {@link ClientHandler}s configured with the same transport options, across all the
+ * heaps (the routes heaps and their parent heap).
+ * <p>
+ * Clients are reference-counted: a client is built when the first {@link ClientHandler} with a given configuration
+ * is created, and closed when the last one is destroyed (usually when the last route using it is unloaded). A
+ * deployment with many routes pointing to the same backends then keeps a single connection pool (and a single set of
+ * worker threads) per distinct configuration.
+ *
+ * @see org.forgerock.openig.heap.Keys#SHARED_HTTP_CLIENTS_HEAP_KEY
+ */
+public final class SharedHttpClients {
+
+    /** Shared clients, by transport options (guarded by this). */
+    private final Map<Object, Shared> clients = new HashMap<>();
+
+    /** Transport options, by shared client (guarded by this). */
+    private final Map<Transport, Object> keys = new IdentityHashMap<>();
+
+    /**
+     * Returns the client built for the given transport options, building it if needed. The returned client has to
+     * be {@linkplain #release(Transport) released} once not used anymore.
+     *
+     * @param key
+     *         the transport options (compared with {@link Object#equals(Object)})
+     * @param options
+     *         the client options, used to build the client
+     * @param http2
+     *         {@code true} for an HTTP/2 client
+     * @return the shared client
+     * @throws HttpApplicationException
+     *         if the client cannot be built
+     */
+    synchronized Transport acquire(final Object key, final Options options, final boolean http2)
+            throws HttpApplicationException {
+        Shared shared = clients.get(key);
+        if (shared == null) {
+            shared = new Shared(Transport.newTransport(options, http2));
+            clients.put(key, shared);
+            keys.put(shared.transport, key);
+        }
+        shared.references++;
+        return shared.transport;
+    }
+
+    /**
+     * Releases a client obtained from {@link #acquire(Object, Options, boolean)}, closing it if it is not used
+     * anymore.
+     *
+     * @param transport
+     *         the client to release
+     */
+    void release(final Transport transport) {
+        synchronized (this) {
+            Object key = keys.get(transport);
+            if (key == null) {
+                return;
+            }
+            Shared shared = clients.get(key);
+            if (--shared.references > 0) {
+                return;
+            }
+            clients.remove(key);
+            keys.remove(transport);
+        }
+        closeSilently(transport);
+    }
+
+    /** Returns the number of clients currently shared. */
+    synchronized int size() {
+        return clients.size();
+    }
+
+    private static final class Shared {
+        private final Transport transport;
+        private int references;
+
+        Shared(final Transport transport) {
+            this.transport = transport;
+        }
+    }
+}
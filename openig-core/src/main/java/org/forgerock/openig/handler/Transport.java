@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_MAX_CONNECTIONS;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.HttpApplicationException;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.openig.http.ConnectionPoolMetrics;
+import org.forgerock.openig.http2.Http2Client;
+import org.forgerock.openig.http2.Http2Metrics;
+import org.forgerock.util.Options;
+
+/**
+ * The HTTP client behind a {@link ClientHandler}, with its metrics.
+ */
+final class Transport implements Closeable {
+
+    private final Handler handler;
+    private final Closeable client;
+    private final ConnectionPoolMetrics poolMetrics;
+    private final Http2Metrics http2Metrics;
+
+    private Transport(final Handler handler,
+                      final Closeable client,
+                      final ConnectionPoolMetrics poolMetrics,
+                      final Http2Metrics http2Metrics) {
+        this.handler = handler;
+        this.client = client;
+        this.poolMetrics = poolMetrics;
+        this.http2Metrics = http2Metrics;
+    }
+
+    /**
+     * Builds a new HTTP client.
+     *
+     * @param options
+     *         the client options
+     * @param http2
+     *         {@code true} to build an {@link Http2Client}, {@code false} to build a CHF {@link HttpClientHandler}
+     * @return a new HTTP client
+     * @throws HttpApplicationException
+     *         if the client cannot be built
+     */
+    static Transport newTransport(final Options options, final boolean http2) throws HttpApplicationException {
+        if (http2) {
+            Http2Client client = new Http2Client(options);
+            return new Transport(client, client, client.getPoolMetrics(), client.getMetrics());
+        }
+        HttpClientHandler client = new HttpClientHandler(options);
+        int maxConnections = options.get(OPTION_MAX_CONNECTIONS);
+        ConnectionPoolMetrics poolMetrics = new ConnectionPoolMetrics(maxConnections, true);
+        return new Transport(new PoolMonitoringHandler(client, poolMetrics, maxConnections),
+                             client,
+                             poolMetrics,
+                             null);
+    }
+
+    Handler getHandler() {
+        return handler;
+    }
+
+    ConnectionPoolMetrics getPoolMetrics() {
+        return poolMetrics;
+    }
+
+    /** Returns the HTTP/2 connection and stream metrics, or {@code null} for an HTTP/1.1 client. */
+    Http2Metrics getHttp2Metrics() {
+        return http2Metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.router;
+
+import static java.lang.String.format;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.DeleteRequest;
+import org.forgerock.json.resource.PatchRequest;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.ServiceUnavailableException;
+import org.forgerock.json.resource.UpdateRequest;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.ExceptionHandler;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Publishes audit events (CREST {@link CreateRequest}s) to the decorated {@link RequestHandler} (usually an
+ * {@link org.forgerock.audit.AuditService}) asynchronously.
+ *
+ * <p>Events are queued in a bounded queue and delivered from the given {@link Executor}, one create request per
+ * event: at most one delivery task is scheduled at a time, and it delivers at most {@literal eventsPerTask} events
+ * before yielding the executor thread. When the queue is full, the event is dropped and accounted. The events that
+ * the delegate fails to publish are accounted too; both numbers are reported in the logs by the next delivery task.
+ *
+ * <p>Only the create requests (the event content) are queued: the events are delivered within a new
+ * {@link RootContext}, so that the contexts of the audited exchanges (and the messages they reference) are not
+ * retained while the events are pending.
+ *
+ * <p>The create requests are immediately acknowledged: the returned promise is completed with a resource response
+ * that wraps the event content. Other CREST operations are delegated synchronously.
+ */
+class AsyncAuditPublisher implements RequestHandler {
+
+    private final RequestHandler delegate;
+    private final Executor executor;
+    private final Logger logger;
+    private final int eventsPerTask;
+    private final BlockingQueue<CreateRequest> queue;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong reportedDropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong reportedFailed = new AtomicLong();
+
+    private final ExceptionHandler<ResourceException> failure = new ExceptionHandler<ResourceException>() {
+        @Override
+        public void handleException(final ResourceException exception) {
+            failed.incrementAndGet();
+        }
+    };
+
+    private final Runnable delivery = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Builds a new asynchronous publisher.
+     *
+     * @param delegate
+     *         where events are finally published
+     * @param executor
+     *         executes the delivery tasks
+     * @param logger
+     *         used to report delivery errors, failed and dropped events
+     * @param queueSize
+     *         maximum number of pending events
+     * @param eventsPerTask
+     *         maximum number of events delivered by a single delivery task
+     */
+    AsyncAuditPublisher(final RequestHandler delegate,
+                        final Executor executor,
+                        final Logger logger,
+                        final int queueSize,
+                        final int eventsPerTask) {
+        this.delegate = delegate;
+        this.executor = executor;
+        this.logger = logger;
+        this.eventsPerTask = eventsPerTask;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> handleCreate(final Context context,
+                                                                     final CreateRequest request) {
+        if (!queue.offer(request)) {
+            dropped.incrementAndGet();
+            return new ServiceUnavailableException("Audit event queue is full, event dropped").asPromise();
+        }
+        schedule();
+        return newResourceResponse(request.getNewResourceId(), null, request.getContent()).asPromise();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(delivery);
+            } catch (RejectedExecutionException e) {
+                // Executor is shutting down: events will be delivered when the publisher is stopped
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void deliver() {
+        try {
+            report();
+            List<CreateRequest> events = new ArrayList<>(eventsPerTask);
+            queue.drainTo(events, eventsPerTask);
+            publish(events);
+        } finally {
+            scheduled.set(false);
+        }
+        // Events may have been queued after the batch has been drained
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void publish(final List<CreateRequest> events) {
+        for (CreateRequest event : events) {
+            try {
+                delegate.handleCreate(new RootContext(), event).thenOnException(failure);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                logger.error(format("Cannot publish audit event to '%s'", event.getResourcePath()));
+                logger.error(e);
+            }
+        }
+    }
+
+    private void report() {
+        long count = dropped.get();
+        long previous = reportedDropped.getAndSet(count);
+        if (count > previous) {
+            logger.warning(format("%d audit events have been dropped because the queue was full (%d in total)",
+                                  count - previous,
+                                  count));
+        }
+        count = failed.get();
+        previous = reportedFailed.getAndSet(count);
+        if (count > previous) {
+            logger.warning(format("%d audit events could not be published (%d in total)",
+                                  count - previous,
+                                  count));
+        }
+    }
+
+    /**
+     * Returns the total number of events that have been dropped because the queue was full.
+     *
+     * @return the total number of dropped events
+     */
+    long getDroppedEvents() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the total number of events that the delegate failed to publish.
+     *
+     * @return the total number of failed events
+     */
+    long getFailedEvents() {
+        return failed.get();
+    }
+
+    /**
+     * Synchronously delivers all of the pending events. This is intended to be called before the decorated handler
+     * is shut down.
+     */
+    void stop() {
+        List<CreateRequest> remaining = new ArrayList<>(queue.size());
+        queue.drainTo(remaining);
+        publish(remaining);
+        report();
+    }
+
+    @Override
+    public Promise<ActionResponse, ResourceException> handleAction(final Context context,
+                                                                   final ActionRequest request) {
+        return delegate.handleAction(context, request);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> handleDelete(final Context context,
+                                                                     final DeleteRequest request) {
+        return delegate.handleDelete(context, request);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> handlePatch(final Context context,
+                                                                    final PatchRequest request) {
+        return delegate.handlePatch(context, request);
+    }
+
+    @Override
+    public Promise<QueryResponse, ResourceException> handleQuery(final Context context,
+                                                                 final QueryRequest request,
+                                                                 final QueryResourceHandler handler) {
+        return delegate.handleQuery(context, request, handler);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> handleRead(final Context context,
+                                                                   final ReadRequest request) {
+        return delegate.handleRead(context, request);
+    }
+
+    @Override
+    public Promise<ResourceResponse, ResourceException> handleUpdate(final Context context,
+                                                                     final UpdateRequest request) {
+        return delegate.handleUpdate(context, request);
+    }
+}
@@ -27,9 +27,11 @@ import static org.forgerock.json.resource.http.CrestHttp.newHttpHandler;
 import static org.forgerock.openig.handler.router.MonitoringResourceProvider.DEFAULT_PERCENTILES;
 import static org.forgerock.openig.heap.Keys.ENDPOINT_REGISTRY_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.util.JsonValues.evaluated;
 import static org.forgerock.openig.util.JsonValues.expression;
+import static org.forgerock.openig.util.JsonValues.requiredHeapObject;
 import static org.forgerock.openig.util.StringUtil.slug;
 import static org.forgerock.util.Utils.closeSilently;
 
@@ -39,6 +41,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.forgerock.audit.AuditService;
 import org.forgerock.http.Filter;
@@ -130,7 +133,7 @@ class RouteBuilder {
 
         try {
             routeHeap.init(config, "handler", "session", "name", "condition", "logSink", "auditService",
-                           "globalDecorators", "monitor");
+                           "auditPublisher", "globalDecorators", "monitor");
 
             Expression<Boolean> condition = config.get("condition").as(expression(Boolean.class));
 
@@ -146,7 +149,9 @@ class RouteBuilder {
                                       slug));
             }
 
-            return new Route(setupRouteHandler(routeHeap, config, routeRegistry, logger), routeName, condition) {
+            final List<AsyncAuditPublisher> publishers = new ArrayList<>();
+            Handler routeHandler = setupRouteHandler(routeHeap, config, routeRegistry, logger, publishers);
+            return new Route(routeHandler, routeName, condition) {
 
                 private EndpointRegistry.Registration registration;
 
@@ -161,6 +166,10 @@ class RouteBuilder {
                     if (registration != null) {
                         registration.unregister();
                     }
+                    // Deliver pending audit events before the audit service is shut down
+                    for (AsyncAuditPublisher publisher : publishers) {
+                        publisher.stop();
+                    }
                     routeHeap.destroy();
                 }
             };
@@ -173,7 +182,8 @@ class RouteBuilder {
     private Handler setupRouteHandler(final HeapImpl routeHeap,
                                       final JsonValue config,
                                       final EndpointRegistry routeRegistry,
-                                      final Logger logger) throws HeapException {
+                                      final Logger logger,
+                                      final List<AsyncAuditPublisher> publishers) throws HeapException {
 
         TimeService time = routeHeap.get(TIME_SERVICE_HEAP_KEY, TimeService.class);
 
@@ -186,7 +196,8 @@ class RouteBuilder {
 
         AuditService auditService = routeHeap.resolve(config.get("auditService"), AuditService.class, true);
         if (auditService != null && auditService.isRunning()) {
-            filters.add(new HttpAccessAuditFilter(auditService, time));
+            filters.add(buildAuditFilter(routeHeap, config.get("auditPublisher"), auditService, time, logger,
+                                         publishers));
         }
 
         MonitorConfig mc = getMonitorConfig(config.get("monitor"));
@@ -208,6 +219,64 @@ class RouteBuilder {
         return chainOf(routeHeap.getHandler(), filters);
     }
 
+    /**
+     * Builds the filter that publishes access audit events to the given audit service.
+     *
+     * <p>Accepted format (all attributes are optional):
+     *
+     * <pre>
+     *     {@code
+     *       "auditPublisher": {
+     *           "asynchronous": true,
+     *           "queueSize": 10000,
+     *           "eventsPerTask": 100,
+     *           "executor": "ScheduledExecutorService",
+     *           "requestHeaders": [ "Host", "User-Agent" ],
+     *           "responseHeaders": [ "Content-Type" ]
+     *       }
+     *     }
+     * </pre>
+     *
+     * When {@literal asynchronous} is {@code true} (defaults to {@code false}), events are queued (in a queue of at
+     * most {@literal queueSize} events, defaults to {@literal 10000}) and published one at a time from the given
+     * {@literal executor} (defaults to the heap's {@literal ScheduledExecutorService}), by tasks publishing at most
+     * {@literal eventsPerTask} events each (defaults to {@literal 100}). Events are dropped (and counted) when the
+     * queue is full.
+     *
+     * <p>{@literal requestHeaders} and {@literal responseHeaders} are allow-lists of the header names that are
+     * copied into the access events. By default (if omitted), all of the headers are copied.
+     */
+    private Filter buildAuditFilter(final HeapImpl routeHeap,
+                                    final JsonValue auditPublisher,
+                                    final AuditService auditService,
+                                    final TimeService time,
+                                    final Logger logger,
+                                    final List<AsyncAuditPublisher> publishers) throws HeapException {
+        JsonValue evaluated = auditPublisher.as(evaluated());
+        List<String> requestHeaders = evaluated.get("requestHeaders").asList(String.class);
+        List<String> responseHeaders = evaluated.get("responseHeaders").asList(String.class);
+
+        RequestHandler handler = auditService;
+        if (evaluated.get("asynchronous").defaultTo(false).asBoolean()) {
+            int queueSize = evaluated.get("queueSize").defaultTo(10000).asInteger();
+            int eventsPerTask = evaluated.get("eventsPerTask").defaultTo(100).asInteger();
+            if (queueSize <= 0 || eventsPerTask <= 0) {
+                throw new HeapException("'queueSize' and 'eventsPerTask' can only be positive (non-zero) values");
+            }
+            Executor executor = auditPublisher.get("executor")
+                                              .defaultTo(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY)
+                                              .as(requiredHeapObject(routeHeap, Executor.class));
+            AsyncAuditPublisher publisher = new AsyncAuditPublisher(auditService,
+                                                                    executor,
+                                                                    logger,
+                                                                    queueSize,
+                                                                    eventsPerTask);
+            publishers.add(publisher);
+            handler = publisher;
+        }
+        return new HttpAccessAuditFilter(handler, time, requestHeaders, responseHeaders);
+    }
+
     /**
      * Extract monitoring information from JSON.
      *
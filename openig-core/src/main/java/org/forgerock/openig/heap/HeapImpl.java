@@ -84,7 +84,10 @@ public class HeapImpl implements Heap {
     private Map<String, Object> objects = new HashMap<>();
 
     /** Per-heaplet decoration contexts mapped to heaplet names. */
-    private Map<String, Context> contexts = new HashMap<>();
+    private Map<String, DecorationContext> contexts = new HashMap<>();
+
+    /** Decoration contexts of the top-level 'handler' reference. */
+    private List<DecorationContext> handlerContexts = new ArrayList<>();
 
     /** Per-heaplet decoration(s) mapped to heaplet names. */
     private MultiValueMap<String, JsonValue> decorations =
@@ -533,9 +536,9 @@ public class HeapImpl implements Heap {
         }
 
         // Create a context object for holding shared values
-        Context context = new DecorationContext(this,
-                                                this.name.child(name),
-                                                configuration);
+        DecorationContext context = new DecorationContext(this,
+                                                          this.name.child(name),
+                                                          configuration);
         // .. and save it for later use in extract()
         contexts.put(name, context);
 
@@ -572,7 +575,14 @@ public class HeapImpl implements Heap {
         for (String name : h.keySet()) {
             h.get(name).destroy();
         }
+        // notify the decorators that the decorated objects are destroyed
+        List<DecorationContext> destroyed = new ArrayList<>(contexts.values());
+        destroyed.addAll(handlerContexts);
+        for (DecorationContext context : destroyed) {
+            context.destroy();
+        }
         contexts.clear();
+        handlerContexts.clear();
 
     }
 
@@ -590,6 +600,9 @@ public class HeapImpl implements Heap {
         DecorationContext context = new DecorationContext(this,
                                                           name.child("top-level-handler"),
                                                           json(emptyMap()));
+        synchronized (this) {
+            handlerContexts.add(context);
+        }
         return (Handler) topLevelHandlerDecorator.decorate(handler, null, context);
     }
 
@@ -600,6 +613,7 @@ public class HeapImpl implements Heap {
         private final Heap heap;
         private final Name name;
         private final JsonValue config;
+        private final List<Runnable> destroyActions = new ArrayList<>();
 
         public DecorationContext(final Heap heap,
                                  final Name name,
@@ -623,6 +637,24 @@ public class HeapImpl implements Heap {
         public JsonValue getConfig() {
             return config;
         }
+
+        @Override
+        public synchronized void onDestroy(final Runnable action) {
+            destroyActions.add(action);
+        }
+
+        private synchronized void destroy() {
+            for (Runnable action : destroyActions) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    if (logger != null) {
+                        logger.warning(e);
+                    }
+                }
+            }
+            destroyActions.clear();
+        }
     }
 
     /**
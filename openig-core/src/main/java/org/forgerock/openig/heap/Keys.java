@@ -23,6 +23,7 @@ import org.forgerock.openig.decoration.baseuri.BaseUriDecorator;
 import org.forgerock.openig.decoration.capture.CaptureDecorator;
 import org.forgerock.openig.decoration.timer.TimerDecorator;
 import org.forgerock.openig.handler.ClientHandler;
+import org.forgerock.openig.handler.SharedHttpClients;
 import org.forgerock.openig.http.EndpointRegistry;
 import org.forgerock.openig.io.TemporaryStorage;
 import org.forgerock.openig.log.LogSink;
@@ -109,6 +110,11 @@ public final class Keys {
      */
     public static final String SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY = "ScheduledExecutorService";
 
+    /**
+     * Key to retrieve the {@link SharedHttpClients} instance from the {@link org.forgerock.openig.heap.Heap}.
+     */
+    public static final String SHARED_HTTP_CLIENTS_HEAP_KEY = "SharedHttpClients";
+
     /**
      * Key to retrieve the default {@link SessionManager} instance from the
      * {@link org.forgerock.openig.heap.Heap}.
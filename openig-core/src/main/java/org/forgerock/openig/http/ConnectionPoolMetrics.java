@@ -0,0 +1,287 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http;
+
+import static java.util.Arrays.asList;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Holds the per-host metrics of an HTTP client connection pool, and exposes them as a JSON document.
+ * <pre>
+ *     {@code
+ *     {
+ *       "capacity": 64,
+ *       "estimated": false,
+ *       "hosts": {
+ *         "http://app.example.com:8080": {
+ *           "leased": 12,
+ *           "pending": 0,
+ *           "peakLeased": 64,
+ *           "saturation": 0.188,
+ *           "acquired": 90211,
+ *           "acquisition": { "count": 90211, "min": 0.000, "max": 812.113, "mean": 3.402, ... },
+ *           "connections": { "open": 2, "idle": 0, "failed": 0 },
+ *           "connect": { "count": 3, "min": 0.807, "max": 1.344, "mean": 1.024, ... }
+ *         }
+ *       }
+ *     }
+ *     }
+ * </pre>
+ * For each host (identified by its scheme, name and port):
+ * <ul>
+ *     <li>{@literal leased}: requests currently holding a connection (or a stream, for multiplexed connections)</li>
+ *     <li>{@literal pending}: requests currently waiting for a connection</li>
+ *     <li>{@literal peakLeased}: the highest number of leased connections seen so far</li>
+ *     <li>{@literal saturation}: the ratio of leased connections to the {@literal capacity} of the host</li>
+ *     <li>{@literal acquisition}: the time spent waiting for a connection, in milliseconds</li>
+ *     <li>{@literal connections} and {@literal connect}: the open, idle and failed connections, and the time spent
+ *     establishing them, in milliseconds (only when the client reports them)</li>
+ * </ul>
+ * A pool starving its callers shows a {@literal saturation} close to 1, {@literal pending} requests and a growing
+ * {@literal acquisition} time.
+ * <p>
+ * {@literal estimated} is {@code true} when the pool itself cannot be observed: {@literal leased},
+ * {@literal pending}, {@literal peakLeased}, {@literal saturation} and {@literal acquisition} are then modelled from
+ * the {@literal capacity} and the requests going through the client, rather than measured.
+ */
+public final class ConnectionPoolMetrics implements Handler {
+
+    private static final List<Double> PERCENTILES = asList(0.5, 0.9, 0.99, 0.999);
+
+    private static final BigDecimal ONE_THOUSAND = BigDecimal.valueOf(1000);
+
+    private final int capacity;
+    private final boolean estimated;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Builds a new set of pool metrics.
+     *
+     * @param capacity
+     *         the maximum number of requests that can hold a connection to a single host at the same time
+     */
+    public ConnectionPoolMetrics(final int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Builds a new set of pool metrics.
+     *
+     * @param capacity
+     *         the maximum number of requests that can hold a connection to a single host at the same time
+     * @param estimated
+     *         {@code true} if the metrics are modelled from the requests rather than reported by the pool
+     */
+    public ConnectionPoolMetrics(final int capacity, final boolean estimated) {
+        this.capacity = capacity;
+        this.estimated = estimated;
+    }
+
+    /**
+     * Returns the metrics of the given host, creating them when the host is seen for the first time.
+     *
+     * @param key
+     *         the host identifier ({@literal scheme://host:port})
+     * @return the metrics of the given host
+     */
+    public Host host(final String key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            Host created = new Host();
+            host = hosts.putIfAbsent(key, created);
+            if (host == null) {
+                host = created;
+            }
+        }
+        return host;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        Map<String, Object> rendered = new TreeMap<>();
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            rendered.put(entry.getKey(), entry.getValue().render());
+        }
+        Response response = new Response(Status.OK);
+        response.getEntity().setJson(object(field("capacity", capacity),
+                                            field("estimated", estimated),
+                                            field("hosts", rendered)));
+        return Promises.newResultPromise(response);
+    }
+
+    /** The pool metrics of a single host. */
+    public final class Host {
+        private final Counter leased = new Counter();
+        private final Counter pending = new Counter();
+        private final AtomicLong peakLeased = new AtomicLong();
+        private final Histogram acquisition = new Histogram(new ExponentiallyDecayingReservoir());
+        private final Counter openConnections = new Counter();
+        private final Counter failedConnections = new Counter();
+        private final Histogram connect = new Histogram(new ExponentiallyDecayingReservoir());
+        private volatile Gauge<Integer> idleConnections;
+
+        private Host() {
+        }
+
+        /** Records that a request started waiting for a connection. */
+        public void waiting() {
+            pending.inc();
+        }
+
+        /** Records that a request stopped waiting for a connection, without acquiring one. */
+        public void abandoned() {
+            pending.dec();
+        }
+
+        /**
+         * Records that a request acquired a connection.
+         *
+         * @param acquisitionMicros
+         *         the time the request waited for the connection, in microseconds
+         * @param waited
+         *         {@code true} if the request was counted as {@linkplain #waiting() waiting}
+         */
+        public void acquired(final long acquisitionMicros, final boolean waited) {
+            if (waited) {
+                pending.dec();
+            }
+            leased.inc();
+            acquisition.update(acquisitionMicros);
+            long current = leased.getCount();
+            long peak;
+            do {
+                peak = peakLeased.get();
+            } while (current > peak && !peakLeased.compareAndSet(peak, current));
+        }
+
+        /** Records that a request released its connection. */
+        public void released() {
+            leased.dec();
+        }
+
+        /**
+         * Records that a connection has been established.
+         *
+         * @param connectMicros
+         *         the time spent establishing the connection, in microseconds
+         */
+        public void connected(final long connectMicros) {
+            openConnections.inc();
+            connect.update(connectMicros);
+        }
+
+        /** Records that a connection could not be established. */
+        public void connectFailed() {
+            failedConnections.inc();
+        }
+
+        /** Records that a connection has been closed. */
+        public void disconnected() {
+            openConnections.dec();
+        }
+
+        /**
+         * Sets the gauge returning the number of open connections not used by any request.
+         *
+         * @param idleConnections
+         *         the gauge returning the number of idle connections
+         */
+        public void setIdleConnections(final Gauge<Integer> idleConnections) {
+            this.idleConnections = idleConnections;
+        }
+
+        long getLeased() {
+            return leased.getCount();
+        }
+
+        long getPending() {
+            return pending.getCount();
+        }
+
+        Histogram getAcquisition() {
+            return acquisition;
+        }
+
+        private Map<String, Object> render() {
+            long leasedCount = leased.getCount();
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("leased", leasedCount);
+            data.put("pending", pending.getCount());
+            data.put("peakLeased", peakLeased.get());
+            data.put("saturation", BigDecimal.valueOf(leasedCount)
+                                             .divide(BigDecimal.valueOf(Math.max(capacity, 1)),
+                                                     3,
+                                                     RoundingMode.HALF_UP));
+            data.put("acquired", acquisition.getCount());
+            data.put("acquisition", render(acquisition));
+            Gauge<Integer> idle = idleConnections;
+            if (idle != null || connect.getCount() > 0 || failedConnections.getCount() > 0) {
+                data.put("connections", object(field("open", openConnections.getCount()),
+                                               field("idle", idle == null ? null : idle.getValue()),
+                                               field("failed", failedConnections.getCount())));
+                data.put("connect", render(connect));
+            }
+            return data;
+        }
+
+        private Map<String, Object> render(final Histogram histogram) {
+            Snapshot snapshot = histogram.getSnapshot();
+            Map<String, BigDecimal> values = new LinkedHashMap<>();
+            for (Double percentile : PERCENTILES) {
+                values.put(String.valueOf(percentile), toMilliseconds(snapshot.getValue(percentile)));
+            }
+            return object(field("count", histogram.getCount()),
+                          field("min", toMilliseconds(snapshot.getMin())),
+                          field("max", toMilliseconds(snapshot.getMax())),
+                          field("mean", toMilliseconds(snapshot.getMean())),
+                          field("median", toMilliseconds(snapshot.getMedian())),
+                          field("standardDeviation", toMilliseconds(snapshot.getStdDev())),
+                          field("percentiles", values));
+        }
+    }
+
+    private static BigDecimal toMilliseconds(final double value) {
+        return BigDecimal.valueOf(value)
+                         .divide(ONE_THOUSAND, 3, RoundingMode.HALF_DOWN);
+    }
+}
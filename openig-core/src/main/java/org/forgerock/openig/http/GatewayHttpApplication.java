@@ -41,6 +41,7 @@ import static org.forgerock.openig.heap.Keys.FORGEROCK_CLIENT_HANDLER_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.SESSION_FACTORY_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.SHARED_HTTP_CLIENTS_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TEMPORARY_STORAGE_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TIMER_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
@@ -75,6 +76,7 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.openig.audit.AuditSystem;
 import org.forgerock.openig.audit.decoration.AuditDecorator;
 import org.forgerock.openig.audit.internal.ForwardingAuditSystem;
+import org.forgerock.openig.audit.internal.PipelinedAuditSystem;
 import org.forgerock.openig.config.Environment;
 import org.forgerock.openig.decoration.baseuri.BaseUriDecorator;
 import org.forgerock.openig.decoration.capture.CaptureDecorator;
@@ -82,6 +84,7 @@ import org.forgerock.openig.decoration.timer.TimerDecorator;
 import org.forgerock.openig.filter.Chain;
 import org.forgerock.openig.handler.ClientHandler;
 import org.forgerock.openig.handler.Handlers;
+import org.forgerock.openig.handler.SharedHttpClients;
 import org.forgerock.openig.heap.HeapImpl;
 import org.forgerock.openig.heap.Name;
 import org.forgerock.openig.io.TemporaryStorage;
@@ -131,6 +134,7 @@ public final class GatewayHttpApplication implements HttpApplication {
     private HeapImpl heap;
     private TemporaryStorage storage;
     private Environment environment;
+    private PipelinedAuditSystem pipelinedAuditSystem;
 
     /**
      * Default constructor called by the HTTP Framework.
@@ -208,7 +212,8 @@ public final class GatewayHttpApplication implements HttpApplication {
             heap.put(ENVIRONMENT_HEAP_KEY, environment);
             heap.put(TIME_SERVICE_HEAP_KEY, timeService);
 
-            AuditSystem auditSystem = new ForwardingAuditSystem();
+            // Deprecated audit events are dispatched synchronously, unless pipelines are explicitly enabled
+            AuditSystem auditSystem = createAuditSystem(config.get("auditSystem"));
 
             // can be overridden in config
             heap.put(TEMPORARY_STORAGE_HEAP_KEY, new TemporaryStorage());
@@ -219,10 +224,12 @@ public final class GatewayHttpApplication implements HttpApplication {
             heap.put(BASEURI_HEAP_KEY, new BaseUriDecorator());
             heap.put(AUDIT_SYSTEM_HEAP_KEY, auditSystem);
             heap.put(TRANSACTION_ID_OUTBOUND_FILTER_HEAP_KEY, new TransactionIdOutboundFilter());
+            heap.put(SHARED_HTTP_CLIENTS_HEAP_KEY, new SharedHttpClients());
             heap.addDefaultDeclaration(DEFAULT_CLIENT_HANDLER);
             heap.addDefaultDeclaration(FORGEROCK_CLIENT_HANDLER);
             heap.addDefaultDeclaration(DEFAULT_SCHEDULED_THREAD_POOL);
-            heap.init(config, "logSink", "temporaryStorage", "handler", "handlerObject", "globalDecorators");
+            heap.init(config,
+                      "logSink", "temporaryStorage", "handler", "handlerObject", "globalDecorators", "auditSystem");
 
             // As all heaplets can specify their own storage and logger,
             // these two lines provide custom logger or storage available.
@@ -266,6 +273,27 @@ public final class GatewayHttpApplication implements HttpApplication {
         }
     }
 
+    /**
+     * Creates the audit system dispatching the deprecated audit events. Listeners are invoked from the emitting
+     * thread, unless the configuration enables per-listener pipelines:
+     * <pre>
+     * {@code
+     * "auditSystem": {
+     *     "pipelined": true,
+     *     "queueSize": 1000
+     * }
+     * }
+     * </pre>
+     */
+    private AuditSystem createAuditSystem(final JsonValue config) {
+        if (!config.get("pipelined").defaultTo(false).asBoolean()) {
+            return new ForwardingAuditSystem();
+        }
+        pipelinedAuditSystem = new PipelinedAuditSystem(
+                config.get("queueSize").defaultTo(PipelinedAuditSystem.DEFAULT_QUEUE_SIZE).asInteger());
+        return pipelinedAuditSystem;
+    }
+
     private URL selectConfigurationUrl() throws MalformedURLException {
         LOG.info("OpenIG base directory : {}", environment.getBaseDirectory());
 
@@ -298,6 +326,10 @@ public final class GatewayHttpApplication implements HttpApplication {
             heap.destroy();
             heap = null;
         }
+        if (pipelinedAuditSystem != null) {
+            pipelinedAuditSystem.shutdown();
+            pipelinedAuditSystem = null;
+        }
     }
 
     private static JsonValue readJson(URL resource) throws IOException {
@@ -0,0 +1,98 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of equally sized byte arrays, recycling the buffers that carry the frame payloads, so that streaming
+ * a body costs a few buffers (as many as the flow-control windows let in flight) rather than allocations proportional
+ * to its size.
+ * <p>
+ * Buffers that are not given back (a body that is neither consumed nor closed) are simply garbage collected, and
+ * buffers given back while the pool is full are dropped.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Builds a new empty pool.
+     *
+     * @param bufferSize
+     *         the size of the buffers
+     * @param capacity
+     *         the maximum number of idle buffers kept
+     */
+    BufferPool(final int bufferSize, final int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns an idle buffer, or a new one if there is none.
+     *
+     * @return a buffer of {@link #getBufferSize()} bytes, whose content is undefined
+     */
+    byte[] acquire() {
+        byte[] buffer = free.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            return buffer;
+        }
+        allocated.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Gives back a buffer, that must not be used anymore. Buffers of another size are ignored.
+     *
+     * @param buffer
+     *         the buffer to give back
+     */
+    void release(final byte[] buffer) {
+        if (buffer.length != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > capacity) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns the number of idle buffers. */
+    int getPooled() {
+        return pooled.get();
+    }
+
+    /** Returns the number of buffers allocated since this pool was built. */
+    long getAllocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static org.forgerock.openig.http2.Http2Exception.FRAME_SIZE_ERROR;
+import static org.forgerock.openig.http2.Http2Exception.PROTOCOL_ERROR;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An HTTP/2 frame (RFC 7540, section 4): a 9 bytes header followed by a payload.
+ */
+final class Frame {
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    /** Initial flow-control window size of connections and streams. */
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    /** Initial (and minimum) value of the maximum frame size. */
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /** Largest flow-control window and largest maximum frame size allowed by the specification. */
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    static final int MAX_FRAME_SIZE = (1 << 24) - 1;
+
+    /** The connection preface a client has to send before its first frame. */
+    static final byte[] CLIENT_PREFACE = {
+        'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+        '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+    };
+
+    final int type;
+    final int flags;
+    final int streamId;
+    /** The payload, possibly a pooled buffer larger than {@link #length}. */
+    final byte[] payload;
+    final int length;
+
+    Frame(final int type, final int flags, final int streamId, final byte[] payload) {
+        this(type, flags, streamId, payload, payload == null ? 0 : payload.length);
+    }
+
+    private Frame(final int type, final int flags, final int streamId, final byte[] payload, final int length) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload;
+        this.length = length;
+    }
+
+    boolean hasFlag(final int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @param in
+     *         the stream to read from
+     * @param maxFrameSize
+     *         the largest payload accepted
+     * @return the frame, or {@code null} if the stream ended before a new frame
+     * @throws IOException
+     *         if the frame cannot be read or is too large
+     */
+    static Frame read(final InputStream in, final int maxFrameSize) throws IOException {
+        return read(in, maxFrameSize, null);
+    }
+
+    /**
+     * Reads the next frame, the payload of a {@literal DATA} frame being read into a buffer of the given pool. Once
+     * its content has been consumed, this buffer has to be given back to the pool.
+     *
+     * @param in
+     *         the stream to read from
+     * @param maxFrameSize
+     *         the largest payload accepted
+     * @param buffers
+     *         the pool of the {@literal DATA} frame payloads, or {@code null} to allocate them
+     * @return the frame, or {@code null} if the stream ended before a new frame
+     * @throws IOException
+     *         if the frame cannot be read or is too large
+     */
+    static Frame read(final InputStream in, final int maxFrameSize, final BufferPool buffers) throws IOException {
+        byte[] header = new byte[9];
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        header[0] = (byte) first;
+        readFully(in, header, 1, 8);
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        if (length > maxFrameSize) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + length + " bytes exceeds " + maxFrameSize);
+        }
+        int type = header[3] & 0xff;
+        byte[] payload;
+        if (type == DATA && buffers != null && length <= buffers.getBufferSize()) {
+            payload = buffers.acquire();
+        } else {
+            payload = new byte[length];
+        }
+        readFully(in, payload, 0, length);
+        return new Frame(type, header[4] & 0xff, readInt(header, 5) & MAX_WINDOW_SIZE, payload, length);
+    }
+
+    /**
+     * Writes this frame (the stream is not flushed).
+     *
+     * @param out
+     *         the stream to write to
+     * @throws IOException
+     *         if the frame cannot be written
+     */
+    void write(final OutputStream out) throws IOException {
+        write(out, payload, 0, length);
+    }
+
+    /**
+     * Writes a frame whose payload is a slice of the given array (the stream is not flushed).
+     */
+    static void write(final OutputStream out, final int type, final int flags, final int streamId,
+                      final byte[] buffer, final int offset, final int length) throws IOException {
+        new Frame(type, flags, streamId, null).write(out, buffer, offset, length);
+    }
+
+    private void write(final OutputStream out, final byte[] buffer, final int offset, final int length)
+            throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt(header, 5, streamId);
+        out.write(header);
+        out.write(buffer, offset, length);
+    }
+
+    /**
+     * Returns the content of a {@literal DATA}, {@literal HEADERS} or {@literal PUSH_PROMISE} frame, without its
+     * padding nor priority fields.
+     *
+     * @return the content of the frame
+     * @throws Http2Exception
+     *         if the padding is longer than the payload
+     */
+    byte[] content() throws Http2Exception {
+        int offset = contentOffset();
+        int contentLength = contentLength();
+        if (offset == 0 && contentLength == payload.length) {
+            return payload;
+        }
+        byte[] content = new byte[contentLength];
+        System.arraycopy(payload, offset, content, 0, contentLength);
+        return content;
+    }
+
+    /**
+     * Returns the offset of the content in the payload of a {@literal DATA}, {@literal HEADERS} or
+     * {@literal PUSH_PROMISE} frame, after the pad length and priority fields.
+     *
+     * @return the offset of the content in the payload
+     * @throws Http2Exception
+     *         if the pad length is missing
+     */
+    int contentOffset() throws Http2Exception {
+        int offset = 0;
+        if (isPadded()) {
+            if (length == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Missing pad length");
+            }
+            offset = 1;
+        }
+        if (type == HEADERS && hasFlag(FLAG_PRIORITY)) {
+            offset += 5;
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the length of the content of a {@literal DATA}, {@literal HEADERS} or {@literal PUSH_PROMISE} frame,
+     * without its padding nor priority fields.
+     *
+     * @return the length of the content
+     * @throws Http2Exception
+     *         if the padding is longer than the payload
+     */
+    int contentLength() throws Http2Exception {
+        int offset = contentOffset();
+        int padding = isPadded() ? payload[0] & 0xff : 0;
+        int contentLength = length - offset - padding;
+        if (contentLength < 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Padding exceeds the frame payload");
+        }
+        return contentLength;
+    }
+
+    private boolean isPadded() {
+        return hasFlag(FLAG_PADDED) && (type == DATA || type == HEADERS || type == PUSH_PROMISE);
+    }
+
+    static Frame settings(final int... pairs) {
+        byte[] payload = new byte[pairs.length * 3];
+        for (int i = 0, p = 0; i < pairs.length; i += 2, p += 6) {
+            payload[p] = (byte) (pairs[i] >>> 8);
+            payload[p + 1] = (byte) pairs[i];
+            writeInt(payload, p + 2, pairs[i + 1]);
+        }
+        return new Frame(SETTINGS, 0, 0, payload);
+    }
+
+    static Frame settingsAck() {
+        return new Frame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    static Frame windowUpdate(final int streamId, final int increment) {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, increment);
+        return new Frame(WINDOW_UPDATE, 0, streamId, payload);
+    }
+
+    static Frame rstStream(final int streamId, final int errorCode) {
+        byte[] payload = new byte[4];
+        writeInt(payload, 0, errorCode);
+        return new Frame(RST_STREAM, 0, streamId, payload);
+    }
+
+    static Frame goAway(final int lastStreamId, final int errorCode) {
+        byte[] payload = new byte[8];
+        writeInt(payload, 0, lastStreamId);
+        writeInt(payload, 4, errorCode);
+        return new Frame(GOAWAY, 0, 0, payload);
+    }
+
+    static int readInt(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xff) << 24)
+                | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8)
+                | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void readFully(final InputStream in, final byte[] buffer, final int offset, final int length)
+            throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, offset + read, length - read);
+            if (n == -1) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            read += n;
+        }
+    }
+}
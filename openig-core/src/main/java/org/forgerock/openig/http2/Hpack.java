@@ -0,0 +1,217 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static org.forgerock.openig.http2.Http2Exception.COMPRESSION_ERROR;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541) static table and primitive type representations.
+ */
+final class Hpack {
+
+    /** Header fields are handled as ISO-8859-1 strings, so that a character is an octet. */
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /** Overhead added to the length of the name and value of a dynamic table entry (RFC 7541, section 4.1). */
+    static final int ENTRY_OVERHEAD = 32;
+
+    /** Default (and advertised) size of the dynamic table. */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /** The static table (RFC 7541, appendix A), 1-based. */
+    static final String[][] STATIC_TABLE = {
+        null,
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" }
+    };
+
+    /** Number of entries in the static table. */
+    static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length - 1;
+
+    private Hpack() {
+    }
+
+    static Map.Entry<String, String> field(final String name, final String value) {
+        return new SimpleImmutableEntry<>(name, value);
+    }
+
+    /**
+     * Writes an integer with the given prefix size (RFC 7541, section 5.1).
+     *
+     * @param out
+     *         where to write the integer
+     * @param value
+     *         the (non negative) integer
+     * @param prefixBits
+     *         number of bits of the first octet available for the integer
+     * @param mask
+     *         the bits to set in the first octet, before the integer prefix
+     */
+    static void writeInteger(final ByteArrayOutputStream out, final int value, final int prefixBits,
+                             final int mask) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(mask | value);
+            return;
+        }
+        out.write(mask | max);
+        int remaining = value - max;
+        while (remaining >= 0x80) {
+            out.write((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        out.write(remaining);
+    }
+
+    /**
+     * Writes a string literal, without Huffman encoding (RFC 7541, section 5.2).
+     */
+    static void writeString(final ByteArrayOutputStream out, final String value) {
+        byte[] bytes = value.getBytes(ISO_8859_1);
+        writeInteger(out, bytes.length, 7, 0);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** Reads HPACK primitive types from a header block. */
+    static final class Reader {
+        private final byte[] block;
+        private int position;
+
+        Reader(final byte[] block) {
+            this.block = block;
+        }
+
+        boolean hasRemaining() {
+            return position < block.length;
+        }
+
+        /** Returns the next octet without consuming it. */
+        int peek() {
+            return block[position] & 0xff;
+        }
+
+        int readInteger(final int prefixBits) throws Http2Exception {
+            int max = (1 << prefixBits) - 1;
+            int value = readOctet() & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift <= 28; shift += 7) {
+                int octet = readOctet();
+                long next = value + ((long) (octet & 0x7f) << shift);
+                if (next > Integer.MAX_VALUE) {
+                    break;
+                }
+                value = (int) next;
+                if ((octet & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new Http2Exception(COMPRESSION_ERROR, "Integer overflow in header block");
+        }
+
+        String readString() throws Http2Exception {
+            if (!hasRemaining()) {
+                throw new Http2Exception(COMPRESSION_ERROR, "Truncated header block");
+            }
+            boolean huffman = (peek() & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > block.length - position) {
+                throw new Http2Exception(COMPRESSION_ERROR, "Truncated header block");
+            }
+            String value;
+            if (huffman) {
+                value = new String(Huffman.decode(block, position, length), ISO_8859_1);
+            } else {
+                value = new String(block, position, length, ISO_8859_1);
+            }
+            position += length;
+            return value;
+        }
+
+        private int readOctet() throws Http2Exception {
+            if (!hasRemaining()) {
+                throw new Http2Exception(COMPRESSION_ERROR, "Truncated header block");
+            }
+            return block[position++] & 0xff;
+        }
+    }
+}
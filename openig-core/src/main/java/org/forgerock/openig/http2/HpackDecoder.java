@@ -0,0 +1,144 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static org.forgerock.openig.http2.Hpack.ENTRY_OVERHEAD;
+import static org.forgerock.openig.http2.Hpack.STATIC_TABLE;
+import static org.forgerock.openig.http2.Hpack.STATIC_TABLE_LENGTH;
+import static org.forgerock.openig.http2.Hpack.field;
+import static org.forgerock.openig.http2.Http2Exception.COMPRESSION_ERROR;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541). A decoder holds the dynamic table of one direction of a connection: header
+ * blocks have to be decoded in the order they are received, including the ones of discarded streams.
+ */
+final class HpackDecoder {
+
+    /** Dynamic table, the most recent entry first. */
+    private final LinkedList<Map.Entry<String, String>> table = new LinkedList<>();
+
+    /** Upper bound of the dynamic table size, as advertised in our settings. */
+    private final int maxTableSize;
+
+    /** Largest decoded header list accepted. */
+    private final int maxHeaderListSize;
+
+    private int tableSize;
+    private int currentMaxTableSize;
+
+    /**
+     * Builds a new decoder.
+     *
+     * @param maxTableSize
+     *         the maximum size of the dynamic table, as advertised with {@literal SETTINGS_HEADER_TABLE_SIZE}
+     * @param maxHeaderListSize
+     *         the largest decoded header list accepted (sum of the entry sizes)
+     */
+    HpackDecoder(final int maxTableSize, final int maxHeaderListSize) {
+        this.maxTableSize = maxTableSize;
+        this.currentMaxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * Decodes a complete header block.
+     *
+     * @param block
+     *         the header block, concatenated from a {@literal HEADERS} frame and its {@literal CONTINUATION} frames
+     * @return the decoded header fields, in order
+     * @throws Http2Exception
+     *         if the block cannot be decoded: the connection cannot be used anymore
+     */
+    List<Map.Entry<String, String>> decode(final byte[] block) throws Http2Exception {
+        List<Map.Entry<String, String>> fields = new ArrayList<>();
+        Hpack.Reader reader = new Hpack.Reader(block);
+        int listSize = 0;
+        while (reader.hasRemaining()) {
+            int octet = reader.peek();
+            Map.Entry<String, String> field;
+            if ((octet & 0x80) != 0) {
+                // Indexed header field
+                field = get(reader.readInteger(7));
+            } else if ((octet & 0x40) != 0) {
+                // Literal header field with incremental indexing
+                field = readLiteral(reader, 6);
+                add(field);
+            } else if ((octet & 0x20) != 0) {
+                // Dynamic table size update
+                int size = reader.readInteger(5);
+                if (size > maxTableSize) {
+                    throw new Http2Exception(COMPRESSION_ERROR, "Dynamic table size update exceeds the limit");
+                }
+                currentMaxTableSize = size;
+                evict();
+                continue;
+            } else {
+                // Literal header field without indexing, or never indexed
+                field = readLiteral(reader, 4);
+            }
+            listSize += field.getKey().length() + field.getValue().length() + ENTRY_OVERHEAD;
+            if (listSize > maxHeaderListSize) {
+                throw new Http2Exception(COMPRESSION_ERROR, "Header list exceeds " + maxHeaderListSize + " bytes");
+            }
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    private Map.Entry<String, String> readLiteral(final Hpack.Reader reader, final int prefixBits)
+            throws Http2Exception {
+        int index = reader.readInteger(prefixBits);
+        String name = (index == 0) ? reader.readString() : get(index).getKey();
+        return field(name, reader.readString());
+    }
+
+    private Map.Entry<String, String> get(final int index) throws Http2Exception {
+        if (index >= 1 && index <= STATIC_TABLE_LENGTH) {
+            return field(STATIC_TABLE[index][0], STATIC_TABLE[index][1]);
+        }
+        int dynamicIndex = index - STATIC_TABLE_LENGTH - 1;
+        if (dynamicIndex < 0 || dynamicIndex >= table.size()) {
+            throw new Http2Exception(COMPRESSION_ERROR, "Invalid header table index " + index);
+        }
+        return table.get(dynamicIndex);
+    }
+
+    private void add(final Map.Entry<String, String> field) {
+        int size = field.getKey().length() + field.getValue().length() + ENTRY_OVERHEAD;
+        if (size > currentMaxTableSize) {
+            // An entry larger than the table empties it (RFC 7541, section 4.4)
+            table.clear();
+            tableSize = 0;
+            return;
+        }
+        table.addFirst(field);
+        tableSize += size;
+        evict();
+    }
+
+    private void evict() {
+        while (tableSize > currentMaxTableSize) {
+            Map.Entry<String, String> evicted = table.removeLast();
+            tableSize -= evicted.getKey().length() + evicted.getValue().length() + ENTRY_OVERHEAD;
+        }
+    }
+}
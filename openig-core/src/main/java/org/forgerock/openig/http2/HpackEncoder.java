@@ -0,0 +1,78 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static org.forgerock.openig.http2.Hpack.STATIC_TABLE;
+import static org.forgerock.openig.http2.Hpack.STATIC_TABLE_LENGTH;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes HPACK header blocks (RFC 7541). This encoder never inserts entries in the peer's dynamic table and does
+ * not use Huffman coding: it only references the static table, so it holds no state and is thread-safe.
+ */
+final class HpackEncoder {
+
+    /** Index of the static entries, by name and value. */
+    private static final Map<String, Integer> FIELDS = new HashMap<>();
+
+    /** Index of the first static entry with a given name. */
+    private static final Map<String, Integer> NAMES = new HashMap<>();
+
+    static {
+        for (int index = STATIC_TABLE_LENGTH; index >= 1; index--) {
+            String name = STATIC_TABLE[index][0];
+            String value = STATIC_TABLE[index][1];
+            NAMES.put(name, index);
+            if (!value.isEmpty()) {
+                FIELDS.put(name + '\n' + value, index);
+            }
+        }
+    }
+
+    /**
+     * Encodes a header list.
+     *
+     * @param fields
+     *         the header fields, pseudo-header fields first; names have to be lower case
+     * @return the header block
+     */
+    byte[] encode(final List<Map.Entry<String, String>> fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> field : fields) {
+            Integer indexed = FIELDS.get(field.getKey() + '\n' + field.getValue());
+            if (indexed != null) {
+                // Indexed header field
+                Hpack.writeInteger(out, indexed, 7, 0x80);
+                continue;
+            }
+            // Literal header field without indexing
+            Integer name = NAMES.get(field.getKey());
+            if (name != null) {
+                Hpack.writeInteger(out, name, 4, 0x00);
+            } else {
+                out.write(0x00);
+                Hpack.writeString(out, field.getKey());
+            }
+            Hpack.writeString(out, field.getValue());
+        }
+        return out.toByteArray();
+    }
+}
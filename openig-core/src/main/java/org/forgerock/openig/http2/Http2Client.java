@@ -0,0 +1,703 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_CONNECT_TIMEOUT;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_HOSTNAME_VERIFIER;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_KEY_MANAGERS;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_SO_TIMEOUT;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_SSLCONTEXT_ALGORITHM;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_SSL_CIPHER_SUITES;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_SSL_ENABLED_PROTOCOLS;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_TEMPORARY_STORAGE;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_TRUST_MANAGERS;
+import static org.forgerock.openig.http2.Hpack.field;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.HttpApplicationException;
+import org.forgerock.http.MutableUri;
+import org.forgerock.http.apache.async.AsyncHttpClientProvider;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.handler.HttpClientHandler.HostnameVerifier;
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.io.IO;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.http.ConnectionPoolMetrics;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.Factory;
+import org.forgerock.util.Option;
+import org.forgerock.util.Options;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * An HTTP/2 client, sending requests over a few multiplexed connections per server.
+ * <p>
+ * Plain {@literal http} URIs are requested with HTTP/2 over clear-text TCP ({@literal h2c}, with prior knowledge: the
+ * server has to speak HTTP/2 directly), while {@literal https} URIs use HTTP/2 over TLS ({@literal h2}), negotiated
+ * with ALPN (the JVM has to support ALPN: Java 8u252 or later).
+ * <p>
+ * Up to {@link #OPTION_MAX_CONNECTIONS} connections are opened to each server, each one carrying up to
+ * {@link #OPTION_MAX_CONCURRENT_STREAMS} concurrent requests (or less, if the server says so). A new connection is
+ * only opened when all the existing ones are at their concurrent streams limit. When all the connections are busy,
+ * requests wait for a free stream slot. Requests refused by the server before any processing (without a body) are
+ * retried once.
+ * <p>
+ * Request and response bodies are streamed, through a bounded pool of frame-sized buffers recycled as they are
+ * consumed: a slow reader throttles the server with the flow-control windows, and a body is only buffered in the
+ * temporary storage if a filter reads the response entity. With {@link #OPTION_PASS_THROUGH}, response bodies are
+ * never buffered: they can only be read once, as they are handed through to the caller.
+ * <p>
+ * The following {@link HttpClientHandler} options are supported: {@link HttpClientHandler#OPTION_CONNECT_TIMEOUT},
+ * {@link HttpClientHandler#OPTION_SO_TIMEOUT} (also used as the idle connection timeout),
+ * {@link HttpClientHandler#OPTION_TEMPORARY_STORAGE} and the SSL/TLS options. The number of threads sending the
+ * request headers and notifying the responses is given by {@link AsyncHttpClientProvider#OPTION_WORKER_THREADS}.
+ * Request bodies are sent by separate threads, created as needed, as they block while the server does not open the
+ * flow-control windows: a slow upload never delays the other exchanges.
+ *
+ * @see Http2Metrics
+ */
+public final class Http2Client implements Handler, Closeable {
+
+    /** Maximum number of connections per server (defaults to 2). */
+    public static final Option<Integer> OPTION_MAX_CONNECTIONS = Option.withDefault(2);
+
+    /** Maximum number of concurrent streams per connection (defaults to 100). */
+    public static final Option<Integer> OPTION_MAX_CONCURRENT_STREAMS = Option.withDefault(100);
+
+    /** Receive window of the connections and of each stream, in bytes (defaults to 1 MiB). */
+    public static final Option<Integer> OPTION_INITIAL_WINDOW_SIZE = Option.withDefault(1024 * 1024);
+
+    /**
+     * Hands the response bodies through without temporary storage (defaults to {@code false}): for routes that do
+     * not read the entities, which cannot be branched and fail with an {@link IOException} if a filter tries to.
+     */
+    public static final Option<Boolean> OPTION_PASS_THROUGH = Option.withDefault(false);
+
+    /** Connection-specific header fields, that must not be sent over HTTP/2 (RFC 7540, section 8.1.2.2). */
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList("connection",
+                                                                                     "host",
+                                                                                     "keep-alive",
+                                                                                     "proxy-connection",
+                                                                                     "transfer-encoding",
+                                                                                     "upgrade"));
+
+    private static final String HTTP2 = "h2";
+
+    /**
+     * Maximum number of idle buffers kept for the request and response bodies: enough to fill the default receive
+     * window of the connections four times over.
+     */
+    private static final int BUFFER_POOL_CAPACITY = 256;
+
+    /** Storage of the pass-through response bodies, that cannot hold a single byte. */
+    private static final Factory<Buffer> NO_STORAGE = new Factory<Buffer>() {
+        @Override
+        public Buffer newInstance() {
+            return IO.newMemoryBuffer(0, 0);
+        }
+    };
+
+    private final int maxConnections;
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final int connectTimeout;
+    private final int soTimeout;
+    private final Options options;
+    private final Factory<Buffer> storage;
+    private final ExecutorService executor;
+    private final ExecutorService senders;
+    private final BufferPool buffers = new BufferPool(Frame.DEFAULT_MAX_FRAME_SIZE, BUFFER_POOL_CAPACITY);
+    private final Http2Metrics metrics = new Http2Metrics(buffers);
+    private final ConnectionPoolMetrics poolMetrics;
+
+    /** Connection pools, by server (guarded by itself). */
+    private final Map<String, Pool> pools = new HashMap<>();
+
+    private volatile SSLSocketFactory sslSocketFactory;
+    private volatile boolean closed;
+
+    /**
+     * Builds a new HTTP/2 client.
+     *
+     * @param options
+     *         the client options
+     * @throws HttpApplicationException
+     *         if the options are invalid
+     */
+    public Http2Client(final Options options) throws HttpApplicationException {
+        this.options = options;
+        this.maxConnections = options.get(OPTION_MAX_CONNECTIONS);
+        this.maxConcurrentStreams = options.get(OPTION_MAX_CONCURRENT_STREAMS);
+        this.initialWindowSize = options.get(OPTION_INITIAL_WINDOW_SIZE);
+        if (maxConnections <= 0 || maxConcurrentStreams <= 0) {
+            throw new HttpApplicationException("The maximum numbers of connections and of concurrent streams "
+                                                       + "have to be positive");
+        }
+        if (initialWindowSize < Frame.DEFAULT_WINDOW_SIZE) {
+            throw new HttpApplicationException("The initial window size cannot be smaller than "
+                                                       + Frame.DEFAULT_WINDOW_SIZE);
+        }
+        this.connectTimeout = milliseconds(options.get(OPTION_CONNECT_TIMEOUT));
+        this.soTimeout = milliseconds(options.get(OPTION_SO_TIMEOUT));
+        this.storage = options.get(OPTION_PASS_THROUGH) ? NO_STORAGE : options.get(OPTION_TEMPORARY_STORAGE);
+        this.poolMetrics = new ConnectionPoolMetrics(maxConnections * maxConcurrentStreams);
+
+        Integer workers = options.get(AsyncHttpClientProvider.OPTION_WORKER_THREADS);
+        int threads = (workers == null || workers <= 0) ? Runtime.getRuntime().availableProcessors() : workers;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "OpenIG-HTTP2-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.senders = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "OpenIG-HTTP2-sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static int milliseconds(final Duration duration) {
+        if (duration == null || duration.isUnlimited()) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, duration.to(MILLISECONDS));
+    }
+
+    /**
+     * Returns the connection and stream metrics of this client.
+     *
+     * @return the connection and stream metrics of this client
+     */
+    public Http2Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the per-server pool metrics of this client: a request leases a stream slot, and the capacity of a
+     * server is its maximum number of connections times the maximum number of concurrent streams per connection.
+     *
+     * @return the per-server pool metrics of this client
+     */
+    public ConnectionPoolMetrics getPoolMetrics() {
+        return poolMetrics;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        final Exchange exchange;
+        try {
+            exchange = new Exchange(request, pool(request.getUri()));
+        } catch (IOException e) {
+            return Response.newResponsePromise(failure(e));
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                exchange.pool.submit(exchange);
+            }
+        }, exchange);
+        return exchange.promise;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        List<Pool> closing;
+        synchronized (pools) {
+            closing = new ArrayList<>(pools.values());
+            pools.clear();
+        }
+        for (Pool pool : closing) {
+            pool.close();
+        }
+        executor.shutdown();
+        senders.shutdown();
+    }
+
+    private Pool pool(final MutableUri uri) throws IOException {
+        String scheme = (uri.getScheme() == null) ? "http" : uri.getScheme().toLowerCase(Locale.ROOT);
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            throw new IOException("Unsupported scheme: " + scheme);
+        }
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        String key = scheme + "://" + uri.getHost() + ":" + port;
+        synchronized (pools) {
+            if (closed) {
+                throw new IOException("The HTTP/2 client is closed");
+            }
+            Pool pool = pools.get(key);
+            if (pool == null) {
+                pool = new Pool(scheme, uri.getHost(), port, key);
+                pools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /** Runs a task on the worker threads, failing the exchange (if any) if the client is shut down. */
+    private void execute(final Runnable task, final Exchange exchange) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (exchange != null) {
+                exchange.complete(failure(new IOException("The HTTP/2 client is closed", e)));
+            }
+        }
+    }
+
+    private static Response failure(final IOException cause) {
+        return new Response(Status.BAD_GATEWAY).setCause(cause);
+    }
+
+    private Http2Connection connect(final Pool pool) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(pool.host, pool.port), connectTimeout);
+            socket.setSoTimeout(soTimeout);
+            if ("https".equals(pool.scheme)) {
+                socket = handshake(socket, pool);
+            }
+            Http2Connection connection = new Http2Connection(socket,
+                                                             pool.key,
+                                                             pool,
+                                                             metrics,
+                                                             buffers,
+                                                             senders,
+                                                             maxConcurrentStreams,
+                                                             initialWindowSize);
+            connection.start();
+            return connection;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // The connection attempt failed anyway
+            }
+            throw e;
+        }
+    }
+
+    private Socket handshake(final Socket socket, final Pool pool) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) sslSocketFactory().createSocket(socket, pool.host, pool.port, true);
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        List<String> protocols = options.get(OPTION_SSL_ENABLED_PROTOCOLS);
+        if (protocols != null && !protocols.isEmpty()) {
+            parameters.setProtocols(protocols.toArray(new String[protocols.size()]));
+        }
+        List<String> cipherSuites = options.get(OPTION_SSL_CIPHER_SUITES);
+        if (cipherSuites != null && !cipherSuites.isEmpty()) {
+            parameters.setCipherSuites(cipherSuites.toArray(new String[cipherSuites.size()]));
+        }
+        if (options.get(OPTION_HOSTNAME_VERIFIER) == HostnameVerifier.STRICT) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        // ALPN is not part of the Java 7 API: reflection is used to reach it when the JVM supports it
+        try {
+            Method setApplicationProtocols = SSLParameters.class.getMethod("setApplicationProtocols",
+                                                                           String[].class);
+            setApplicationProtocols.invoke(parameters, (Object) new String[] { HTTP2 });
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IOException("HTTP/2 over TLS requires ALPN, which is not supported by this JVM", e);
+        }
+        sslSocket.setSSLParameters(parameters);
+        sslSocket.startHandshake();
+        Object negotiated;
+        try {
+            negotiated = SSLSocket.class.getMethod("getApplicationProtocol").invoke(sslSocket);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IOException("HTTP/2 over TLS requires ALPN, which is not supported by this JVM", e);
+        }
+        if (!HTTP2.equals(negotiated)) {
+            throw new IOException(pool.key + " did not negotiate HTTP/2 (ALPN protocol: '" + negotiated + "')");
+        }
+        return sslSocket;
+    }
+
+    private SSLSocketFactory sslSocketFactory() throws IOException {
+        if (sslSocketFactory == null) {
+            try {
+                SSLContext context = SSLContext.getInstance(options.get(OPTION_SSLCONTEXT_ALGORITHM));
+                context.init(options.get(OPTION_KEY_MANAGERS), options.get(OPTION_TRUST_MANAGERS), null);
+                sslSocketFactory = context.getSocketFactory();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot initialize the SSL context", e);
+            }
+        }
+        return sslSocketFactory;
+    }
+
+    /** Builds the HTTP/2 header list of a request. */
+    private static List<Map.Entry<String, String>> headers(final Request request) {
+        MutableUri uri = request.getUri();
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+        if (uri.getRawQuery() != null) {
+            path = path + "?" + uri.getRawQuery();
+        }
+        String authority = (uri.getPort() == -1) ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+
+        List<Map.Entry<String, String>> fields = new ArrayList<>();
+        fields.add(field(":method", request.getMethod() == null ? "GET" : request.getMethod()));
+        fields.add(field(":scheme", uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase(Locale.ROOT)));
+        fields.add(field(":authority", authority));
+        fields.add(field(":path", path));
+        for (Header header : request.getHeaders().asMapOfHeaders().values()) {
+            String name = header.getName().toLowerCase(Locale.ROOT);
+            if (CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            for (String value : header.getValues()) {
+                if ("te".equals(name) && !"trailers".equalsIgnoreCase(value)) {
+                    continue;
+                }
+                fields.add(field(name, value));
+            }
+        }
+        return fields;
+    }
+
+    /** The connections to a server, and the requests waiting for a stream slot. */
+    private final class Pool implements Http2Connection.Listener {
+        private final String scheme;
+        private final String host;
+        private final int port;
+        private final String key;
+        private final ConnectionPoolMetrics.Host hostMetrics;
+
+        // The following fields are guarded by this pool
+
+        private final List<Http2Connection> connections = new ArrayList<>();
+        private final ArrayDeque<Exchange> pending = new ArrayDeque<>();
+        private int connecting;
+
+        private Pool(final String scheme, final String host, final int port, final String key) {
+            this.scheme = scheme;
+            this.host = host;
+            this.port = port;
+            this.key = key;
+            this.hostMetrics = poolMetrics.host(key);
+            hostMetrics.setIdleConnections(new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return idleConnections();
+                }
+            });
+        }
+
+        private synchronized int idleConnections() {
+            int idle = 0;
+            for (Http2Connection connection : connections) {
+                if (connection.getLoad() == 0) {
+                    idle++;
+                }
+            }
+            return idle;
+        }
+
+        /** Sends the exchange on a free stream slot, or queues it. */
+        void submit(final Exchange exchange) {
+            Http2Connection connection;
+            boolean open = false;
+            synchronized (this) {
+                connection = reserve();
+                if (connection == null) {
+                    pending.add(exchange);
+                    metrics.getPendingStreams().inc();
+                    hostMetrics.waiting();
+                    if (connections.size() + connecting < maxConnections) {
+                        connecting++;
+                        open = true;
+                    }
+                }
+            }
+            if (connection != null) {
+                exchange.leased(false);
+                connection.send(exchange);
+            } else if (open) {
+                open();
+            }
+        }
+
+        /** Reserves a stream slot on the least loaded connection, if any. */
+        private Http2Connection reserve() {
+            List<Http2Connection> candidates = new ArrayList<>(connections);
+            Collections.sort(candidates, new Comparator<Http2Connection>() {
+                @Override
+                public int compare(final Http2Connection c1, final Http2Connection c2) {
+                    return Integer.compare(c1.getLoad(), c2.getLoad());
+                }
+            });
+            for (Http2Connection connection : candidates) {
+                if (connection.tryReserve()) {
+                    return connection;
+                }
+            }
+            return null;
+        }
+
+        private void open() {
+            Http2Connection connection;
+            long started = System.nanoTime();
+            try {
+                connection = connect(this);
+            } catch (IOException e) {
+                metrics.getFailedConnections().inc();
+                hostMetrics.connectFailed();
+                List<Exchange> failed = new ArrayList<>();
+                synchronized (this) {
+                    connecting--;
+                    if (connections.isEmpty() && connecting == 0) {
+                        // No connection to wait for
+                        failed.addAll(pending);
+                        pending.clear();
+                    }
+                }
+                for (Exchange exchange : failed) {
+                    metrics.getPendingStreams().dec();
+                    hostMetrics.abandoned();
+                    exchange.complete(failure(e));
+                }
+                return;
+            }
+            hostMetrics.connected(NANOSECONDS.toMicros(System.nanoTime() - started));
+            synchronized (this) {
+                connecting--;
+                connections.add(connection);
+            }
+            if (closed) {
+                connection.close(new IOException("The HTTP/2 client is closed"));
+            }
+            drain();
+        }
+
+        @Override
+        public void capacityChanged(final Http2Connection connection) {
+            boolean removed = false;
+            synchronized (this) {
+                if (!connection.isUsable()) {
+                    removed = connections.remove(connection);
+                }
+            }
+            if (removed) {
+                hostMetrics.disconnected();
+            }
+            drain();
+        }
+
+        /** Hands the pending exchanges over to the worker threads, as long as stream slots are available. */
+        private void drain() {
+            while (true) {
+                final Exchange exchange;
+                final Http2Connection connection;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    connection = reserve();
+                    if (connection == null) {
+                        if (closed || connections.size() + connecting >= maxConnections) {
+                            return;
+                        }
+                        connecting++;
+                        exchange = null;
+                    } else {
+                        exchange = pending.poll();
+                    }
+                }
+                if (exchange == null) {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            open();
+                        }
+                    }, null);
+                    return;
+                }
+                metrics.getPendingStreams().dec();
+                exchange.leased(true);
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.send(exchange);
+                    }
+                }, exchange);
+            }
+        }
+
+        void close() {
+            List<Http2Connection> closing;
+            List<Exchange> failed;
+            synchronized (this) {
+                closing = new ArrayList<>(connections);
+                connections.clear();
+                failed = new ArrayList<>(pending);
+                pending.clear();
+            }
+            IOException cause = new IOException("The HTTP/2 client is closed");
+            for (Exchange exchange : failed) {
+                metrics.getPendingStreams().dec();
+                hostMetrics.abandoned();
+                exchange.complete(failure(cause));
+            }
+            for (Http2Connection connection : closing) {
+                hostMetrics.disconnected();
+                connection.close(cause);
+            }
+        }
+    }
+
+    /** A request/response exchange, bound to its stream. */
+    private final class Exchange extends Http2Stream {
+        private final Request request;
+        private final Pool pool;
+        private final PromiseImpl<Response, NeverThrowsException> promise;
+        private final boolean retry;
+        private final long submitted = System.nanoTime();
+
+        Exchange(final Request request, final Pool pool) {
+            this(request, pool, PromiseImpl.<Response, NeverThrowsException>create(), false);
+        }
+
+        private Exchange(final Request request,
+                         final Pool pool,
+                         final PromiseImpl<Response, NeverThrowsException> promise,
+                         final boolean retry) {
+            super(headers(request), body(request));
+            this.request = request;
+            this.pool = pool;
+            this.promise = promise;
+            this.retry = retry;
+        }
+
+        /** Records that this exchange acquired a stream slot, possibly after waiting for it. */
+        void leased(final boolean waited) {
+            pool.hostMetrics.acquired(NANOSECONDS.toMicros(System.nanoTime() - submitted), waited);
+        }
+
+        @Override
+        void onReleased() {
+            pool.hostMetrics.released();
+        }
+
+        @Override
+        void onResponse(final int status, final List<Map.Entry<String, String>> headers) {
+            Response response = new Response(Status.valueOf(status));
+            response.setVersion("HTTP/2.0");
+            // Set the entity before the headers: setting an entity stream removes the Content-Length header
+            response.setEntity(IO.newBranchingInputStream(getBody(), storage));
+            for (Map.Entry<String, String> header : headers) {
+                response.getHeaders().add(header.getKey(), header.getValue());
+            }
+            complete(response);
+        }
+
+        @Override
+        void onFailure(final IOException cause, final boolean refused) {
+            if (refused && !retry && requestBody == null && !closed) {
+                final Exchange retried = new Exchange(request, pool, promise, true);
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pool.submit(retried);
+                    }
+                }, retried);
+                return;
+            }
+            complete(failure(cause));
+        }
+
+        /** Completes the promise on a worker thread, so that the connection reader is never blocked. */
+        void complete(final Response response) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleResult(response);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                handleResult(response);
+            }
+        }
+
+        private void handleResult(final Response response) {
+            if (promise.isCancelled()) {
+                response.close();
+                return;
+            }
+            promise.handleResult(response);
+        }
+    }
+
+    private static InputStream body(final Request request) {
+        if (request.getEntity().isRawContentEmpty()) {
+            return null;
+        }
+        return request.getEntity().getRawContentInputStream();
+    }
+}
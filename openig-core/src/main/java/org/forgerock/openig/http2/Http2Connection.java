@@ -0,0 +1,1014 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static org.forgerock.openig.http2.Frame.CLIENT_PREFACE;
+import static org.forgerock.openig.http2.Frame.CONTINUATION;
+import static org.forgerock.openig.http2.Frame.DATA;
+import static org.forgerock.openig.http2.Frame.DEFAULT_MAX_FRAME_SIZE;
+import static org.forgerock.openig.http2.Frame.DEFAULT_WINDOW_SIZE;
+import static org.forgerock.openig.http2.Frame.FLAG_ACK;
+import static org.forgerock.openig.http2.Frame.FLAG_END_HEADERS;
+import static org.forgerock.openig.http2.Frame.FLAG_END_STREAM;
+import static org.forgerock.openig.http2.Frame.GOAWAY;
+import static org.forgerock.openig.http2.Frame.HEADERS;
+import static org.forgerock.openig.http2.Frame.MAX_FRAME_SIZE;
+import static org.forgerock.openig.http2.Frame.MAX_WINDOW_SIZE;
+import static org.forgerock.openig.http2.Frame.PING;
+import static org.forgerock.openig.http2.Frame.PUSH_PROMISE;
+import static org.forgerock.openig.http2.Frame.RST_STREAM;
+import static org.forgerock.openig.http2.Frame.SETTINGS;
+import static org.forgerock.openig.http2.Frame.SETTINGS_ENABLE_PUSH;
+import static org.forgerock.openig.http2.Frame.SETTINGS_INITIAL_WINDOW_SIZE;
+import static org.forgerock.openig.http2.Frame.SETTINGS_MAX_CONCURRENT_STREAMS;
+import static org.forgerock.openig.http2.Frame.SETTINGS_MAX_FRAME_SIZE;
+import static org.forgerock.openig.http2.Frame.SETTINGS_MAX_HEADER_LIST_SIZE;
+import static org.forgerock.openig.http2.Frame.WINDOW_UPDATE;
+import static org.forgerock.openig.http2.Http2Exception.CANCEL;
+import static org.forgerock.openig.http2.Http2Exception.FLOW_CONTROL_ERROR;
+import static org.forgerock.openig.http2.Http2Exception.FRAME_SIZE_ERROR;
+import static org.forgerock.openig.http2.Http2Exception.NO_ERROR;
+import static org.forgerock.openig.http2.Http2Exception.PROTOCOL_ERROR;
+import static org.forgerock.openig.http2.Http2Exception.REFUSED_STREAM;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A client HTTP/2 connection (RFC 7540), multiplexing concurrent {@link Http2Stream}s over a single socket.
+ * <p>
+ * Frames are read by a dedicated reader thread, and written by a dedicated writer thread to which every frame is
+ * queued: the reader never waits for a write, so that a server that stops reading while it is blocked writing cannot
+ * deadlock the connection. {@link #send(Http2Stream)} queues the request headers and returns, the request body (if
+ * any) is then sent by a thread of the senders executor. A stream slot has to be reserved with {@link #tryReserve()}
+ * before sending: the number of concurrent streams is bounded by both the local limit and the server's
+ * {@literal SETTINGS_MAX_CONCURRENT_STREAMS}.
+ * <p>
+ * Flow control: request bodies are sent as the server opens the connection and stream windows, each sender waiting for
+ * its DATA frames to be written before reading more of the body. Received data is acknowledged at the connection level
+ * as soon as it is read from the socket, and at the stream level as the response body is consumed.
+ * <p>
+ * The socket read timeout doubles as an idle timeout: an idle connection is closed, while a connection that has
+ * active streams is failed.
+ */
+final class Http2Connection implements Runnable {
+
+    /** Notified of the changes of the connection capacity. */
+    interface Listener {
+        /**
+         * Called when stream slots have been released, or when the connection cannot accept new streams anymore.
+         *
+         * @param connection
+         *         the connection whose capacity changed
+         */
+        void capacityChanged(Http2Connection connection);
+    }
+
+    /** Largest response header list accepted, as advertised with {@literal SETTINGS_MAX_HEADER_LIST_SIZE}. */
+    static final int MAX_HEADER_LIST_SIZE = 256 * 1024;
+
+    /** Longest time spent trying to send a GOAWAY frame before closing the socket, in milliseconds. */
+    private static final int GOAWAY_TIMEOUT = 1000;
+
+    /** Stops the writer thread once the connection is closed. */
+    private static final Write SHUTDOWN = new Write() {
+        @Override
+        void writeTo(final OutputStream out) {
+            // Nothing to write
+        }
+    };
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final String authority;
+    private final Listener listener;
+    private final Http2Metrics metrics;
+    private final BufferPool buffers;
+    private final Executor senders;
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final int readTimeout;
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+
+    /** The frames to write, in order, only taken by the writer thread. */
+    private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+
+    // The following fields are guarded by this connection
+
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    private int reserved;
+    private int nextStreamId = 1;
+    private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private boolean goingAway;
+    private boolean closed;
+
+    // The following fields are only used by the reader thread
+
+    private long receiveWindow;
+    private int unacknowledged;
+
+    /**
+     * Builds a new connection over a connected socket. {@link #start()} has to be called before using it.
+     *
+     * @param socket
+     *         the connected socket, TLS handshake done if any
+     * @param authority
+     *         the authority of the server, used to name the reader thread
+     * @param listener
+     *         notified of the changes of the connection capacity
+     * @param metrics
+     *         the metrics to update
+     * @param buffers
+     *         the pool of the buffers carrying the request and response bodies
+     * @param senders
+     *         runs the tasks sending the request bodies, which block while waiting for the flow-control windows
+     * @param maxConcurrentStreams
+     *         the local bound of concurrent streams
+     * @param initialWindowSize
+     *         the receive window of the connection and of each stream
+     * @throws IOException
+     *         if the socket streams cannot be obtained
+     */
+    Http2Connection(final Socket socket,
+                    final String authority,
+                    final Listener listener,
+                    final Http2Metrics metrics,
+                    final BufferPool buffers,
+                    final Executor senders,
+                    final int maxConcurrentStreams,
+                    final int initialWindowSize) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), DEFAULT_MAX_FRAME_SIZE + 9);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_MAX_FRAME_SIZE + 9);
+        this.authority = authority;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.buffers = buffers;
+        this.senders = senders;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.initialWindowSize = initialWindowSize;
+        this.readTimeout = socket.getSoTimeout();
+    }
+
+    /**
+     * Sends the connection preface and starts reading and writing frames.
+     *
+     * @throws IOException
+     *         if the preface cannot be sent
+     */
+    void start() throws IOException {
+        // No other thread writes yet
+        out.write(CLIENT_PREFACE);
+        Frame.settings(SETTINGS_ENABLE_PUSH, 0,
+                       SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize,
+                       SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE).write(out);
+        receiveWindow = DEFAULT_WINDOW_SIZE;
+        if (initialWindowSize > DEFAULT_WINDOW_SIZE) {
+            // The connection window can only be changed with a WINDOW_UPDATE
+            Frame.windowUpdate(0, initialWindowSize - DEFAULT_WINDOW_SIZE).write(out);
+            receiveWindow = initialWindowSize;
+        }
+        out.flush();
+        metrics.getOpenedConnections().inc();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeFrames();
+            }
+        }, "OpenIG-HTTP2-writer-" + authority);
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(this, "OpenIG-HTTP2-" + authority);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reserves a stream slot, to be used with {@link #send(Http2Stream)}.
+     *
+     * @return {@code true} if a slot has been reserved, {@code false} if the connection is at its concurrent streams
+     * limit or does not accept new streams anymore
+     */
+    synchronized boolean tryReserve() {
+        if (closed || goingAway || reserved >= Math.min(maxConcurrentStreams, peerMaxConcurrentStreams)) {
+            return false;
+        }
+        reserved++;
+        return true;
+    }
+
+    /**
+     * Returns the number of reserved stream slots, including the open streams.
+     *
+     * @return the number of reserved stream slots
+     */
+    synchronized int getLoad() {
+        return reserved;
+    }
+
+    /**
+     * Returns {@code true} if this connection may accept new streams, now or once some streams are over.
+     *
+     * @return {@code true} if this connection may accept new streams
+     */
+    synchronized boolean isUsable() {
+        return !closed && !goingAway;
+    }
+
+    /** Returns the socket read timeout, in milliseconds ({@literal 0} means no timeout). */
+    int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Opens a stream: queues the request headers, and hands the request body (if any) over to a sender. A stream slot
+     * must have been reserved first. This method does not block, the outcome is notified to the stream.
+     *
+     * @param stream
+     *         the stream to open
+     */
+    void send(final Http2Stream stream) {
+        final byte[] block = encoder.encode(stream.requestHeaders);
+        final boolean endStream = stream.requestBody == null;
+        int id = -1;
+        synchronized (this) {
+            if (closed || goingAway) {
+                reserved--;
+            } else {
+                id = nextStreamId;
+                nextStreamId += 2;
+                if (nextStreamId < 0) {
+                    // Stream identifiers exhausted: this connection has to be replaced
+                    goingAway = true;
+                }
+                streams.put(id, stream);
+                stream.opened(this, id, peerInitialWindowSize, initialWindowSize);
+                stream.localClosed = endStream;
+                // Stream identifiers have to be sent in increasing order: queued along with their allocation
+                final int streamId = id;
+                writes.add(new Write() {
+                    @Override
+                    void writeTo(final OutputStream out) throws IOException {
+                        writeHeaders(streamId, block, endStream);
+                    }
+                });
+            }
+        }
+        if (id == -1) {
+            stream.onReleased();
+            stream.failed(new IOException("The HTTP/2 connection to " + authority + " is closing"), true);
+            return;
+        }
+        metrics.getTotalStreams().inc();
+        metrics.getActiveStreams().inc();
+        if (!endStream) {
+            try {
+                senders.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendBody(stream);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                reset(stream, CANCEL, new IOException("The HTTP/2 client is closed", e));
+                closeRequestBody(stream);
+            }
+        }
+    }
+
+    private void writeHeaders(final int id, final byte[] block, final boolean endStream) throws IOException {
+        int maxFrameSize;
+        synchronized (this) {
+            maxFrameSize = peerMaxFrameSize;
+        }
+        int length = Math.min(block.length, maxFrameSize);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+        Frame.write(out, HEADERS, flags, id, block, 0, length);
+        for (int offset = length; offset < block.length; offset += length) {
+            length = Math.min(block.length - offset, maxFrameSize);
+            flags = (offset + length == block.length) ? FLAG_END_HEADERS : 0;
+            Frame.write(out, CONTINUATION, flags, id, block, offset, length);
+        }
+    }
+
+    private void sendBody(final Http2Stream stream) {
+        byte[] buffer = buffers.acquire();
+        try {
+            int read;
+            while ((read = readRequestBody(stream, buffer)) != -1) {
+                for (int offset = 0; offset < read;) {
+                    int length = acquireSendWindow(stream, read - offset);
+                    if (length == 0) {
+                        // The stream is over (response received, reset or connection failed)
+                        cancel(stream);
+                        return;
+                    }
+                    writeData(stream, buffer, offset, length, false);
+                    offset += length;
+                }
+            }
+            writeData(stream, buffer, 0, 0, true);
+            release(stream);
+        } catch (RequestBodyException e) {
+            reset(stream, CANCEL, e.getReadFailure());
+        } catch (SocketTimeoutException e) {
+            reset(stream, CANCEL, e);
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            // The frames have been written (or the connection failed): the buffer is not referenced anymore
+            buffers.release(buffer);
+            closeRequestBody(stream);
+        }
+    }
+
+    private static void closeRequestBody(final Http2Stream stream) {
+        try {
+            stream.requestBody.close();
+        } catch (IOException e) {
+            // Ignored
+        }
+    }
+
+    /**
+     * Queues a DATA frame and waits for it to be written, so that its buffer can be reused. The frame is dropped if
+     * the stream has been reset in the meantime.
+     */
+    private void writeData(final Http2Stream stream,
+                           final byte[] buffer,
+                           final int offset,
+                           final int length,
+                           final boolean endStream) throws IOException {
+        Write write = new Write() {
+            @Override
+            void writeTo(final OutputStream out) throws IOException {
+                synchronized (Http2Connection.this) {
+                    if (stream.localClosed) {
+                        return;
+                    }
+                    if (endStream) {
+                        stream.localClosed = true;
+                    }
+                }
+                Frame.write(out, DATA, endStream ? FLAG_END_STREAM : 0, stream.id, buffer, offset, length);
+            }
+        };
+        enqueue(write);
+        write.await(0);
+    }
+
+    /** Distinguishes failures reading the request body from failures writing to the connection. */
+    private static final class RequestBodyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final IOException cause;
+
+        RequestBodyException(final IOException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+
+        IOException getReadFailure() {
+            return cause;
+        }
+    }
+
+    private static int readRequestBody(final Http2Stream stream, final byte[] buffer) throws RequestBodyException {
+        try {
+            return stream.requestBody.read(buffer);
+        } catch (IOException e) {
+            throw new RequestBodyException(e);
+        }
+    }
+
+    /**
+     * Waits for the connection and stream send windows to open, and consumes them.
+     *
+     * @return the number of bytes that can be sent, {@literal 0} if the stream is over
+     */
+    private synchronized int acquireSendWindow(final Http2Stream stream, final int wanted) throws IOException {
+        long deadline = System.currentTimeMillis() + readTimeout;
+        boolean stalled = false;
+        while (!closed && !stream.remoteClosed && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+            if (!stalled) {
+                stalled = true;
+                metrics.getFlowControlStalls().inc();
+            }
+            long remaining = (readTimeout == 0) ? 0 : deadline - System.currentTimeMillis();
+            if (readTimeout != 0 && remaining <= 0) {
+                throw new SocketTimeoutException("The flow-control window of HTTP/2 stream " + stream.id
+                                                         + " has not been updated within " + readTimeout + " ms");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the HTTP/2 flow-control window");
+            }
+        }
+        if (closed || stream.remoteClosed) {
+            return 0;
+        }
+        int length = (int) Math.min(Math.min(wanted, peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+        sendWindow -= length;
+        stream.sendWindow -= length;
+        return length;
+    }
+
+    /**
+     * Acknowledges the response body bytes consumed from the given stream, if enough of them have been consumed.
+     *
+     * @param stream
+     *         the stream whose body has been read
+     */
+    void consumed(final Http2Stream stream) {
+        int increment = stream.windowUpdate(initialWindowSize / 2);
+        if (increment > 0) {
+            writeFrame(Frame.windowUpdate(stream.id, increment));
+        }
+    }
+
+    /**
+     * Gives back a buffer holding received data, once the data has been consumed or discarded.
+     *
+     * @param buffer
+     *         the buffer to give back
+     */
+    void recycle(final byte[] buffer) {
+        buffers.release(buffer);
+    }
+
+    /**
+     * Resets the given stream with a {@literal CANCEL} error code, unless it is already over on both sides.
+     *
+     * @param stream
+     *         the stream to cancel
+     */
+    void cancel(final Http2Stream stream) {
+        reset(stream, CANCEL, new IOException("HTTP/2 stream cancelled"));
+    }
+
+    private void reset(final Http2Stream stream, final int errorCode, final IOException cause) {
+        synchronized (this) {
+            if (closed || (stream.localClosed && stream.remoteClosed) || !streams.containsKey(stream.id)) {
+                return;
+            }
+            stream.localClosed = true;
+            stream.remoteClosed = true;
+        }
+        writeFrame(Frame.rstStream(stream.id, errorCode));
+        if (errorCode != CANCEL) {
+            metrics.getResetStreams().inc();
+        }
+        stream.failed(cause, false);
+        release(stream);
+    }
+
+    /** Releases the slot of the stream if it is over on both sides. */
+    private void release(final Http2Stream stream) {
+        boolean shutdown;
+        synchronized (this) {
+            if (!stream.localClosed || !stream.remoteClosed || streams.remove(stream.id) == null) {
+                return;
+            }
+            reserved--;
+            metrics.getActiveStreams().dec();
+            shutdown = goingAway && streams.isEmpty();
+            // Wakes up the senders waiting for this stream's window
+            notifyAll();
+        }
+        stream.onReleased();
+        if (shutdown) {
+            close(new IOException("HTTP/2 connection to " + authority + " closed after GOAWAY"));
+        } else {
+            listener.capacityChanged(this);
+        }
+    }
+
+    /**
+     * Closes this connection, failing its streams.
+     *
+     * @param cause
+     *         the failure notified to the open streams
+     */
+    void close(final IOException cause) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        goAway(NO_ERROR, cause);
+    }
+
+    /**
+     * Sends a GOAWAY frame and fails the connection. Waits a bit for the frames queued before it to be written: this
+     * connection has no active stream anymore, or is broken, so the reader has nothing else to process meanwhile.
+     */
+    private void goAway(final int errorCode, final IOException cause) {
+        final Frame frame = Frame.goAway(0, errorCode);
+        Write write = new Write() {
+            @Override
+            void writeTo(final OutputStream out) throws IOException {
+                frame.write(out);
+                out.flush();
+            }
+        };
+        enqueue(write);
+        try {
+            write.await(GOAWAY_TIMEOUT);
+        } catch (IOException e) {
+            // The connection is closed anyway
+        }
+        fail(cause);
+    }
+
+    private void fail(final IOException cause) {
+        List<Http2Stream> failed;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failed = new ArrayList<>(streams.values());
+            streams.clear();
+            reserved -= failed.size();
+            notifyAll();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignored
+        }
+        // No write is queued anymore: the pending ones are notified of the failure
+        List<Write> dropped = new ArrayList<>();
+        writes.drainTo(dropped);
+        writes.add(SHUTDOWN);
+        for (Write write : dropped) {
+            write.done(cause);
+        }
+        metrics.getClosedConnections().inc();
+        metrics.getActiveStreams().dec(failed.size());
+        metrics.getResetStreams().inc(failed.size());
+        for (Http2Stream stream : failed) {
+            stream.onReleased();
+            stream.failed(cause, false);
+        }
+        listener.capacityChanged(this);
+    }
+
+    /** Queues a frame for the writer thread, without waiting for it to be written. */
+    private void writeFrame(final Frame frame) {
+        enqueue(frame(frame));
+    }
+
+    private static Write frame(final Frame frame) {
+        return new Write() {
+            @Override
+            void writeTo(final OutputStream out) throws IOException {
+                frame.write(out);
+            }
+        };
+    }
+
+    private void enqueue(final Write write) {
+        synchronized (this) {
+            if (!closed) {
+                writes.add(write);
+                return;
+            }
+        }
+        write.done(new IOException("The HTTP/2 connection to " + authority + " is closed"));
+    }
+
+    /** Writes the queued frames until the connection is closed, flushing the socket whenever the queue is empty. */
+    private void writeFrames() {
+        Write write = null;
+        try {
+            while (true) {
+                write = writes.poll();
+                if (write == null) {
+                    out.flush();
+                    write = writes.take();
+                }
+                if (write == SHUTDOWN) {
+                    return;
+                }
+                write.writeTo(out);
+                write.done(null);
+                write = null;
+            }
+        } catch (IOException e) {
+            if (write != null) {
+                write.done(e);
+            }
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new InterruptedIOException("HTTP/2 connection writer interrupted"));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Frame frame;
+                try {
+                    frame = Frame.read(in, DEFAULT_MAX_FRAME_SIZE, buffers);
+                } catch (SocketTimeoutException e) {
+                    synchronized (this) {
+                        if (!streams.isEmpty()) {
+                            throw e;
+                        }
+                    }
+                    close(new IOException("Idle HTTP/2 connection to " + authority + " closed"));
+                    return;
+                }
+                if (frame == null) {
+                    throw new EOFException("HTTP/2 connection to " + authority + " closed by the server");
+                }
+                handle(frame);
+            }
+        } catch (Http2Exception e) {
+            goAway(e.getErrorCode(), e);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void handle(final Frame frame) throws IOException {
+        switch (frame.type) {
+        case DATA:
+            onData(frame);
+            break;
+        case HEADERS:
+            onHeaders(frame);
+            break;
+        case RST_STREAM:
+            onRstStream(frame);
+            break;
+        case SETTINGS:
+            onSettings(frame);
+            break;
+        case PING:
+            if (frame.length != 8) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid PING frame");
+            }
+            if (!frame.hasFlag(FLAG_ACK)) {
+                writeFrame(new Frame(PING, FLAG_ACK, 0, frame.payload));
+            }
+            break;
+        case GOAWAY:
+            onGoAway(frame);
+            break;
+        case WINDOW_UPDATE:
+            onWindowUpdate(frame);
+            break;
+        case PUSH_PROMISE:
+            throw new Http2Exception(PROTOCOL_ERROR, "Server push has been disabled");
+        case CONTINUATION:
+            throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+        default:
+            // PRIORITY and unknown frame types are ignored
+            break;
+        }
+    }
+
+    private void onData(final Frame frame) throws IOException {
+        // The payload is a pooled buffer: it is either handed over to the stream, or given back here
+        boolean handedOver = false;
+        try {
+            int length = frame.length;
+            int offset = frame.contentOffset();
+            int contentLength = frame.contentLength();
+            receiveWindow -= length;
+            if (receiveWindow < 0) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection receive window exceeded");
+            }
+            unacknowledged += length;
+            if (unacknowledged >= initialWindowSize / 2) {
+                writeFrame(Frame.windowUpdate(0, unacknowledged));
+                receiveWindow += unacknowledged;
+                unacknowledged = 0;
+            }
+            Http2Stream stream = activeStream(frame.streamId);
+            if (stream == null) {
+                // Data of a closed stream only counts for the connection window
+                return;
+            }
+            if (!stream.hasResponded()) {
+                reset(stream, PROTOCOL_ERROR, new Http2Exception(PROTOCOL_ERROR, "DATA received before HEADERS"));
+                return;
+            }
+            handedOver = true;
+            if (!stream.received(frame.payload, offset, contentLength, length)) {
+                reset(stream, FLOW_CONTROL_ERROR, new Http2Exception(FLOW_CONTROL_ERROR, "Stream window exceeded"));
+                return;
+            }
+            // Acknowledges the padding, if any
+            consumed(stream);
+            if (frame.hasFlag(FLAG_END_STREAM)) {
+                remoteEnded(stream);
+            }
+        } finally {
+            if (!handedOver) {
+                buffers.release(frame.payload);
+            }
+        }
+    }
+
+    private void onHeaders(final Frame first) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(first.content());
+        Frame frame = first;
+        while (!frame.hasFlag(FLAG_END_HEADERS)) {
+            frame = Frame.read(in, DEFAULT_MAX_FRAME_SIZE);
+            if (frame == null) {
+                throw new EOFException("HTTP/2 connection to " + authority + " closed by the server");
+            }
+            if (frame.type != CONTINUATION || frame.streamId != first.streamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Expected a CONTINUATION frame");
+            }
+            if (block.size() + frame.length > MAX_HEADER_LIST_SIZE) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Header block exceeds " + MAX_HEADER_LIST_SIZE + " bytes");
+            }
+            block.write(frame.payload);
+        }
+        // The block has to be decoded even if the stream is gone, to keep the decoder state in sync
+        List<Map.Entry<String, String>> fields = decoder.decode(block.toByteArray());
+        Http2Stream stream = activeStream(first.streamId);
+        if (stream == null) {
+            return;
+        }
+        boolean endStream = first.hasFlag(FLAG_END_STREAM);
+        if (!stream.hasResponded()) {
+            int status = status(fields);
+            if (status == -1 || (status < 200 && endStream)) {
+                reset(stream, PROTOCOL_ERROR, new Http2Exception(PROTOCOL_ERROR, "Invalid response :status"));
+                return;
+            }
+            if (status < 200) {
+                // Interim response: the final response follows
+                return;
+            }
+            List<Map.Entry<String, String>> headers = new ArrayList<>(fields.size());
+            for (Map.Entry<String, String> field : fields) {
+                if (!field.getKey().startsWith(":")) {
+                    headers.add(field);
+                }
+            }
+            stream.responded(status, headers);
+        }
+        // Otherwise these are trailers, they are ignored
+        if (endStream) {
+            remoteEnded(stream);
+        }
+    }
+
+    private static int status(final List<Map.Entry<String, String>> fields) {
+        for (Map.Entry<String, String> field : fields) {
+            if (":status".equals(field.getKey())) {
+                try {
+                    int status = Integer.parseInt(field.getValue());
+                    return (status >= 100 && status <= 999) ? status : -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void remoteEnded(final Http2Stream stream) {
+        synchronized (this) {
+            stream.remoteClosed = true;
+            // Wakes up the sender of the request body, if any
+            notifyAll();
+        }
+        stream.ended();
+        release(stream);
+    }
+
+    /** Returns the stream with the given identifier, or {@code null} if it is closed on the remote side. */
+    private Http2Stream activeStream(final int id) throws Http2Exception {
+        synchronized (this) {
+            if (id == 0 || (id & 1) == 0 || id >= nextStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Frame received on invalid stream " + id);
+            }
+            Http2Stream stream = streams.get(id);
+            return (stream == null || stream.remoteClosed) ? null : stream;
+        }
+    }
+
+    private void onRstStream(final Frame frame) throws Http2Exception {
+        if (frame.length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+        }
+        int errorCode = Frame.readInt(frame.payload, 0);
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(frame.streamId);
+            if (stream == null) {
+                return;
+            }
+            stream.localClosed = true;
+            stream.remoteClosed = true;
+            notifyAll();
+        }
+        boolean refused = errorCode == REFUSED_STREAM;
+        if (refused) {
+            metrics.getRefusedStreams().inc();
+        } else {
+            metrics.getResetStreams().inc();
+        }
+        stream.failed(new Http2Exception(errorCode, "HTTP/2 stream " + stream.id + " reset by the server with error "
+                + "code " + errorCode), refused);
+        release(stream);
+    }
+
+    private void onSettings(final Frame frame) throws IOException {
+        if (frame.streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS frame received on a stream");
+        }
+        if (frame.hasFlag(FLAG_ACK)) {
+            return;
+        }
+        if (frame.length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        }
+        synchronized (this) {
+            for (int i = 0; i < frame.length; i += 6) {
+                int identifier = ((frame.payload[i] & 0xff) << 8) | (frame.payload[i + 1] & 0xff);
+                int value = Frame.readInt(frame.payload, i + 2);
+                switch (identifier) {
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    // Unsigned value: anything above Integer.MAX_VALUE is as good as unlimited
+                    peerMaxConcurrentStreams = (value < 0) ? Integer.MAX_VALUE : value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid initial window size");
+                    }
+                    int delta = value - peerInitialWindowSize;
+                    for (Http2Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                        }
+                    }
+                    peerInitialWindowSize = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid maximum frame size");
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    // The encoder does not use the dynamic table: SETTINGS_HEADER_TABLE_SIZE is irrelevant
+                    break;
+                }
+            }
+            notifyAll();
+        }
+        writeFrame(Frame.settingsAck());
+        listener.capacityChanged(this);
+    }
+
+    private void onGoAway(final Frame frame) throws Http2Exception {
+        if (frame.length < 8) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid GOAWAY frame");
+        }
+        int lastStreamId = Frame.readInt(frame.payload, 0) & MAX_WINDOW_SIZE;
+        List<Http2Stream> refused = new ArrayList<>();
+        synchronized (this) {
+            goingAway = true;
+            for (Iterator<Http2Stream> iterator = streams.values().iterator(); iterator.hasNext();) {
+                Http2Stream stream = iterator.next();
+                if (stream.id > lastStreamId) {
+                    // These streams have not been processed and can be retried on another connection
+                    stream.localClosed = true;
+                    stream.remoteClosed = true;
+                    refused.add(stream);
+                }
+            }
+        }
+        for (Http2Stream stream : refused) {
+            metrics.getRefusedStreams().inc();
+            stream.failed(new IOException("HTTP/2 stream " + stream.id + " refused by GOAWAY"), true);
+            release(stream);
+        }
+        boolean idle;
+        synchronized (this) {
+            idle = streams.isEmpty();
+        }
+        if (idle) {
+            close(new IOException("HTTP/2 connection to " + authority + " closed after GOAWAY"));
+        } else {
+            listener.capacityChanged(this);
+        }
+    }
+
+    private void onWindowUpdate(final Frame frame) throws IOException {
+        if (frame.length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        int increment = Frame.readInt(frame.payload, 0) & MAX_WINDOW_SIZE;
+        Http2Stream overflowed = null;
+        synchronized (this) {
+            if (frame.streamId == 0) {
+                if (increment == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection window increment");
+                }
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                Http2Stream stream = streams.get(frame.streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    if (increment == 0 || stream.sendWindow > MAX_WINDOW_SIZE) {
+                        overflowed = stream;
+                    }
+                }
+            }
+            notifyAll();
+        }
+        if (overflowed != null) {
+            reset(overflowed, FLOW_CONTROL_ERROR, new Http2Exception(FLOW_CONTROL_ERROR, "Invalid window update"));
+        }
+    }
+
+    /** Frames written in a row by the writer thread. */
+    private abstract static class Write {
+        // Guarded by this write
+        private boolean done;
+        private IOException failure;
+
+        /** Writes the frames to the socket output stream, which is flushed later. */
+        abstract void writeTo(OutputStream out) throws IOException;
+
+        synchronized void done(final IOException failure) {
+            this.done = true;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        /** Waits for the frames to be written, at most the given time in milliseconds ({@literal 0} means forever). */
+        synchronized void await(final long timeout) throws IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!done) {
+                long remaining = (timeout == 0) ? 0 : deadline - System.currentTimeMillis();
+                if (timeout != 0 && remaining <= 0) {
+                    throw new SocketTimeoutException("HTTP/2 frames not written within " + timeout + " ms");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for HTTP/2 frames to be written");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
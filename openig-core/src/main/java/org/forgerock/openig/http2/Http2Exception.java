@@ -0,0 +1,68 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import java.io.IOException;
+
+/**
+ * Signals an HTTP/2 protocol violation, carrying the error code defined in RFC 7540, section 7.
+ */
+class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The associated condition is not a result of an error. */
+    static final int NO_ERROR = 0x0;
+    /** The endpoint detected an unspecific protocol error. */
+    static final int PROTOCOL_ERROR = 0x1;
+    /** The endpoint encountered an unexpected internal error. */
+    static final int INTERNAL_ERROR = 0x2;
+    /** The endpoint detected that its peer violated the flow-control protocol. */
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    /** The endpoint received a frame with an invalid size. */
+    static final int FRAME_SIZE_ERROR = 0x6;
+    /** The endpoint refused the stream prior to performing any application processing. */
+    static final int REFUSED_STREAM = 0x7;
+    /** Used by the endpoint to indicate that the stream is no longer needed. */
+    static final int CANCEL = 0x8;
+    /** The endpoint is unable to maintain the header compression context for the connection. */
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private final int errorCode;
+
+    /**
+     * Builds a new exception.
+     *
+     * @param errorCode
+     *         the HTTP/2 error code
+     * @param message
+     *         the detail message
+     */
+    Http2Exception(final int errorCode, final String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * Returns the HTTP/2 error code.
+     *
+     * @return the HTTP/2 error code
+     */
+    int getErrorCode() {
+        return errorCode;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * Connection and stream counters of an {@link Http2Client}, exposed as a JSON document when handling a request.
+ * <pre>
+ *   {@code
+ *   {
+ *     "connections": { "open": 2, "opened": 3, "closed": 1, "failed": 0 },
+ *     "streams": { "active": 143, "pending": 0, "total": 90211, "refused": 0, "reset": 2 },
+ *     "flowControl": { "stalls": 12 },
+ *     "buffers": { "pooled": 12, "allocated": 64 }
+ *   }
+ *   }
+ * </pre>
+ * <ul>
+ *     <li>{@literal pending}: requests waiting for a stream slot, all the connections being at their concurrent
+ *     streams limit</li>
+ *     <li>{@literal refused}: streams refused by the server (or beyond its {@literal GOAWAY} frame), and retried
+ *     when possible</li>
+ *     <li>{@literal reset}: streams reset by the server, or failed with their connection</li>
+ *     <li>{@literal stalls}: times a request body could not be sent because of an exhausted flow-control window</li>
+ *     <li>{@literal pooled}: idle buffers, ready to carry request and response bodies</li>
+ *     <li>{@literal allocated}: buffers allocated since the client was built; it stays flat while the bodies are
+ *     streamed through the pooled buffers</li>
+ * </ul>
+ */
+public final class Http2Metrics implements Handler {
+
+    private final Counter openedConnections = new Counter();
+    private final Counter closedConnections = new Counter();
+    private final Counter failedConnections = new Counter();
+    private final Counter activeStreams = new Counter();
+    private final Counter pendingStreams = new Counter();
+    private final Counter totalStreams = new Counter();
+    private final Counter refusedStreams = new Counter();
+    private final Counter resetStreams = new Counter();
+    private final Counter flowControlStalls = new Counter();
+
+    private final BufferPool buffers;
+
+    Http2Metrics(final BufferPool buffers) {
+        this.buffers = buffers;
+    }
+
+    Counter getOpenedConnections() {
+        return openedConnections;
+    }
+
+    Counter getClosedConnections() {
+        return closedConnections;
+    }
+
+    Counter getFailedConnections() {
+        return failedConnections;
+    }
+
+    Counter getActiveStreams() {
+        return activeStreams;
+    }
+
+    Counter getPendingStreams() {
+        return pendingStreams;
+    }
+
+    Counter getTotalStreams() {
+        return totalStreams;
+    }
+
+    Counter getRefusedStreams() {
+        return refusedStreams;
+    }
+
+    Counter getResetStreams() {
+        return resetStreams;
+    }
+
+    Counter getFlowControlStalls() {
+        return flowControlStalls;
+    }
+
+    @Override
+    public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+        long opened = openedConnections.getCount();
+        long closed = closedConnections.getCount();
+        Object data = object(field("connections", object(field("open", opened - closed),
+                                                         field("opened", opened),
+                                                         field("closed", closed),
+                                                         field("failed", failedConnections.getCount()))),
+                             field("streams", object(field("active", activeStreams.getCount()),
+                                                     field("pending", pendingStreams.getCount()),
+                                                     field("total", totalStreams.getCount()),
+                                                     field("refused", refusedStreams.getCount()),
+                                                     field("reset", resetStreams.getCount()))),
+                             field("flowControl", object(field("stalls", flowControlStalls.getCount()))),
+                             field("buffers", object(field("pooled", buffers.getPooled()),
+                                                     field("allocated", buffers.getAllocated()))));
+
+        Response response = new Response(Status.OK);
+        response.getEntity().setJson(data);
+        return Promises.newResultPromise(response);
+    }
+}
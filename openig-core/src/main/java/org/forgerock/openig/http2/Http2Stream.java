@@ -0,0 +1,317 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A client-initiated HTTP/2 stream: one request/response exchange multiplexed on an {@link Http2Connection}.
+ * <p>
+ * The response body is delivered through {@link #getBody()} while it is received: the stream flow-control window
+ * is only re-opened as the body is consumed, so a slow consumer throttles its own stream without stalling the other
+ * streams of the connection. The received data stays in the pooled buffers it was read into, until it is consumed.
+ */
+abstract class Http2Stream {
+
+    /** Request header fields, pseudo-header fields first. */
+    final List<Map.Entry<String, String>> requestHeaders;
+
+    /** Request body, or {@code null} if the request has no body. */
+    final InputStream requestBody;
+
+    /** Stream identifier, assigned when the stream is opened. */
+    int id;
+
+    /** The connection carrying this stream, assigned when the stream is opened. */
+    Http2Connection connection;
+
+    // The following fields are guarded by the connection
+
+    /** Send window of this stream. */
+    long sendWindow;
+
+    /** Whether this side of the stream is closed: {@literal END_STREAM} or {@literal RST_STREAM} sent. */
+    boolean localClosed;
+
+    /** Whether the peer's side of the stream is closed: {@literal END_STREAM} or {@literal RST_STREAM} received. */
+    boolean remoteClosed;
+
+    // The following fields are guarded by this stream
+
+    /** Received DATA chunks, not consumed yet. */
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+
+    /** Receive window of this stream. */
+    private long receiveWindow;
+
+    /** Consumed bytes not yet acknowledged with a {@literal WINDOW_UPDATE}. */
+    private int unacknowledged;
+
+    /** Whether the final response header fields have been received. */
+    private boolean responded;
+
+    /** Whether the peer ended the stream. */
+    private boolean ended;
+
+    /** Why the stream failed, if it did. */
+    private IOException failure;
+
+    /** Whether the response body has been closed by its consumer. */
+    private boolean bodyClosed;
+
+    private final Body body = new Body();
+
+    /**
+     * Builds a new stream.
+     *
+     * @param requestHeaders
+     *         the request header fields, pseudo-header fields first; names have to be lower case
+     * @param requestBody
+     *         the request body, or {@code null} if the request has no body
+     */
+    Http2Stream(final List<Map.Entry<String, String>> requestHeaders, final InputStream requestBody) {
+        this.requestHeaders = requestHeaders;
+        this.requestBody = requestBody;
+    }
+
+    /**
+     * Called when the final response header fields have been received. The body can be read from
+     * {@link #getBody()}, it may not be complete yet.
+     *
+     * @param status
+     *         the response status code
+     * @param headers
+     *         the response header fields, without pseudo-header fields
+     */
+    abstract void onResponse(int status, List<Map.Entry<String, String>> headers);
+
+    /**
+     * Called when the stream failed before the final response header fields were received.
+     *
+     * @param cause
+     *         why the stream failed
+     * @param refused
+     *         {@code true} if the peer did not process the request, which can be safely retried on another
+     *         connection
+     */
+    abstract void onFailure(IOException cause, boolean refused);
+
+    /**
+     * Called once the stream slot reserved on the connection has been released: the stream is over on both sides,
+     * or has failed. Does nothing by default.
+     */
+    void onReleased() {
+        // Nothing to do by default
+    }
+
+    /**
+     * Returns the response body. Reading blocks until data is received, or until the read timeout of the connection
+     * elapses. Closing the body before its end resets the stream.
+     *
+     * @return the response body
+     */
+    InputStream getBody() {
+        return body;
+    }
+
+    void opened(final Http2Connection connection, final int id, final int sendWindow, final int receiveWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        synchronized (this) {
+            this.receiveWindow = receiveWindow;
+        }
+    }
+
+    /** Returns {@code true} if the final response header fields have been received. */
+    synchronized boolean hasResponded() {
+        return responded;
+    }
+
+    void responded(final int status, final List<Map.Entry<String, String>> headers) {
+        synchronized (this) {
+            responded = true;
+        }
+        onResponse(status, headers);
+    }
+
+    /**
+     * Queues received data. The buffer holding the data is handed over to this stream, that gives it back to the
+     * connection once the data has been consumed or discarded.
+     *
+     * @return {@code false} if the peer exceeded the stream receive window
+     */
+    synchronized boolean received(final byte[] buffer, final int offset, final int length, final int flowControlled) {
+        receiveWindow -= flowControlled;
+        if (receiveWindow < 0) {
+            connection.recycle(buffer);
+            return false;
+        }
+        // Padding is flow-controlled but never consumed: acknowledge it right away
+        unacknowledged += flowControlled - length;
+        if (length > 0 && !bodyClosed) {
+            chunks.add(new Chunk(buffer, offset, offset + length));
+            notifyAll();
+        } else {
+            connection.recycle(buffer);
+        }
+        return true;
+    }
+
+    synchronized void ended() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Fails the stream, notifying {@link #onFailure(IOException, boolean)} if no response has been received yet, or
+     * the body reader otherwise.
+     */
+    void failed(final IOException cause, final boolean refused) {
+        boolean notify;
+        synchronized (this) {
+            if (ended || failure != null) {
+                return;
+            }
+            failure = cause;
+            notify = !responded;
+            notifyAll();
+        }
+        if (notify) {
+            onFailure(cause, refused);
+        }
+    }
+
+    /**
+     * Returns the number of consumed bytes to acknowledge with a {@literal WINDOW_UPDATE}, and re-opens the receive
+     * window accordingly, or returns 0 if it is not worth sending an update yet.
+     */
+    synchronized int windowUpdate(final int threshold) {
+        if (ended || failure != null || unacknowledged < threshold) {
+            return 0;
+        }
+        int increment = unacknowledged;
+        unacknowledged = 0;
+        receiveWindow += increment;
+        return increment;
+    }
+
+    /** The response body, fed by the connection reader. */
+    private final class Body extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int n = read(single, 0, 1);
+            return (n == -1) ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int n;
+            synchronized (Http2Stream.this) {
+                long timeout = connection.getReadTimeout();
+                long deadline = System.currentTimeMillis() + timeout;
+                while (chunks.isEmpty()) {
+                    if (bodyClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (failure != null) {
+                        throw new IOException("HTTP/2 stream " + id + " failed", failure);
+                    }
+                    if (ended) {
+                        return -1;
+                    }
+                    long remaining = (timeout == 0) ? 0 : deadline - System.currentTimeMillis();
+                    if (timeout != 0 && remaining <= 0) {
+                        throw new SocketTimeoutException("No data received on HTTP/2 stream " + id + " within "
+                                                                 + timeout + " ms");
+                    }
+                    try {
+                        Http2Stream.this.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for HTTP/2 data");
+                    }
+                }
+                Chunk chunk = chunks.peek();
+                n = Math.min(length, chunk.end - chunk.position);
+                System.arraycopy(chunk.buffer, chunk.position, buffer, offset, n);
+                chunk.position += n;
+                if (chunk.position == chunk.end) {
+                    chunks.remove();
+                    connection.recycle(chunk.buffer);
+                }
+                unacknowledged += n;
+            }
+            connection.consumed(Http2Stream.this);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (Http2Stream.this) {
+                int available = 0;
+                for (Chunk chunk : chunks) {
+                    available += chunk.end - chunk.position;
+                }
+                return available;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (Http2Stream.this) {
+                if (bodyClosed) {
+                    return;
+                }
+                bodyClosed = true;
+                for (Chunk chunk : chunks) {
+                    connection.recycle(chunk.buffer);
+                }
+                chunks.clear();
+                Http2Stream.this.notifyAll();
+            }
+            if (connection != null) {
+                // Resets the stream if it is not over yet, so that the peer stops sending data
+                connection.cancel(Http2Stream.this);
+            }
+        }
+    }
+
+    /** Received data, in a pooled buffer. */
+    private static final class Chunk {
+        private final byte[] buffer;
+        private final int end;
+        private int position;
+
+        Chunk(final byte[] buffer, final int position, final int end) {
+            this.buffer = buffer;
+            this.position = position;
+            this.end = end;
+        }
+    }
+}
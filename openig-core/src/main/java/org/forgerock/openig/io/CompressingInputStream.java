@@ -0,0 +1,180 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link InputStream} that compresses the bytes read from another stream, in the {@literal gzip} (RFC 1952) or
+ * the {@literal zlib} (RFC 1950, the {@literal deflate} content coding of HTTP) format. It is the counterpart of
+ * {@link java.util.zip.GZIPOutputStream}: only a small, bounded, amount of bytes is buffered, whatever the length of
+ * the stream.
+ * <p>
+ * When the source stream has no more bytes available without blocking, the compressed bytes written so far are
+ * flushed, so that the readers of a slowly produced stream receive its bytes as soon as they are available.
+ * <p>
+ * The {@link Deflater} is given by the caller, so that it can be pooled: it is handed back to
+ * {@link #release(Deflater)} once the end of the stream has been reached, or when it is closed.
+ */
+public class CompressingInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The gzip header: magic number, deflate method, no flags, no modification time, no extra flags, unknown OS. */
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private final InputStream source;
+    private final boolean gzip;
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+
+    /** The gzip header or trailer, still to be read. */
+    private byte[] pending;
+    private int pendingPosition;
+
+    /** Should the compressed bytes be flushed, because the source has no more bytes available. */
+    private boolean flush;
+    private boolean endOfStream;
+
+    /**
+     * Builds a new stream compressing the bytes of the given stream.
+     *
+     * @param source
+     *         the bytes to compress
+     * @param deflater
+     *         the deflater compressing the bytes, which must have been created with {@code nowrap} set to
+     *         {@code gzip}, and must not be used by anything else until it is released
+     * @param gzip
+     *         {@code true} to produce the gzip format, {@code false} to produce the zlib format
+     */
+    public CompressingInputStream(final InputStream source, final Deflater deflater, final boolean gzip) {
+        this.source = source;
+        this.deflater = deflater;
+        this.gzip = gzip;
+        if (gzip) {
+            pending = GZIP_HEADER.clone();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n;
+        do {
+            n = read(b, 0, 1);
+        } while (n == 0);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (pending != null) {
+                int n = Math.min(len, pending.length - pendingPosition);
+                System.arraycopy(pending, pendingPosition, b, off, n);
+                pendingPosition += n;
+                if (pendingPosition == pending.length) {
+                    pending = null;
+                    pendingPosition = 0;
+                }
+                return n;
+            }
+            if (endOfStream) {
+                return -1;
+            }
+            if (deflater == null) {
+                throw new IOException("Stream closed");
+            }
+            int n = deflater.deflate(b, off, len, flush ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH);
+            if (n > 0) {
+                return n;
+            }
+            if (deflater.finished()) {
+                endOfStream = true;
+                if (gzip) {
+                    pending = trailer(crc.getValue(), deflater.getBytesRead());
+                }
+                releaseDeflater();
+            } else if (deflater.needsInput()) {
+                fill();
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        int n = source.read(input);
+        if (n == -1) {
+            deflater.finish();
+        } else if (n > 0) {
+            crc.update(input, 0, n);
+            deflater.setInput(input, 0, n);
+            flush = source.available() <= 0;
+        }
+    }
+
+    private static byte[] trailer(final long crc, final long size) {
+        byte[] trailer = new byte[GZIP_TRAILER_LENGTH];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (crc >> (i * 8));
+            // The size is modulo 2^32
+            trailer[i + 4] = (byte) (size >> (i * 8));
+        }
+        return trailer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            endOfStream = true;
+            pending = null;
+            releaseDeflater();
+        }
+    }
+
+    private void releaseDeflater() {
+        if (deflater != null) {
+            Deflater released = deflater;
+            deflater = null;
+            release(released);
+        }
+    }
+
+    /**
+     * Releases the deflater once the end of the stream has been reached, or when it is closed. This implementation
+     * ends it: override it to return the deflater to a pool, after having reset it.
+     *
+     * @param deflater
+     *         the deflater that is not used anymore by this stream
+     */
+    protected void release(final Deflater deflater) {
+        deflater.end();
+    }
+}
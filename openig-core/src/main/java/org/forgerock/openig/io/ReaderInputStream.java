@@ -0,0 +1,130 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * An {@link InputStream} that encodes the characters read from a {@link Reader} with a given {@link Charset}. It is
+ * the counterpart of {@link java.io.InputStreamReader}: only a small, bounded, amount of characters and bytes are
+ * buffered, whatever the length of the stream. Malformed input and unmappable characters are replaced with the
+ * charset's default replacement.
+ */
+public class ReaderInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Reader reader;
+    private final CharsetEncoder encoder;
+
+    /** Characters read but not encoded yet, ready to be read (flipped). */
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    /** Encoded bytes, ready to be read (flipped). */
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 2);
+
+    /** Has the end of the reader been reached. */
+    private boolean endOfInput;
+
+    /** Has the encoder been flushed (after the end of the reader has been reached). */
+    private boolean flushed;
+
+    /**
+     * Builds a new stream encoding the characters of the given reader.
+     *
+     * @param reader
+     *         the characters to encode
+     * @param charset
+     *         the charset to encode the characters with
+     */
+    public ReaderInputStream(final Reader reader, final Charset charset) {
+        this.reader = reader;
+        this.encoder = charset.newEncoder()
+                              .onMalformedInput(CodingErrorAction.REPLACE)
+                              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars.flip();
+        bytes.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (!bytes.hasRemaining()) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return bytes.get() & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!bytes.hasRemaining()) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, bytes.remaining());
+        bytes.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return bytes.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Encodes more characters.
+     *
+     * @return {@code false} once everything has been encoded and read
+     */
+    private boolean fill() throws IOException {
+        if (flushed) {
+            return false;
+        }
+        if (!endOfInput) {
+            chars.compact();
+            int n = reader.read(chars);
+            chars.flip();
+            endOfInput = n < 0;
+        }
+        bytes.clear();
+        encoder.encode(chars, bytes, endOfInput);
+        if (endOfInput && !chars.hasRemaining()) {
+            CoderResult result = encoder.flush(bytes);
+            flushed = result.isUnderflow();
+        }
+        bytes.flip();
+        return bytes.hasRemaining() || !flushed;
+    }
+}
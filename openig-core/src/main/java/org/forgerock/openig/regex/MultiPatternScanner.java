@@ -0,0 +1,429 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.regex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds the first match of each of several regular expression patterns in a single pass over a character stream.
+ * <p>
+ * The patterns are combined into a single alternation, so that each line of input is scanned once whatever the
+ * number of patterns, and a pattern is removed from the alternation as soon as it has matched. Patterns whose
+ * meaning would change once embedded into an alternation (back references, named groups, {@code \G}, quoting,
+ * comments or literal flags) are matched individually, on the same line. Reading stops as soon as every pattern has
+ * matched.
+ * <p>
+ * As with {@link StreamPatternMatches}, patterns are matched against each line of input, and matches are returned in
+ * the order they are encountered in the stream, then by the order of the patterns. Lines are not copied into
+ * {@link String}s: they are matched in place, within a sliding window whose size is bounded. A line longer than the
+ * window is split and matched as several overlapping segments: each segment repeats the last half of the previous one,
+ * so that a match of up to half the window size is found even when it spans a split.
+ * <p>
+ * This class is not thread-safe.
+ */
+final class MultiPatternScanner {
+
+    /** Constructs that cannot be embedded in an alternation without changing their meaning. */
+    private static final Pattern NOT_COMBINABLE = Pattern.compile("\\\\(?:[1-9]|k<|G|Q)|\\(\\?<[a-zA-Z]");
+
+    /** Flags that have no embedded form. */
+    private static final int NOT_COMBINABLE_FLAGS = Pattern.COMMENTS | Pattern.LITERAL | Pattern.CANON_EQ;
+
+    /** Initial size of the window, it grows up to the maximum size when longer lines are read. */
+    private static final int INITIAL_WINDOW_SIZE = 8 * 1024;
+
+    /** Maximum number of combined patterns kept in the shared cache. */
+    private static final int MAX_CACHED_COMBINATIONS = 64;
+
+    /** The character stream to search. */
+    private final Reader input;
+
+    /** The patterns to match, {@code null} once matched. */
+    private final Pattern[] patterns;
+
+    /** Individual matchers of the patterns that cannot be combined, {@code null} for others. */
+    private final Matcher[] matchers;
+
+    /** Capturing group wrapping each pattern in the combined pattern, {@code -1} if not part of it. */
+    private final int[] groups;
+
+    /** Combined patterns, shared amongst scanners. */
+    private final Map<List<Pattern>, Pattern> combinations;
+
+    /** Maximum size of the window. */
+    private final int maxWindowSize;
+
+    /** Number of patterns not matched yet. */
+    private int remaining;
+
+    /** Matcher of the combined pattern, {@code null} if there is no pattern left to combine. */
+    private Matcher combined;
+
+    /** Sliding window over the character stream. */
+    private char[] window;
+
+    /** Position of the first character of the window that has not been consumed yet. */
+    private int next;
+
+    /** Number of characters read in the window. */
+    private int limit;
+
+    /** Has the end of the stream been reached. */
+    private boolean eof;
+
+    /** Should a line feed following a carriage return be skipped. */
+    private boolean skipLF;
+
+    /** The line being matched, a view over the window, {@code null} between lines. */
+    private CharBuffer line;
+
+    /** Position in the current line from which patterns are searched. */
+    private int from;
+
+    /** The last match. */
+    private final GroupsView result = new GroupsView();
+
+    /**
+     * Constructs a new scanner.
+     *
+     * @param input
+     *         the character stream to match regular expression patterns against.
+     * @param patterns
+     *         the regular expression patterns to match.
+     * @param maxWindowSize
+     *         the maximum number of characters that are buffered.
+     * @param combinations
+     *         a (thread-safe) cache of combined patterns.
+     */
+    MultiPatternScanner(final Reader input,
+                        final Collection<Pattern> patterns,
+                        final int maxWindowSize,
+                        final Map<List<Pattern>, Pattern> combinations) {
+        this.input = input;
+        this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+        this.matchers = new Matcher[this.patterns.length];
+        this.groups = new int[this.patterns.length];
+        this.combinations = combinations;
+        this.maxWindowSize = maxWindowSize;
+        this.remaining = this.patterns.length;
+        for (int n = 0; n < this.patterns.length; n++) {
+            Pattern pattern = this.patterns[n];
+            if ((pattern.flags() & NOT_COMBINABLE_FLAGS) != 0 || NOT_COMBINABLE.matcher(pattern.pattern()).find()) {
+                matchers[n] = newMatcher(pattern);
+            }
+        }
+        combine();
+    }
+
+    /**
+     * Returns the index (in the patterns collection given at construction time) of the pattern of the next match, or
+     * {@code -1} if there is no more match in the stream. Once returned, a pattern is not matched anymore.
+     *
+     * @return the index of the pattern of the next match, or {@code -1} if there is no more match in the stream.
+     * @throws IOException
+     *         if an I/O exception occurs.
+     */
+    int next() throws IOException {
+        while (remaining > 0) {
+            if (line == null && !readLine()) {
+                return -1;
+            }
+            int index = find();
+            if (index >= 0) {
+                return index;
+            }
+            line = null;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the last match, the result is only valid until the next call to {@link #next()}.
+     *
+     * @return the last match.
+     */
+    MatchResult result() {
+        return result;
+    }
+
+    private int find() {
+        int index = -1;
+        int start = Integer.MAX_VALUE;
+        Matcher matcher = null;
+        if (combined != null && combined.region(from, line.length()).find()) {
+            start = combined.start();
+            matcher = combined;
+            for (int n = 0; n < patterns.length; n++) {
+                if (groups[n] >= 0 && combined.start(groups[n]) >= 0) {
+                    index = n;
+                    break;
+                }
+            }
+        }
+        for (int n = 0; n < patterns.length; n++) {
+            Matcher individual = matchers[n];
+            if (individual != null && individual.region(from, line.length()).find()
+                    && (individual.start() < start || (individual.start() == start && n < index))) {
+                start = individual.start();
+                matcher = individual;
+                index = n;
+            }
+        }
+        if (index < 0) {
+            return -1;
+        }
+        if (matcher == combined) {
+            result.set(matcher, groups[index], patterns[index].matcher("").groupCount());
+        } else {
+            result.set(matcher, 0, matcher.groupCount());
+        }
+        // Other patterns may match at the same position
+        from = start;
+        discard(index);
+        return index;
+    }
+
+    private void discard(final int index) {
+        patterns[index] = null;
+        remaining--;
+        if (matchers[index] != null) {
+            matchers[index] = null;
+        } else {
+            // The previous matcher is left untouched as it holds the last result
+            combine();
+        }
+    }
+
+    /** Builds the alternation of the remaining patterns that can be combined. */
+    private void combine() {
+        List<Pattern> combinable = new ArrayList<>();
+        for (int n = 0; n < patterns.length; n++) {
+            if (patterns[n] != null && matchers[n] == null) {
+                combinable.add(patterns[n]);
+            }
+        }
+        Arrays.fill(groups, -1);
+        if (combinable.isEmpty()) {
+            combined = null;
+            return;
+        }
+        Pattern pattern = combinations.get(combinable);
+        if (pattern == null) {
+            StringBuilder regex = new StringBuilder();
+            for (Pattern p : combinable) {
+                if (regex.length() > 0) {
+                    regex.append('|');
+                }
+                regex.append("((?").append(embeddedFlags(p.flags())).append(':').append(p.pattern()).append("))");
+            }
+            try {
+                pattern = Pattern.compile(regex.toString());
+            } catch (PatternSyntaxException e) {
+                // Should not happen: fall back to matching each pattern individually
+                for (int n = 0; n < patterns.length; n++) {
+                    if (patterns[n] != null && matchers[n] == null) {
+                        matchers[n] = newMatcher(patterns[n]);
+                        if (line != null) {
+                            matchers[n].reset(line);
+                        }
+                    }
+                }
+                combined = null;
+                return;
+            }
+            if (combinations.size() < MAX_CACHED_COMBINATIONS) {
+                combinations.put(combinable, pattern);
+            }
+        }
+        int group = 1;
+        for (int n = 0; n < patterns.length; n++) {
+            if (patterns[n] != null && matchers[n] == null) {
+                groups[n] = group;
+                group += 1 + patterns[n].matcher("").groupCount();
+            }
+        }
+        combined = newMatcher(pattern);
+        if (line != null) {
+            combined.reset(line);
+        }
+    }
+
+    private static String embeddedFlags(final int flags) {
+        StringBuilder sb = new StringBuilder();
+        if ((flags & Pattern.CASE_INSENSITIVE) != 0) {
+            sb.append('i');
+        }
+        if ((flags & Pattern.UNIX_LINES) != 0) {
+            sb.append('d');
+        }
+        if ((flags & Pattern.MULTILINE) != 0) {
+            sb.append('m');
+        }
+        if ((flags & Pattern.DOTALL) != 0) {
+            sb.append('s');
+        }
+        if ((flags & Pattern.UNICODE_CASE) != 0) {
+            sb.append('u');
+        }
+        if ((flags & Pattern.UNICODE_CHARACTER_CLASS) != 0) {
+            sb.append('U');
+        }
+        return sb.toString();
+    }
+
+    private static Matcher newMatcher(final Pattern pattern) {
+        // Searching from the middle of a line must not change the meaning of anchors and look-behinds
+        return pattern.matcher("").useTransparentBounds(true).useAnchoringBounds(false);
+    }
+
+    /**
+     * Makes the next line of the stream the current line.
+     *
+     * @return {@code false} if the end of the stream has been reached.
+     */
+    private boolean readLine() throws IOException {
+        if (window == null) {
+            window = new char[Math.min(INITIAL_WINDOW_SIZE, maxWindowSize)];
+        }
+        int scan = next;
+        while (true) {
+            if (skipLF && next < limit) {
+                skipLF = false;
+                if (window[next] == '\n') {
+                    next++;
+                }
+                scan = next;
+            }
+            for (; scan < limit; scan++) {
+                char c = window[scan];
+                if (c == '\n' || c == '\r') {
+                    setLine(next, scan);
+                    next = scan + 1;
+                    skipLF = c == '\r';
+                    return true;
+                }
+            }
+            if (eof) {
+                if (next == limit) {
+                    return false;
+                }
+                setLine(next, limit);
+                next = limit;
+                return true;
+            }
+            if (next == 0 && limit == window.length) {
+                if (window.length >= maxWindowSize) {
+                    // Bounded window: the line is split, the next segment starts with the end of this one
+                    setLine(0, limit);
+                    next = limit - limit / 2;
+                    return true;
+                }
+                window = Arrays.copyOf(window, Math.min(window.length * 2, maxWindowSize));
+            }
+            // Slide the window
+            System.arraycopy(window, next, window, 0, limit - next);
+            scan -= next;
+            limit -= next;
+            next = 0;
+            int read = input.read(window, limit, window.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+    }
+
+    private void setLine(final int start, final int end) {
+        line = CharBuffer.wrap(window, start, end - start);
+        from = 0;
+        if (combined != null) {
+            combined.reset(line);
+        }
+        for (Matcher matcher : matchers) {
+            if (matcher != null) {
+                matcher.reset(line);
+            }
+        }
+    }
+
+    /** Exposes the groups of one of the patterns of a match. */
+    private static final class GroupsView implements MatchResult {
+        private Matcher matcher;
+        private int offset;
+        private int count;
+
+        void set(final Matcher matcher, final int offset, final int count) {
+            this.matcher = matcher;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        public int start() {
+            return matcher.start();
+        }
+
+        @Override
+        public int start(final int group) {
+            return matcher.start(index(group));
+        }
+
+        @Override
+        public int end() {
+            return matcher.end();
+        }
+
+        @Override
+        public int end(final int group) {
+            return matcher.end(index(group));
+        }
+
+        @Override
+        public String group() {
+            return matcher.group();
+        }
+
+        @Override
+        public String group(final int group) {
+            return matcher.group(index(group));
+        }
+
+        @Override
+        public int groupCount() {
+            return count;
+        }
+
+        private int index(final int group) {
+            if (group < 0 || group > count) {
+                throw new IndexOutOfBoundsException("No group " + group);
+            }
+            return group + offset;
+        }
+    }
+}
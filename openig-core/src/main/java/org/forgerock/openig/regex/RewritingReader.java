@@ -0,0 +1,178 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.regex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link Reader} that replaces the matches of a regular expression pattern in the characters read from another
+ * reader, as they stream. Each match is replaced by the result of applying a {@link PatternTemplate} to it.
+ * <p>
+ * The characters are processed through a bounded window, so that memory consumption does not depend on the length
+ * of the stream. Matches spanning the boundary between two reads are found as long as they are no longer than
+ * {@code maxMatchLength} characters: when a match could start in the last {@code maxMatchLength} characters of the
+ * window, or could be extended by the characters that follow, the decision is deferred until more characters have
+ * been read. The same amount of already processed characters is kept before the position being searched, so that
+ * look-behinds and {@code ^} keep their meaning (as long as they do not look further back).
+ */
+public class RewritingReader extends Reader {
+
+    private static final int MIN_WINDOW_SIZE = 8192;
+
+    /** The characters to rewrite. */
+    private final Reader in;
+
+    /** Matcher of the pattern to replace, reset on the window each time it is filled. */
+    private final Matcher matcher;
+
+    /** The replacement of each match. */
+    private final PatternTemplate template;
+
+    /** Longest match (or look-behind) that is guaranteed to be found across reads. */
+    private final int maxMatchLength;
+
+    /** Characters read from {@code in}. */
+    private final char[] window;
+
+    /** Position of the first character of the window that has not been processed yet. */
+    private int start;
+
+    /** Number of characters in the window. */
+    private int limit;
+
+    /** Has the end of {@code in} been reached. */
+    private boolean eof;
+
+    /** Processed characters, ready to be read. */
+    private final StringBuilder out = new StringBuilder();
+
+    /** Position of the next character to read in {@code out}. */
+    private int outPosition;
+
+    /**
+     * Builds a new reader replacing the matches of {@code pattern} in the characters read from {@code in}.
+     *
+     * @param in
+     *         the characters to rewrite
+     * @param pattern
+     *         the regular expression pattern to replace
+     * @param template
+     *         the template applied to each match to yield its replacement
+     * @param maxMatchLength
+     *         the longest match that is guaranteed to be replaced when it spans several reads
+     */
+    public RewritingReader(final Reader in,
+                           final Pattern pattern,
+                           final PatternTemplate template,
+                           final int maxMatchLength) {
+        if (maxMatchLength <= 0) {
+            throw new IllegalArgumentException("The maximum match length must be positive");
+        }
+        this.in = in;
+        this.matcher = pattern.matcher("").useTransparentBounds(true).useAnchoringBounds(false);
+        this.template = template;
+        this.maxMatchLength = maxMatchLength;
+        this.window = new char[Math.max(MIN_WINDOW_SIZE, maxMatchLength * 4)];
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (outPosition == out.length()) {
+            out.setLength(0);
+            outPosition = 0;
+            if (eof && start == limit) {
+                return -1;
+            }
+            process();
+        }
+        int n = Math.min(len, out.length() - outPosition);
+        out.getChars(outPosition, outPosition + n, cbuf, off);
+        outPosition += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /** Reads more characters and replaces the matches that can be decided. */
+    private void process() throws IOException {
+        fill();
+        matcher.reset(CharBuffer.wrap(window, 0, limit));
+        int position = start;
+        // At the end of the stream, an empty match can still be found after the last character
+        while (position < limit || (eof && position == limit)) {
+            matcher.region(position, limit);
+            if (!matcher.find()) {
+                // A match could start in the last characters if more were available
+                int keep = (eof || !matcher.hitEnd()) ? limit : Math.max(position, limit - maxMatchLength);
+                out.append(window, position, keep - position);
+                position = keep;
+                break;
+            }
+            if (!eof && matcher.hitEnd() && canDefer(matcher.start())) {
+                // The match may change with the characters that follow
+                out.append(window, position, matcher.start() - position);
+                position = matcher.start();
+                break;
+            }
+            out.append(window, position, matcher.start() - position);
+            out.append(template.applyTo(matcher));
+            if (matcher.end() == matcher.start()) {
+                // Empty match: move forward to avoid matching it again
+                if (matcher.end() < limit) {
+                    out.append(window[matcher.end()]);
+                }
+                position = matcher.end() + 1;
+            } else {
+                position = matcher.end();
+            }
+        }
+        start = Math.min(position, limit);
+    }
+
+    /** Returns {@code true} if more characters can be read while keeping the characters from {@code from}. */
+    private boolean canDefer(final int from) {
+        return limit < window.length || from - maxMatchLength > 0;
+    }
+
+    /** Slides the window, keeping some already processed characters as context, and reads more characters. */
+    private void fill() throws IOException {
+        int from = Math.max(0, start - maxMatchLength);
+        if (from > 0) {
+            System.arraycopy(window, from, window, 0, limit - from);
+            start -= from;
+            limit -= from;
+        }
+        if (!eof && limit < window.length) {
+            int n = in.read(window, limit, window.length - limit);
+            if (n < 0) {
+                eof = true;
+            } else {
+                limit += n;
+            }
+        }
+    }
+}
@@ -12,7 +12,7 @@
  * information: "Portions Copyright [year] [name of copyright owner]".
  *
  * Copyright 2010-2011 ApexIdentity Inc.
- * Portions Copyright 2011-2015 ForgeRock AS.
+ * Portions Copyright 2011-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.regex;
@@ -23,9 +23,11 @@ import java.util.AbstractMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.regex.Matcher;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.MatchResult;
 import java.util.regex.Pattern;
 
 /**
@@ -33,15 +35,29 @@ import java.util.regex.Pattern;
  * streams. If a pattern has a corresponding template, then the template will be
  * applied to yield the extraction result. If no corresponding template exists,
  * then the entire match is yielded verbatim.
+ * <p>
+ * All the patterns are searched in a single pass over the stream, and the stream
+ * is not read any further once every pattern has matched. Patterns are matched
+ * line by line, within a window of at most {@link #getWindowSize()} characters:
+ * longer lines are split into overlapping segments, so that matches of up to
+ * half the window size are still found across a split.
  *
  * @see PatternTemplate
  */
 public class StreamPatternExtractor {
 
+    /** Default maximum number of characters buffered while searching the stream. */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
     private final Map<String, Pattern> patterns = new LinkedHashMap<>();
 
     private final Map<String, PatternTemplate> templates = new HashMap<>();
 
+    /** Alternations of patterns, reused from one extraction to the other. */
+    private final Map<List<Pattern>, Pattern> combinations = new ConcurrentHashMap<>();
+
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
     /**
      * Mapping of names to regular expression patterns to extract from the stream.
      * @return the patterns' Map keyed with an identifier that may be reused in the templates' Map.
@@ -58,6 +74,27 @@ public class StreamPatternExtractor {
         return templates;
     }
 
+    /**
+     * Returns the maximum number of characters buffered while searching a stream.
+     * @return the maximum number of characters buffered while searching a stream.
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sets the maximum number of characters buffered while searching a stream (defaults to
+     * {@link #DEFAULT_WINDOW_SIZE}). Lines longer than this are split into segments overlapping by half the
+     * window size.
+     * @param windowSize the maximum number of characters buffered while searching a stream.
+     */
+    public void setWindowSize(final int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("The window size must be positive");
+        }
+        this.windowSize = windowSize;
+    }
+
     /**
      * Extracts regular expression patterns from a character streams. Returns a
      * mapping of names to the results of pattern extraction (literal match or
@@ -76,57 +113,42 @@ public class StreamPatternExtractor {
      * applied template).
      */
     public Iterable<Map.Entry<String, String>> extract(final Reader reader) {
+        final String[] keys = patterns.keySet().toArray(new String[patterns.size()]);
+        final MultiPatternScanner scanner = new MultiPatternScanner(reader, patterns.values(), windowSize, combinations);
         return new Iterable<Map.Entry<String, String>>() {
             private final Map<String, String> values = new HashMap<>();
-            @SuppressWarnings("rawtypes")
-            private Map.Entry[] entries = patterns.entrySet().toArray(
-                    new Map.Entry[patterns.size()]);
-            private final StreamPatternMatches matches = new StreamPatternMatches(reader, patterns
-                    .values(), true);
 
             @Override
             public Iterator<Map.Entry<String, String>> iterator() {
-                final Iterator<String> iterator = patterns.keySet().iterator();
-
                 return new Iterator<Map.Entry<String, String>>() {
+                    private int position;
+
                     @Override
                     public boolean hasNext() {
-                        return iterator.hasNext();
+                        return position < keys.length;
                     }
 
                     @Override
-                    public Entry<String, String> next() {
-                        String key = iterator.next();
-                        String value = values.get(key);
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        String key = keys[position++];
                         try {
-                            while (value == null && matches.hasNext()) {
-                                Matcher matcher = matches.next();
-                                Pattern pattern = matcher.pattern();
-                                for (int n = 0; n < entries.length; n++) {
-                                    if (entries[n] != null) {
-                                        String entryKey = (String) (entries[n].getKey());
-                                        Pattern entryPattern = (Pattern) (entries[n].getValue());
-                                        if (entryPattern == pattern) {
-                                            // identity equality for accurate (and quick) correlation
-                                            PatternTemplate t = templates.get(entryKey);
-                                            String v =
-                                                    (t != null ? t.applyTo(matcher) : matcher
-                                                            .group());
-                                            values.put(entryKey, value);
-                                            if (entryKey.equals(key)) {
-                                                // found the value we were looking for
-                                                value = v;
-                                            }
-                                            // used entry; deference for efficiency
-                                            entries[n] = null;
-                                        }
-                                    }
+                            while (!values.containsKey(key)) {
+                                int index = scanner.next();
+                                if (index < 0) {
+                                    break;
                                 }
+                                // Matches of other patterns are kept for their own key
+                                MatchResult result = scanner.result();
+                                PatternTemplate template = templates.get(keys[index]);
+                                values.put(keys[index], template != null ? template.applyTo(result) : result.group());
                             }
                         } catch (IOException ioe) {
                             // any failure to read stream yields null value in mapping
                         }
-                        return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                        return new AbstractMap.SimpleImmutableEntry<>(key, values.get(key));
                     }
 
                     @Override
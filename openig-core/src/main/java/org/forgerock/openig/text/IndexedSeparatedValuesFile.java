@@ -0,0 +1,329 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.text;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link SeparatedValuesFile} that indexes its records on a given field: the file is parsed once, and lookups on
+ * the indexed field are hash table lookups, without any file access. Lookups on any other field fall back to a
+ * sequential scan of the file.
+ * <p>
+ * The index is built on the first lookup. It is not refreshed automatically when the file changes:
+ * {@link #reloadIfModified()} has to be called (usually periodically) to rebuild it when the file modification date
+ * or size has changed. The new index is built aside, then replaces the previous one atomically, so that concurrent
+ * lookups always see a complete index.
+ * <p>
+ * By default, the records are kept on heap. For very large files, the file can instead be memory-mapped: only the
+ * indexed values and the records' positions are kept on heap, and records are decoded from the mapping on lookup.
+ * Memory-mapping requires an ASCII compatible charset (such as {@literal UTF-8} or {@literal ISO-8859-1}) and a
+ * file smaller than 2GB. A memory-mapped file should be updated by replacing it (write a new file, then rename it),
+ * not by rewriting it in place.
+ */
+public class IndexedSeparatedValuesFile extends SeparatedValuesFile {
+
+    private static final int CR = '\r';
+    private static final int LF = '\n';
+
+    /** The name of the indexed field. */
+    private final String key;
+
+    /** Are the records read from a mapping of the file rather than kept on heap. */
+    private final boolean memoryMapped;
+
+    /** Current index, {@code null} until the first lookup. */
+    private volatile Index index;
+
+    /**
+     * Builds a new IndexedSeparatedValuesFile reading the given {@code file}.
+     *
+     * @param file
+     *         file to read from
+     * @param charset
+     *         {@link Charset} of the file (non-null)
+     * @param separator
+     *         separator specification
+     * @param header
+     *         does the file has a header first line ?
+     * @param key
+     *         name of the indexed field
+     * @param memoryMapped
+     *         read the records from a mapping of the file instead of keeping them on heap
+     */
+    public IndexedSeparatedValuesFile(final File file,
+                                      final Charset charset,
+                                      final Separator separator,
+                                      final boolean header,
+                                      final String key,
+                                      final boolean memoryMapped) {
+        super(file, charset, separator, header);
+        if (memoryMapped && !isAsciiCompatible(charset)) {
+            throw new IllegalArgumentException("Memory-mapped files require an ASCII compatible charset, "
+                                                       + charset + " is not supported");
+        }
+        this.key = key;
+        this.memoryMapped = memoryMapped;
+    }
+
+    @Override
+    public Map<String, String> getRecord(final String key, final String value) throws IOException {
+        if (!this.key.equals(key)) {
+            return super.getRecord(key, value);
+        }
+        Index current = index;
+        if (current == null) {
+            current = load();
+        }
+        return current.lookup(value);
+    }
+
+    /**
+     * Rebuilds the index if the file has been modified (its modification date or size has changed) since the index
+     * was built. Lookups keep on using the previous index until the new one is ready.
+     *
+     * @return {@code true} if the index has been rebuilt
+     * @throws IOException
+     *         if the file cannot be read, the previous index is kept
+     */
+    public boolean reloadIfModified() throws IOException {
+        Index current = index;
+        if (current == null || !current.isStale(getFile())) {
+            return false;
+        }
+        synchronized (this) {
+            if (index != current) {
+                // Rebuilt concurrently
+                return false;
+            }
+            index = build();
+            return true;
+        }
+    }
+
+    private synchronized Index load() throws IOException {
+        if (index == null) {
+            index = build();
+        }
+        return index;
+    }
+
+    private Index build() throws IOException {
+        File file = getFile();
+        // Captured before reading so that a concurrent modification triggers another rebuild
+        long lastModified = file.lastModified();
+        long length = file.length();
+        return memoryMapped ? buildMapped(file, lastModified, length) : buildOnHeap(file, lastModified, length);
+    }
+
+    private Index buildOnHeap(final File file, final long lastModified, final long length) throws IOException {
+        SeparatedValuesReader reader = new SeparatedValuesReader(
+                new InputStreamReader(new FileInputStream(file), getCharset()),
+                getSeparator()
+        );
+        try {
+            List<String> fields = getFields();
+            if (hasHeader()) {
+                List<String> record = reader.next();
+                if (record != null && fields.isEmpty()) {
+                    fields = record;
+                }
+            }
+            Map<String, String[]> records = new HashMap<>();
+            int position = fields.indexOf(key);
+            if (position >= 0) {
+                List<String> record;
+                while ((record = reader.next()) != null) {
+                    if (record.size() > position && !records.containsKey(record.get(position))) {
+                        // The first matching record wins, as with a sequential scan
+                        records.put(record.get(position), record.toArray(new String[record.size()]));
+                    }
+                }
+            }
+            return new HeapIndex(lastModified, length, fields, records);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Index buildMapped(final File file, final long lastModified, final long length) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File " + file + " is too large to be memory-mapped");
+            }
+            // The mapping remains valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        MappedIndex mapped = new MappedIndex(lastModified, length, buffer);
+        List<String> fields = getFields();
+        int position = 0;
+        if (hasHeader() && buffer.limit() > 0) {
+            int end = mapped.endOfRecord(0);
+            List<String> record = mapped.parse(0, end);
+            if (record != null && fields.isEmpty()) {
+                fields = record;
+            }
+            position = end + 1;
+        }
+        mapped.fields = fields;
+        int field = fields.indexOf(key);
+        if (field >= 0) {
+            while (position < buffer.limit()) {
+                int end = mapped.endOfRecord(position);
+                List<String> record = mapped.parse(position, end);
+                if (record != null && record.size() > field && !mapped.offsets.containsKey(record.get(field))) {
+                    mapped.offsets.put(record.get(field), position);
+                }
+                position = end + 1;
+            }
+        }
+        return mapped;
+    }
+
+    private static boolean isAsciiCompatible(final Charset charset) {
+        // Quote, escape and line feed characters can be found by looking at single bytes
+        return UTF_8.equals(charset) || charset.newEncoder().maxBytesPerChar() == 1.0f;
+    }
+
+    private static Map<String, String> toMap(final List<String> fields, final Iterator<String> values) {
+        Map<String, String> map = new HashMap<>(fields.size());
+        Iterator<String> fi = fields.iterator();
+        while (fi.hasNext() && values.hasNext()) {
+            // assign field-value pairs in map
+            map.put(fi.next(), values.next());
+        }
+        return map;
+    }
+
+    /** An immutable index of the records, valid for a given version of the file. */
+    private abstract static class Index {
+        private final long lastModified;
+        private final long length;
+
+        Index(final long lastModified, final long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        boolean isStale(final File file) {
+            return file.lastModified() != lastModified || file.length() != length;
+        }
+
+        abstract Map<String, String> lookup(String value) throws IOException;
+    }
+
+    /** Records are kept on heap. */
+    private static final class HeapIndex extends Index {
+        private final List<String> fields;
+        private final Map<String, String[]> records;
+
+        HeapIndex(final long lastModified,
+                  final long length,
+                  final List<String> fields,
+                  final Map<String, String[]> records) {
+            super(lastModified, length);
+            this.fields = fields;
+            this.records = records;
+        }
+
+        @Override
+        Map<String, String> lookup(final String value) {
+            String[] record = records.get(value);
+            if (record == null) {
+                return null;
+            }
+            // A fresh map for each lookup: callers are free to modify it
+            return toMap(fields, Arrays.asList(record).iterator());
+        }
+    }
+
+    /** Records are decoded from a memory mapping of the file. */
+    private final class MappedIndex extends Index {
+        private final MappedByteBuffer buffer;
+        private final Map<String, Integer> offsets = new HashMap<>();
+        private List<String> fields;
+
+        MappedIndex(final long lastModified, final long length, final MappedByteBuffer buffer) {
+            super(lastModified, length);
+            this.buffer = buffer;
+        }
+
+        @Override
+        Map<String, String> lookup(final String value) throws IOException {
+            Integer offset = offsets.get(value);
+            if (offset == null) {
+                return null;
+            }
+            List<String> record = parse(offset, endOfRecord(offset));
+            return record == null ? null : toMap(fields, record.iterator());
+        }
+
+        /** Returns the position of the line feed ending the record starting at the given position. */
+        int endOfRecord(final int start) {
+            int quote = getSeparator().getQuote();
+            int escape = getSeparator().getEscape();
+            boolean quoted = false;
+            int limit = buffer.limit();
+            for (int i = start; i < limit; i++) {
+                int b = buffer.get(i) & 0xff;
+                if (b == escape) {
+                    i++;
+                } else if (b == quote) {
+                    // Doubled quotes toggle twice
+                    quoted = !quoted;
+                } else if (b == LF && !quoted) {
+                    return i;
+                }
+            }
+            return limit;
+        }
+
+        List<String> parse(final int start, final int end) throws IOException {
+            ByteBuffer bytes = buffer.duplicate();
+            int last = end;
+            if (last > start && buffer.get(last - 1) == CR) {
+                // CR+LF line ending
+                last--;
+            }
+            bytes.limit(last);
+            bytes.position(start);
+            String line = getCharset().decode(bytes).toString();
+            SeparatedValuesReader reader = new SeparatedValuesReader(new StringReader(line), getSeparator());
+            try {
+                return reader.next();
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
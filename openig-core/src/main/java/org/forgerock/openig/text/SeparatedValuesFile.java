@@ -12,7 +12,7 @@
  * information: "Portions Copyright [year] [name of copyright owner]".
  *
  * Copyright 2010-2011 ApexIdentity Inc.
- * Portions Copyright 2011-2015 ForgeRock AS.
+ * Portions Copyright 2011-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.text;
@@ -138,6 +138,38 @@ public class SeparatedValuesFile {
         return fields;
     }
 
+    /**
+     * Returns the file containing the separated values to be read.
+     * @return the file containing the separated values to be read
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the character set the file is encoded in.
+     * @return the character set the file is encoded in
+     */
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns the separator specification to split lines into fields.
+     * @return the separator specification to split lines into fields
+     */
+    Separator getSeparator() {
+        return separator;
+    }
+
+    /**
+     * Returns {@code true} if the first line of the file contains the set of defined field keys.
+     * @return {@code true} if the first line of the file contains the set of defined field keys
+     */
+    boolean hasHeader() {
+        return header;
+    }
+
     /**
      * Returns a record from the file where the specified key is equal to the specified value.
      *
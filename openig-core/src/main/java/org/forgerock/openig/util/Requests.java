@@ -0,0 +1,99 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.util;
+
+import static org.forgerock.http.io.IO.newBranchingInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.forgerock.http.io.Buffer;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.util.Factory;
+
+/**
+ * Request utility methods.
+ */
+public final class Requests {
+
+    /**
+     * Static methods only.
+     */
+    private Requests() { }
+
+    /**
+     * Returns a copy of the given request that can be modified and consumed without affecting the original request.
+     * <p>
+     * The entity is not copied: the copy reads a branch of the original entity's stream. Only the content actually
+     * read through the copy is buffered (in the storage of the original entity) so that the original request can
+     * still be read; nothing is buffered if the copy's entity is never read, or replaced before being read. Closing
+     * the copy only closes its branch.
+     *
+     * @param request
+     *         the request to copy
+     * @return a copy of the request
+     * @throws IOException
+     *         if the original entity cannot be branched
+     */
+    public static Request copyOf(final Request request) throws IOException {
+        Request copy = new Request();
+        // Set before the headers, as setting the entity drops the Content-Length header
+        copy.getEntity().setRawContentInputStream(request.getEntity().getRawContentInputStream().branch());
+        copy.setMethod(request.getMethod());
+        copy.setUri(request.getUri().asURI());
+        copy.setVersion(request.getVersion());
+        for (Map.Entry<String, Header> header : request.getHeaders().asMapOfHeaders().entrySet()) {
+            // New header instances, so that modifying the copy's values does not modify the original's
+            copy.getHeaders().add(header.getKey(), header.getValue().getValues());
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a copy of the given request whose entity is read from the given bytes, typically the original entity
+     * read beforehand with {@link org.forgerock.http.protocol.Entity#getBytes()}.
+     * <p>
+     * Unlike the copies returned by {@link #copyOf(Request)}, which all read branches of the same stream, the copies
+     * made from the same bytes are independent from each other: they can be read concurrently, from different
+     * threads.
+     *
+     * @param request
+     *         the request to copy
+     * @param entity
+     *         the entity of the copy, {@code null} for a copy without entity
+     * @param storage
+     *         the storage used to buffer the copy's entity, if it gets branched
+     * @return a copy of the request
+     */
+    public static Request copyOf(final Request request, final byte[] entity, final Factory<Buffer> storage) {
+        Request copy = new Request();
+        if (entity != null) {
+            // Set before the headers, as setting the entity drops the Content-Length header
+            copy.getEntity().setRawContentInputStream(newBranchingInputStream(new ByteArrayInputStream(entity),
+                                                                              storage));
+        }
+        copy.setMethod(request.getMethod());
+        copy.setUri(request.getUri().asURI());
+        copy.setVersion(request.getVersion());
+        for (Map.Entry<String, Header> header : request.getHeaders().asMapOfHeaders().entrySet()) {
+            copy.getHeaders().add(header.getKey(), header.getValue().getValues());
+        }
+        return copy;
+    }
+}
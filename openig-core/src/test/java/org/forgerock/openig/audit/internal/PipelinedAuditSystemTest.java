@@ -0,0 +1,179 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.audit.internal;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.el.Bindings.bindings;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openig.audit.AuditEvent;
+import org.forgerock.openig.audit.AuditEventListener;
+import org.forgerock.openig.audit.AuditSource;
+import org.forgerock.openig.audit.ConditionalAuditEventListener;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.openig.heap.Name;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Deprecated
+@SuppressWarnings("javadoc")
+public class PipelinedAuditSystemTest {
+
+    @Mock
+    private AuditEventListener listener;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void shouldForwardToRegisteredListeners() throws Exception {
+        PipelinedAuditSystem system = new PipelinedAuditSystem();
+        system.registerListener(listener);
+        AuditEvent event = event("request");
+        system.onAuditEvent(event);
+        verify(listener, timeout(1000)).onAuditEvent(event);
+        system.unregisterListener(listener);
+    }
+
+    @Test
+    public void shouldOnlyOfferEventsToInterestedListeners() throws Exception {
+        AuditEventListener interested = mock(AuditEventListener.class);
+        AuditEventListener notInterested = mock(AuditEventListener.class);
+        Expression<Boolean> always = Expression.valueOf("${true}", Boolean.class);
+
+        PipelinedAuditSystem system = new PipelinedAuditSystem();
+        system.registerListener(new ConditionalAuditEventListener(interested, always, singleton("marker")));
+        system.registerListener(new ConditionalAuditEventListener(notInterested, always, singleton("other")));
+
+        AuditEvent event = event("request", "marker");
+        system.onAuditEvent(event);
+
+        verify(interested, timeout(1000)).onAuditEvent(event);
+        verify(notInterested, never()).onAuditEvent(event);
+    }
+
+    @Test
+    public void shouldOfferEventOnlyOnceWhenSeveralTagsMatch() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        AuditEventListener counting = new AuditEventListener() {
+            @Override
+            public void onAuditEvent(final AuditEvent event) {
+                latch.countDown();
+            }
+        };
+        Expression<Boolean> always = Expression.valueOf("${true}", Boolean.class);
+
+        PipelinedAuditSystem system = new PipelinedAuditSystem();
+        system.registerListener(new ConditionalAuditEventListener(counting,
+                                                                  always,
+                                                                  new HashSet<>(asList("a", "b"))));
+        system.onAuditEvent(event("a", "b"));
+
+        assertThat(latch.await(500, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(latch.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldWaitForRoomRatherThanDroppingEvents() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(4);
+        AuditEventListener slow = new AuditEventListener() {
+            @Override
+            public void onAuditEvent(final AuditEvent event) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.countDown();
+            }
+        };
+
+        final PipelinedAuditSystem system = new PipelinedAuditSystem(1);
+        system.registerListener(slow);
+        // First event is processed (and blocks the worker), second is queued, third waits for room
+        Thread emitter = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 4; i++) {
+                    system.onAuditEvent(event("request"));
+                }
+            }
+        };
+        emitter.start();
+        emitter.join(200);
+        assertThat(emitter.isAlive()).isTrue();
+
+        blocked.countDown();
+        emitter.join(1000);
+        assertThat(emitter.isAlive()).isFalse();
+        assertThat(delivered.await(1, TimeUnit.SECONDS)).isTrue();
+        system.shutdown();
+    }
+
+    @Test
+    public void shouldEvaluateConditionsOnTheEmittingThread() throws Exception {
+        final Thread[] evaluatedOn = new Thread[1];
+        Expression<Boolean> always = Expression.valueOf("${true}", Boolean.class);
+        ConditionalAuditEventListener conditional = new ConditionalAuditEventListener(listener, always) {
+            @Override
+            public boolean isSelected(final AuditEvent event) {
+                evaluatedOn[0] = Thread.currentThread();
+                return super.isSelected(event);
+            }
+        };
+
+        PipelinedAuditSystem system = new PipelinedAuditSystem();
+        system.registerListener(conditional);
+        AuditEvent event = event("request");
+        system.onAuditEvent(event);
+
+        assertThat(evaluatedOn[0]).isSameAs(Thread.currentThread());
+        verify(listener, timeout(1000)).onAuditEvent(event);
+        system.shutdown();
+    }
+
+    @Test
+    public void shouldNotDispatchEventsOnceShutdown() throws Exception {
+        PipelinedAuditSystem system = new PipelinedAuditSystem();
+        system.registerListener(listener);
+        system.shutdown();
+
+        system.onAuditEvent(event("request"));
+
+        Thread.sleep(100);
+        verify(listener, never()).onAuditEvent(any(AuditEvent.class));
+    }
+
+    private static AuditEvent event(final String... tags) {
+        return new AuditEvent(new AuditSource(Name.of("source")), 0L, bindings(), asList(tags));
+    }
+}
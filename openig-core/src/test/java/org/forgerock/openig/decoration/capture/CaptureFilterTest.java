@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014-2015 ForgeRock AS.
+ * Copyright 2014-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.decoration.capture;
@@ -69,6 +69,7 @@ public class CaptureFilterTest {
         response = new Response();
         when(terminal.handle(any(Context.class), any(Request.class)))
                 .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(response));
+        when(capture.isSampled(any(Context.class), any(Request.class))).thenReturn(true);
     }
 
     @DataProvider
@@ -117,6 +118,19 @@ public class CaptureFilterTest {
             }
 
         }
+        verify(capture).isSampled(context, null);
+        verifyNoMoreInteractions(capture);
+    }
+
+    @Test
+    public void shouldNotCaptureMessagesWhenNotSampled() throws Exception {
+        when(capture.isSampled(any(Context.class), any(Request.class))).thenReturn(false);
+        CaptureFilter filter = new CaptureFilter(delegate, capture, new TreeSet<>(asList(CapturePoint.values())));
+
+        Context context = new RootContext();
+        filter.filter(context, null, terminal).get();
+
+        verify(capture).isSampled(context, null);
         verifyNoMoreInteractions(capture);
     }
 
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014-2015 ForgeRock AS.
+ * Copyright 2014-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.decoration.capture;
@@ -58,6 +58,7 @@ public class CaptureHandlerTest {
         response = new Response();
         when(delegate.handle(any(Context.class), any(Request.class)))
                 .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(response));
+        when(capture.isSampled(any(Context.class), any(Request.class))).thenReturn(true);
     }
 
     @DataProvider
@@ -104,6 +105,19 @@ public class CaptureHandlerTest {
                 break;
             }
         }
+        verify(capture).isSampled(context, null);
+        verifyNoMoreInteractions(capture);
+    }
+
+    @Test
+    public void shouldNotCaptureMessagesWhenNotSampled() throws Exception {
+        when(capture.isSampled(any(Context.class), any(Request.class))).thenReturn(false);
+        CaptureHandler handler = new CaptureHandler(delegate, capture, new TreeSet<>(asList(CapturePoint.values())));
+
+        Context context = new RootContext();
+        handler.handle(context, null).get();
+
+        verify(capture).isSampled(context, null);
         verifyNoMoreInteractions(capture);
     }
 
@@ -0,0 +1,63 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.decoration.capture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CaptureSamplerTest {
+
+    @Test
+    public void shouldAlwaysSample() throws Exception {
+        assertThat(CaptureSampler.ALWAYS.isSampled(new RootContext(), new Request())).isTrue();
+    }
+
+    @Test
+    public void shouldNeverSample() throws Exception {
+        CaptureSampler sampler = new CaptureSampler(0d, null, null);
+        assertThat(sampler.isSampled(new RootContext(), new Request())).isFalse();
+    }
+
+    @Test
+    public void shouldSampleWhenTriggerHeaderIsPresent() throws Exception {
+        CaptureSampler sampler = new CaptureSampler(0d, null, "X-Capture");
+        Request request = new Request();
+        request.getHeaders().put("X-Capture", "true");
+
+        assertThat(sampler.isSampled(new RootContext(), request)).isTrue();
+        assertThat(sampler.isSampled(new RootContext(), new Request())).isFalse();
+    }
+
+    @Test
+    public void shouldSampleWhenConditionIsVerified() throws Exception {
+        Expression<Boolean> condition = Expression.valueOf("${request.method == 'POST'}", Boolean.class);
+        CaptureSampler sampler = new CaptureSampler(1d, condition, null);
+
+        assertThat(sampler.isSampled(new RootContext(), new Request().setMethod("POST"))).isTrue();
+        assertThat(sampler.isSampled(new RootContext(), new Request().setMethod("GET"))).isFalse();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectInvalidSampleRate() throws Exception {
+        new CaptureSampler(1.5d, null, null);
+    }
+}
@@ -18,6 +18,7 @@ package org.forgerock.openig.decoration.capture;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
 import org.forgerock.http.header.ContentTypeHeader;
@@ -97,6 +98,51 @@ public class MessageCaptureTest {
         verify(logger).info(anyString());
     }
 
+    @Test
+    public void shouldTruncateEntity() throws Exception {
+        MessageCapture capture = new MessageCapture(logger, true, false, 4, CaptureSampler.ALWAYS, null);
+
+        Request request = new Request();
+        request.getHeaders().put("Content-Type", "text/plain; charset=UTF-8");
+        request.getEntity().setString("0123456789");
+        capture.capture(new RootContext(), request, CapturePoint.REQUEST);
+
+        verify(logger).info(captor.capture());
+        assertThat(captor.getValue()).contains("0123")
+                                     .doesNotContain("0123456789")
+                                     .contains("[entity truncated to 4 characters]");
+        // Entity is still fully readable
+        assertThat(request.getEntity().getString()).isEqualTo("0123456789");
+    }
+
+    @Test
+    public void shouldNotTruncateShortEntity() throws Exception {
+        MessageCapture capture = new MessageCapture(logger, true, false, 10, CaptureSampler.ALWAYS, null);
+
+        Request request = new Request();
+        request.getHeaders().put("Content-Type", "text/plain; charset=UTF-8");
+        request.getEntity().setString("0123456789");
+        capture.capture(new RootContext(), request, CapturePoint.REQUEST);
+
+        verify(logger).info(captor.capture());
+        assertThat(captor.getValue()).contains("0123456789")
+                                     .doesNotContain("[entity truncated");
+    }
+
+    @Test
+    public void shouldLogAsynchronously() throws Exception {
+        AsyncCaptureWriter writer = new AsyncCaptureWriter(10);
+        try {
+            MessageCapture capture = new MessageCapture(logger, false, false, -1, CaptureSampler.ALWAYS, writer);
+
+            capture.capture(new RootContext(), new Request(), CapturePoint.REQUEST);
+
+            verify(logger, timeout(1000)).info(anyString());
+        } finally {
+            writer.stop();
+        }
+    }
+
     @DataProvider
     public static Object[][] textualContextType() {
         //@Checkstyle:off
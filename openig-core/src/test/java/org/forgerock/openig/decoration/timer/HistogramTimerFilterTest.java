@@ -0,0 +1,91 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.decoration.timer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.http.Filter;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class HistogramTimerFilterTest {
+
+    @Mock
+    private Handler terminal;
+
+    private TimerMetrics metrics;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        metrics = new TimerMetrics(TimerMetrics.DEFAULT_PERCENTILES);
+    }
+
+    @Test
+    public void shouldRecordElapsedTimesIntoHistograms() throws Exception {
+        HistogramTimerFilter filter = new HistogramTimerFilter(new DelegateFilter(), metrics);
+
+        when(terminal.handle(any(Context.class), any(Request.class)))
+                .thenReturn(Promises.<Response, NeverThrowsException>newResultPromise(new Response()));
+        filter.filter(new RootContext(), new Request(), terminal).get();
+        filter.filter(new RootContext(), new Request(), terminal).get();
+
+        assertThat(metrics.getElapsed().getCount()).isEqualTo(2);
+        assertThat(metrics.getElapsedWithin().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldExcludePausedTimeFromElapsedWithin() throws Exception {
+        metrics.record(1500, 1000);
+
+        assertThat(metrics.getElapsed().getSnapshot().getMax()).isEqualTo(1500);
+        assertThat(metrics.getElapsedWithin().getSnapshot().getMax()).isEqualTo(500);
+    }
+
+    @Test
+    public void shouldExposeHistogramsAsJson() throws Exception {
+        metrics.record(2000, 0);
+
+        Response response = metrics.handle(new RootContext(), new Request()).get();
+        JsonValue json = new JsonValue(response.getEntity().getJson());
+        assertThat(json.get("elapsed").get("count").asLong()).isEqualTo(1);
+        assertThat(json.get("elapsed").get("percentiles").keys()).contains("0.5", "0.9", "0.99", "0.999");
+    }
+
+    private static class DelegateFilter implements Filter {
+        @Override
+        public Promise<Response, NeverThrowsException> filter(final Context context,
+                                                              final Request request,
+                                                              final Handler next) {
+            return next.handle(context, request);
+        }
+    }
+}
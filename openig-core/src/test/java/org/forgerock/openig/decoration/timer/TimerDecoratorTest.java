@@ -19,6 +19,7 @@ package org.forgerock.openig.decoration.timer;
 import static java.util.Collections.*;
 import static org.assertj.core.api.Assertions.*;
 import static org.forgerock.json.JsonValue.*;
+import static org.forgerock.openig.heap.Keys.ENDPOINT_REGISTRY_HEAP_KEY;
 import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
 import static org.mockito.Mockito.*;
 
@@ -26,10 +27,16 @@ import java.util.ArrayList;
 
 import org.forgerock.http.Filter;
 import org.forgerock.http.Handler;
+import org.forgerock.http.routing.Router;
+import org.forgerock.json.JsonValue;
 import org.forgerock.openig.decoration.Context;
 import org.forgerock.openig.heap.HeapImpl;
 import org.forgerock.openig.heap.Name;
+import org.forgerock.openig.http.EndpointRegistry;
 import org.forgerock.openig.log.NullLogSink;
+import org.forgerock.services.routing.RouteMatcher;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.testng.annotations.BeforeMethod;
@@ -47,11 +54,18 @@ public class TimerDecoratorTest {
     @Mock
     private Context context;
 
+    @Mock
+    private Router router;
+
+    @Captor
+    private ArgumentCaptor<Runnable> destroyAction;
+
     @BeforeMethod
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
         HeapImpl heap = new HeapImpl(Name.of("anonymous"));
         heap.put(LOGSINK_HEAP_KEY, new NullLogSink());
+        heap.put(ENDPOINT_REGISTRY_HEAP_KEY, new EndpointRegistry(router, "/objects"));
         when(context.getHeap()).thenReturn(heap);
         when(context.getConfig()).thenReturn(json(emptyMap()));
         when(context.getName()).thenReturn(Name.of("config.json", "Router"));
@@ -89,6 +103,87 @@ public class TimerDecoratorTest {
         assertThat(decorated).isSameAs(handler);
     }
 
+    @Test
+    public void shouldDecorateFilterWithHistogram() throws Exception {
+        TimerDecorator decorator = new TimerDecorator();
+
+        Object decorated = decorator.decorate(filter, json(object(field("mode", "histogram"))), context);
+        assertThat(decorated).isInstanceOf(HistogramTimerFilter.class);
+    }
+
+    @Test
+    public void shouldDecorateHandlerWithHistogramByDefault() throws Exception {
+        TimerDecorator decorator = new TimerDecorator(TimerDecorator.Mode.HISTOGRAM);
+
+        Object decorated = decorator.decorate(handler, json(true), context);
+        assertThat(decorated).isInstanceOf(HistogramTimerHandler.class);
+    }
+
+    @Test
+    public void shouldForceLogMode() throws Exception {
+        TimerDecorator decorator = new TimerDecorator(TimerDecorator.Mode.HISTOGRAM);
+
+        Object decorated = decorator.decorate(handler, json(object(field("mode", "log"))), context);
+        assertThat(decorated).isInstanceOf(TimerHandler.class);
+    }
+
+    @Test
+    public void shouldNotDecorateWhenDisabled() throws Exception {
+        TimerDecorator decorator = new TimerDecorator();
+
+        JsonValue config = json(object(field("enabled", false), field("mode", "histogram")));
+        assertThat(decorator.decorate(handler, config, context)).isSameAs(handler);
+    }
+
+    @Test
+    public void shouldShareHistogramAcrossDecorations() throws Exception {
+        TimerDecorator decorator = new TimerDecorator(TimerDecorator.Mode.HISTOGRAM);
+
+        HistogramTimerHandler first = (HistogramTimerHandler) decorator.decorate(handler, json(true), context);
+        HistogramTimerHandler second = (HistogramTimerHandler) decorator.decorate(handler, json(true), context);
+        assertThat(first.getMetrics()).isSameAs(second.getMetrics());
+    }
+
+    @Test
+    public void shouldReleaseHistogramWhenDecoratedObjectIsDestroyed() throws Exception {
+        TimerDecorator decorator = new TimerDecorator(TimerDecorator.Mode.HISTOGRAM);
+
+        HistogramTimerHandler first = (HistogramTimerHandler) decorator.decorate(handler, json(true), context);
+        decorator.decorate(handler, json(true), context);
+        verify(router).addRoute(any(RouteMatcher.class), eq(first.getMetrics()));
+        verify(context).onDestroy(destroyAction.capture());
+
+        destroyAction.getValue().run();
+        verify(router).removeRoute(any(RouteMatcher.class));
+
+        HistogramTimerHandler second = (HistogramTimerHandler) decorator.decorate(handler, json(true), context);
+        assertThat(second.getMetrics()).isNotSameAs(first.getMetrics());
+    }
+
+    @Test
+    public void shouldKeepHistogramWhenReloadedHeapIsDestroyed() throws Exception {
+        TimerDecorator decorator = new TimerDecorator(TimerDecorator.Mode.HISTOGRAM);
+        HistogramTimerHandler first = (HistogramTimerHandler) decorator.decorate(handler, json(true), context);
+        verify(context).onDestroy(destroyAction.capture());
+
+        // The new heap is built before the old one is destroyed
+        HeapImpl reloaded = new HeapImpl(Name.of("reloaded"));
+        reloaded.put(ENDPOINT_REGISTRY_HEAP_KEY, new EndpointRegistry(router, "/objects"));
+        Context reloadedContext = mock(Context.class);
+        when(reloadedContext.getHeap()).thenReturn(reloaded);
+        when(reloadedContext.getName()).thenReturn(Name.of("config.json", "Router"));
+        HistogramTimerHandler second = (HistogramTimerHandler) decorator.decorate(handler,
+                                                                                  json(true),
+                                                                                  reloadedContext);
+        destroyAction.getValue().run();
+
+        HistogramTimerHandler third = (HistogramTimerHandler) decorator.decorate(handler,
+                                                                                 json(true),
+                                                                                 reloadedContext);
+        assertThat(second.getMetrics()).isSameAs(first.getMetrics());
+        assertThat(third.getMetrics()).isSameAs(first.getMetrics());
+    }
+
     @DataProvider
     public static Object[][] undecoratableObjects() {
         // @Checkstyle:off
@@ -0,0 +1,168 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.el;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.el.Bindings.bindings;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ConditionTableTest {
+
+    private static final List<String> CONDITIONS = Arrays.asList(
+            "${request.method == 'DELETE'}",
+            "${matches(request.uri.path, '^/api/v2')}",
+            "${matches(request.uri.path, '^/api')}",
+            "${'www.example.com' eq request.uri.host}",
+            "${request.headers['X-Tenant'][0] == \"acme\"}",
+            "${request.uri.path == '/'}",
+            "${request.headers['X-Debug'][0] == 'true' and request.method == 'POST'}",
+            "${request.method == 'GET'}",
+            "${matches(request.uri.path, '^/a.c')}",
+            "${request.uri.path == '/it\\'s'}");
+
+    private final Context context = new RootContext();
+
+    @DataProvider
+    public static Object[][] requests() {
+        // @Checkstyle:off
+        return new Object[][] {
+            { "DELETE", "http://www.example.com/api/v2/users", null, null },
+            { "GET", "http://www.example.com/api/v2/users", null, null },
+            { "GET", "http://www.example.com/api/v1", null, null },
+            { "GET", "http://www.example.com/", null, null },
+            { "PUT", "http://www.example.com/other", null, null },
+            { "PUT", "http://other.example.com/other", "acme", null },
+            { "PUT", "http://other.example.com/", null, null },
+            { "POST", "http://other.example.com/other", null, "true" },
+            { "GET", "http://other.example.com/other", null, null },
+            { "PUT", "http://other.example.com/abc", null, null },
+            { "PUT", "http://other.example.com/it's", null, null },
+            { "PUT", "http://other.example.com/none", "other", "false" }
+        };
+        // @Checkstyle:on
+    }
+
+    @Test(dataProvider = "requests")
+    public void shouldReturnTheSameValueAsLinearEvaluation(final String method,
+                                                           final String uri,
+                                                           final String tenant,
+                                                           final String debug) throws Exception {
+        Request request = new Request().setMethod(method).setUri(uri);
+        if (tenant != null) {
+            request.getHeaders().put("X-Tenant", tenant);
+        }
+        if (debug != null) {
+            request.getHeaders().put("X-Debug", debug);
+        }
+
+        ConditionTable.Builder<String> builder = ConditionTable.builder();
+        String expected = null;
+        for (String condition : CONDITIONS) {
+            Expression<Boolean> expression = Expression.valueOf(condition, Boolean.class);
+            builder.add(expression, condition);
+            if (expected == null && Boolean.TRUE.equals(expression.eval(bindings(context, request)))) {
+                expected = condition;
+            }
+        }
+
+        assertThat(builder.build().lookup(context, request, null)).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldPreserveFirstMatchOrderAcrossComplexConditions() throws Exception {
+        ConditionTable<String> table = ConditionTable.<String>builder()
+                .add(Expression.valueOf("${request.uri.path == '/a'}", Boolean.class), "first")
+                .add(Expression.valueOf("${contains(request.uri.path, 'b')}", Boolean.class), "complex")
+                .add(Expression.valueOf("${matches(request.uri.path, '^/')}", Boolean.class), "prefix")
+                .build();
+
+        assertThat(table.lookup(context, new Request().setUri("/a"), null)).isEqualTo("first");
+        assertThat(table.lookup(context, new Request().setUri("/b"), null)).isEqualTo("complex");
+        assertThat(table.lookup(context, new Request().setUri("/c"), null)).isEqualTo("prefix");
+    }
+
+    @Test
+    public void shouldPreferTheFirstOfSeveralMatchingSimpleConditions() throws Exception {
+        ConditionTable<String> table = ConditionTable.<String>builder()
+                .add(Expression.valueOf("${request.method == 'GET'}", Boolean.class), "method")
+                .add(Expression.valueOf("${matches(request.uri.path, '^/api')}", Boolean.class), "short")
+                .add(Expression.valueOf("${matches(request.uri.path, '^/api/v1')}", Boolean.class), "long")
+                .add(Expression.valueOf("${request.method == 'GET'}", Boolean.class), "duplicate")
+                .build();
+
+        assertThat(table.lookup(context, new Request().setMethod("GET").setUri("/api/v1"), null))
+                .isEqualTo("method");
+        assertThat(table.lookup(context, new Request().setMethod("PUT").setUri("/api/v1"), null))
+                .isEqualTo("short");
+    }
+
+    @Test
+    public void shouldReturnUnconditionalValue() throws Exception {
+        ConditionTable<String> table = ConditionTable.<String>builder()
+                .add(Expression.valueOf("${request.method == 'GET'}", Boolean.class), "get")
+                .add(null, "default")
+                .add(Expression.valueOf("${request.method == 'PUT'}", Boolean.class), "unreachable")
+                .build();
+
+        assertThat(table.lookup(context, new Request().setMethod("PUT"), null)).isEqualTo("default");
+    }
+
+    @Test
+    public void shouldBindResponseInComplexConditions() throws Exception {
+        ConditionTable<String> table = ConditionTable.<String>builder()
+                .add(Expression.valueOf("${response.status.code == 404}", Boolean.class), "not found")
+                .build();
+
+        assertThat(table.lookup(context, new Request(), new Response(Status.NOT_FOUND))).isEqualTo("not found");
+        assertThat(table.lookup(context, new Request(), new Response(Status.OK))).isNull();
+    }
+
+    @Test
+    public void shouldMatchMissingValuesWithEmptyStringLiterals() throws Exception {
+        ConditionTable<String> table = ConditionTable.<String>builder()
+                .add(Expression.valueOf("${request.headers['X-Tenant'][0] == ''}", Boolean.class), "no tenant")
+                .add(Expression.valueOf("${request.uri.host == ''}", Boolean.class), "no host")
+                .add(Expression.valueOf("${request.method == 'GET'}", Boolean.class), "get")
+                .build();
+
+        Request withTenant = new Request().setMethod("GET").setUri("/a");
+        withTenant.getHeaders().put("X-Tenant", "acme");
+        assertThat(table.lookup(context, new Request().setMethod("GET").setUri("http://example.com/a"), null))
+                .isEqualTo("no tenant");
+        assertThat(table.lookup(context, withTenant, null)).isEqualTo("no host");
+    }
+
+    @Test
+    public void shouldReturnNullWhenNothingMatches() throws Exception {
+        ConditionTable<String> table = ConditionTable.<String>builder()
+                .add(Expression.valueOf("${request.method == 'GET'}", Boolean.class), "get")
+                .build();
+
+        assertThat(table.lookup(context, new Request().setMethod("POST"), null)).isNull();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.forgerock.http.filter.ResponseHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.filter.CompressionFilter.Coding;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CompressionFilterTest {
+
+    private static final String TEXT = repeat("<p>The quick brown fox jumps over the lazy dog.</p>\n", 100);
+
+    @Test
+    public void shouldGzipTextualEntitiesWhenAccepted() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.DEFAULT_COMPRESSION, 1024);
+        Response upstream = textResponse(TEXT);
+        upstream.getHeaders().put("Content-Length", TEXT.length());
+        upstream.getHeaders().put("X-Custom", "kept");
+
+        Response response = filter.filter(new RootContext(), request("gzip, deflate"), new ResponseHandler(upstream))
+                                  .get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(response.getHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+        assertThat(response.getHeaders().getFirst("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(response.getHeaders().getFirst("X-Custom")).isEqualTo("kept");
+        assertThat(response.getHeaders().get("Content-Length")).isNull();
+        byte[] compressed = readFully(response.getEntity().getRawContentInputStream());
+        assertThat(compressed.length).isLessThan(TEXT.length() / 10);
+        assertThat(new String(readFully(new GZIPInputStream(new ByteArrayInputStream(compressed))), "UTF-8"))
+                .isEqualTo(TEXT);
+        assertThat(filter.getPooledDeflaters()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldDeflateWhenPreferred() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.BEST_COMPRESSION, 0);
+
+        Response response = filter.filter(new RootContext(),
+                                          request("gzip;q=0.5, deflate"),
+                                          new ResponseHandler(textResponse(TEXT))).get();
+
+        assertThat(response.getHeaders().getFirst("Content-Encoding")).isEqualTo("deflate");
+        InputStream inflated = new InflaterInputStream(response.getEntity().getRawContentInputStream());
+        assertThat(new String(readFully(inflated), "UTF-8")).isEqualTo(TEXT);
+    }
+
+    @Test
+    public void shouldNegotiateThePreferredCoding() throws Exception {
+        assertThat(CompressionFilter.negotiate(null)).isNull();
+        assertThat(negotiate("identity")).isNull();
+        assertThat(negotiate("br")).isNull();
+        assertThat(negotiate("*")).isEqualTo(Coding.GZIP);
+        assertThat(negotiate("x-gzip")).isEqualTo(Coding.GZIP);
+        assertThat(negotiate("deflate, gzip")).isEqualTo(Coding.GZIP);
+        assertThat(negotiate("deflate;q=1, gzip;q=0.9")).isEqualTo(Coding.DEFLATE);
+        assertThat(negotiate("gzip;q=0, *")).isEqualTo(Coding.DEFLATE);
+        assertThat(negotiate("gzip;q=0, deflate;q=0, *")).isNull();
+        assertThat(negotiate("gzip;q=invalid")).isNull();
+    }
+
+    @Test
+    public void shouldOnlyAddVaryWhenNoCodingIsAccepted() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.DEFAULT_COMPRESSION, 0);
+        Response upstream = textResponse(TEXT);
+        upstream.getHeaders().put("Vary", "Origin");
+
+        Response response = filter.filter(new RootContext(), new Request(), new ResponseHandler(upstream)).get();
+
+        assertThat(response).isSameAs(upstream);
+        assertThat(response.getHeaders().get("Content-Encoding")).isNull();
+        assertThat(response.getHeaders().get("Vary").getValues()).containsExactly("Origin", "Accept-Encoding");
+        assertThat(response.getEntity().getString()).isEqualTo(TEXT);
+    }
+
+    @Test
+    public void shouldNotCompressOtherMediaTypes() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.DEFAULT_COMPRESSION, 0);
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity(new byte[] { (byte) 0x89, 'P', 'N', 'G' });
+        upstream.getHeaders().put("Content-Type", "image/png");
+
+        Response response = filter.filter(new RootContext(), request("gzip"), new ResponseHandler(upstream)).get();
+
+        assertThat(response).isSameAs(upstream);
+        assertThat(response.getHeaders().get("Content-Encoding")).isNull();
+        assertThat(response.getHeaders().get("Vary")).isNull();
+    }
+
+    @Test
+    public void shouldNotCompressSmallEntities() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.DEFAULT_COMPRESSION, 1024);
+        Response upstream = textResponse("small");
+        upstream.getHeaders().put("Content-Length", 5);
+
+        Response response = filter.filter(new RootContext(), request("gzip"), new ResponseHandler(upstream)).get();
+
+        assertThat(response).isSameAs(upstream);
+        assertThat(response.getHeaders().get("Content-Encoding")).isNull();
+    }
+
+    @Test
+    public void shouldNotCompressEncodedOrUntransformableResponses() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.DEFAULT_COMPRESSION, 0);
+        Response encoded = textResponse(TEXT);
+        encoded.getHeaders().put("Content-Encoding", "br");
+        Response noTransform = textResponse(TEXT);
+        noTransform.getHeaders().put("Cache-Control", "public, no-transform");
+        Response noContent = new Response(Status.NO_CONTENT);
+        noContent.getHeaders().put("Content-Type", "text/plain");
+
+        for (Response upstream : new Response[] { encoded, noTransform, noContent }) {
+            Response response = filter.filter(new RootContext(), request("gzip"), new ResponseHandler(upstream)).get();
+            assertThat(response).isSameAs(upstream);
+        }
+        assertThat(encoded.getHeaders().getFirst("Content-Encoding")).isEqualTo("br");
+    }
+
+    @Test
+    public void shouldNotCompressResponsesToHeadRequests() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.DEFAULT_COMPRESSION, 0);
+        Request request = request("gzip");
+        request.setMethod("HEAD");
+        Response upstream = textResponse("");
+
+        Response response = filter.filter(new RootContext(), request, new ResponseHandler(upstream)).get();
+
+        assertThat(response).isSameAs(upstream);
+        assertThat(response.getHeaders().getFirst("Vary")).isEqualTo("Accept-Encoding");
+    }
+
+    @Test
+    public void shouldWeakenStrongETags() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.DEFAULT_COMPRESSION, 0);
+        Response upstream = textResponse(TEXT);
+        upstream.getHeaders().put("ETag", "\"v1\"");
+
+        Response response = filter.filter(new RootContext(), request("gzip"), new ResponseHandler(upstream)).get();
+
+        assertThat(response.getHeaders().getFirst("ETag")).isEqualTo("W/\"v1\"");
+    }
+
+    @Test
+    public void shouldStreamWithoutBufferingTheEntity() throws Exception {
+        CompressionFilter filter = new CompressionFilter(Deflater.BEST_SPEED, 0);
+        CountingInputStream source = new CountingInputStream(64 * 1024 * 1024);
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity(source);
+        upstream.getHeaders().put("Content-Type", "text/plain");
+
+        Response response = filter.filter(new RootContext(), request("gzip"), new ResponseHandler(upstream)).get();
+        InputStream compressed = response.getEntity().getRawContentInputStream();
+        assertThat(compressed.read(new byte[1024])).isGreaterThan(0);
+
+        // Only a few buffers of the 64 MiB entity have been read
+        assertThat(source.read).isLessThan(1024L * 1024);
+        compressed.close();
+        assertThat(source.closed).isTrue();
+        assertThat(filter.getPooledDeflaters()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCreateFilterFromHeaplet() throws Exception {
+        JsonValue config = json(object(field("level", 9),
+                                       field("minimumSize", 0),
+                                       field("mediaTypes", array("application/*+json"))));
+        CompressionFilter filter = (CompressionFilter) new CompressionFilter.Heaplet()
+                .create(Name.of("this"), config, buildDefaultHeap());
+
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity("{\"title\": \"Not Found\"}");
+        upstream.getHeaders().put("Content-Type", "application/problem+json");
+
+        Response response = filter.filter(new RootContext(), request("gzip"), new ResponseHandler(upstream)).get();
+
+        assertThat(response.getHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+        assertThat(filter.getMediaTypes()).containsExactly("application/*+json");
+    }
+
+    private static Coding negotiate(final String acceptEncoding) {
+        Request request = request(acceptEncoding);
+        return CompressionFilter.negotiate(request.getHeaders().get("Accept-Encoding"));
+    }
+
+    private static Request request(final String acceptEncoding) {
+        Request request = new Request();
+        request.setMethod("GET");
+        request.getHeaders().put("Accept-Encoding", acceptEncoding);
+        return request;
+    }
+
+    private static Response textResponse(final String text) {
+        Response response = new Response(Status.OK);
+        response.setEntity(text);
+        response.getHeaders().put("Content-Type", "text/html; charset=UTF-8");
+        return response;
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static String repeat(final String s, final int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    /** An endless-looking textual stream that counts the bytes read from it. */
+    private static final class CountingInputStream extends InputStream {
+        private final long length;
+        private long read;
+        private boolean closed;
+
+        CountingInputStream(final long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            return read < length ? "abcdefghij".charAt((int) (read++ % 10)) : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (read == length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - read);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) read();
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
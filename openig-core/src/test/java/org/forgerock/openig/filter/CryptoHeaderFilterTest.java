@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014-2015 ForgeRock AS.
+ * Copyright 2014-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.filter;
@@ -23,13 +23,16 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openig.filter.CryptoHeaderFilter.DEFAULT_ALGORITHM;
+import static org.forgerock.openig.filter.CryptoHeaderFilter.GCM_ALGORITHM;
 import static org.forgerock.openig.filter.CryptoHeaderFilter.Operation.DECRYPT;
 import static org.forgerock.openig.filter.CryptoHeaderFilter.Operation.ENCRYPT;
 import static org.forgerock.openig.heap.Keys.LOGSINK_HEAP_KEY;
 import static org.forgerock.openig.util.MessageType.REQUEST;
 import static org.forgerock.openig.util.MessageType.RESPONSE;
 import static org.forgerock.util.encode.Base64.decode;
+import static org.forgerock.util.encode.Base64.encode;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -234,6 +237,83 @@ public class CryptoHeaderFilterTest {
                 .isNotEqualTo(CLEAR_TEXT_VALUE);
     }
 
+    @Test
+    public void shouldEncryptAndDecryptWithGcm() throws Exception {
+        CryptoHeaderFilter encryption = buildDefaultCryptoHeader();
+        encryption.setMessageType(REQUEST);
+        encryption.setAlgorithm(GCM_ALGORITHM);
+        CryptoHeaderFilter decryption = buildDefaultCryptoHeader();
+        decryption.setMessageType(REQUEST);
+        decryption.setAlgorithm(GCM_ALGORITHM);
+        decryption.setOperation(DECRYPT);
+
+        Request request = new Request();
+        request.getHeaders().put(HEADER_NAME, CLEAR_TEXT_VALUE);
+        encryption.filter(null, request, terminalHandler);
+        String encrypted = request.getHeaders().getFirst(HEADER_NAME);
+        // 12 bytes of nonce, 16 bytes of plain text and 16 bytes of authentication tag
+        assertThat(decode(encrypted)).hasSize(12 + CLEAR_TEXT_VALUE.length() + 16);
+
+        decryption.filter(null, request, terminalHandler);
+
+        verify(logger, never()).error(any(GeneralSecurityException.class));
+        assertThat(request.getHeaders().getFirst(HEADER_NAME)).isEqualTo(CLEAR_TEXT_VALUE);
+    }
+
+    @Test
+    public void shouldUseANewNonceForEachValueWithGcm() throws Exception {
+        CryptoHeaderFilter filter = buildDefaultCryptoHeader();
+        filter.setMessageType(REQUEST);
+        filter.setAlgorithm(GCM_ALGORITHM);
+
+        Request first = new Request();
+        first.getHeaders().put(HEADER_NAME, CLEAR_TEXT_VALUE);
+        filter.filter(null, first, terminalHandler);
+        Request second = new Request();
+        second.getHeaders().put(HEADER_NAME, CLEAR_TEXT_VALUE);
+        filter.filter(null, second, terminalHandler);
+
+        assertThat(first.getHeaders().getFirst(HEADER_NAME))
+                .isNotEqualTo(second.getHeaders().getFirst(HEADER_NAME));
+    }
+
+    @Test
+    public void shouldRejectTamperedValuesWithGcm() throws Exception {
+        CryptoHeaderFilter filter = buildDefaultCryptoHeader();
+        filter.setMessageType(REQUEST);
+        filter.setAlgorithm(GCM_ALGORITHM);
+
+        Request request = new Request();
+        request.getHeaders().put(HEADER_NAME, CLEAR_TEXT_VALUE);
+        filter.filter(null, request, terminalHandler);
+        byte[] encrypted = decode(request.getHeaders().getFirst(HEADER_NAME));
+        encrypted[encrypted.length - 1] ^= 1;
+        request.getHeaders().put(HEADER_NAME, encode(encrypted));
+
+        filter.setOperation(DECRYPT);
+        filter.filter(null, request, terminalHandler);
+
+        verify(logger).error(any(GeneralSecurityException.class));
+        assertThat(request.getHeaders().getFirst(HEADER_NAME)).isEmpty();
+    }
+
+    @Test
+    public void shouldUseTheNewKeyWithPooledCiphers() throws Exception {
+        CryptoHeaderFilter filter = buildDefaultCryptoHeader();
+        filter.setMessageType(REQUEST);
+
+        Request request = new Request();
+        request.getHeaders().put(HEADER_NAME, CLEAR_TEXT_VALUE);
+        filter.filter(null, request, terminalHandler);
+        assertThat(request.getHeaders().getFirst(HEADER_NAME)).isEqualTo(ENCRYPTED_VALUE);
+
+        filter.setKey(new SecretKeySpec(decode("QW5vdGhlclNlY3JldEtleQ=="), "AES"));
+        request.getHeaders().put(HEADER_NAME, CLEAR_TEXT_VALUE);
+        filter.filter(null, request, terminalHandler);
+
+        assertThat(request.getHeaders().getFirst(HEADER_NAME)).isNotEqualTo(ENCRYPTED_VALUE);
+    }
+
     @Test(expectedExceptions = JsonValueException.class)
     public void testHeapletWithWrongKeyConfigurationFailsProperly() throws Exception {
         CryptoHeaderFilter.Heaplet heaplet = new CryptoHeaderFilter.Heaplet();
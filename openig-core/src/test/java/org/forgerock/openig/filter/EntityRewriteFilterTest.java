@@ -0,0 +1,176 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
+
+import java.io.InputStream;
+import java.util.regex.Pattern;
+
+import org.forgerock.http.filter.ResponseHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.openig.regex.PatternTemplate;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class EntityRewriteFilterTest {
+
+    @Test
+    public void shouldRewriteTextualEntities() throws Exception {
+        EntityRewriteFilter filter = new EntityRewriteFilter(null, 64)
+                .rewriteLiteral("http://app.internal:8080/", "https://www.example.com/")
+                .rewrite(Pattern.compile("id=(\\d+)"), new PatternTemplate("id=[$1]"));
+
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity("<a href=\"http://app.internal:8080/page?id=42\">link</a>");
+        upstream.getHeaders().put("Content-Type", "text/html; charset=UTF-8");
+        upstream.getHeaders().put("X-Custom", "kept");
+
+        Response response = filter.filter(new RootContext(), new Request(), new ResponseHandler(upstream)).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(response.getEntity().getString())
+                .isEqualTo("<a href=\"https://www.example.com/page?id=[42]\">link</a>");
+        assertThat(response.getHeaders().getFirst("X-Custom")).isEqualTo("kept");
+        assertThat(response.getHeaders().getFirst("Content-Type")).isEqualTo("text/html; charset=UTF-8");
+        assertThat(response.getHeaders().get("Content-Length")).isNull();
+    }
+
+    @Test
+    public void shouldUseLiteralReplacementsVerbatim() throws Exception {
+        EntityRewriteFilter filter = new EntityRewriteFilter(null, 64).rewriteLiteral("price", "$1 \\ 2");
+
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity("{\"price\": 1}");
+        upstream.getHeaders().put("Content-Type", "application/json");
+
+        Response response = filter.filter(new RootContext(), new Request(), new ResponseHandler(upstream)).get();
+
+        assertThat(response.getEntity().getString()).isEqualTo("{\"$1 \\ 2\": 1}");
+    }
+
+    @Test
+    public void shouldPreserveBytesWhenTheCharsetIsUnknown() throws Exception {
+        EntityRewriteFilter filter = new EntityRewriteFilter(null, 64).rewriteLiteral("old", "new");
+        byte[] utf8 = "café old".getBytes("UTF-8");
+
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity(utf8);
+        upstream.getHeaders().put("Content-Type", "text/plain");
+
+        Response response = filter.filter(new RootContext(), new Request(), new ResponseHandler(upstream)).get();
+
+        assertThat(new String(response.getEntity().getBytes(), ISO_8859_1))
+                .isEqualTo(new String("café new".getBytes("UTF-8"), ISO_8859_1));
+    }
+
+    @Test
+    public void shouldNotRewriteOtherMediaTypes() throws Exception {
+        EntityRewriteFilter filter = new EntityRewriteFilter(null, 64).rewriteLiteral("old", "new");
+
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity("old");
+        upstream.getHeaders().put("Content-Type", "application/octet-stream");
+
+        Response response = filter.filter(new RootContext(), new Request(), new ResponseHandler(upstream)).get();
+
+        assertThat(response).isSameAs(upstream);
+        assertThat(response.getEntity().getString()).isEqualTo("old");
+    }
+
+    @Test
+    public void shouldStreamEntitiesLargerThanTheTemporaryStorage() throws Exception {
+        // The default temporary storage is limited to 1 MiB: the entity must not be copied into it
+        final int lines = 100000;
+        EntityRewriteFilter filter = new EntityRewriteFilter(null, 64).rewriteLiteral("old", "new");
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity(new LineInputStream("an old line of text\n", lines));
+        upstream.getHeaders().put("Content-Type", "text/plain");
+
+        Response response = filter.filter(new RootContext(), new Request(), new ResponseHandler(upstream)).get();
+
+        long length = 0;
+        try (InputStream in = response.getEntity().getRawContentInputStream()) {
+            byte[] line = "an new line of text\n".getBytes(ISO_8859_1);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    assertThat(buffer[i]).isEqualTo(line[(int) ((length + i) % line.length)]);
+                }
+                length += n;
+            }
+        }
+        assertThat(length).isEqualTo((long) lines * "an new line of text\n".length());
+    }
+
+    @Test
+    public void shouldCreateFilterFromHeaplet() throws Exception {
+        JsonValue config = json(object(
+                field("rewrites", array(object(field("literal", "old"), field("replacement", "new")),
+                                        object(field("pattern", "(\\d+)px"), field("replacement", "$1em")))),
+                field("mediaTypes", array("text/css"))));
+        EntityRewriteFilter filter = (EntityRewriteFilter) new EntityRewriteFilter.Heaplet()
+                .create(Name.of("this"), config, buildDefaultHeap());
+
+        Response upstream = new Response(Status.OK);
+        upstream.setEntity(".old { width: 12px }");
+        upstream.getHeaders().put("Content-Type", "text/css");
+
+        Response response = filter.filter(new RootContext(), new Request(), new ResponseHandler(upstream)).get();
+
+        assertThat(response.getEntity().getString()).isEqualTo(".new { width: 12em }");
+    }
+
+    @Test(expectedExceptions = JsonValueException.class)
+    public void shouldRejectRewritesWithBothPatternAndLiteral() throws Exception {
+        JsonValue config = json(object(
+                field("rewrites", array(object(field("literal", "old"),
+                                               field("pattern", "old"),
+                                               field("replacement", "new"))))));
+        new EntityRewriteFilter.Heaplet().create(Name.of("this"), config, buildDefaultHeap());
+    }
+
+    /** Repeats a line, without ever holding more than one line in memory. */
+    private static final class LineInputStream extends InputStream {
+        private final byte[] line;
+        private final long length;
+        private long position;
+
+        LineInputStream(final String line, final int count) {
+            this.line = line.getBytes(ISO_8859_1);
+            this.length = (long) count * this.line.length;
+        }
+
+        @Override
+        public int read() {
+            return position < length ? line[(int) (position++ % line.length)] : -1;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
+import static org.forgerock.openig.heap.Keys.SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.heap.HeapImpl;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class HedgingFilterTest {
+
+    private PendingHandler next;
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        next = new PendingHandler();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldNotHedgeRequestAnsweredInTime() throws Exception {
+        HedgingFilter filter = newFilter("1 minute", 0.1, 10);
+
+        Promise<Response, NeverThrowsException> promise = filter.filter(new RootContext(), get(), next);
+        next.complete(0);
+
+        assertThat(promise.get().getHeaders().getFirst("X-Origin")).isEqualTo("0");
+        assertThat(filter.getHedgedCount()).isEqualTo(0L);
+        assertThat(next.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldHedgeSlowRequestAndKeepFirstResponse() throws Exception {
+        HedgingFilter filter = newFilter("20 milliseconds", 0.1, 10);
+
+        Promise<Response, NeverThrowsException> promise = filter.filter(new RootContext(), get(), next);
+        next.await(2);
+        next.complete(1);
+
+        assertThat(promise.get().getHeaders().getFirst("X-Origin")).isEqualTo("1");
+        // The original call is left to complete, to know its response time
+        assertThat(next.promise(0).isCancelled()).isFalse();
+        assertThat(filter.getHedgedCount()).isEqualTo(1L);
+        assertThat(filter.getHedgeWinCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldCancelHedgedRequestWhenOriginalRequestRespondsFirst() throws Exception {
+        HedgingFilter filter = newFilter("20 milliseconds", 0.1, 10);
+
+        Promise<Response, NeverThrowsException> promise = filter.filter(new RootContext(), get(), next);
+        next.await(2);
+        next.complete(0);
+
+        assertThat(promise.get().getHeaders().getFirst("X-Origin")).isEqualTo("0");
+        // The hedged call is cancelled as soon as the filter gets its promise, that may be after the response
+        long end = System.currentTimeMillis() + 5000L;
+        while (!next.promise(1).isCancelled() && System.currentTimeMillis() < end) {
+            Thread.sleep(10L);
+        }
+        assertThat(next.promise(1).isCancelled()).isTrue();
+        assertThat(filter.getHedgeWinCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void shouldSendHedgedRequestToAlternateBaseUri() throws Exception {
+        HedgingFilter filter = newFilter("20 milliseconds", 0.1, 10);
+        filter.setAlternateBaseUri(new URI("http://replica.internal:8080"));
+
+        filter.filter(new RootContext(), get(), next);
+        next.await(2);
+
+        assertThat(next.request(0).getUri().toString()).isEqualTo("http://primary.internal:8080/a?b=c");
+        assertThat(next.request(1).getUri().toString()).isEqualTo("http://replica.internal:8080/a?b=c");
+    }
+
+    @Test
+    public void shouldNotHedgeOtherMethods() throws Exception {
+        HedgingFilter filter = newFilter("0 milliseconds", 0.1, 10);
+
+        Promise<Response, NeverThrowsException> promise =
+                filter.filter(new RootContext(), get().setMethod("POST"), next);
+        Thread.sleep(100L);
+        next.complete(0);
+
+        assertThat(promise.get().getHeaders().getFirst("X-Origin")).isEqualTo("0");
+        assertThat(next.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotHedgeRequestsWithEntity() throws Exception {
+        HedgingFilter filter = newFilter("0 milliseconds", 0.1, 10);
+        Request request = get();
+        request.setEntity("Hello");
+
+        Promise<Response, NeverThrowsException> promise = filter.filter(new RootContext(), request, next);
+        Thread.sleep(100L);
+        next.complete(0);
+
+        assertThat(promise.get().getHeaders().getFirst("X-Origin")).isEqualTo("0");
+        assertThat(next.size()).isEqualTo(1);
+        assertThat(next.request(0).getEntity().getString()).isEqualTo("Hello");
+    }
+
+    @Test
+    public void shouldRecordResponseTimeOfOriginalCallWhenHedgedCallWins() throws Exception {
+        Clock clock = new Clock();
+        HedgingFilter filter = new HedgingFilter(clock,
+                                                 scheduler,
+                                                 asList("GET"),
+                                                 95,
+                                                 Duration.duration("20 milliseconds"),
+                                                 Duration.duration("20 milliseconds"),
+                                                 0.1,
+                                                 10);
+
+        Promise<Response, NeverThrowsException> promise = filter.filter(new RootContext(), get(), next);
+        next.await(2);
+        clock.advance(5L);
+        next.complete(1);
+        assertThat(promise.get().getHeaders().getFirst("X-Origin")).isEqualTo("1");
+        assertThat(filter.getResponseTimes().getCount()).isEqualTo(0L);
+
+        clock.advance(95L);
+        next.complete(0);
+        assertThat(filter.getResponseTimes().getCount()).isEqualTo(1L);
+        assertThat(filter.getResponseTimes().getSnapshot().getMax()).isEqualTo(100L);
+    }
+
+    @Test
+    public void shouldNotHedgeOnceBudgetIsExhausted() throws Exception {
+        HedgingFilter filter = newFilter("0 milliseconds", 0, 1);
+
+        filter.filter(new RootContext(), get(), next);
+        next.await(2);
+        filter.filter(new RootContext(), get(), next);
+        while (filter.getBudgetExhaustedCount() == 0L) {
+            Thread.sleep(10L);
+        }
+
+        assertThat(next.size()).isEqualTo(3);
+        assertThat(filter.getHedgedCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldHedgeAfterPercentileOfResponseTimes() throws Exception {
+        final Clock clock = new Clock();
+        HedgingFilter filter = new HedgingFilter(clock,
+                                                 scheduler,
+                                                 asList("GET"),
+                                                 95,
+                                                 Duration.duration("1 millisecond"),
+                                                 Duration.duration("1 minute"),
+                                                 0.1,
+                                                 10);
+        Handler responding = new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                clock.advance(30L);
+                return Promises.newResultPromise(new Response(Status.OK));
+            }
+        };
+
+        assertThat(filter.getDelay()).isEqualTo(60000L);
+        for (int i = 0; i < 20; i++) {
+            filter.filter(new RootContext(), get(), responding).get();
+        }
+
+        assertThat(filter.getDelay()).isEqualTo(30L);
+    }
+
+    @Test
+    public void shouldCreateFilterFromHeaplet() throws Exception {
+        HeapImpl heap = buildDefaultHeap();
+        heap.put(SCHEDULED_EXECUTOR_SERVICE_HEAP_KEY, scheduler);
+        heap.put(TIME_SERVICE_HEAP_KEY, TimeService.SYSTEM);
+        HedgingFilter filter = (HedgingFilter) new HedgingFilter.Heaplet()
+                .create(Name.of("this"),
+                        json(object(field("minimumDelay", "20 milliseconds"),
+                                    field("maximumDelay", "20 milliseconds"),
+                                    field("alternateBaseUri", "http://replica.internal:8080"))),
+                        heap);
+
+        filter.filter(new RootContext(), get(), next);
+        next.await(2);
+
+        assertThat(next.request(1).getUri().toString()).isEqualTo("http://replica.internal:8080/a?b=c");
+    }
+
+    private HedgingFilter newFilter(final String delay, final double budgetRatio, final int budgetBurst) {
+        return new HedgingFilter(TimeService.SYSTEM,
+                                 scheduler,
+                                 asList("GET", "HEAD"),
+                                 95,
+                                 Duration.duration(delay),
+                                 Duration.duration(delay),
+                                 budgetRatio,
+                                 budgetBurst);
+    }
+
+    private static Request get() throws Exception {
+        return new Request().setMethod("GET").setUri("http://primary.internal:8080/a?b=c");
+    }
+
+    /** Keeps the requests pending until they are completed by the test. */
+    private static final class PendingHandler implements Handler {
+        private final List<Request> requests = new ArrayList<>();
+        private final List<PromiseImpl<Response, NeverThrowsException>> promises = new ArrayList<>();
+
+        @Override
+        public synchronized Promise<Response, NeverThrowsException> handle(final Context context,
+                                                                           final Request request) {
+            PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+            requests.add(request);
+            promises.add(promise);
+            notifyAll();
+            return promise;
+        }
+
+        synchronized void await(final int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000L;
+            while (requests.size() < count && System.currentTimeMillis() < end) {
+                wait(100L);
+            }
+            assertThat(requests.size()).isEqualTo(count);
+        }
+
+        synchronized int size() {
+            return requests.size();
+        }
+
+        synchronized Request request(final int index) {
+            return requests.get(index);
+        }
+
+        synchronized PromiseImpl<Response, NeverThrowsException> promise(final int index) {
+            return promises.get(index);
+        }
+
+        void complete(final int index) {
+            Response response = new Response(Status.OK);
+            response.getHeaders().put("X-Origin", String.valueOf(index));
+            promise(index).handleResult(response);
+        }
+    }
+
+    private static final class Clock implements TimeService {
+        private long now = 1450000000000L;
+
+        void advance(final long millis) {
+            now += millis;
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public long since(final long past) {
+            return now - past;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import static org.assertj.core.api.Assertions.entry;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static java.util.Arrays.asList;
 import static org.forgerock.services.context.ClientContext.buildExternalClientContext;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.verify;
@@ -97,6 +98,27 @@ public class HttpAccessAuditFilterTest {
         verifyZeroInteractions(reqHandler);
     }
 
+    @Test
+    public void shouldOnlyCopyAllowedHeaders() throws Exception {
+        HttpAccessAuditFilter filter = new HttpAccessAuditFilter(reqHandler,
+                                                                 time,
+                                                                 asList("User-Agent"),
+                                                                 Collections.<String>emptyList());
+        request.getHeaders().put("User-Agent", "curl");
+        request.getHeaders().put("Authorization", "Basic secret");
+
+        Response response = new Response(Status.OK);
+        response.getHeaders().put("Content-Type", "text/plain");
+        filter.filter(context(), request, new ResponseHandler(response)).get();
+
+        ArgumentCaptor<CreateRequest> captor = ArgumentCaptor.forClass(CreateRequest.class);
+        verify(reqHandler).handleCreate(any(Context.class), captor.capture());
+        JsonValue http = captor.getValue().getContent().get("http");
+        assertThat(http.get("request").get("headers").isDefined("User-Agent")).isTrue();
+        assertThat(http.get("request").get("headers").isDefined("Authorization")).isFalse();
+        assertThat(http.get("response").get("headers").isDefined("Content-Type")).isFalse();
+    }
+
     private void verifyAuditServiceCall(RequestHandler handler, Status status) {
         ArgumentCaptor<CreateRequest> createRequestCaptor = ArgumentCaptor.forClass(CreateRequest.class);
         verify(handler).handleCreate(any(Context.class), createRequestCaptor.capture());
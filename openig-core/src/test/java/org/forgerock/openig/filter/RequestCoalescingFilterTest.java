@@ -0,0 +1,158 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class RequestCoalescingFilterTest {
+
+    private PendingHandler next;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        next = new PendingHandler();
+    }
+
+    @Test
+    public void shouldCollapseIdenticalRequestsInFlight() throws Exception {
+        RequestCoalescingFilter filter = newFilter(1024);
+
+        Promise<Response, NeverThrowsException> first = filter.filter(new RootContext(), get("/a"), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), get("/a"), next);
+        Promise<Response, NeverThrowsException> third = filter.filter(new RootContext(), get("/a"), next);
+
+        assertThat(next.requests).hasSize(1);
+        assertThat(filter.getInFlightCount()).isEqualTo(1);
+        assertThat(second.isDone()).isFalse();
+
+        next.complete(0, "hello");
+
+        Response response1 = first.get();
+        Response response2 = second.get();
+        assertThat(response1.getEntity().getString()).isEqualTo("hello");
+        assertThat(response2.getEntity().getString()).isEqualTo("hello");
+        assertThat(third.get().getEntity().getString()).isEqualTo("hello");
+        assertThat(response2).isNotSameAs(response1);
+        assertThat(response2.getHeaders().getFirst("X-Origin")).isEqualTo("0");
+        assertThat(filter.getInFlightCount()).isEqualTo(0);
+
+        // Not in flight anymore
+        filter.filter(new RootContext(), get("/a"), next);
+        assertThat(next.requests).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotCollapseDifferentRequests() throws Exception {
+        RequestCoalescingFilter filter = newFilter(1024);
+        Request alice = get("/a");
+        alice.getHeaders().put("Authorization", "Basic YWxpY2U6c2VjcmV0");
+        Request bob = get("/a");
+        bob.getHeaders().put("Authorization", "Basic Ym9iOnNlY3JldA==");
+
+        filter.filter(new RootContext(), alice, next);
+        filter.filter(new RootContext(), bob, next);
+        filter.filter(new RootContext(), get("/b"), next);
+        filter.filter(new RootContext(), new Request().setMethod("POST").setUri("http://example.com/b"), next);
+        filter.filter(new RootContext(), new Request().setMethod("POST").setUri("http://example.com/b"), next);
+
+        assertThat(next.requests).hasSize(5);
+    }
+
+    @Test
+    public void shouldSendCollapsedRequestsOnTheirOwnWhenTheEntityIsTooLarge() throws Exception {
+        RequestCoalescingFilter filter = newFilter(4);
+
+        Promise<Response, NeverThrowsException> first = filter.filter(new RootContext(), get("/a"), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), get("/a"), next);
+        next.complete(0, "0123456789");
+
+        assertThat(first.get().getEntity().getString()).isEqualTo("0123456789");
+        assertThat(next.requests).hasSize(2);
+        assertThat(second.isDone()).isFalse();
+
+        next.complete(1, "9876543210");
+        assertThat(second.get().getEntity().getString()).isEqualTo("9876543210");
+    }
+
+    @Test
+    public void shouldCreateFilterFromHeaplet() throws Exception {
+        RequestCoalescingFilter filter = (RequestCoalescingFilter) new RequestCoalescingFilter.Heaplet()
+                .create(Name.of("this"),
+                        json(object(field("key", "${request.uri.path}"), field("methods", asList("GET")))),
+                        buildDefaultHeap());
+
+        Promise<Response, NeverThrowsException> first = filter.filter(new RootContext(), get("/a?x=1"), next);
+        Promise<Response, NeverThrowsException> second = filter.filter(new RootContext(), get("/a?x=2"), next);
+        filter.filter(new RootContext(), new Request().setMethod("HEAD").setUri("http://example.com/a"), next);
+        next.complete(0, "hello");
+
+        assertThat(next.requests).hasSize(2);
+        assertThat(first.get().getEntity().getString()).isEqualTo("hello");
+        assertThat(second.get().getEntity().getString()).isEqualTo("hello");
+    }
+
+    private static RequestCoalescingFilter newFilter(final int maxEntitySize) {
+        return new RequestCoalescingFilter(null, asList("GET", "HEAD"), maxEntitySize);
+    }
+
+    private static Request get(final String path) throws Exception {
+        return new Request().setMethod("GET").setUri("http://example.com" + path);
+    }
+
+    /** Keeps the responses pending until they are completed by the test. */
+    private static final class PendingHandler implements Handler {
+        private final List<Request> requests = new ArrayList<>();
+        private final List<PromiseImpl<Response, NeverThrowsException>> promises = new ArrayList<>();
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+            requests.add(request);
+            promises.add(promise);
+            return promise;
+        }
+
+        void complete(final int index, final String entity) {
+            Response response = new Response(Status.OK);
+            response.setEntity(entity);
+            response.getHeaders().put("X-Origin", String.valueOf(index));
+            promises.get(index).handleResult(response);
+        }
+    }
+}
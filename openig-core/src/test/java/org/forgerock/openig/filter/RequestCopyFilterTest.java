@@ -90,12 +90,51 @@ public class RequestCopyFilterTest {
         assertThat(handler.request.getEntity().getString()).isEmpty();
     }
 
+    @Test
+    public void shouldKeepOriginalEntityReadableOnceTheCopyHasBeenRead() throws Exception {
+        final String[] read = new String[1];
+        requestCopyFilter().filter(context, original, new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                read[0] = request.getEntity().getString();
+                return newResultPromise(new Response(OK));
+            }
+        });
+
+        assertThat(read[0]).isEqualTo(REQUEST_ENTITY);
+        assertThat(original.getEntity().getString()).isEqualTo(REQUEST_ENTITY);
+    }
+
+    @Test
+    public void shouldNotModifyOriginalHeaders() throws Exception {
+        requestCopyFilter().filter(context, original, new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                request.getHeaders().add("Username", "saruman");
+                request.getHeaders().remove("Password");
+                return newResultPromise(new Response(OK));
+            }
+        });
+
+        assertThat(original.getHeaders().get("Username").getValues()).containsExactly("gandalf");
+        assertThat(original.getHeaders().getFirst("Password")).isEqualTo("mithrandir");
+    }
+
+    @Test
+    public void shouldKeepContentLength() throws Exception {
+        requestCopyFilter().filter(context, original, handler);
+
+        assertThat(handler.contentLength).isEqualTo(original.getHeaders().getFirst("Content-Length"));
+    }
+
     private static class TerminalHandler implements Handler {
         Request request;
+        String contentLength;
 
         @Override
         public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
             this.request = request;
+            this.contentLength = request.getHeaders().getFirst("Content-Length");
             try {
                 request.setUri(MODIFIED_REQUEST_URI);
             } catch (URISyntaxException e) {
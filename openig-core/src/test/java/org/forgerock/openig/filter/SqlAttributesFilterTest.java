@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014-2015 ForgeRock AS.
+ * Copyright 2014-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.filter;
@@ -26,7 +26,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.sql.DataSource;
 
@@ -38,7 +44,11 @@ import org.forgerock.services.context.AttributesContext;
 import org.forgerock.services.context.Context;
 import org.forgerock.services.context.RootContext;
 import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.h2.jdbcx.JdbcDataSource;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -175,6 +185,136 @@ public class SqlAttributesFilterTest {
         verify(filter.getLogger()).warning(matches(" Placeholder 3 has no provided value as parameter"));
     }
 
+    @Test
+    public void shouldPopulateTargetBeforeCallingNextHandlerWhenAsynchronous() throws Exception {
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:sqlattributes;DB_CLOSE_DELAY=-1");
+        try (Connection c = h2.getConnection(); Statement st = c.createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS USERS (USERNAME VARCHAR(32) PRIMARY KEY, EMAIL VARCHAR(64))");
+            st.execute("MERGE INTO USERS VALUES ('bjensen', 'bjensen@example.com')");
+        }
+
+        SqlAttributesFilter filter = new SqlAttributesFilter(h2,
+                Expression.valueOf("${attributes.result}", Map.class),
+                "SELECT EMAIL FROM USERS WHERE USERNAME = ?");
+        filter.getParameters().add(Expression.valueOf("${attributes.user}", String.class));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        filter.setExecutor(executor);
+
+        try {
+            AttributesContext context = new AttributesContext(new RootContext());
+            context.getAttributes().put("user", "bjensen");
+            filter.filter(context, null, terminalHandler).get();
+
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) context.getAttributes().get("result");
+            assertThat(result).containsOnly(entry("EMAIL", "bjensen@example.com"));
+            verify(terminalHandler).handle(context, null);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldCacheResultsByParameters() throws Exception {
+        TimeService time = mock(TimeService.class);
+        SqlAttributesFilter filter = new SqlAttributesFilter(source,
+                Expression.valueOf("${attributes.result}", Map.class), null);
+        filter.getParameters().add(Expression.valueOf("${attributes.user}", String.class));
+        filter.setCache(time, Duration.duration("10 seconds"), 10);
+        mockDatabaseInteractions();
+        when(pmetadata.getParameterCount()).thenReturn(1);
+
+        when(time.now()).thenReturn(0L);
+        assertThat(lookupLazily(filter, "bjensen")).containsOnly(entry("password", "secret"));
+        assertThat(lookupLazily(filter, "bjensen")).containsOnly(entry("password", "secret"));
+        verify(source, times(1)).getConnection();
+
+        // Different parameters are different entries
+        lookupLazily(filter, "scarter");
+        verify(source, times(2)).getConnection();
+
+        // Expired
+        when(time.now()).thenReturn(10001L);
+        lookupLazily(filter, "bjensen");
+        verify(source, times(3)).getConnection();
+
+        // The number of placeholders is only asked once
+        verify(statement, times(1)).getParameterMetaData();
+    }
+
+    @Test
+    public void shouldNotCacheFailedQueries() throws Exception {
+        SqlAttributesFilter filter = new SqlAttributesFilter(source,
+                Expression.valueOf("${attributes.result}", Map.class), null);
+        filter.setCache(TimeService.SYSTEM, Duration.duration("1 minute"), 10);
+        when(source.getConnection()).thenThrow(new SQLException("Unexpected"));
+
+        assertThat(lookupLazily(filter, "bjensen")).isEmpty();
+        assertThat(lookupLazily(filter, "bjensen")).isEmpty();
+        verify(source, times(2)).getConnection();
+    }
+
+    @Test
+    public void shouldCoalesceConcurrentIdenticalLookups() throws Exception {
+        SqlAttributesFilter filter = new SqlAttributesFilter(source,
+                Expression.valueOf("${attributes.result}", Map.class), null);
+        filter.getParameters().add(Expression.valueOf("${attributes.user}", String.class));
+        ManualExecutor executor = new ManualExecutor();
+        filter.setExecutor(executor);
+        mockDatabaseInteractions();
+        when(pmetadata.getParameterCount()).thenReturn(1);
+
+        AttributesContext first = new AttributesContext(new RootContext());
+        first.getAttributes().put("user", "bjensen");
+        AttributesContext second = new AttributesContext(new RootContext());
+        second.getAttributes().put("user", "bjensen");
+        Promise<Response, NeverThrowsException> promise1 = filter.filter(first, null, terminalHandler);
+        Promise<Response, NeverThrowsException> promise2 = filter.filter(second, null, terminalHandler);
+
+        // Only one query has been submitted, and nothing is forwarded until it completes
+        assertThat(executor.tasks).hasSize(1);
+        assertThat(promise1.isDone()).isFalse();
+        verifyZeroInteractions(terminalHandler);
+
+        executor.runAll();
+        assertThat(promise1.isDone()).isTrue();
+        assertThat(promise2.isDone()).isTrue();
+        assertThat(first.getAttributes().get("result")).isEqualTo(second.getAttributes().get("result"));
+        verify(source, times(1)).getConnection();
+
+        // Without a cache, a subsequent lookup runs a new query
+        filter.filter(first, null, terminalHandler);
+        assertThat(executor.tasks).hasSize(1);
+    }
+
+    private Map<?, ?> lookupLazily(final SqlAttributesFilter filter, final String user) throws Exception {
+        AttributesContext context = new AttributesContext(new RootContext());
+        context.getAttributes().put("user", user);
+        filter.filter(context, null, terminalHandler);
+        Map<?, ?> result = (Map<?, ?>) context.getAttributes().get("result");
+        // Trigger the lazy map instantiation
+        result.size();
+        return result;
+    }
+
+    private static final class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : pending) {
+                task.run();
+            }
+        }
+    }
+
     private void mockDatabaseInteractions() throws Exception {
         // Mock the database interactions
         when(source.getConnection()).thenReturn(connection);
@@ -0,0 +1,78 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.forgerock.http.protocol.Headers;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CacheControlTest {
+
+    @Test
+    public void shouldParseDirectives() throws Exception {
+        Headers headers = new Headers();
+        headers.add("Cache-Control", "public, Max-Age=60");
+        headers.add("Cache-Control", "private=\"Set-Cookie, X-Id\", s-maxage=\"30\", max-age=10");
+
+        CacheControl control = CacheControl.of(headers, false);
+
+        assertThat(control.has("public")).isTrue();
+        assertThat(control.has("private")).isTrue();
+        assertThat(control.has("no-store")).isFalse();
+        // The first occurrence wins
+        assertThat(control.seconds("max-age")).isEqualTo(60L);
+        assertThat(control.seconds("s-maxage")).isEqualTo(30L);
+        assertThat(control.seconds("public")).isEqualTo(-1L);
+    }
+
+    @Test
+    public void shouldRejectInvalidDeltaSeconds() throws Exception {
+        Headers headers = new Headers();
+        headers.add("Cache-Control", "max-age=-1, s-maxage=1h, stale-while-revalidate=99999999999999999999");
+
+        CacheControl control = CacheControl.of(headers, false);
+
+        assertThat(control.seconds("max-age")).isEqualTo(-1L);
+        assertThat(control.seconds("s-maxage")).isEqualTo(-1L);
+        assertThat(control.seconds("stale-while-revalidate")).isEqualTo(Long.MAX_VALUE / 1000L);
+    }
+
+    @Test
+    public void shouldUnderstandPragmaNoCacheInRequestsOnly() throws Exception {
+        Headers headers = new Headers();
+        headers.add("Pragma", "no-cache");
+
+        assertThat(CacheControl.of(headers, true).has("no-cache")).isTrue();
+        assertThat(CacheControl.of(headers, false).has("no-cache")).isFalse();
+
+        headers.add("Cache-Control", "max-age=5");
+        assertThat(CacheControl.of(headers, true).has("no-cache")).isFalse();
+    }
+
+    @Test
+    public void shouldParseAndFormatHttpDates() throws Exception {
+        long date = 784111777000L;
+        assertThat(HttpDates.parse("Sun, 06 Nov 1994 08:49:37 GMT")).isEqualTo(date);
+        assertThat(HttpDates.parse("Sunday, 06-Nov-94 08:49:37 GMT")).isEqualTo(date);
+        assertThat(HttpDates.parse("Sun Nov  6 08:49:37 1994")).isEqualTo(date);
+        assertThat(HttpDates.parse("0")).isEqualTo(-1L);
+        assertThat(HttpDates.parse(null)).isEqualTo(-1L);
+        assertThat(HttpDates.format(date)).isEqualTo("Sun, 06 Nov 1994 08:49:37 GMT");
+    }
+}
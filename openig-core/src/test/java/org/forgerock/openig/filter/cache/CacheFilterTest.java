@@ -0,0 +1,404 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.http.protocol.Response.newResponsePromise;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
+import static org.forgerock.openig.heap.Keys.TEMPORARY_STORAGE_HEAP_KEY;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.heap.HeapImpl;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.openig.io.TemporaryStorage;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CacheFilterTest {
+
+    private static final String URI = "http://app.example.com/resource";
+
+    private Clock clock;
+    private Origin origin;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        clock = new Clock();
+        origin = new Origin();
+    }
+
+    @Test
+    public void shouldServeFreshResponsesFromTheCache() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "hello", "Cache-Control", "max-age=60", "Content-Length", "5"));
+
+        assertThat(get(filter).getEntity().getString()).isEqualTo("hello");
+        clock.advance(10);
+        Response cached = get(filter);
+
+        assertThat(origin.requests).hasSize(1);
+        assertThat(cached.getStatus()).isEqualTo(Status.OK);
+        assertThat(cached.getEntity().getString()).isEqualTo("hello");
+        assertThat(cached.getHeaders().getFirst("Age")).isEqualTo("10");
+        assertThat(cached.getHeaders().getFirst("Content-Length")).isEqualTo("5");
+    }
+
+    @Test
+    public void shouldRevalidateStaleResponsesWithTheirEntityTag() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "hello", "Cache-Control", "max-age=10",
+                                "ETag", "\"v1\""));
+        get(filter).close();
+
+        clock.advance(20);
+        origin.respond(response(Status.NOT_MODIFIED, null, "Cache-Control", "max-age=30"));
+        Response revalidated = get(filter);
+
+        assertThat(origin.requests).hasSize(2);
+        assertThat(origin.requests.get(1).getHeaders().getFirst("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(revalidated.getStatus()).isEqualTo(Status.OK);
+        assertThat(revalidated.getEntity().getString()).isEqualTo("hello");
+
+        // Fresh again, with the updated freshness lifetime
+        clock.advance(20);
+        assertThat(get(filter).getEntity().getString()).isEqualTo("hello");
+        assertThat(origin.requests).hasSize(2);
+    }
+
+    @Test
+    public void shouldReplaceStaleResponsesModifiedSinceStored() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "v1", "Cache-Control", "max-age=10",
+                                "ETag", "\"v1\""));
+        get(filter).close();
+
+        clock.advance(20);
+        origin.respond(response(Status.OK, "v2", "Cache-Control", "max-age=10",
+                                "ETag", "\"v2\""));
+        assertThat(get(filter).getEntity().getString()).isEqualTo("v2");
+        assertThat(get(filter).getEntity().getString()).isEqualTo("v2");
+        assertThat(origin.requests).hasSize(2);
+    }
+
+    @Test
+    public void shouldServeStaleResponsesWhileRevalidatingThem() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "v1", "Cache-Control", "max-age=10, stale-while-revalidate=30",
+                                "ETag", "\"v1\""));
+        get(filter).close();
+
+        clock.advance(20);
+        origin.respond(response(Status.OK, "v2", "Cache-Control", "max-age=10, stale-while-revalidate=30",
+                                "ETag", "\"v2\""));
+        Response stale = get(filter);
+
+        assertThat(stale.getEntity().getString()).isEqualTo("v1");
+        assertThat(stale.getHeaders().getFirst("Warning")).isEqualTo("110 - \"Response is Stale\"");
+        assertThat(origin.requests).hasSize(2);
+        assertThat(origin.requests.get(1).getHeaders().getFirst("If-None-Match")).isEqualTo("\"v1\"");
+
+        // The background revalidation stored the new response
+        assertThat(get(filter).getEntity().getString()).isEqualTo("v2");
+        assertThat(origin.requests).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotServeStaleResponsesThatMustBeRevalidated() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "v1", "Cache-Control", "max-age=10, must-revalidate",
+                                "Last-Modified", HttpDates.format(clock.now - 60000L)));
+        get(filter).close();
+
+        clock.advance(20);
+        origin.respond(response(Status.NOT_MODIFIED, null));
+        Request request = newRequest();
+        request.getHeaders().put("Cache-Control", "max-stale");
+        Response response = filter.filter(new RootContext(), request, origin).get();
+
+        assertThat(response.getEntity().getString()).isEqualTo("v1");
+        assertThat(response.getHeaders().get("Warning")).isNull();
+        assertThat(origin.requests).hasSize(2);
+        assertThat(origin.requests.get(1).getHeaders().getFirst("If-Modified-Since"))
+                .isEqualTo(HttpDates.format(clock.now - 80000L));
+    }
+
+    @Test
+    public void shouldAnswerConditionalRequestsFromTheCache() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "hello", "Cache-Control", "max-age=60",
+                                "ETag", "W/\"v1\""));
+        get(filter).close();
+
+        Request request = newRequest();
+        request.getHeaders().put("If-None-Match", "\"v0\", \"v1\"");
+        Response response = filter.filter(new RootContext(), request, origin).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.NOT_MODIFIED);
+        assertThat(response.getHeaders().getFirst("ETag")).isEqualTo("W/\"v1\"");
+        assertThat(origin.requests).hasSize(1);
+    }
+
+    @Test
+    public void shouldSelectVariantsWithVary() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "gzip", "Cache-Control", "max-age=60",
+                                "Vary", "Accept-Encoding"));
+        origin.respond(response(Status.OK, "identity", "Cache-Control", "max-age=60",
+                                "Vary", "Accept-Encoding"));
+
+        assertThat(getEncoded(filter, "gzip").getEntity().getString()).isEqualTo("gzip");
+        assertThat(getEncoded(filter, "identity").getEntity().getString()).isEqualTo("identity");
+        assertThat(getEncoded(filter, "gzip").getEntity().getString()).isEqualTo("gzip");
+        assertThat(getEncoded(filter, "identity").getEntity().getString()).isEqualTo("identity");
+        assertThat(origin.requests).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotStoreResponsesThatCannotBeShared() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "1", "Cache-Control", "max-age=60, private"));
+        origin.respond(response(Status.OK, "2", "Cache-Control", "no-store"));
+        origin.respond(response(Status.OK, "3", "Cache-Control", "max-age=60",
+                                "Set-Cookie", "session=secret"));
+        origin.respond(response(Status.OK, "4"));
+        origin.respond(response(Status.OK, "5", "Cache-Control", "max-age=60"));
+
+        for (String expected : new String[] { "1", "2", "3", "4", "5" }) {
+            assertThat(get(filter).getEntity().getString()).isEqualTo(expected);
+        }
+        assertThat(get(filter).getEntity().getString()).isEqualTo("5");
+        assertThat(origin.requests).hasSize(5);
+    }
+
+    @Test
+    public void shouldInvalidateResponsesOnSuccessfulUnsafeRequests() throws Exception {
+        CacheFilter filter = newFilter();
+        origin.respond(response(Status.OK, "v1", "Cache-Control", "max-age=60"));
+        origin.respond(response(Status.NO_CONTENT, null));
+        origin.respond(response(Status.OK, "v2", "Cache-Control", "max-age=60"));
+        get(filter).close();
+
+        filter.filter(new RootContext(), new Request().setMethod("PUT").setUri(URI), origin).get();
+
+        assertThat(get(filter).getEntity().getString()).isEqualTo("v2");
+        assertThat(origin.requests).hasSize(3);
+    }
+
+    @Test
+    public void shouldSpillLargerEntitiesToTheTemporaryStorage() throws Exception {
+        CacheFilter filter = new CacheFilter(clock, 4, 4096L, 4096L, 1024, 16, Duration.duration("1 hour"));
+        origin.respond(response(Status.OK, "0123456789", "Cache-Control", "max-age=60"));
+
+        assertThat(get(filter).getEntity().getString()).isEqualTo("0123456789");
+        assertThat(get(filter).getEntity().getString()).isEqualTo("0123456789");
+        assertThat(origin.requests).hasSize(1);
+    }
+
+    @Test
+    public void shouldStreamEntitiesLargerThanTheLargestEntry() throws Exception {
+        CacheFilter filter = new CacheFilter(clock, 4, 4096L, 4096L, 6, 16, Duration.duration("1 hour"));
+        origin.respond(response(Status.OK, "0123456789", "Cache-Control", "max-age=60", "Content-Length", "10"));
+        origin.respond(response(Status.OK, "9876543210", "Cache-Control", "max-age=60"));
+
+        Response response = get(filter);
+        assertThat(response.getHeaders().getFirst("Content-Length")).isEqualTo("10");
+        assertThat(response.getEntity().getString()).isEqualTo("0123456789");
+        assertThat(get(filter).getEntity().getString()).isEqualTo("9876543210");
+        assertThat(origin.requests).hasSize(2);
+    }
+
+    @Test
+    public void shouldStreamEntitiesLargerThanTheTemporaryStorage() throws Exception {
+        // The default temporary storage buffers are limited to 1 MiB, less than the default largest entry
+        StringBuilder entity = new StringBuilder();
+        while (entity.length() < 2 * 1024 * 1024) {
+            entity.append("0123456789abcdef");
+        }
+        CacheFilter filter = newFilter();
+        filter.setStorage(buildDefaultHeap().get(TEMPORARY_STORAGE_HEAP_KEY, TemporaryStorage.class));
+        origin.respond(response(Status.OK, entity.toString(), "Cache-Control", "max-age=60"));
+        origin.respond(response(Status.OK, entity.toString(), "Cache-Control", "max-age=60"));
+
+        Response response = get(filter);
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(response.getEntity().getString()).isEqualTo(entity.toString());
+        assertThat(get(filter).getEntity().getString()).isEqualTo(entity.toString());
+        assertThat(origin.requests).hasSize(2);
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedResponses() throws Exception {
+        CacheFilter filter = new CacheFilter(clock, 1024, 65536L, 0L, 1024, 2, Duration.duration("1 hour"));
+        origin.respond(response(Status.OK, "aaaaa", "Cache-Control", "max-age=60"));
+        origin.respond(response(Status.OK, "bbbbb", "Cache-Control", "max-age=60"));
+        origin.respond(response(Status.OK, "ccccc", "Cache-Control", "max-age=60"));
+        origin.respond(response(Status.OK, "bbbbb", "Cache-Control", "max-age=60"));
+
+        get(filter, URI + "/a").close();
+        get(filter, URI + "/b").close();
+        get(filter, URI + "/a").close();
+        get(filter, URI + "/c").close();
+        get(filter, URI + "/a").close();
+        get(filter, URI + "/b").close();
+
+        assertThat(origin.requests).hasSize(4);
+        assertThat(origin.requests.get(3).getUri().toString()).isEqualTo(URI + "/b");
+    }
+
+    @Test
+    public void shouldChargeTheHeadersOfResponsesWithoutEntityToTheMemoryLimit() throws Exception {
+        CacheFilter filter = new CacheFilter(clock, 1024, 4096L, 0L, 1024, 1000, Duration.duration("1 hour"));
+        for (int i = 0; i < 100; i++) {
+            origin.respond(response(Status.NO_CONTENT, null, "Cache-Control", "max-age=60"));
+        }
+        for (int i = 0; i < 99; i++) {
+            get(filter, URI + "/" + i).close();
+        }
+
+        // The first responses have been evicted to make room for the last ones
+        get(filter, URI + "/0").close();
+        assertThat(origin.requests).hasSize(100);
+    }
+
+    @Test
+    public void shouldEvictFromTheOtherTierWhenThereAreTooManyResponses() throws Exception {
+        CacheFilter filter = new CacheFilter(clock, 4, 65536L, 65536L, 1024, 1, Duration.duration("1 hour"));
+        origin.respond(response(Status.OK, "0123456789", "Cache-Control", "max-age=60"));
+        origin.respond(response(Status.OK, "a", "Cache-Control", "max-age=60"));
+        origin.respond(response(Status.OK, "0123456789", "Cache-Control", "max-age=60"));
+
+        get(filter, URI + "/disk").close();
+        get(filter, URI + "/memory").close();
+        get(filter, URI + "/memory").close();
+        get(filter, URI + "/disk").close();
+
+        assertThat(origin.requests).hasSize(3);
+        assertThat(origin.requests.get(2).getUri().toString()).isEqualTo(URI + "/disk");
+    }
+
+    @Test
+    public void shouldCreateFilterFromHeaplet() throws Exception {
+        HeapImpl heap = buildDefaultHeap();
+        heap.put(TIME_SERVICE_HEAP_KEY, clock);
+        CacheFilter filter = (CacheFilter) new CacheFilter.Heaplet()
+                .create(Name.of("this"),
+                        json(object(field("memoryEntryLimit", 1024), field("maxHeuristicFreshness", "1 hour"))),
+                        heap);
+        origin.respond(response(Status.OK, "hello", "Last-Modified", HttpDates.format(clock.now - 100000000L)));
+
+        get(filter).close();
+        clock.advance(3599);
+        get(filter).close();
+
+        assertThat(origin.requests).hasSize(1);
+    }
+
+    private CacheFilter newFilter() {
+        return new CacheFilter(clock,
+                               CacheFilter.DEFAULT_MEMORY_ENTRY_LIMIT,
+                               CacheFilter.DEFAULT_MEMORY_LIMIT,
+                               CacheFilter.DEFAULT_DISK_LIMIT,
+                               CacheFilter.DEFAULT_MAX_ENTRY_SIZE,
+                               CacheFilter.DEFAULT_MAX_ENTRIES,
+                               Duration.duration("1 day"));
+    }
+
+    private Request newRequest() throws Exception {
+        return new Request().setMethod("GET").setUri(URI);
+    }
+
+    private Response get(final CacheFilter filter) throws Exception {
+        return filter.filter(new RootContext(), newRequest(), origin).get();
+    }
+
+    private Response get(final CacheFilter filter, final String uri) throws Exception {
+        return filter.filter(new RootContext(), new Request().setMethod("GET").setUri(uri), origin).get();
+    }
+
+    private Response getEncoded(final CacheFilter filter, final String acceptEncoding) throws Exception {
+        Request request = newRequest();
+        request.getHeaders().put("Accept-Encoding", acceptEncoding);
+        return filter.filter(new RootContext(), request, origin).get();
+    }
+
+    private static Response response(final Status status, final String entity, final String... headers) {
+        Response response = new Response(status);
+        if (entity != null) {
+            response.setEntity(entity);
+        }
+        for (int i = 0; i < headers.length; i += 2) {
+            response.getHeaders().add(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+    /** Answers with the queued responses, dated when they are served. */
+    private final class Origin implements Handler {
+        private final Deque<Response> responses = new ArrayDeque<>();
+        private final List<Request> requests = new ArrayList<>();
+
+        void respond(final Response response) {
+            responses.add(response);
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            requests.add(request);
+            Response response = responses.remove();
+            response.getHeaders().put("Date", HttpDates.format(clock.now));
+            return newResponsePromise(response);
+        }
+    }
+
+    private static final class Clock implements TimeService {
+        private long now = 1450000000000L;
+
+        void advance(final long seconds) {
+            now += TimeUnit.SECONDS.toMillis(seconds);
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public long since(final long past) {
+            return now - past;
+        }
+    }
+}
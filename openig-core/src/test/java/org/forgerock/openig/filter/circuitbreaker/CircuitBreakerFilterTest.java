@@ -0,0 +1,202 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.circuitbreaker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.filter.circuitbreaker.CircuitBreaker.State;
+import org.forgerock.openig.heap.HeapImpl;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CircuitBreakerFilterTest {
+
+    private static final String A = "http://a.internal:8080";
+    private static final String B = "http://b.internal:8080";
+
+    private Upstreams next;
+    private Clock clock;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        next = new Upstreams();
+        clock = new Clock();
+    }
+
+    @Test
+    public void shouldFailFastOnceUpstreamFails() throws Exception {
+        CircuitBreakerFilter filter = newFilter();
+        next.status("a.internal", Status.BAD_GATEWAY);
+        send(filter, A, 4);
+
+        Response response = filter.filter(new RootContext(), get(A), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(response.getHeaders().getFirst("Retry-After")).isEqualTo("30");
+        assertThat(next.calls).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldKeepOneCircuitPerUpstream() throws Exception {
+        CircuitBreakerFilter filter = newFilter();
+        next.status("a.internal", Status.INTERNAL_SERVER_ERROR);
+        send(filter, A, 4);
+
+        Response response = filter.filter(new RootContext(), get(B), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(filter.getCircuitBreaker("http://a.internal:8080").getState()).isEqualTo(State.OPEN);
+        assertThat(filter.getCircuitBreaker("http://b.internal:8080").getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void shouldNotCountClientErrorsAsFailures() throws Exception {
+        CircuitBreakerFilter filter = newFilter();
+        next.status("a.internal", Status.NOT_FOUND);
+        send(filter, A, 10);
+
+        assertThat(filter.getCircuitBreaker("http://a.internal:8080").getState()).isEqualTo(State.CLOSED);
+        assertThat(next.calls).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldCloseOnceUpstreamRecovers() throws Exception {
+        CircuitBreakerFilter filter = newFilter();
+        next.status("a.internal", Status.INTERNAL_SERVER_ERROR);
+        send(filter, A, 4);
+
+        clock.advance(30000L);
+        next.status("a.internal", Status.OK);
+        send(filter, A, 2);
+
+        assertThat(filter.getCircuitBreaker("http://a.internal:8080").getState()).isEqualTo(State.CLOSED);
+        assertThat(filter.filter(new RootContext(), get(A), next).get().getStatus()).isEqualTo(Status.OK);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRenderCircuitBreakersState() throws Exception {
+        CircuitBreakerFilter filter = newFilter();
+        next.status("a.internal", Status.INTERNAL_SERVER_ERROR);
+        send(filter, A, 5);
+
+        Response response = filter.getStateHandler().handle(new RootContext(), new Request()).get();
+
+        Map<String, Object> breakers = (Map<String, Object>) response.getEntity().getJson();
+        Map<String, Object> a = (Map<String, Object>) breakers.get("http://a.internal:8080");
+        assertThat(a.get("state")).isEqualTo("OPEN");
+        assertThat(a.get("notPermittedCalls")).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldCreateFilterFromHeaplet() throws Exception {
+        HeapImpl heap = buildDefaultHeap();
+        heap.put(TIME_SERVICE_HEAP_KEY, clock);
+        CircuitBreakerFilter filter = (CircuitBreakerFilter) new CircuitBreakerFilter.Heaplet()
+                .create(Name.of("this"),
+                        json(object(field("key", "${request.uri.host}"),
+                                    field("minimumCalls", 2),
+                                    field("openDuration", "10 seconds"))),
+                        heap);
+        next.status("a.internal", Status.INTERNAL_SERVER_ERROR);
+        send(filter, A, 2);
+
+        Response response = filter.filter(new RootContext(), get(A), next).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(response.getHeaders().getFirst("Retry-After")).isEqualTo("10");
+        assertThat(filter.getCircuitBreaker("a.internal").getState()).isEqualTo(State.OPEN);
+    }
+
+    private CircuitBreakerFilter newFilter() {
+        return new CircuitBreakerFilter(clock,
+                                        null,
+                                        10,
+                                        4,
+                                        50,
+                                        100,
+                                        Duration.duration("5 seconds"),
+                                        Duration.duration("30 seconds"),
+                                        2);
+    }
+
+    private void send(final CircuitBreakerFilter filter, final String uri, final int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            filter.filter(new RootContext(), get(uri), next).get();
+        }
+    }
+
+    private static Request get(final String uri) throws Exception {
+        return new Request().setMethod("GET").setUri(uri + "/");
+    }
+
+    /** Responds with the status configured for the host of the request, {@literal 200} by default. */
+    private static final class Upstreams implements Handler {
+        private final Map<String, Status> statuses = new HashMap<>();
+        private int calls;
+
+        void status(final String host, final Status status) {
+            statuses.put(host, status);
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            calls++;
+            Status status = statuses.get(request.getUri().getHost());
+            return Promises.newResultPromise(new Response(status == null ? Status.OK : status));
+        }
+    }
+
+    private static final class Clock implements TimeService {
+        private long now = 1450000000000L;
+
+        void advance(final long millis) {
+            now += millis;
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public long since(final long past) {
+            return now - past;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.filter.circuitbreaker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+
+import org.forgerock.openig.filter.circuitbreaker.CircuitBreaker.Call;
+import org.forgerock.openig.filter.circuitbreaker.CircuitBreaker.State;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CircuitBreakerTest {
+
+    private Clock clock;
+    private CircuitBreaker breaker;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        clock = new Clock();
+        // Window of 10 calls, rated from 4 calls, opening at 50% of failures or slow calls
+        breaker = new CircuitBreaker(clock,
+                                     10,
+                                     4,
+                                     50,
+                                     50,
+                                     Duration.duration("2 seconds"),
+                                     Duration.duration("30 seconds"),
+                                     2);
+    }
+
+    @Test
+    public void shouldStayClosedUntilMinimumCallsAreRecorded() throws Exception {
+        calls(3, true);
+
+        assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+        assertThat(breaker.acquire()).isNotNull();
+    }
+
+    @Test
+    public void shouldOpenWhenFailureRateReachesThreshold() throws Exception {
+        calls(2, false);
+        calls(2, true);
+
+        assertThat(breaker.getState()).isEqualTo(State.OPEN);
+        assertThat(breaker.acquire()).isNull();
+        assertThat(breaker.getRemainingOpenTime()).isEqualTo(30000L);
+    }
+
+    @Test
+    public void shouldStayClosedBelowFailureRateThreshold() throws Exception {
+        calls(3, false);
+        calls(1, true);
+        calls(6, false);
+        calls(4, true);
+
+        // The window holds the last 10 calls: 6 successes and 4 failures
+        assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void shouldForgetCallsThatLeftTheWindow() throws Exception {
+        calls(1, true);
+        calls(3, false);
+        calls(10, false);
+
+        assertThat(breaker.render().get("bufferedCalls")).isEqualTo(10);
+        assertThat(breaker.render().get("failedCalls")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldOpenWhenSlowCallRateReachesThreshold() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            Call call = breaker.acquire();
+            clock.advance(i % 2 == 0 ? 1000L : 2000L);
+            call.complete(false);
+        }
+
+        assertThat(breaker.getState()).isEqualTo(State.OPEN);
+    }
+
+    @Test
+    public void shouldPermitTrialCallsOnceOpenDurationHasElapsed() throws Exception {
+        calls(4, true);
+        clock.advance(30000L);
+
+        assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+        assertThat(breaker.acquire()).isNotNull();
+        assertThat(breaker.acquire()).isNotNull();
+        assertThat(breaker.acquire()).isNull();
+    }
+
+    @Test
+    public void shouldCloseWhenTrialCallsSucceed() throws Exception {
+        calls(4, true);
+        clock.advance(30000L);
+
+        calls(2, false);
+
+        assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+        assertThat(breaker.render().get("bufferedCalls")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldOpenAgainWhenTrialCallsFail() throws Exception {
+        calls(4, true);
+        clock.advance(30000L);
+
+        calls(1, false);
+        calls(1, true);
+
+        assertThat(breaker.getState()).isEqualTo(State.OPEN);
+        assertThat(breaker.getRemainingOpenTime()).isEqualTo(30000L);
+    }
+
+    @Test
+    public void shouldIgnoreCallsPermittedBeforeTransition() throws Exception {
+        Call late = breaker.acquire();
+        calls(4, true);
+
+        late.complete(true);
+
+        assertThat(breaker.render().get("bufferedCalls")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldPermitNewTrialCallsWhenTrialCallsNeverComplete() throws Exception {
+        calls(4, true);
+        clock.advance(30000L);
+        Call first = breaker.acquire();
+        Call second = breaker.acquire();
+        assertThat(breaker.acquire()).isNull();
+
+        clock.advance(30000L);
+
+        assertThat(breaker.acquire()).isNotNull();
+        first.complete(true);
+        second.complete(true);
+        assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+    }
+
+    @Test
+    public void shouldRenderStateAndRates() throws Exception {
+        calls(3, false);
+        calls(1, true);
+        breaker.acquire();
+
+        Map<String, Object> rendered = breaker.render();
+
+        assertThat(rendered.get("state")).isEqualTo("CLOSED");
+        assertThat(rendered.get("bufferedCalls")).isEqualTo(4);
+        assertThat(rendered.get("failedCalls")).isEqualTo(1);
+        assertThat(rendered.get("failureRate").toString()).isEqualTo("25.0");
+        assertThat(rendered.get("notPermittedCalls")).isEqualTo(0L);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectInvalidThreshold() throws Exception {
+        new CircuitBreaker(clock, 10, 4, 150, 50, Duration.duration("2 seconds"), Duration.duration("30 seconds"), 2);
+    }
+
+    private void calls(final int count, final boolean failure) {
+        for (int i = 0; i < count; i++) {
+            breaker.acquire().complete(failure);
+        }
+    }
+
+    private static final class Clock implements TimeService {
+        private long now = 1450000000000L;
+
+        void advance(final long millis) {
+            now += millis;
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public long since(final long past) {
+            return now - past;
+        }
+    }
+}
@@ -201,6 +201,30 @@ public class DispatchHandlerTest {
 
     }
 
+    @Test
+    public void testDispatchWithCompiledConditionsPreservesOrder() throws Exception {
+        final DispatchHandler dispatchHandler = new DispatchHandler();
+        dispatchHandler.addBinding(Expression.valueOf("${request.method == 'DELETE'}", Boolean.class),
+                                   nextHandler, new URI("http://delete.example.com"));
+        dispatchHandler.addBinding(Expression.valueOf(CONDITION, Boolean.class),
+                                   nextHandler, new URI("http://contains.example.com"));
+        dispatchHandler.addBinding(Expression.valueOf("${matches(request.uri.path, '^/key')}", Boolean.class),
+                                   nextHandler, new URI("http://prefix.example.com"));
+
+        Context context = new RootContext();
+        Request request = new Request().setMethod("DELETE").setUri("http://www.example.com/key_path");
+        dispatchHandler.handle(context, request);
+        assertThat(request.getUri()).isEqualTo(uri("http://delete.example.com/key_path"));
+
+        request = new Request().setMethod("GET").setUri("http://www.example.com/key_path");
+        dispatchHandler.handle(context, request);
+        assertThat(request.getUri()).isEqualTo(uri("http://contains.example.com/key_path"));
+
+        request = new Request().setMethod("GET").setUri("http://www.example.com/key");
+        dispatchHandler.handle(context, request);
+        assertThat(request.getUri()).isEqualTo(uri("http://prefix.example.com/key"));
+    }
+
     @Test
     public void testDispatchNoHandlerToDispatch() throws Exception {
         final DispatchHandler handler = new DispatchHandler();
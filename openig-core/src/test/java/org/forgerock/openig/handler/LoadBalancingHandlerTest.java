@@ -0,0 +1,288 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
+import static org.forgerock.openig.heap.Keys.TIME_SERVICE_HEAP_KEY;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.handler.LoadBalancingHandler.Policy;
+import org.forgerock.openig.heap.HeapImpl;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.time.Duration;
+import org.forgerock.util.time.TimeService;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class LoadBalancingHandlerTest {
+
+    private static final URI A = URI.create("http://a.internal:8080");
+    private static final URI B = URI.create("http://b.internal:8080");
+    private static final URI C = URI.create("http://c.internal:8080");
+
+    private Backends backends;
+    private Clock clock;
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        backends = new Backends();
+        clock = new Clock();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldSendRequestsToEachBackendInTurn() throws Exception {
+        LoadBalancingHandler balancer = newBalancer(Policy.ROUND_ROBIN, A, B, C);
+
+        for (int i = 0; i < 6; i++) {
+            balancer.handle(new RootContext(), request()).get();
+        }
+
+        assertThat(backends.hosts).containsExactly("a", "b", "c", "a", "b", "c");
+        assertThat(backends.paths).containsOnly("/app/resource");
+    }
+
+    @Test
+    public void shouldSendRequestsToTheLeastLoadedBackend() throws Exception {
+        backends.pending("a");
+        LoadBalancingHandler balancer = newBalancer(Policy.LEAST_OUTSTANDING, A, B);
+
+        balancer.handle(new RootContext(), request());
+        balancer.handle(new RootContext(), request());
+        balancer.handle(new RootContext(), request()).get();
+        backends.complete(0, Status.OK);
+        balancer.handle(new RootContext(), request());
+
+        assertThat(backends.hosts).containsExactly("a", "b", "b", "a");
+    }
+
+    @Test
+    public void shouldSendRequestsToTheLeastLoadedOfTwoBackends() throws Exception {
+        backends.pending("a");
+        backends.pending("b");
+        LoadBalancingHandler balancer = newBalancer(Policy.POWER_OF_TWO_CHOICES, A, B);
+
+        balancer.handle(new RootContext(), request());
+        balancer.handle(new RootContext(), request());
+        balancer.handle(new RootContext(), request());
+        balancer.handle(new RootContext(), request());
+
+        // With two backends, both are always compared
+        assertThat(backends.hosts).containsOnly("a", "b");
+        assertThat(backends.hosts.subList(0, 2)).containsOnly("a", "b").doesNotHaveDuplicates();
+        assertThat(backends.hosts.subList(2, 4)).containsOnly("a", "b").doesNotHaveDuplicates();
+    }
+
+    @Test
+    public void shouldEjectOutliers() throws Exception {
+        backends.status("a", Status.BAD_GATEWAY);
+        LoadBalancingHandler balancer = newBalancer(Policy.ROUND_ROBIN, A, B)
+                .setOutlierDetection(2, Duration.duration("30 seconds"), 50);
+
+        for (int i = 0; i < 6; i++) {
+            balancer.handle(new RootContext(), request()).get();
+        }
+        assertThat(backends.hosts).containsExactly("a", "b", "a", "b", "b", "b");
+        assertThat(balancer.getAvailableBackends()).containsExactly(B);
+
+        clock.advance(30);
+        assertThat(balancer.getAvailableBackends()).containsExactly(A, B);
+    }
+
+    @Test
+    public void shouldNotEjectMoreThanTheMaximumPercentage() throws Exception {
+        backends.status("a", Status.BAD_GATEWAY);
+        backends.status("b", Status.BAD_GATEWAY);
+        LoadBalancingHandler balancer = newBalancer(Policy.ROUND_ROBIN, A, B)
+                .setOutlierDetection(1, Duration.duration("30 seconds"), 50);
+
+        for (int i = 0; i < 4; i++) {
+            balancer.handle(new RootContext(), request()).get();
+        }
+
+        assertThat(balancer.getAvailableBackends()).containsExactly(B);
+    }
+
+    @Test
+    public void shouldReturnServiceUnavailableWithoutAvailableBackend() throws Exception {
+        backends.status("a", Status.SERVICE_UNAVAILABLE);
+        LoadBalancingHandler balancer = newBalancer(Policy.ROUND_ROBIN, A)
+                .setOutlierDetection(1, Duration.duration("30 seconds"), 100);
+
+        balancer.handle(new RootContext(), request()).get();
+        Response response = balancer.handle(new RootContext(), request()).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.SERVICE_UNAVAILABLE);
+        assertThat(backends.hosts).hasSize(1);
+    }
+
+    @Test
+    public void shouldFollowActiveHealthChecks() throws Exception {
+        LoadBalancingHandler balancer = newBalancer(Policy.ROUND_ROBIN, A, B)
+                .setHealthCheck("/health", Duration.duration("1 minute"), 1, 2, scheduler);
+
+        backends.status("a", Status.SERVICE_UNAVAILABLE);
+        balancer.checkHealth();
+        assertThat(balancer.getAvailableBackends()).containsExactly(A, B);
+        balancer.checkHealth();
+        assertThat(balancer.getAvailableBackends()).containsExactly(B);
+        assertThat(backends.paths).containsOnly("/health");
+
+        backends.status("a", Status.OK);
+        balancer.checkHealth();
+        assertThat(balancer.getAvailableBackends()).containsExactly(A, B);
+    }
+
+    @Test
+    public void shouldGiveAGrowingShareOfRequestsToRecoveringBackends() throws Exception {
+        backends.status("a", Status.BAD_GATEWAY);
+        backends.pending("b");
+        LoadBalancingHandler balancer = newBalancer(Policy.LEAST_OUTSTANDING, A, B)
+                .setOutlierDetection(1, Duration.duration("30 seconds"), 50)
+                .setSlowStart(Duration.duration("100 seconds"));
+
+        balancer.handle(new RootContext(), request()).get();
+        backends.status("a", Status.OK);
+        for (int i = 0; i < 3; i++) {
+            balancer.handle(new RootContext(), request());
+        }
+        assertThat(backends.hosts).containsExactly("a", "b", "b", "b");
+
+        // Back, but warming up: 3 requests in progress on b weigh less than a fresh start
+        clock.advance(30);
+        balancer.handle(new RootContext(), request());
+        assertThat(backends.hosts.get(4)).isEqualTo("b");
+
+        clock.advance(90);
+        balancer.handle(new RootContext(), request()).get();
+        assertThat(backends.hosts.get(5)).isEqualTo("a");
+    }
+
+    @Test
+    public void shouldCreateHandlerFromHeaplet() throws Exception {
+        HeapImpl heap = buildDefaultHeap();
+        heap.put("backends", backends);
+        heap.put(TIME_SERVICE_HEAP_KEY, clock);
+        LoadBalancingHandler balancer = (LoadBalancingHandler) new LoadBalancingHandler.Heaplet()
+                .create(Name.of("this"),
+                        json(object(field("baseUris", asList(A.toString(), B.toString())),
+                                    field("handler", "backends"),
+                                    field("policy", "LEAST_OUTSTANDING"),
+                                    field("outlierDetection", object(field("consecutiveFailures", 1))))),
+                        heap);
+
+        backends.status("a", Status.INTERNAL_SERVER_ERROR);
+        balancer.handle(new RootContext(), request()).get();
+
+        assertThat(balancer.getAvailableBackends()).containsExactly(B);
+    }
+
+    private LoadBalancingHandler newBalancer(final Policy policy, final URI... uris) {
+        LoadBalancingHandler balancer = new LoadBalancingHandler(backends, policy, clock);
+        for (URI uri : uris) {
+            balancer.addBackend(uri);
+        }
+        return balancer;
+    }
+
+    private static Request request() throws Exception {
+        return new Request().setMethod("GET").setUri("http://www.example.com/app/resource");
+    }
+
+    /** Answers for all the backends: immediately with a status per host, or later for the pending hosts. */
+    private static final class Backends implements Handler {
+        private final List<String> hosts = new ArrayList<>();
+        private final List<String> paths = new ArrayList<>();
+        private final Map<String, Status> statuses = new HashMap<>();
+        private final List<String> pendingHosts = new ArrayList<>();
+        private final List<PromiseImpl<Response, NeverThrowsException>> promises = new ArrayList<>();
+
+        void status(final String host, final Status status) {
+            statuses.put(host, status);
+        }
+
+        void pending(final String host) {
+            pendingHosts.add(host);
+        }
+
+        void complete(final int index, final Status status) {
+            promises.get(index).handleResult(new Response(status));
+        }
+
+        @Override
+        public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+            String host = request.getUri().getHost().substring(0, 1);
+            hosts.add(host);
+            paths.add(request.getUri().getPath());
+            PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+            if (pendingHosts.contains(host)) {
+                promises.add(promise);
+            } else {
+                Status status = statuses.get(host);
+                promise.handleResult(new Response(status != null ? status : Status.OK));
+            }
+            return promise;
+        }
+    }
+
+    private static final class Clock implements TimeService {
+        private long now = 1450000000000L;
+
+        void advance(final long seconds) {
+            now += seconds * 1000L;
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public long since(final long past) {
+            return now - past;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.http.ConnectionPoolMetrics;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class PoolMonitoringHandlerTest {
+
+    @Test
+    public void shouldModelWaitingRequestsFromConnectionLimit() throws Exception {
+        PromiseImpl<Response, NeverThrowsException> first = PromiseImpl.create();
+        PromiseImpl<Response, NeverThrowsException> second = PromiseImpl.create();
+        PromiseImpl<Response, NeverThrowsException> third = PromiseImpl.create();
+        Handler delegate = mock(Handler.class);
+        when(delegate.handle(any(Context.class), any(Request.class))).thenReturn(first, second, third);
+        ConnectionPoolMetrics metrics = new ConnectionPoolMetrics(1, true);
+        PoolMonitoringHandler handler = new PoolMonitoringHandler(delegate, metrics, 1);
+
+        Promise<Response, NeverThrowsException> firstResponse =
+                handler.handle(new RootContext(), request("http://app.example.com/a"));
+        Promise<Response, NeverThrowsException> secondResponse =
+                handler.handle(new RootContext(), request("http://app.example.com/b"));
+        Promise<Response, NeverThrowsException> thirdResponse =
+                handler.handle(new RootContext(), request("http://app.example.com/c"));
+        assertThat(host(metrics)).containsEntry("leased", 1L)
+                                 .containsEntry("pending", 2L)
+                                 .containsEntry("acquired", 1L);
+
+        // The connection released by the first request is handed over to the second one, whether or not the
+        // response is closed afterwards
+        first.handleResult(response("first"));
+        assertThat(host(metrics)).containsEntry("leased", 1L)
+                                 .containsEntry("pending", 1L)
+                                 .containsEntry("acquired", 2L);
+
+        // The third request completed sooner than modelled
+        third.handleResult(response("third"));
+        second.handleResult(response("second"));
+        assertThat(secondResponse.get().getEntity().getString()).isEqualTo("second");
+        assertThat(host(metrics)).containsEntry("leased", 0L)
+                                 .containsEntry("pending", 0L)
+                                 .containsEntry("peakLeased", 1L)
+                                 .containsEntry("acquired", 2L);
+        firstResponse.get().close();
+        secondResponse.get().close();
+        thirdResponse.get().close();
+        assertThat(host(metrics)).containsEntry("leased", 0L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldTrackHostsSeparately() throws Exception {
+        Handler delegate = mock(Handler.class);
+        when(delegate.handle(any(Context.class), any(Request.class)))
+                .thenReturn(PromiseImpl.<Response, NeverThrowsException>create());
+        ConnectionPoolMetrics metrics = new ConnectionPoolMetrics(1, true);
+        PoolMonitoringHandler handler = new PoolMonitoringHandler(delegate, metrics, 1);
+
+        handler.handle(new RootContext(), request("http://app.example.com/a"));
+        handler.handle(new RootContext(), request("https://app.example.com/a"));
+        handler.handle(new RootContext(), request("http://app.example.com:8080/a"));
+
+        Map<String, Object> json = (Map<String, Object>) metrics.handle(new RootContext(), new Request())
+                                                                .get()
+                                                                .getEntity()
+                                                                .getJson();
+        assertThat(json).containsEntry("estimated", true);
+        assertThat((Map<String, Object>) json.get("hosts")).containsOnlyKeys("http://app.example.com:80",
+                                                                             "https://app.example.com:443",
+                                                                             "http://app.example.com:8080");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> host(final ConnectionPoolMetrics metrics) throws Exception {
+        Map<String, Object> json = (Map<String, Object>) metrics.handle(new RootContext(), new Request())
+                                                                .get()
+                                                                .getEntity()
+                                                                .getJson();
+        return (Map<String, Object>) ((Map<String, Object>) json.get("hosts")).get("http://app.example.com:80");
+    }
+
+    private static Response response(final String entity) {
+        return new Response(Status.OK).setEntity(entity);
+    }
+
+    private static Request request(final String uri) throws Exception {
+        return new Request().setMethod("GET").setUri(uri);
+    }
+}
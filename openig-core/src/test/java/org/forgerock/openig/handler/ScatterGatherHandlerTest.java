@@ -0,0 +1,237 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.openig.el.Expression;
+import org.forgerock.services.context.AttributesContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.PromiseImpl;
+import org.forgerock.util.promise.Promises;
+import org.forgerock.util.time.Duration;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class ScatterGatherHandlerTest {
+
+    private PromiseImpl<Response, NeverThrowsException> promise1;
+    private PromiseImpl<Response, NeverThrowsException> promise2;
+    private PromiseImpl<Response, NeverThrowsException> promise3;
+
+    @Mock
+    private Handler handler1;
+
+    @Mock
+    private Handler handler2;
+
+    @Mock
+    private Handler handler3;
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        promise1 = PromiseImpl.create();
+        promise2 = PromiseImpl.create();
+        promise3 = PromiseImpl.create();
+        when(handler1.handle(any(Context.class), any(Request.class))).thenReturn(promise1);
+        when(handler2.handle(any(Context.class), any(Request.class))).thenReturn(promise2);
+        when(handler3.handle(any(Context.class), any(Request.class))).thenReturn(promise3);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldCallAllBranchesBeforeAnyResponse() throws Exception {
+        ScatterGatherHandler handler = new ScatterGatherHandler(-1, scheduler)
+                .addBranch("a", handler1, Duration.UNLIMITED)
+                .addBranch("b", handler2, Duration.UNLIMITED);
+        handler.setMerge(Expression.valueOf("${responses.a.entity.string}-${responses.b.entity.string}",
+                                            String.class));
+
+        Promise<Response, NeverThrowsException> result = handler.handle(new RootContext(), new Request());
+
+        verify(handler1).handle(any(Context.class), any(Request.class));
+        verify(handler2).handle(any(Context.class), any(Request.class));
+        assertThat(result.isDone()).isFalse();
+
+        promise2.handleResult(response(Status.OK, "B"));
+        assertThat(result.isDone()).isFalse();
+        promise1.handleResult(response(Status.OK, "A"));
+
+        Response response = result.get();
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(response.getEntity().getString()).isEqualTo("A-B");
+    }
+
+    @Test
+    public void shouldReturnTheFirstSuccessfulResponseAndCancelOthers() throws Exception {
+        ScatterGatherHandler handler = new ScatterGatherHandler(1, scheduler)
+                .addBranch("a", handler1, Duration.UNLIMITED)
+                .addBranch("b", handler2, Duration.UNLIMITED)
+                .addBranch("c", handler3, Duration.UNLIMITED);
+
+        Promise<Response, NeverThrowsException> result = handler.handle(new RootContext(), new Request());
+        promise1.handleResult(response(Status.INTERNAL_SERVER_ERROR, "failure"));
+        Response success = response(Status.OK, "success");
+        promise2.handleResult(success);
+
+        assertThat(result.get()).isSameAs(success);
+        assertThat(promise3.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void shouldFailAsSoonAsTheQuorumCannotBeReached() throws Exception {
+        ScatterGatherHandler handler = new ScatterGatherHandler(2, scheduler)
+                .addBranch("a", handler1, Duration.UNLIMITED)
+                .addBranch("b", handler2, Duration.UNLIMITED)
+                .addBranch("c", handler3, Duration.UNLIMITED);
+
+        Promise<Response, NeverThrowsException> result = handler.handle(new RootContext(), new Request());
+        promise1.handleResult(response(Status.INTERNAL_SERVER_ERROR, "failure"));
+        assertThat(result.isDone()).isFalse();
+        promise3.handleResult(response(Status.SERVICE_UNAVAILABLE, "failure"));
+
+        assertThat(result.get().getStatus()).isEqualTo(Status.BAD_GATEWAY);
+        assertThat(promise2.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void shouldTimeOutSlowBranches() throws Exception {
+        ScatterGatherHandler handler = new ScatterGatherHandler(-1, scheduler)
+                .addBranch("a", handler1, Duration.duration("10 milliseconds"))
+                .addBranch("b", handler2, Duration.UNLIMITED);
+
+        Promise<Response, NeverThrowsException> result = handler.handle(new RootContext(), new Request());
+        promise2.handleResult(response(Status.OK, "B"));
+
+        assertThat(result.get(5, SECONDS).getStatus()).isEqualTo(Status.BAD_GATEWAY);
+        assertThat(promise1.isCancelled()).isTrue();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldExposeTheResponsesToTheMergeHandler() throws Exception {
+        ScatterGatherHandler handler = new ScatterGatherHandler(-1, scheduler)
+                .addBranch("a", handler1, Duration.UNLIMITED)
+                .addBranch("b", handler2, Duration.UNLIMITED);
+        final Response merged = new Response(Status.OK);
+        final Map<String, Response>[] exposed = new Map[1];
+        handler.setMergeHandler(new Handler() {
+            @Override
+            public Promise<Response, NeverThrowsException> handle(final Context context, final Request request) {
+                exposed[0] = (Map<String, Response>) context.asContext(AttributesContext.class)
+                                                            .getAttributes()
+                                                            .get(ScatterGatherHandler.RESPONSES);
+                return Promises.newResultPromise(merged);
+            }
+        });
+
+        Promise<Response, NeverThrowsException> result =
+                handler.handle(new AttributesContext(new RootContext()), new Request());
+        promise1.handleResult(response(Status.OK, "A"));
+        promise2.handleResult(response(Status.OK, "B"));
+
+        assertThat(result.get()).isSameAs(merged);
+        assertThat(exposed[0]).containsOnlyKeys("a", "b");
+    }
+
+    @Test
+    public void shouldGiveEachBranchItsOwnCopyOfTheEntity() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 256 * 1024) {
+            sb.append("0123456789abcdef");
+        }
+        final String entity = sb.toString();
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        final Map<String, String> received = new ConcurrentHashMap<>();
+        try {
+            ScatterGatherHandler handler = new ScatterGatherHandler(-1, scheduler);
+            for (final String name : Arrays.asList("a", "b", "c")) {
+                handler.addBranch(name, new Handler() {
+                    @Override
+                    public Promise<Response, NeverThrowsException> handle(final Context context,
+                                                                          final Request request) {
+                        // Each branch reads its entity from its own thread, concurrently
+                        final PromiseImpl<Response, NeverThrowsException> promise = PromiseImpl.create();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    received.put(name, request.getEntity().getString());
+                                    promise.handleResult(new Response(Status.OK));
+                                } catch (IOException e) {
+                                    promise.handleResult(new Response(Status.INTERNAL_SERVER_ERROR));
+                                }
+                            }
+                        });
+                        return promise;
+                    }
+                }, Duration.UNLIMITED);
+            }
+            Request request = new Request().setMethod("POST").setUri("http://app.example.com/");
+            request.setEntity(entity);
+
+            Response response = handler.handle(new RootContext(), request).get(5, SECONDS);
+
+            assertThat(response.getStatus()).isEqualTo(Status.OK);
+            assertThat(received).containsOnlyKeys("a", "b", "c");
+            for (String copy : received.values()) {
+                assertThat(copy).isEqualTo(entity);
+            }
+            // The original request can still be read
+            assertThat(request.getEntity().getString()).isEqualTo(entity);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Response response(final Status status, final String entity) {
+        Response response = new Response(status);
+        response.setEntity(entity);
+        return response;
+    }
+}
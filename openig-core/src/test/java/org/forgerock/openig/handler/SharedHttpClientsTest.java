@@ -0,0 +1,104 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.heap.HeapUtilsTest.buildDefaultHeap;
+import static org.forgerock.openig.heap.Keys.SHARED_HTTP_CLIENTS_HEAP_KEY;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.heap.HeapImpl;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.util.Options;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class SharedHttpClientsTest {
+
+    private SharedHttpClients clients;
+    private HeapImpl heap;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        clients = new SharedHttpClients();
+        heap = buildDefaultHeap();
+        heap.put(SHARED_HTTP_CLIENTS_HEAP_KEY, clients);
+    }
+
+    @Test
+    public void shouldCountReferences() throws Exception {
+        Transport first = clients.acquire("key", Options.defaultOptions(), false);
+        Transport second = clients.acquire("key", Options.defaultOptions(), false);
+        Transport other = clients.acquire("other", Options.defaultOptions(), false);
+
+        assertThat(second).isSameAs(first);
+        assertThat(other).isNotSameAs(first);
+        assertThat(clients.size()).isEqualTo(2);
+
+        clients.release(first);
+        assertThat(clients.size()).isEqualTo(2);
+        clients.release(second);
+        assertThat(clients.size()).isEqualTo(1);
+        clients.release(other);
+        assertThat(clients.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldShareClientAcrossRouteHeaps() throws Exception {
+        ClientHandler.Heaplet first = new ClientHandler.Heaplet();
+        ClientHandler.Heaplet second = new ClientHandler.Heaplet();
+        first.create(Name.of("client-1"), config(8), new HeapImpl(heap, Name.of("route-1")));
+        second.create(Name.of("client-2"), config(8), new HeapImpl(heap, Name.of("route-2")));
+        assertThat(clients.size()).isEqualTo(1);
+
+        first.destroy();
+        assertThat(clients.size()).isEqualTo(1);
+        second.destroy();
+        assertThat(clients.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotShareClientWithDifferentOptions() throws Exception {
+        ClientHandler.Heaplet first = new ClientHandler.Heaplet();
+        ClientHandler.Heaplet second = new ClientHandler.Heaplet();
+        first.create(Name.of("client-1"), config(8), new HeapImpl(heap, Name.of("route-1")));
+        second.create(Name.of("client-2"), config(16), new HeapImpl(heap, Name.of("route-2")));
+
+        assertThat(clients.size()).isEqualTo(2);
+        first.destroy();
+        second.destroy();
+    }
+
+    @Test
+    public void shouldNotShareClientWhenDisabled() throws Exception {
+        ClientHandler.Heaplet heaplet = new ClientHandler.Heaplet();
+        heaplet.create(Name.of("ClientHandler"),
+                       json(object(field("connections", 8), field("shared", false))),
+                       new HeapImpl(heap, Name.of("route-1")));
+
+        assertThat(clients.size()).isEqualTo(0);
+        heaplet.destroy();
+    }
+
+    private static JsonValue config(final int connections) {
+        return json(object(field("connections", connections)));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.handler.router;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newCreateRequest;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.RequestHandler;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.ServiceUnavailableException;
+import org.forgerock.openig.heap.Name;
+import org.forgerock.openig.log.Logger;
+import org.forgerock.openig.log.NullLogSink;
+import org.forgerock.services.context.AttributesContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class AsyncAuditPublisherTest {
+
+    @Mock
+    private RequestHandler delegate;
+
+    private ManualExecutor executor;
+    private Logger logger;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        executor = new ManualExecutor();
+        logger = new Logger(new NullLogSink(), Name.of("test"));
+        when(delegate.handleCreate(any(Context.class), any(CreateRequest.class)))
+                .thenReturn(newResourceResponse(null, null, json(object())).asPromise());
+    }
+
+    @Test
+    public void shouldPublishEventsAsynchronously() throws Exception {
+        AsyncAuditPublisher publisher = new AsyncAuditPublisher(delegate, executor, logger, 10, 10);
+
+        publisher.handleCreate(new RootContext(), event()).getOrThrow();
+        publisher.handleCreate(new RootContext(), event()).getOrThrow();
+
+        verify(delegate, never()).handleCreate(any(Context.class), any(CreateRequest.class));
+        // Only one delivery task is scheduled at a time
+        assertThat(executor.tasks).hasSize(1);
+
+        executor.runAll();
+        verify(delegate, times(2)).handleCreate(any(Context.class), any(CreateRequest.class));
+    }
+
+    @Test
+    public void shouldLimitEventsPublishedPerTask() throws Exception {
+        AsyncAuditPublisher publisher = new AsyncAuditPublisher(delegate, executor, logger, 10, 2);
+
+        publisher.handleCreate(new RootContext(), event());
+        publisher.handleCreate(new RootContext(), event());
+        publisher.handleCreate(new RootContext(), event());
+
+        executor.runNext();
+        verify(delegate, times(2)).handleCreate(any(Context.class), any(CreateRequest.class));
+
+        // Remaining event is delivered by a new task
+        executor.runNext();
+        verify(delegate, times(3)).handleCreate(any(Context.class), any(CreateRequest.class));
+        assertThat(executor.tasks).isEmpty();
+    }
+
+    @Test(expectedExceptions = ServiceUnavailableException.class)
+    public void shouldDropEventsWhenQueueIsFull() throws Exception {
+        AsyncAuditPublisher publisher = new AsyncAuditPublisher(delegate, executor, logger, 1, 10);
+
+        publisher.handleCreate(new RootContext(), event());
+        try {
+            publisher.handleCreate(new RootContext(), event()).getOrThrow();
+        } finally {
+            assertThat(publisher.getDroppedEvents()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void shouldCountEventsTheDelegateFailedToPublish() throws Exception {
+        when(delegate.handleCreate(any(Context.class), any(CreateRequest.class)))
+                .thenReturn(new InternalServerErrorException("Audit handler failure").<ResourceResponse>asPromise());
+        AsyncAuditPublisher publisher = new AsyncAuditPublisher(delegate, executor, logger, 10, 10);
+
+        publisher.handleCreate(new RootContext(), event()).getOrThrow();
+        publisher.handleCreate(new RootContext(), event()).getOrThrow();
+        executor.runAll();
+
+        assertThat(publisher.getFailedEvents()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotRetainContextOfAuditedExchange() throws Exception {
+        AsyncAuditPublisher publisher = new AsyncAuditPublisher(delegate, executor, logger, 10, 10);
+        Context context = new AttributesContext(new RootContext());
+        CreateRequest event = event();
+
+        publisher.handleCreate(context, event);
+        executor.runAll();
+
+        ArgumentCaptor<Context> published = ArgumentCaptor.forClass(Context.class);
+        verify(delegate).handleCreate(published.capture(), any(CreateRequest.class));
+        assertThat(published.getValue().containsContext(AttributesContext.class)).isFalse();
+        assertThat(published.getValue()).isNotSameAs(context);
+    }
+
+    @Test
+    public void shouldPublishPendingEventsWhenStopped() throws Exception {
+        AsyncAuditPublisher publisher = new AsyncAuditPublisher(delegate, executor, logger, 10, 10);
+
+        publisher.handleCreate(new RootContext(), event());
+        publisher.stop();
+
+        verify(delegate).handleCreate(any(Context.class), any(CreateRequest.class));
+    }
+
+    private static CreateRequest event() {
+        return newCreateRequest("/access", json(object()));
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final Queue<Runnable> tasks = new LinkedList<>();
+
+        @Override
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+
+        void runNext() {
+            tasks.remove().run();
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}
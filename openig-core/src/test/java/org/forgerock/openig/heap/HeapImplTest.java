@@ -24,6 +24,7 @@ import static org.forgerock.openig.heap.HeapUtilsTest.*;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
@@ -249,6 +250,27 @@ public class HeapImplTest {
         assertThat(decorated.context.getConfig()).isEmpty();
     }
 
+    @Test
+    public void shouldRunDecorationContextActionsWhenHeapIsDestroyed() throws Exception {
+        HeapImpl heap = buildDefaultHeap();
+        heap.put("decorator", new BookDecorator());
+
+        JsonValue withDecoration = json(object(field("type", Book.class.getName()),
+                                               field("decorator", "Hey")));
+        DecoratedBook decorated = (DecoratedBook) heap.resolve(withDecoration, Book.class);
+        final AtomicBoolean released = new AtomicBoolean();
+        decorated.context.onDestroy(new Runnable() {
+            @Override
+            public void run() {
+                released.set(true);
+            }
+        });
+        assertThat(released.get()).isFalse();
+
+        heap.destroy();
+        assertThat(released.get()).isTrue();
+    }
+
     @Test
     public void testGlobalDecorationGeneratingInfiniteRecursion() throws Exception {
         // This case reproduce a situation where a decorator have a dependency on a heap object
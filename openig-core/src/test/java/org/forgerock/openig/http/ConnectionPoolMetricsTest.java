@@ -0,0 +1,105 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.Test;
+
+import com.codahale.metrics.Gauge;
+
+@SuppressWarnings("javadoc")
+public class ConnectionPoolMetricsTest {
+
+    private static final String HOST = "http://app.example.com:8080";
+
+    @Test
+    public void shouldTrackLeasedAndPendingConnections() throws Exception {
+        ConnectionPoolMetrics metrics = new ConnectionPoolMetrics(4);
+        ConnectionPoolMetrics.Host host = metrics.host(HOST);
+
+        host.acquired(0L, false);
+        host.acquired(0L, false);
+        host.waiting();
+        host.acquired(5000L, true);
+        host.released();
+
+        assertThat(metrics.host(HOST)).isSameAs(host);
+        assertThat(host.getLeased()).isEqualTo(2);
+        assertThat(host.getPending()).isEqualTo(0);
+        assertThat(host.getAcquisition().getCount()).isEqualTo(3);
+        assertThat(host.getAcquisition().getSnapshot().getMax()).isEqualTo(5000L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRenderHostMetrics() throws Exception {
+        ConnectionPoolMetrics metrics = new ConnectionPoolMetrics(4);
+        ConnectionPoolMetrics.Host host = metrics.host(HOST);
+        host.acquired(1500L, false);
+        host.acquired(0L, false);
+        host.acquired(0L, false);
+        host.released();
+        host.waiting();
+
+        Response response = metrics.handle(new RootContext(), new Request()).get();
+
+        Map<String, Object> json = (Map<String, Object>) response.getEntity().getJson();
+        assertThat(json).containsEntry("capacity", 4);
+        Map<String, Object> data = (Map<String, Object>) ((Map<String, Object>) json.get("hosts")).get(HOST);
+        assertThat(data).containsEntry("leased", 2L)
+                        .containsEntry("pending", 1L)
+                        .containsEntry("peakLeased", 3L)
+                        .containsEntry("saturation", new BigDecimal("0.500"))
+                        .containsEntry("acquired", 3L)
+                        .doesNotContainKey("connections");
+        assertThat((Map<String, Object>) data.get("acquisition")).containsEntry("max", new BigDecimal("1.500"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRenderConnectionsWhenReported() throws Exception {
+        ConnectionPoolMetrics metrics = new ConnectionPoolMetrics(100);
+        ConnectionPoolMetrics.Host host = metrics.host(HOST);
+        host.connected(2000L);
+        host.connected(4000L);
+        host.disconnected();
+        host.connectFailed();
+        host.setIdleConnections(new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 1;
+            }
+        });
+
+        Response response = metrics.handle(new RootContext(), new Request()).get();
+
+        Map<String, Object> json = (Map<String, Object>) response.getEntity().getJson();
+        Map<String, Object> data = (Map<String, Object>) ((Map<String, Object>) json.get("hosts")).get(HOST);
+        assertThat((Map<String, Object>) data.get("connections")).containsEntry("open", 1L)
+                                                                  .containsEntry("idle", 1)
+                                                                  .containsEntry("failed", 1L);
+        assertThat((Map<String, Object>) data.get("connect")).containsEntry("count", 2L)
+                                                             .containsEntry("mean", new BigDecimal("3.000"));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class BufferPoolTest {
+
+    @Test
+    public void shouldRecycleReleasedBuffers() throws Exception {
+        BufferPool pool = new BufferPool(16, 4);
+
+        byte[] buffer = pool.acquire();
+        pool.release(buffer);
+
+        assertThat(pool.acquire()).isSameAs(buffer);
+        assertThat(pool.getAllocated()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldDropBuffersBeyondCapacity() throws Exception {
+        BufferPool pool = new BufferPool(16, 1);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(pool.getPooled()).isEqualTo(1);
+        assertThat(pool.getAllocated()).isEqualTo(2L);
+    }
+
+    @Test
+    public void shouldIgnoreBuffersOfAnotherSize() throws Exception {
+        BufferPool pool = new BufferPool(16, 4);
+
+        pool.release(new byte[8]);
+
+        assertThat(pool.getPooled()).isEqualTo(0);
+        assertThat(pool.acquire()).hasSize(16);
+    }
+
+    @Test
+    public void shouldReadDataFramePayloadIntoPooledBuffer() throws Exception {
+        BufferPool pool = new BufferPool(Frame.DEFAULT_MAX_FRAME_SIZE, 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Frame.write(out, Frame.DATA, Frame.FLAG_PADDED, 1, new byte[] {2, 'h', 'i', 0, 0}, 0, 5);
+
+        Frame frame = Frame.read(new ByteArrayInputStream(out.toByteArray()), Frame.DEFAULT_MAX_FRAME_SIZE, pool);
+
+        assertThat(frame.payload).hasSize(Frame.DEFAULT_MAX_FRAME_SIZE);
+        assertThat(frame.length).isEqualTo(5);
+        assertThat(frame.contentOffset()).isEqualTo(1);
+        assertThat(frame.contentLength()).isEqualTo(2);
+        assertThat(frame.content()).isEqualTo(new byte[] {'h', 'i'});
+    }
+}
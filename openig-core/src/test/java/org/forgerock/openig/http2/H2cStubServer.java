@@ -0,0 +1,190 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static java.util.Arrays.asList;
+import static org.forgerock.openig.http2.Hpack.field;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/2 server (clear-text, prior knowledge), answering each request with a {@literal 200} response whose
+ * entity is the request method, path and entity.
+ */
+final class H2cStubServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final int maxConcurrentStreams;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger refusals = new AtomicInteger();
+
+    H2cStubServer(final int maxConcurrentStreams) throws IOException {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    /** Refuses the next {@code count} streams with a {@literal REFUSED_STREAM} error code. */
+    void refuse(final int count) {
+        refusals.set(count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                connections.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // Connection closed
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Server closed
+            }
+        }
+    }
+
+    private void serve(final Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        new DataInputStream(in).readFully(new byte[Frame.CLIENT_PREFACE.length]);
+        Frame.settings(Frame.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams).write(out);
+        out.flush();
+
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 1 << 16);
+        Map<Integer, String> requests = new HashMap<>();
+        Map<Integer, ByteArrayOutputStream> entities = new HashMap<>();
+        Frame frame;
+        while ((frame = Frame.read(in, Frame.DEFAULT_MAX_FRAME_SIZE)) != null) {
+            switch (frame.type) {
+            case Frame.SETTINGS:
+                if (!frame.hasFlag(Frame.FLAG_ACK)) {
+                    Frame.settingsAck().write(out);
+                }
+                break;
+            case Frame.HEADERS:
+                String method = null;
+                String path = null;
+                for (Map.Entry<String, String> field : decoder.decode(frame.content())) {
+                    if (":method".equals(field.getKey())) {
+                        method = field.getValue();
+                    } else if (":path".equals(field.getKey())) {
+                        path = field.getValue();
+                    }
+                }
+                if (refusals.getAndDecrement() > 0) {
+                    Frame.rstStream(frame.streamId, Http2Exception.REFUSED_STREAM).write(out);
+                    break;
+                }
+                requests.put(frame.streamId, method + " " + path + "\n");
+                entities.put(frame.streamId, new ByteArrayOutputStream());
+                if (frame.hasFlag(Frame.FLAG_END_STREAM)) {
+                    respond(out, frame.streamId, requests.remove(frame.streamId), entities.remove(frame.streamId));
+                }
+                break;
+            case Frame.DATA:
+                if (frame.payload.length > 0) {
+                    Frame.windowUpdate(0, frame.payload.length).write(out);
+                }
+                ByteArrayOutputStream entity = entities.get(frame.streamId);
+                if (entity == null) {
+                    break;
+                }
+                entity.write(frame.content());
+                if (frame.hasFlag(Frame.FLAG_END_STREAM)) {
+                    respond(out, frame.streamId, requests.remove(frame.streamId), entities.remove(frame.streamId));
+                } else if (frame.payload.length > 0) {
+                    Frame.windowUpdate(frame.streamId, frame.payload.length).write(out);
+                }
+                break;
+            case Frame.GOAWAY:
+                socket.close();
+                return;
+            default:
+                break;
+            }
+            out.flush();
+        }
+    }
+
+    private static void respond(final OutputStream out,
+                                final int streamId,
+                                final String request,
+                                final ByteArrayOutputStream entity) throws IOException {
+        byte[] block = new HpackEncoder().encode(asList(field(":status", "200"),
+                                                        field("content-type", "text/plain")));
+        Frame.write(out, Frame.HEADERS, Frame.FLAG_END_HEADERS, streamId, block, 0, block.length);
+        byte[] content = request.getBytes(Hpack.ISO_8859_1);
+        Frame.write(out, Frame.DATA, 0, streamId, content, 0, content.length);
+        byte[] data = entity.toByteArray();
+        int offset = 0;
+        do {
+            // The echoed entity has to be split into frames no larger than the default maximum frame size
+            int length = Math.min(data.length - offset, Frame.DEFAULT_MAX_FRAME_SIZE);
+            int flags = (offset + length == data.length) ? Frame.FLAG_END_STREAM : 0;
+            Frame.write(out, Frame.DATA, flags, streamId, data, offset, length);
+            offset += length;
+        } while (offset < data.length);
+    }
+}
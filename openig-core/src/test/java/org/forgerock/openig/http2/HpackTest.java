@@ -0,0 +1,121 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.openig.http2.Hpack.field;
+
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class HpackTest {
+
+    // Examples from RFC 7541, appendix C
+
+    @Test
+    public void shouldDecodeRequestsWithHuffmanCoding() throws Exception {
+        HpackDecoder decoder = new HpackDecoder(4096, 16384);
+
+        assertThat(decoder.decode(bytes("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")))
+                .containsExactly(field(":method", "GET"),
+                                 field(":scheme", "http"),
+                                 field(":path", "/"),
+                                 field(":authority", "www.example.com"));
+        assertThat(decoder.decode(bytes("8286 84be 5886 a8eb 1064 9cbf")))
+                .containsExactly(field(":method", "GET"),
+                                 field(":scheme", "http"),
+                                 field(":path", "/"),
+                                 field(":authority", "www.example.com"),
+                                 field("cache-control", "no-cache"));
+        assertThat(decoder.decode(bytes("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")))
+                .containsExactly(field(":method", "GET"),
+                                 field(":scheme", "https"),
+                                 field(":path", "/index.html"),
+                                 field(":authority", "www.example.com"),
+                                 field("custom-key", "custom-value"));
+    }
+
+    @Test
+    public void shouldDecodeRequestWithoutHuffmanCoding() throws Exception {
+        HpackDecoder decoder = new HpackDecoder(4096, 16384);
+
+        assertThat(decoder.decode(bytes("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d")))
+                .containsExactly(field(":method", "GET"),
+                                 field(":scheme", "http"),
+                                 field(":path", "/"),
+                                 field(":authority", "www.example.com"));
+    }
+
+    @Test
+    public void shouldEvictDynamicTableEntries() throws Exception {
+        HpackDecoder decoder = new HpackDecoder(256, 16384);
+
+        assertThat(decoder.decode(bytes("4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 "
+                                                + "66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3")))
+                .containsExactly(field(":status", "302"),
+                                 field("cache-control", "private"),
+                                 field("date", "Mon, 21 Oct 2013 20:13:21 GMT"),
+                                 field("location", "https://www.example.com"));
+        // ':status: 302' has been evicted to make room for ':status: 307'
+        assertThat(decoder.decode(bytes("4883 640e ffc1 c0bf")))
+                .containsExactly(field(":status", "307"),
+                                 field("cache-control", "private"),
+                                 field("date", "Mon, 21 Oct 2013 20:13:21 GMT"),
+                                 field("location", "https://www.example.com"));
+    }
+
+    @Test
+    public void shouldDecodeEncodedFields() throws Exception {
+        List<Map.Entry<String, String>> fields = asList(field(":method", "POST"),
+                                                        field(":path", "/"),
+                                                        field(":path", "/a?b=c"),
+                                                        field("accept", "*/*"),
+                                                        field("x-custom", "caf\u00e9"));
+
+        assertThat(new HpackDecoder(4096, 16384).decode(new HpackEncoder().encode(fields)))
+                .containsExactlyElementsOf(fields);
+    }
+
+    @Test(expectedExceptions = Http2Exception.class)
+    public void shouldRejectUnknownIndex() throws Exception {
+        new HpackDecoder(4096, 16384).decode(bytes("be"));
+    }
+
+    @Test(expectedExceptions = Http2Exception.class)
+    public void shouldRejectTooLargeHeaderList() throws Exception {
+        new HpackDecoder(4096, 16).decode(bytes("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+    }
+
+    @Test(expectedExceptions = Http2Exception.class)
+    public void shouldRejectInvalidHuffmanPadding() throws Exception {
+        // 'a' (00011) padded with zeros instead of the EOS prefix
+        Huffman.decode(bytes("18"), 0, 1);
+    }
+
+    private static byte[] bytes(final String hex) {
+        String digits = hex.replace(" ", "");
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
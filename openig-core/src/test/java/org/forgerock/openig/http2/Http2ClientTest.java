@@ -0,0 +1,246 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.http2;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_TEMPORARY_STORAGE;
+import static org.forgerock.http.io.IO.newTemporaryStorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.forgerock.http.apache.async.AsyncHttpClientProvider;
+import org.forgerock.http.io.BranchingInputStream;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.Options;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class Http2ClientTest {
+
+    private H2cStubServer server;
+    private Http2Client client;
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void shouldSendRequestAndReceiveResponse() throws Exception {
+        server = new H2cStubServer(100);
+        client = new Http2Client(options());
+
+        Response response = client.handle(new RootContext(), request("GET", "/path?a=b")).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(response.getVersion()).isEqualTo("HTTP/2.0");
+        assertThat(response.getHeaders().getFirst("Content-Type")).isEqualTo("text/plain");
+        assertThat(response.getEntity().getString()).isEqualTo("GET /path?a=b\n");
+    }
+
+    @Test
+    public void shouldSendRequestEntity() throws Exception {
+        server = new H2cStubServer(100);
+        client = new Http2Client(options());
+        Request request = request("POST", "/");
+        request.setEntity("Hello HTTP/2");
+
+        Response response = client.handle(new RootContext(), request).get();
+
+        assertThat(response.getEntity().getString()).isEqualTo("POST /\nHello HTTP/2");
+    }
+
+    @Test
+    public void shouldMultiplexRequestsOverOneConnection() throws Exception {
+        server = new H2cStubServer(2);
+        client = new Http2Client(options().set(Http2Client.OPTION_MAX_CONNECTIONS, 1));
+
+        List<Promise<Response, NeverThrowsException>> promises = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            promises.add(client.handle(new RootContext(), request("GET", "/" + i)));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertThat(promises.get(i).get().getEntity().getString()).isEqualTo("GET /" + i + "\n");
+        }
+        assertThat(server.getConnections()).isEqualTo(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldExposePoolMetrics() throws Exception {
+        server = new H2cStubServer(2);
+        client = new Http2Client(options().set(Http2Client.OPTION_MAX_CONNECTIONS, 1));
+
+        List<Promise<Response, NeverThrowsException>> promises = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            promises.add(client.handle(new RootContext(), request("GET", "/" + i)));
+        }
+        for (Promise<Response, NeverThrowsException> promise : promises) {
+            promise.get().getEntity().getString();
+        }
+
+        Response response = client.getPoolMetrics().handle(new RootContext(), new Request()).get();
+        Map<String, Object> hosts = (Map<String, Object>) ((Map<String, Object>) response.getEntity().getJson())
+                .get("hosts");
+        Map<String, Object> host = (Map<String, Object>) hosts.get("http://localhost:" + server.getPort());
+        assertThat(host).containsEntry("pending", 0L)
+                        .containsEntry("acquired", 10L);
+        assertThat((Long) host.get("peakLeased")).isBetween(1L, 2L);
+        assertThat((Map<String, Object>) host.get("connections")).containsEntry("open", 1L)
+                                                                  .containsEntry("failed", 0L);
+    }
+
+    @Test
+    public void shouldRetryRefusedRequest() throws Exception {
+        server = new H2cStubServer(100);
+        client = new Http2Client(options());
+        server.refuse(1);
+
+        Response response = client.handle(new RootContext(), request("GET", "/")).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        Response metrics = client.getMetrics().handle(new RootContext(), new Request()).get();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> streams = (Map<String, Object>) ((Map<String, Object>) metrics.getEntity().getJson())
+                .get("streams");
+        assertThat(streams).containsEntry("refused", 1L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldStreamBodiesThroughPooledBuffers() throws Exception {
+        server = new H2cStubServer(100);
+        client = new Http2Client(options());
+        byte[] entity = new byte[256 * 1024];
+        Arrays.fill(entity, (byte) 'a');
+
+        for (int i = 0; i < 5; i++) {
+            Request request = request("POST", "/");
+            request.setEntity(entity);
+            Response response = client.handle(new RootContext(), request).get();
+            assertThat(response.getEntity().getBytes()).hasSize("POST /\n".length() + entity.length);
+        }
+
+        Response metrics = client.getMetrics().handle(new RootContext(), new Request()).get();
+        Map<String, Object> buffers = (Map<String, Object>) ((Map<String, Object>) metrics.getEntity().getJson())
+                .get("buffers");
+        // At most the buffers of one request and one response in flight, whatever the number of exchanges
+        int frames = entity.length / Frame.DEFAULT_MAX_FRAME_SIZE;
+        assertThat((Long) buffers.get("allocated")).isLessThanOrEqualTo(2L * frames + 2L);
+        assertThat((Integer) buffers.get("pooled")).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldHandResponseBodiesThroughWithoutBufferingThem() throws Exception {
+        server = new H2cStubServer(100);
+        client = new Http2Client(options().set(Http2Client.OPTION_PASS_THROUGH, true));
+
+        Response response = client.handle(new RootContext(), request("GET", "/streamed")).get();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = response.getEntity().getRawContentInputStream()) {
+            int read;
+            while ((read = in.read()) != -1) {
+                body.write(read);
+            }
+        }
+        assertThat(body.toString("UTF-8")).isEqualTo("GET /streamed\n");
+
+        response = client.handle(new RootContext(), request("GET", "/branched")).get();
+        BranchingInputStream branch = response.getEntity().getRawContentInputStream().branch();
+        try {
+            branch.read();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException e) {
+            // The body cannot be buffered to be read twice
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void shouldNotHoldTheWorkerThreadsWhileSendingRequestBodies() throws Exception {
+        server = new H2cStubServer(100);
+        client = new Http2Client(options().set(AsyncHttpClientProvider.OPTION_WORKER_THREADS, 1));
+        final CountDownLatch uploading = new CountDownLatch(1);
+        Request upload = request("POST", "/");
+        upload.setEntity(new ByteArrayInputStream("Hello HTTP/2".getBytes()) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, final int len) {
+                try {
+                    uploading.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, len);
+            }
+        });
+
+        Promise<Response, NeverThrowsException> uploaded = client.handle(new RootContext(), upload);
+        // The only worker thread is free while the upload is stalled
+        Response response = client.handle(new RootContext(), request("GET", "/")).get(5, SECONDS);
+        assertThat(response.getEntity().getString()).isEqualTo("GET /\n");
+
+        uploading.countDown();
+        assertThat(uploaded.get(5, SECONDS).getEntity().getString()).isEqualTo("POST /\nHello HTTP/2");
+    }
+
+    @Test
+    public void shouldReturnBadGatewayWhenServerIsUnreachable() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        client = new Http2Client(options());
+
+        Request request = new Request().setMethod("GET").setUri("http://localhost:" + port + "/");
+        Response response = client.handle(new RootContext(), request).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.BAD_GATEWAY);
+        assertThat(response.getCause()).isNotNull();
+    }
+
+    private Request request(final String method, final String path) throws Exception {
+        return new Request().setMethod(method).setUri("http://localhost:" + server.getPort() + path);
+    }
+
+    private static Options options() {
+        return Options.defaultOptions().set(OPTION_TEMPORARY_STORAGE, newTemporaryStorage());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.io;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class CompressingInputStreamTest {
+
+    @Test
+    public void shouldProduceTheGzipFormat() throws Exception {
+        byte[] content = randomText(200000);
+
+        InputStream gzip = new CompressingInputStream(new ByteArrayInputStream(content),
+                                                      new Deflater(Deflater.DEFAULT_COMPRESSION, true),
+                                                      true);
+
+        assertThat(readFully(new GZIPInputStream(gzip))).isEqualTo(content);
+    }
+
+    @Test
+    public void shouldProduceTheZlibFormat() throws Exception {
+        byte[] content = randomText(200000);
+
+        InputStream zlib = new CompressingInputStream(new ByteArrayInputStream(content),
+                                                      new Deflater(Deflater.DEFAULT_COMPRESSION, false),
+                                                      false);
+
+        assertThat(readFully(new InflaterInputStream(zlib))).isEqualTo(content);
+    }
+
+    @Test
+    public void shouldCompressEmptyStreams() throws Exception {
+        InputStream gzip = new CompressingInputStream(new ByteArrayInputStream(new byte[0]),
+                                                      new Deflater(Deflater.DEFAULT_COMPRESSION, true),
+                                                      true);
+
+        assertThat(readFully(new GZIPInputStream(gzip))).hasSize(0);
+    }
+
+    @Test
+    public void shouldFlushWhenTheSourceHasNoBytesAvailable() throws Exception {
+        // A source whose next bytes are not produced yet: reading them would block
+        InputStream source = new InputStream() {
+            private boolean produced;
+
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (produced) {
+                    throw new IOException("Would block");
+                }
+                produced = true;
+                byte[] event = "data: first event\n\n".getBytes(UTF_8);
+                System.arraycopy(event, 0, b, off, event.length);
+                return event.length;
+            }
+        };
+        InputStream zlib = new CompressingInputStream(source, new Deflater(), false);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            int n;
+            while ((n = zlib.read(buffer)) != -1) {
+                received.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            assertThat(e.getMessage()).isEqualTo("Would block");
+        }
+
+        // The bytes received so far are enough to decompress the first event
+        Inflater inflater = new Inflater();
+        inflater.setInput(received.toByteArray());
+        byte[] inflated = new byte[1024];
+        int length = inflater.inflate(inflated);
+        assertThat(new String(inflated, 0, length, UTF_8)).isEqualTo("data: first event\n\n");
+    }
+
+    @Test
+    public void shouldReleaseTheDeflaterOnce() throws Exception {
+        final int[] released = new int[1];
+        InputStream gzip = new CompressingInputStream(new ByteArrayInputStream(randomText(1000)),
+                                                      new Deflater(Deflater.DEFAULT_COMPRESSION, true),
+                                                      true) {
+            @Override
+            protected void release(final Deflater deflater) {
+                released[0]++;
+                super.release(deflater);
+            }
+        };
+
+        readFully(gzip);
+
+        assertThat(released[0]).isEqualTo(1);
+    }
+
+    private static byte[] randomText(final int length) {
+        Random random = new Random(42);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return text;
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.regex;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.regex.Pattern;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class RewritingReaderTest {
+
+    @DataProvider
+    public static Object[][] chunkSizes() {
+        return new Object[][] {
+            { 1 },
+            { 3 },
+            { 8192 }
+        };
+    }
+
+    @Test(dataProvider = "chunkSizes")
+    public void shouldReplaceMatchesSpanningReads(final int chunkSize) throws Exception {
+        String content = "<a href=\"http://app.internal:8080/home\">home</a> <img src=\"http://app.internal:8080/logo\">";
+        Reader reader = new RewritingReader(new ChunkedReader(content, chunkSize),
+                                            Pattern.compile("http://app\\.internal:8080/(\\w+)"),
+                                            new PatternTemplate("https://www.example.com/$1"),
+                                            64);
+
+        assertThat(readFully(reader)).isEqualTo("<a href=\"https://www.example.com/home\">home</a> "
+                                                        + "<img src=\"https://www.example.com/logo\">");
+    }
+
+    @Test(dataProvider = "chunkSizes")
+    public void shouldWaitForTheEndOfGreedyMatches(final int chunkSize) throws Exception {
+        Reader reader = new RewritingReader(new ChunkedReader("x aaaaaaaaaa x", chunkSize),
+                                            Pattern.compile("a+"),
+                                            new PatternTemplate("A"),
+                                            64);
+
+        assertThat(readFully(reader)).isEqualTo("x A x");
+    }
+
+    @Test
+    public void shouldRewriteLargeStreamsThroughTheWindow() throws Exception {
+        StringBuilder content = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append("line ").append(i).append(": http://old/\n");
+            expected.append("line ").append(i).append(": https://new/\n");
+        }
+        Reader reader = new RewritingReader(new ChunkedReader(content.toString(), 1000),
+                                            Pattern.compile("http://old/", Pattern.LITERAL),
+                                            new PatternTemplate("https://new/"),
+                                            16);
+
+        assertThat(readFully(reader)).isEqualTo(expected.toString());
+    }
+
+    @Test
+    public void shouldOnlyMatchStartAnchorAtTheBeginningOfTheStream() throws Exception {
+        StringBuilder content = new StringBuilder("start");
+        for (int i = 0; i < 5000; i++) {
+            content.append(" start");
+        }
+        Reader reader = new RewritingReader(new ChunkedReader(content.toString(), 100),
+                                            Pattern.compile("^start"),
+                                            new PatternTemplate("begin"),
+                                            16);
+
+        String result = readFully(reader);
+        assertThat(result).startsWith("begin start");
+        assertThat(result).doesNotContain(" begin");
+    }
+
+    @Test
+    public void shouldReplaceEmptyMatchesLikeReplaceAll() throws Exception {
+        Reader reader = new RewritingReader(new StringReader("bab"),
+                                            Pattern.compile("a*"),
+                                            new PatternTemplate("-"),
+                                            16);
+
+        assertThat(readFully(reader)).isEqualTo("bab".replaceAll("a*", "-"));
+    }
+
+    @Test
+    public void shouldSupportEmptyStreams() throws Exception {
+        Reader reader = new RewritingReader(new StringReader(""), Pattern.compile("a"), new PatternTemplate("b"), 16);
+
+        assertThat(reader.read()).isEqualTo(-1);
+    }
+
+    private static String readFully(final Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[512];
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            sb.append(buffer, 0, n);
+        }
+        reader.close();
+        return sb.toString();
+    }
+
+    /** Returns at most {@code chunkSize} characters per read. */
+    private static final class ChunkedReader extends Reader {
+        private final String content;
+        private final int chunkSize;
+        private int position;
+
+        ChunkedReader(final String content, final int chunkSize) {
+            this.content = content;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) {
+            if (position == content.length()) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, chunkSize), content.length() - position);
+            content.getChars(position, position + n, cbuf, off);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
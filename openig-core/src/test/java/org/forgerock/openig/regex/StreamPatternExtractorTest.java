@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2014-2015 ForgeRock AS.
+ * Copyright 2014-2016 ForgeRock AS.
  */
 
 package org.forgerock.openig.regex;
@@ -20,6 +20,9 @@ import static org.assertj.core.api.Assertions.*;
 import static org.assertj.core.data.MapEntry.entry;
 import static org.forgerock.openig.regex.Readers.*;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -51,6 +54,116 @@ public class StreamPatternExtractorTest {
                                         entry("name", "X-Hello"));
     }
 
+    @Test
+    public void shouldKeepMatchesOfOtherPatternsFoundWhileSearching() throws Exception {
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.getPatterns().put("first", Pattern.compile("first=(\\w+)"));
+        extractor.getTemplates().put("first", new PatternTemplate("$1"));
+        extractor.getPatterns().put("second", Pattern.compile("second=(\\w+)"));
+        extractor.getTemplates().put("second", new PatternTemplate("$1"));
+
+        Map<String, String> actual = asMap(extractor.extract(reader("second=2", "nothing", "first=1")));
+        assertThat(actual).containsOnly(entry("first", "1"),
+                                        entry("second", "2"));
+    }
+
+    @Test
+    public void shouldReturnTheFirstMatchOfEachPattern() throws Exception {
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.getPatterns().put("value", Pattern.compile("value=(\\d+)"));
+        extractor.getTemplates().put("value", new PatternTemplate("$1"));
+        extractor.getPatterns().put("any", Pattern.compile("\\w+="));
+
+        Map<String, String> actual = asMap(extractor.extract(reader("a=1 value=2 value=3", "value=4")));
+        assertThat(actual).containsOnly(entry("value", "2"),
+                                        entry("any", "a="));
+    }
+
+    @Test
+    public void shouldMatchPatternsThatCannotBeCombined() throws Exception {
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.getPatterns().put("backReference", Pattern.compile("<(\\w+)>(\\w+)</\\1>"));
+        extractor.getTemplates().put("backReference", new PatternTemplate("$2"));
+        extractor.getPatterns().put("named", Pattern.compile("id=(?<id>\\d+)"));
+        extractor.getPatterns().put("literal", Pattern.compile("a.b", Pattern.LITERAL));
+        extractor.getPatterns().put("caseInsensitive", Pattern.compile("hello (\\w+)", Pattern.CASE_INSENSITIVE));
+        extractor.getTemplates().put("caseInsensitive", new PatternTemplate("$1"));
+
+        Map<String, String> actual = asMap(extractor.extract(reader("axb a.b", "HELLO World", "<b>bold</b> id=42")));
+        assertThat(actual).containsOnly(entry("backReference", "bold"),
+                                        entry("named", "id=42"),
+                                        entry("literal", "a.b"),
+                                        entry("caseInsensitive", "World"));
+    }
+
+    @Test
+    public void shouldMatchAnchorsOnEachLine() throws Exception {
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.getPatterns().put("first", Pattern.compile("^first$"));
+        extractor.getPatterns().put("second", Pattern.compile("^second$"));
+        extractor.getPatterns().put("third", Pattern.compile("^third$"));
+
+        Map<String, String> actual = asMap(extractor.extract(new StringReader("first\r\nsecond\rthird")));
+        assertThat(actual).containsOnly(entry("first", "first"),
+                                        entry("second", "second"),
+                                        entry("third", "third"));
+    }
+
+    @Test
+    public void shouldStopReadingOnceAllPatternsHaveMatched() throws Exception {
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.getPatterns().put("token", Pattern.compile("token=\\w+"));
+        CountingReader reader = new CountingReader("token=abc\n", "never read");
+
+        Map<String, String> actual = asMap(extractor.extract(reader));
+        assertThat(actual).containsOnly(entry("token", "token=abc"));
+        assertThat(reader.reads).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldMatchLinesLongerThanTheInitialWindow() throws Exception {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            line.append('x');
+        }
+        line.append(" token=abc");
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.getPatterns().put("token", Pattern.compile("token=(\\w+)$"));
+
+        Map<String, String> actual = asMap(extractor.extract(reader(line.toString())));
+        assertThat(actual).containsOnly(entry("token", "token=abc"));
+    }
+
+    @Test
+    public void shouldSplitLinesLongerThanTheWindow() throws Exception {
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.setWindowSize(8);
+        extractor.getPatterns().put("split", Pattern.compile("6789"));
+        extractor.getPatterns().put("segment", Pattern.compile("89ab"));
+        extractor.getPatterns().put("tooLong", Pattern.compile("3456789a"));
+
+        Map<String, String> actual = asMap(extractor.extract(reader("0123456789abcdef")));
+        assertThat(actual).containsOnly(entry("split", "6789"),
+                                        entry("segment", "89ab"),
+                                        entry("tooLong", null));
+    }
+
+    @Test
+    public void shouldFindMatchesSpanningTheSplitOfALongLine() throws Exception {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            line.append('x');
+        }
+        // Split after "toke"
+        line.append("token=abc");
+        StreamPatternExtractor extractor = new StreamPatternExtractor();
+        extractor.setWindowSize(64);
+        extractor.getPatterns().put("token", Pattern.compile("token=\\w+"));
+
+        Map<String, String> actual = asMap(extractor.extract(reader(line.toString())));
+        assertThat(actual).containsOnly(entry("token", "token=abc"));
+    }
+
     public static <K, V> Map<K, V> asMap(Iterable<Map.Entry<K, V>> iterable) {
         Map<K, V> map = new HashMap<>();
         for (Map.Entry<K, V> item : iterable) {
@@ -58,4 +171,28 @@ public class StreamPatternExtractorTest {
         }
         return map;
     }
+
+    /** Returns each chunk in a single read, then fails. */
+    private static final class CountingReader extends Reader {
+        private final String[] chunks;
+        private int reads;
+
+        CountingReader(final String... chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) throws IOException {
+            if (reads == chunks.length) {
+                return -1;
+            }
+            String chunk = chunks[reads++];
+            chunk.getChars(0, chunk.length(), buffer, offset);
+            return chunk.length();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
@@ -0,0 +1,130 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.text;
+
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class IndexedSeparatedValuesFileTest {
+
+    private static final String USERS = "username,password,mail\r\n"
+            + "bjensen,hifalutin,bjensen@example.com\r\n"
+            + "\"demo, user\",changeit,\"demo\"\"@example.com\"\r\n"
+            + "scarter,sprain,scarter@example.com\r\n"
+            + "bjensen,duplicate,other@example.com\r\n";
+
+    @DataProvider
+    public static Object[][] modes() {
+        return new Object[][] {
+            { false },
+            { true }
+        };
+    }
+
+    @Test(dataProvider = "modes")
+    public void shouldLookupIndexedRecords(final boolean memoryMapped) throws Exception {
+        IndexedSeparatedValuesFile file = newFile(USERS, memoryMapped);
+
+        assertThat(file.getRecord("username", "scarter")).containsOnly(entry("username", "scarter"),
+                                                                        entry("password", "sprain"),
+                                                                        entry("mail", "scarter@example.com"));
+        assertThat(file.getRecord("username", "demo, user")).containsEntry("mail", "demo\"@example.com");
+        assertThat(file.getRecord("username", "unknown")).isNull();
+    }
+
+    @Test(dataProvider = "modes")
+    public void shouldReturnTheFirstMatchingRecord(final boolean memoryMapped) throws Exception {
+        IndexedSeparatedValuesFile file = newFile(USERS, memoryMapped);
+
+        assertThat(file.getRecord("username", "bjensen")).containsEntry("password", "hifalutin");
+    }
+
+    @Test(dataProvider = "modes")
+    public void shouldScanTheFileForNonIndexedFields(final boolean memoryMapped) throws Exception {
+        IndexedSeparatedValuesFile file = newFile(USERS, memoryMapped);
+
+        assertThat(file.getRecord("mail", "other@example.com")).containsEntry("password", "duplicate");
+    }
+
+    @Test(dataProvider = "modes")
+    public void shouldUseTheGivenFieldsWhenThereIsNoHeader(final boolean memoryMapped) throws Exception {
+        File csv = write("bjensen,hifalutin\nscarter,sprain");
+        IndexedSeparatedValuesFile file =
+                new IndexedSeparatedValuesFile(csv, UTF_8, Separators.COMMA.getSeparator(), false, "uid", memoryMapped);
+        file.getFields().add("uid");
+        file.getFields().add("password");
+
+        assertThat(file.getRecord("uid", "scarter")).containsOnly(entry("uid", "scarter"),
+                                                                  entry("password", "sprain"));
+    }
+
+    @Test(dataProvider = "modes")
+    public void shouldRebuildTheIndexWhenTheFileIsModified(final boolean memoryMapped) throws Exception {
+        IndexedSeparatedValuesFile file = newFile(USERS, memoryMapped);
+        assertThat(file.getRecord("username", "scarter")).containsEntry("password", "sprain");
+        assertThat(file.reloadIfModified()).isFalse();
+
+        // Replace the file rather than rewriting the mapped one in place
+        File updated = write("username,password,mail\nscarter,changed,scarter@example.com\n");
+        File target = file.getFile();
+        assertThat(target.delete()).isTrue();
+        assertThat(updated.renameTo(target)).isTrue();
+
+        assertThat(file.reloadIfModified()).isTrue();
+        assertThat(file.getRecord("username", "scarter")).containsEntry("password", "changed");
+        assertThat(file.getRecord("username", "bjensen")).isNull();
+    }
+
+    @Test
+    public void shouldNotReloadBeforeTheFirstLookup() throws Exception {
+        IndexedSeparatedValuesFile file = newFile(USERS, false);
+
+        assertThat(file.reloadIfModified()).isFalse();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRejectMemoryMappingWithMultiBytesCharsets() throws Exception {
+        new IndexedSeparatedValuesFile(write(USERS), UTF_16, Separators.COMMA.getSeparator(), true, "username", true);
+    }
+
+    private static IndexedSeparatedValuesFile newFile(final String content, final boolean memoryMapped)
+            throws IOException {
+        return new IndexedSeparatedValuesFile(write(content),
+                                              UTF_8,
+                                              Separators.COMMA.getSeparator(),
+                                              true,
+                                              "username",
+                                              memoryMapped);
+    }
+
+    private static File write(final String content) throws IOException {
+        File file = File.createTempFile("users", ".csv");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+        return file;
+    }
+}
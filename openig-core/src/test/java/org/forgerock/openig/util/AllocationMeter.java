@@ -0,0 +1,82 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.util;
+
+import java.lang.management.ManagementFactory;
+
+import org.testng.SkipException;
+
+/**
+ * Measures the memory allocated by the current thread, using the HotSpot specific
+ * {@link com.sun.management.ThreadMXBean}. Tests using it are skipped on JVMs not supporting allocation accounting.
+ */
+@SuppressWarnings("javadoc")
+public final class AllocationMeter {
+
+    /** An operation whose allocations are measured. */
+    public interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    private AllocationMeter(final com.sun.management.ThreadMXBean threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Returns a meter of the current thread allocations, or skips the current test if the JVM does not support it.
+     */
+    public static AllocationMeter allocationMeter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("Thread allocation accounting is not available on this JVM");
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Thread allocation accounting is not supported on this JVM");
+        }
+        if (!threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        return new AllocationMeter(threads);
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread since it started.
+     */
+    public long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs the operation {@code warmup} times (not measured, gives the JIT a chance to kick in), then
+     * {@code iterations} times and returns the average number of bytes allocated by the current thread per run.
+     * Allocations made on other threads are not accounted.
+     */
+    public long bytesPerOperation(final Operation operation, final int warmup, final int iterations)
+            throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            operation.run(i);
+        }
+        return (allocatedBytes() - before) / iterations;
+    }
+}
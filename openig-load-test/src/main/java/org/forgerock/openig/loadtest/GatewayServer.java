@@ -0,0 +1,230 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.loadtest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openig.http.GatewayEnvironment.BASE_SYSTEM_PROPERTY;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.HttpApplicationException;
+import org.forgerock.http.protocol.Header;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openig.http.GatewayHttpApplication;
+import org.forgerock.services.context.AttributesContext;
+import org.forgerock.services.context.ClientContext;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.ResultHandler;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+/**
+ * Runs a {@link GatewayHttpApplication} on an embedded Grizzly server.
+ * <p>
+ * The gateway reads its configuration from a generated base directory: the {@literal config.json} declares a
+ * {@literal ClientHandler} and a router, and unless a custom routes directory is given, a single route proxies
+ * every request to the backend.
+ */
+final class GatewayServer {
+
+    private final GatewayHttpApplication application;
+    private final HttpServer server;
+
+    private GatewayServer(final GatewayHttpApplication application, final HttpServer server) {
+        this.application = application;
+        this.server = server;
+    }
+
+    /**
+     * Starts a gateway.
+     *
+     * @param backendUri
+     *         base URI of the backend the default route proxies to
+     * @param connections
+     *         maximum number of connections of the gateway's {@literal ClientHandler}
+     * @param routes
+     *         directory holding the routes to load, or {@code null} to use the default proxy route
+     * @return the started gateway
+     * @throws IOException
+     *         if the configuration cannot be written or the server cannot be started
+     * @throws HttpApplicationException
+     *         if the gateway cannot be started
+     */
+    static GatewayServer start(final String backendUri, final int connections, final File routes)
+            throws IOException, HttpApplicationException {
+        File base = createBaseDirectory(backendUri, connections, routes);
+        System.setProperty(BASE_SYSTEM_PROPERTY, base.getAbsolutePath());
+        GatewayHttpApplication application = new GatewayHttpApplication();
+        Handler handler = application.start();
+        HttpServer server = LoopbackServers.start("gateway", new GatewayHandler(handler));
+        return new GatewayServer(application, server);
+    }
+
+    /**
+     * Returns the base URI of this gateway.
+     *
+     * @return the base URI of this gateway
+     */
+    String getBaseUri() {
+        return "http://" + LoopbackServers.LOOPBACK + ":" + LoopbackServers.portOf(server);
+    }
+
+    /**
+     * Stops this gateway.
+     */
+    void stop() {
+        server.shutdownNow();
+        application.stop();
+    }
+
+    private static File createBaseDirectory(final String backendUri, final int connections, final File routes)
+            throws IOException {
+        File base = File.createTempFile("openig-load-test", "");
+        if (!base.delete() || !base.mkdir()) {
+            throw new IOException("Cannot create the gateway base directory " + base);
+        }
+        File config = new File(base, "config");
+        File defaultRoutes = new File(config, "routes");
+        if (!defaultRoutes.mkdirs()) {
+            throw new IOException("Cannot create the gateway configuration directory " + config);
+        }
+
+        File directory = routes != null ? routes : defaultRoutes;
+        write(new File(config, "config.json"),
+              json(object(field("heap", array(object(field("name", "ClientHandler"),
+                                                     field("type", "ClientHandler"),
+                                                     field("config", object(field("connections", connections)))))),
+                          field("handler", object(field("type", "Router"),
+                                                  field("config",
+                                                        object(field("directory", directory.getAbsolutePath()),
+                                                               field("scanInterval", -1))))))));
+        if (routes == null) {
+            write(new File(defaultRoutes, "proxy.json"),
+                  json(object(field("name", "proxy"),
+                              field("handler", object(field("type", "Chain"),
+                                                      field("config",
+                                                            object(field("filters", array()),
+                                                                   field("handler", "ClientHandler"))),
+                                                      field("baseURI", backendUri))))));
+        }
+        return base;
+    }
+
+    private static void write(final File file, final JsonValue content) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8)) {
+            writer.write(content.toString());
+        }
+    }
+
+    /**
+     * Adapts the Grizzly requests to the gateway's CHF {@link Handler}.
+     */
+    private static final class GatewayHandler extends HttpHandler {
+        private final Handler handler;
+
+        GatewayHandler(final Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void service(final Request request, final Response response) throws Exception {
+            org.forgerock.http.protocol.Request chfRequest = new org.forgerock.http.protocol.Request();
+            chfRequest.setMethod(request.getMethod().getMethodString());
+            StringBuilder uri = request.getRequestURL();
+            if (request.getQueryString() != null) {
+                uri.append('?').append(request.getQueryString());
+            }
+            chfRequest.setUri(uri.toString());
+            for (String name : request.getHeaderNames()) {
+                for (String value : request.getHeaders(name)) {
+                    chfRequest.getHeaders().add(name, value);
+                }
+            }
+            byte[] entity = readFully(request.getInputStream());
+            if (entity.length > 0) {
+                chfRequest.setEntity(entity);
+            }
+
+            Context context = new AttributesContext(ClientContext.buildExternalClientContext(new RootContext())
+                                                                 .remoteAddress(request.getRemoteAddr())
+                                                                 .build());
+            response.suspend();
+            handler.handle(context, chfRequest)
+                   .thenOnResult(new ResultHandler<org.forgerock.http.protocol.Response>() {
+                       @Override
+                       public void handleResult(final org.forgerock.http.protocol.Response result) {
+                           try {
+                               write(result, response);
+                           } catch (IOException e) {
+                               response.setStatus(502, "Bad Gateway");
+                           } finally {
+                               result.close();
+                               response.resume();
+                           }
+                       }
+                   });
+        }
+
+        private static void write(final org.forgerock.http.protocol.Response source, final Response target)
+                throws IOException {
+            target.setStatus(source.getStatus().getCode(), source.getStatus().getReasonPhrase());
+            for (Map.Entry<String, Header> entry : source.getHeaders().asMapOfHeaders().entrySet()) {
+                String name = entry.getKey();
+                if ("Transfer-Encoding".equalsIgnoreCase(name) || "Connection".equalsIgnoreCase(name)) {
+                    // Hop-by-hop headers are managed by Grizzly
+                    continue;
+                }
+                for (String value : entry.getValue().getValues()) {
+                    target.addHeader(name, value);
+                }
+            }
+            try (InputStream in = source.getEntity().getRawContentInputStream()) {
+                copy(in, target.getOutputStream());
+            }
+        }
+
+        private static byte[] readFully(final InputStream in) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            copy(in, buffer);
+            return buffer.toByteArray();
+        }
+
+        private static void copy(final InputStream in, final OutputStream out) throws IOException {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.loadtest;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.ResultHandler;
+
+/**
+ * Open-loop load generator: requests are sent at a constant rate, whatever the response times are.
+ * <p>
+ * Each request has an intended start time (the schedule), which may be earlier than the time it was actually sent
+ * when the generator or the client falls behind. The <em>corrected</em> latency is measured from the intended start
+ * time, so stalls of the system under test are accounted for every request that should have been sent during the
+ * stall (coordinated omission). The <em>uncorrected</em> latency, measured from the actual send time, is reported
+ * alongside for comparison.
+ */
+final class LoadGenerator {
+
+    /** Latencies above this value (1 minute) are clamped. */
+    private static final long HIGHEST_TRACKABLE_LATENCY = SECONDS.toNanos(60);
+
+    private final Handler client;
+    private final URI target;
+    private final int rate;
+
+    /**
+     * Builds a new load generator.
+     *
+     * @param client
+     *         (asynchronous) client used to send the requests
+     * @param target
+     *         URI of the requests
+     * @param rate
+     *         number of requests sent per second
+     */
+    LoadGenerator(final Handler client, final URI target, final int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate can only be a positive (non-zero) value");
+        }
+        this.client = client;
+        this.target = target;
+        this.rate = rate;
+    }
+
+    /**
+     * Sends requests for the given duration, then waits (at most {@code drainTimeout} ms) for the outstanding
+     * responses.
+     *
+     * @param duration
+     *         duration (in milliseconds) of the run
+     * @param drainTimeout
+     *         maximum time (in milliseconds) to wait for the outstanding responses
+     * @return the run's results
+     * @throws InterruptedException
+     *         if the current thread is interrupted
+     */
+    LoadReport run(final long duration, final long drainTimeout) throws InterruptedException {
+        final Histogram corrected = new ConcurrentHistogram(HIGHEST_TRACKABLE_LATENCY, 3);
+        final Histogram uncorrected = new ConcurrentHistogram(HIGHEST_TRACKABLE_LATENCY, 3);
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong outstanding = new AtomicLong();
+
+        final long interval = SECONDS.toNanos(1) / rate;
+        final long start = System.nanoTime();
+        final long end = start + MILLISECONDS.toNanos(duration);
+        long sent = 0;
+        for (long intended = start; intended < end; intended = start + ++sent * interval) {
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            send(intended, corrected, uncorrected, errors, outstanding);
+        }
+
+        long deadline = System.nanoTime() + MILLISECONDS.toNanos(drainTimeout);
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long elapsed = System.nanoTime() - start;
+        return new LoadReport(rate, sent, outstanding.get(), errors.get(), elapsed, corrected, uncorrected);
+    }
+
+    private void send(final long intended,
+                      final Histogram corrected,
+                      final Histogram uncorrected,
+                      final AtomicLong errors,
+                      final AtomicLong outstanding) {
+        final long sent = System.nanoTime();
+        outstanding.incrementAndGet();
+        Request request = new Request();
+        request.setMethod("GET");
+        request.setUri(target);
+        client.handle(new RootContext(), request)
+              .thenOnResult(new ResultHandler<Response>() {
+                  @Override
+                  public void handleResult(final Response response) {
+                      try {
+                          // Consume the entity so that the transfer is part of the measure
+                          response.getEntity().getBytes();
+                          if (!response.getStatus().isSuccessful()) {
+                              errors.incrementAndGet();
+                          }
+                      } catch (Exception e) {
+                          errors.incrementAndGet();
+                      } finally {
+                          response.close();
+                          long now = System.nanoTime();
+                          corrected.recordValue(Math.min(now - intended, HIGHEST_TRACKABLE_LATENCY));
+                          uncorrected.recordValue(Math.min(now - sent, HIGHEST_TRACKABLE_LATENCY));
+                          outstanding.decrementAndGet();
+                      }
+                  }
+              });
+    }
+
+    /**
+     * Converts a latency recorded in a histogram into milliseconds.
+     *
+     * @param nanos
+     *         a latency in nanoseconds
+     * @return the latency in milliseconds
+     */
+    static double toMillis(final double nanos) {
+        return nanos / NANOSECONDS.convert(1, MILLISECONDS);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.loadtest;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.forgerock.openig.loadtest.LoadGenerator.toMillis;
+
+import java.io.PrintStream;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Results of a {@link LoadGenerator} run.
+ */
+final class LoadReport {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final int rate;
+    private final long sent;
+    private final long pending;
+    private final long errors;
+    private final long elapsed;
+    private final Histogram corrected;
+    private final Histogram uncorrected;
+
+    LoadReport(final int rate,
+               final long sent,
+               final long pending,
+               final long errors,
+               final long elapsed,
+               final Histogram corrected,
+               final Histogram uncorrected) {
+        this.rate = rate;
+        this.sent = sent;
+        this.pending = pending;
+        this.errors = errors;
+        this.elapsed = elapsed;
+        this.corrected = corrected;
+        this.uncorrected = uncorrected;
+    }
+
+    /**
+     * Returns the number of requests that were sent.
+     *
+     * @return the number of requests that were sent
+     */
+    long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns the number of responses that were received.
+     *
+     * @return the number of responses that were received
+     */
+    long getCompleted() {
+        return corrected.getTotalCount();
+    }
+
+    /**
+     * Returns the number of unsuccessful responses.
+     *
+     * @return the number of unsuccessful responses
+     */
+    long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the latency distribution measured from the intended start time of the requests.
+     *
+     * @return the coordinated-omission corrected latency distribution (nanoseconds)
+     */
+    Histogram getCorrected() {
+        return corrected;
+    }
+
+    /**
+     * Returns the latency distribution measured from the actual send time of the requests.
+     *
+     * @return the uncorrected latency distribution (nanoseconds)
+     */
+    Histogram getUncorrected() {
+        return uncorrected;
+    }
+
+    /**
+     * Returns the achieved throughput.
+     *
+     * @return the number of responses received per second
+     */
+    double getThroughput() {
+        return getCompleted() / ((double) elapsed / NANOSECONDS.convert(1, SECONDS));
+    }
+
+    /**
+     * Prints a human readable summary.
+     *
+     * @param out
+     *         where to print the summary
+     */
+    void print(final PrintStream out) {
+        out.println(format("Target rate:  %d req/s", rate));
+        out.println(format("Throughput:   %.1f req/s", getThroughput()));
+        out.println(format("Requests:     %d sent, %d completed, %d errors, %d still pending",
+                           sent, getCompleted(), errors, pending));
+        out.println(format("%-12s %14s %14s", "Latency (ms)", "corrected", "uncorrected"));
+        for (double percentile : PERCENTILES) {
+            out.println(format("%-12s %14.3f %14.3f",
+                               "p" + (percentile == Math.rint(percentile)
+                                       ? Integer.toString((int) percentile) : Double.toString(percentile)),
+                               toMillis(corrected.getValueAtPercentile(percentile)),
+                               toMillis(uncorrected.getValueAtPercentile(percentile))));
+        }
+        out.println(format("%-12s %14.3f %14.3f", "max",
+                           toMillis(corrected.getMaxValue()), toMillis(uncorrected.getMaxValue())));
+        out.println(format("%-12s %14.3f %14.3f", "mean",
+                           toMillis(corrected.getMean()), toMillis(uncorrected.getMean())));
+    }
+}
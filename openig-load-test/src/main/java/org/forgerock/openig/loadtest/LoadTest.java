@@ -0,0 +1,102 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.loadtest;
+
+import static org.forgerock.http.handler.HttpClientHandler.OPTION_MAX_CONNECTIONS;
+
+import java.io.File;
+import java.net.URI;
+
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.util.Options;
+
+/**
+ * Runs a load test of the gateway on loopback: a {@link StubBackend}, a {@link GatewayServer} proxying to it, and a
+ * {@link LoadGenerator} sending requests to the gateway.
+ * <p>
+ * The run is configured with system properties:
+ * <ul>
+ *     <li>{@literal loadtest.rate}: requests per second (default {@literal 1000})</li>
+ *     <li>{@literal loadtest.duration}: measured duration in seconds (default {@literal 30})</li>
+ *     <li>{@literal loadtest.warmup}: warm-up duration in seconds, not measured (default {@literal 10})</li>
+ *     <li>{@literal loadtest.path}: path of the requests (default {@literal /})</li>
+ *     <li>{@literal loadtest.connections}: connections of the load generator's client (default {@literal 512})</li>
+ *     <li>{@literal backend.latency}: backend latency in milliseconds (default {@literal 0})</li>
+ *     <li>{@literal backend.payload}: backend response size in bytes (default {@literal 1024})</li>
+ *     <li>{@literal gateway.connections}: connections of the gateway's {@literal ClientHandler}
+ *     (default {@literal 64})</li>
+ *     <li>{@literal gateway.routes}: directory of routes to load instead of the default proxy route (the backend's
+ *     base URI is available to them as the {@literal backend.uri} system property)</li>
+ * </ul>
+ * For example:
+ * <pre>
+ *     {@code
+ *     java -Dloadtest.rate=5000 -Dbackend.latency=20 -Dbackend.payload=16384 -jar load-test.jar
+ *     }
+ * </pre>
+ */
+public final class LoadTest {
+
+    private LoadTest() {
+    }
+
+    /**
+     * Runs the load test and prints its report on the standard output.
+     *
+     * @param args
+     *         ignored, see the class documentation for the supported system properties
+     * @throws Exception
+     *         if the load test cannot be run
+     */
+    public static void main(final String[] args) throws Exception {
+        int rate = Integer.getInteger("loadtest.rate", 1000);
+        long duration = Long.getLong("loadtest.duration", 30L) * 1000L;
+        long warmup = Long.getLong("loadtest.warmup", 10L) * 1000L;
+        String path = System.getProperty("loadtest.path", "/");
+        int clientConnections = Integer.getInteger("loadtest.connections", 512);
+        long latency = Long.getLong("backend.latency", 0L);
+        int payload = Integer.getInteger("backend.payload", 1024);
+        int gatewayConnections = Integer.getInteger("gateway.connections", 64);
+        String routes = System.getProperty("gateway.routes");
+
+        StubBackend backend = StubBackend.start(latency, payload);
+        System.setProperty("backend.uri", backend.getBaseUri());
+        GatewayServer gateway = null;
+        HttpClientHandler client = null;
+        try {
+            gateway = GatewayServer.start(backend.getBaseUri(),
+                                          gatewayConnections,
+                                          routes != null ? new File(routes) : null);
+            client = new HttpClientHandler(Options.defaultOptions()
+                                                  .set(OPTION_MAX_CONNECTIONS, clientConnections));
+            LoadGenerator generator = new LoadGenerator(client, URI.create(gateway.getBaseUri() + path), rate);
+
+            System.out.println("Warming up for " + warmup + " ms");
+            generator.run(warmup, duration);
+            System.out.println("Measuring for " + duration + " ms");
+            generator.run(duration, duration).print(System.out);
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+            if (gateway != null) {
+                gateway.stop();
+            }
+            backend.stop();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.loadtest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+
+/**
+ * Embedded Grizzly servers bound to the loopback interface.
+ */
+final class LoopbackServers {
+
+    /** Loopback address all the servers are listening on. */
+    static final String LOOPBACK = "127.0.0.1";
+
+    private LoopbackServers() {
+    }
+
+    /**
+     * Starts a new HTTP server on a free loopback port.
+     *
+     * @param name
+     *         listener name
+     * @param handler
+     *         handler serving all the requests
+     * @return the started server
+     * @throws IOException
+     *         if the server cannot be started
+     */
+    static HttpServer start(final String name, final HttpHandler handler) throws IOException {
+        HttpServer server = new HttpServer();
+        server.addListener(new NetworkListener(name, LOOPBACK, freePort()));
+        server.getServerConfiguration().addHttpHandler(handler);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Returns the port the given server is listening on.
+     *
+     * @param server
+     *         started server
+     * @return the listening port
+     */
+    static int portOf(final HttpServer server) {
+        return server.getListeners().iterator().next().getPort();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(LOOPBACK))) {
+            return socket.getLocalPort();
+        }
+    }
+}
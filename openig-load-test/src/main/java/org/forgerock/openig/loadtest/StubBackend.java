@@ -0,0 +1,129 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.loadtest;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+/**
+ * In-process backend answering every request with a fixed size payload after a fixed latency. The latency is
+ * simulated without blocking the server threads (the response is suspended, then completed by a timer), so a
+ * slow backend does not limit the number of concurrent requests.
+ */
+final class StubBackend {
+
+    private final HttpServer server;
+    private final ScheduledExecutorService timer;
+
+    private StubBackend(final HttpServer server, final ScheduledExecutorService timer) {
+        this.server = server;
+        this.timer = timer;
+    }
+
+    /**
+     * Starts a backend.
+     *
+     * @param latency
+     *         time (in milliseconds) to wait before answering, {@code 0} to answer immediately
+     * @param payloadSize
+     *         size (in bytes) of the response entity
+     * @return the started backend
+     * @throws IOException
+     *         if the server cannot be started
+     */
+    static StubBackend start(final long latency, final int payloadSize) throws IOException {
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "stub-backend-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+        HttpServer server = LoopbackServers.start("backend", new StubHandler(timer, latency, payload));
+        return new StubBackend(server, timer);
+    }
+
+    /**
+     * Returns the base URI of this backend.
+     *
+     * @return the base URI of this backend
+     */
+    String getBaseUri() {
+        return "http://" + LoopbackServers.LOOPBACK + ":" + LoopbackServers.portOf(server);
+    }
+
+    /**
+     * Stops this backend.
+     */
+    void stop() {
+        server.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    private static final class StubHandler extends HttpHandler {
+        private final ScheduledExecutorService timer;
+        private final long latency;
+        private final byte[] payload;
+
+        StubHandler(final ScheduledExecutorService timer, final long latency, final byte[] payload) {
+            this.timer = timer;
+            this.latency = latency;
+            this.payload = payload;
+        }
+
+        @Override
+        public void service(final Request request, final Response response) throws Exception {
+            if (latency <= 0) {
+                write(response);
+                return;
+            }
+            response.suspend();
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(response);
+                    } catch (IOException e) {
+                        response.setStatus(500, "Internal Server Error");
+                    } finally {
+                        response.resume();
+                    }
+                }
+            }, latency, MILLISECONDS);
+        }
+
+        private void write(final Response response) throws IOException {
+            response.setStatus(200, "OK");
+            response.setContentType("application/octet-stream");
+            response.setContentLength(payload.length);
+            response.getOutputStream().write(payload);
+        }
+    }
+}
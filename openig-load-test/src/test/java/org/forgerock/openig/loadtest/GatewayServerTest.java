@@ -0,0 +1,74 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions Copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openig.loadtest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.URI;
+
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("javadoc")
+public class GatewayServerTest {
+
+    private StubBackend backend;
+    private GatewayServer gateway;
+    private HttpClientHandler client;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        backend = StubBackend.start(5, 100);
+        gateway = GatewayServer.start(backend.getBaseUri(), 8, null);
+        client = new HttpClientHandler();
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        client.close();
+        gateway.stop();
+        backend.stop();
+    }
+
+    @Test
+    public void shouldProxyRequestsToTheBackend() throws Exception {
+        Request request = new Request().setMethod("GET").setUri(gateway.getBaseUri() + "/resource");
+        Response response = client.handle(new RootContext(), request).get();
+
+        assertThat(response.getStatus()).isEqualTo(Status.OK);
+        assertThat(response.getEntity().getBytes()).hasSize(100);
+    }
+
+    @Test
+    public void shouldSendRequestsAtTheTargetRate() throws Exception {
+        LoadGenerator generator = new LoadGenerator(client, URI.create(gateway.getBaseUri() + "/"), 100);
+        LoadReport report = generator.run(500, 5000);
+
+        assertThat(report.getSent()).isEqualTo(50);
+        assertThat(report.getCompleted()).isEqualTo(50);
+        assertThat(report.getErrors()).isZero();
+        // Latencies measured from the intended start time can only be longer
+        assertThat(report.getCorrected().getMaxValue())
+                .isGreaterThanOrEqualTo(report.getUncorrected().getMaxValue());
+    }
+}